@@ -0,0 +1,126 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the single pass foreground extraction of {@link DepthSegmenter} with the OpenCV chain
+ * it replaces: two compares for the near and far limits, bitwise_and of the masks and a masked
+ * copy into an empty Mat. Needs the native OpenCV library, therefore runs on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DepthSegmenterTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final float UNITS = 0.001f;
+
+    private final Random random = new Random(37);
+
+    @Before
+    public void loadOpenCv() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void extractForeground_matchesCompareAndCopy() {
+        // chunks that do not split the rows evenly, and a segmenter reused across pixel formats
+        DepthSegmenter segmenter = new DepthSegmenter(7);
+        for (int channels : new int[] {3, 4, 3}) {
+            final double distance = 0.5 + random.nextDouble() * 2;
+            final double near = distance - 0.25;
+            final double far = distance + 0.25;
+            segmenter.setDepth(randomDepth(distance), WIDTH, HEIGHT, UNITS);
+            Mat color = randomColor(channels);
+
+            Mat foreground = segmenter.extractForeground(color, near, far);
+            Mat mask = segmenter.getForegroundMask();
+
+            Mat nearMask = new Mat();
+            Mat farMask = new Mat();
+            Mat expectedMask = new Mat();
+            Mat expected = new Mat();
+            // the bounds of the segmenter: zero is no data, and the limits are inclusive
+            Core.compare(segmenter.getDepthMat(), new Scalar(Math.max(1, Math.ceil(near / UNITS))), nearMask, Core.CMP_GE);
+            Core.compare(segmenter.getDepthMat(), new Scalar(Math.floor(far / UNITS)), farMask, Core.CMP_LE);
+            Core.bitwise_and(nearMask, farMask, expectedMask);
+            color.copyTo(expected, expectedMask);
+
+            assertEquals(CvType.CV_8UC1, mask.type());
+            assertEquals(color.type(), foreground.type());
+            assertArrayEquals(bytes(expectedMask), bytes(mask));
+            assertArrayEquals(bytes(expected), bytes(foreground));
+            assertTrue(Core.countNonZero(mask) > 0);
+
+            color.release();
+            nearMask.release();
+            farMask.release();
+            expectedMask.release();
+            expected.release();
+        }
+        segmenter.release();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void extractForeground_requiresDepth() {
+        new DepthSegmenter().extractForeground(randomColor(3), 1, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void extractForeground_rejectsOtherSizes() {
+        DepthSegmenter segmenter = new DepthSegmenter();
+        segmenter.setDepth(randomDepth(1), WIDTH, HEIGHT, UNITS);
+        segmenter.extractForeground(new Mat(HEIGHT / 2, WIDTH / 2, CvType.CV_8UC3), 1, 2);
+    }
+
+    /**
+     * Depth around the given distance, with holes, values on the limits and values near 65535
+     */
+    private short[] randomDepth(final double distance) {
+        short[] depth = new short[WIDTH * HEIGHT];
+        final int center = (int) Math.round(distance / UNITS);
+        for (int i = 0; i < depth.length; i++) {
+            switch (random.nextInt(10)) {
+                case 0:
+                    depth[i] = 0;
+                    break;
+                case 1:
+                    depth[i] = (short) (65535 - random.nextInt(3));
+                    break;
+                case 2:
+                    // on and around the limits
+                    depth[i] = (short) (center + (random.nextBoolean() ? 250 : -250) + random.nextInt(3) - 1);
+                    break;
+                default:
+                    depth[i] = (short) (center + random.nextInt(1000) - 500);
+            }
+        }
+        return depth;
+    }
+
+    private Mat randomColor(final int channels) {
+        byte[] data = new byte[WIDTH * HEIGHT * channels];
+        random.nextBytes(data);
+        Mat color = new Mat(HEIGHT, WIDTH, CvType.CV_8UC(channels));
+        color.put(0, 0, data);
+        return color;
+    }
+
+    private static byte[] bytes(final Mat mat) {
+        byte[] data = new byte[(int) (mat.total() * mat.elemSize())];
+        mat.get(0, 0, data);
+        return data;
+    }
+}
@@ -1,18 +1,15 @@
 package com.bridgewiz.realsensecombined;
 
-import static org.opencv.core.CvType.CV_8UC1;
-
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SwitchCompat;
 
@@ -34,13 +31,9 @@ import com.intel.realsense.librealsense.StreamType;
 import com.intel.realsense.librealsense.VideoFrame;
 
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.Core;
 import org.opencv.core.CvException;
 import org.opencv.core.Mat;
-import org.opencv.core.Point;
 import org.opencv.core.Rect;
-import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
@@ -52,26 +45,38 @@ public class AutoGrabCut extends AppCompatActivity {
 
     private final String TAG = "AutoGrabCutActivity";
 
+    /**
+     * Size of the morphological refinement of the depth masks (see refineMask)
+     */
+    private static final int MORPH_SIZE = 3;
+    /**
+     * Gray levels of the black-and-white depth image above which the pixels are near
+     */
+    private static final int NEAR_LEVEL = 180;
+    /**
+     * Gray levels of the black-and-white depth image up to which the pixels are far; 0 is no data
+     */
+    private static final int FAR_LEVEL = 100;
+
     private ImageView imageView;
+    private BitmapDisplay display;
     private TextView txtStatus;
 
     private RsContext rsContext;
     private Pipeline pipeline;
     private Context appContext;
-    private final Handler handler = new Handler();
+    private final BitmapPool bitmapPool = new BitmapPool();
+    private FrameLoop frameLoop;
     private boolean isStreaming = false;
-    private boolean isContinuous = false;
-    private boolean shouldProcess = false;
-    private boolean isStopped = false;
+    private volatile boolean isContinuous = false;
+    private volatile boolean shouldProcess = false;
+    private volatile boolean isStopped = false;
 
     private Colorizer colorizer;
     private Align align;
 
-    private Mat elementSmall;
-    private Mat elementLarge;
-
     private String saveDirectoryPath;
-    private boolean shouldSave = false;
+    private volatile boolean shouldSave = false;
 
 
     @Override
@@ -94,6 +99,7 @@ public class AutoGrabCut extends AppCompatActivity {
 
         appContext = getApplicationContext();
         imageView = findViewById(R.id.imgAutoGrabCut);
+        display = new BitmapDisplay(this, imageView, bitmapPool);
         txtStatus = findViewById(R.id.txtAutoGrabCutStatus);
         final TextView txtInfo = findViewById(R.id.txtAutoGrabInfo);
 
@@ -108,7 +114,7 @@ public class AutoGrabCut extends AppCompatActivity {
         imageView.setOnClickListener(view -> {
             if (isStopped) {
                 isStopped = false;
-                imageView.setImageDrawable(null);
+                display.clear();
             }
             else {
                 shouldProcess = true;
@@ -116,7 +122,6 @@ public class AutoGrabCut extends AppCompatActivity {
         });
 
         // The following methods require OpenCV to be loaded
-        createMorphElements();
         initializeMats();
     }
 
@@ -164,127 +169,112 @@ public class AutoGrabCut extends AppCompatActivity {
 
     // Extract Mats outside
     Mat colorMat;
-    Mat near;
-    Mat far;
-    Mat zeroMask;
+    Mat bwDepthMat;
+    Mat gray;
     Mat mask;
-    Mat maskPrBGD;
-    Mat maskFGD;
     Mat bgModel;
     Mat fgModel;
     Mat foreground;
-    Mat gcFgdMask;
-    Mat gcPrFgdMask;
     Mat gcCombinedFgMask;
+    BitMask nearBits;
+    BitMask farBits;
+    BitMask foregroundBits;
+    BitMask probableForegroundBits;
 
     /**
      * Initializes Mat objects used in processing
      */
     private void initializeMats() {
-        zeroMask = new Mat();
+        colorMat = new Mat();
+        bwDepthMat = new Mat();
+        gray = new Mat();
         mask = new Mat();
-        maskPrBGD = new Mat();
-        maskFGD = new Mat();
         bgModel = new Mat();
         fgModel = new Mat();
         foreground = new Mat();
-        gcFgdMask = new Mat();
-        gcPrFgdMask = new Mat();
         gcCombinedFgMask = new Mat();
+        nearBits = new BitMask();
+        farBits = new BitMask();
+        foregroundBits = new BitMask();
+        probableForegroundBits = new BitMask();
     }
 
     /**
-     * Runnable that does the processing
+     * Frame processor that does the processing
      */
-    Runnable mStreaming = new Runnable() {
+    FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
             if (isStopped) {
                 if (shouldSave) {
                     try {
                         String imagePath = CvHelpers.createImagePath(saveDirectoryPath, "auto");
                         CvHelpers.SwapAndSave(imagePath, foreground);
                         shouldSave = false;
-                        Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show();
+                        runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show());
                     }
                     catch (Exception e) {
                         Log.e(TAG, "run: Failed to save image", e);
                     }
                 }
-                handler.post(mStreaming);
                 return;
             }
-            try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = pipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processedFrameSet = frameSet
-                            .applyFilter(align).releaseWith(frameReleaser);
-
-                    VideoFrame colorFrame = processedFrameSet.first(StreamType.COLOR).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
-                    colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
-
-                    if (!isContinuous && !shouldProcess) {
-                        Bitmap colorBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                        runOnUiThread(()->imageView.setImageBitmap(colorBitmap));
-                    }
-                    else {
-                        DepthFrame depthFrame = processedFrameSet.first(StreamType.DEPTH).releaseWith(frameReleaser).as(Extension.DEPTH_FRAME);
-                        // create a black-and-white depth image (white near, black far)
-                        colorizer.setValue(Option.COLOR_SCHEME, 2);
-                        Frame bwDepthFrame = depthFrame.applyFilter(colorizer).releaseWith(frameReleaser);
-                        // create near mask - assume values 180+ are near
-                        near = CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME));
-                        Imgproc.cvtColor(near, near, Imgproc.COLOR_BGR2GRAY);
-                        createMaskFromDepth(near, 180, Imgproc.THRESH_BINARY);
-
-                        // create far mask
-                        far = CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME));
-                        Imgproc.cvtColor(far, far, Imgproc.COLOR_BGR2GRAY);
-                        // Note: 0 value does not indicate pixel near the camera, and requires special attention
-                        // Also Mat == 0 does not work in java
-                        Core.compare(far, new Scalar(0), zeroMask, Core.CMP_EQ);
-                        far.setTo(new Scalar(255), zeroMask);
-                        createMaskFromDepth(far, 100, Imgproc.THRESH_BINARY_INV);
-
-                        mask.create(near.size(), CV_8UC1);
-                        mask.setTo(Scalar.all(Imgproc.GC_BGD)); // Default guess is background
-
-                        Core.compare(far, new Scalar(0), maskPrBGD, Core.CMP_EQ);
-                        mask.setTo(Scalar.all(Imgproc.GC_PR_BGD), maskPrBGD); // relax this
-
-                        Core.compare(near, new Scalar(255), maskFGD, Core.CMP_EQ);
-                        mask.setTo(Scalar.all(Imgproc.GC_FGD), maskFGD);
-
-                        // Run Grab-Cut
-                        Imgproc.grabCut(colorMat, mask, new Rect(), bgModel, fgModel, 1, Imgproc.GC_INIT_WITH_MASK);
-
-                        // Extract foreground pixel based on the refined mask from the grab-cut
-                        Core.compare(mask, new Scalar(Imgproc.GC_FGD), gcFgdMask, Core.CMP_EQ);
-                        Core.compare(mask, new Scalar(Imgproc.GC_PR_FGD), gcPrFgdMask, Core.CMP_EQ);
-
-                        // Combine masks, | operator is not overloaded in java
-                        Core.bitwise_or(gcFgdMask, gcPrFgdMask, gcCombinedFgMask);
-
-                        // clear foreground image every frame
-                        foreground = new Mat();
-                        colorMat.copyTo(foreground, gcCombinedFgMask);
-
-                        try {
-                            Bitmap bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(foreground);
-                            runOnUiThread(() -> imageView.setImageBitmap(bitmap));
-                            // reset shouldProcess
-                            shouldProcess = false;
-                            // stop only if we are not in continuous mode
-                            isStopped = !isContinuous;
-                        } catch (CvException e) {
-                            Log.e(TAG, "run: Conversion error", e);
-                        }
-                    }
-                }
-                handler.post(mStreaming);
+            FrameSet processedFrameSet = frameSet
+                    .applyFilter(align).releaseWith(frameReleaser);
+
+            VideoFrame colorFrame = processedFrameSet.first(StreamType.COLOR).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
+            CvHelpers.VideoFrame2Mat(colorFrame, colorMat);
+
+            if (!isContinuous && !shouldProcess) {
+                display.show(colorMat);
             }
-            catch (Exception e) {
-                Log.e(TAG, "run: Streaming error", e);
+            else {
+                DepthFrame depthFrame = processedFrameSet.first(StreamType.DEPTH).releaseWith(frameReleaser).as(Extension.DEPTH_FRAME);
+                // create a black-and-white depth image (white near, black far)
+                colorizer.setValue(Option.COLOR_SCHEME, 2);
+                Frame bwDepthFrame = depthFrame.applyFilter(colorizer).releaseWith(frameReleaser);
+                // convert the depth image once; both masks are thresholded from its grayscale copy
+                CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME), bwDepthMat);
+                Imgproc.cvtColor(bwDepthMat, gray, Imgproc.COLOR_BGR2GRAY);
+
+                // near mask - assume values above NEAR_LEVEL are near
+                refineMask(nearBits.fromMat(gray, NEAR_LEVEL + 1, 255));
+
+                // far mask - 0 value does not indicate a pixel near the camera, it is no data,
+                // therefore it is neither near nor far
+                refineMask(farBits.fromMat(gray, 1, FAR_LEVEL));
+
+                // the pixels that are not far are probably background (relax this), the far
+                // pixels are background and the near pixels are foreground; the grab-cut mask is
+                // the only 8 bit mask, written from the bits
+                farBits.toMat(mask, Imgproc.GC_BGD, Imgproc.GC_PR_BGD);
+                nearBits.paint(mask, Imgproc.GC_FGD);
+
+                // Run Grab-Cut
+                Imgproc.grabCut(colorMat, mask, new Rect(), bgModel, fgModel, 1, Imgproc.GC_INIT_WITH_MASK);
+
+                // Extract foreground pixel based on the refined mask from the grab-cut; the
+                // foreground and probably foreground labels are combined as bits
+                foregroundBits.fromMat(mask, Imgproc.GC_FGD)
+                        .or(probableForegroundBits.fromMat(mask, Imgproc.GC_PR_FGD))
+                        .toMat(gcCombinedFgMask);
+
+                // clear foreground image every frame; released with the frame unless it is kept
+                Mat result = matReleaser.newMat();
+                colorMat.copyTo(result, gcCombinedFgMask);
+
+                try {
+                    display.show(result);
+                    // keep the result for saving
+                    foreground.release();
+                    foreground = matReleaser.promote(result);
+                    // reset shouldProcess
+                    shouldProcess = false;
+                    // stop only if we are not in continuous mode
+                    isStopped = !isContinuous;
+                } catch (CvException e) {
+                    Log.e(TAG, "run: Conversion error", e);
+                }
             }
         }
     };
@@ -314,6 +304,7 @@ public class AutoGrabCut extends AppCompatActivity {
         pipeline = new Pipeline();
         colorizer = new Colorizer();
         align = new Align(StreamType.COLOR);
+        frameLoop = new FrameLoop(TAG, pipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()){
             if (list.getDeviceCount() > 0) {
@@ -333,7 +324,7 @@ public class AutoGrabCut extends AppCompatActivity {
         try {
             configAndStart();
             isStreaming = true;
-            handler.post(mStreaming);
+            frameLoop.start();
         }
         catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -348,7 +339,7 @@ public class AutoGrabCut extends AppCompatActivity {
 
         try {
             isStreaming = false;
-            handler.removeCallbacks(mStreaming);
+            frameLoop.stop();
             pipeline.stop();
         }
         catch (Exception e) {
@@ -372,37 +363,13 @@ public class AutoGrabCut extends AppCompatActivity {
 
     //region Image Processing
     /**
-     * Creates the required morphological operation elements
-     */
-    private void createMorphElements() {
-        final int erosionSize = 3;
-        elementSmall = createElement(erosionSize);
-        elementLarge = createElement(erosionSize * 2);
-    }
-
-    /**
-     * Creates a generic square morphological operation element
-     * @param elementSize One side of square element
-     * @return The square element
-     */
-    private Mat createElement(int elementSize) {
-        return Imgproc.getStructuringElement(
-                Imgproc.MORPH_RECT,
-                new Size(elementSize + 1, elementSize + 1),
-                new Point(elementSize, elementSize)
-        );
-    }
-
-    /**
-     * Converts the given depth image (Mat) into a mask image
-     * @param depth Depth image of type Mat
-     * @param thresh Threshold value
-     * @param threshType Threshold type
+     * Removes the small holes and the thin regions of the given depth mask; the same as a
+     * dilation with a square element of MORPH_SIZE + 1 pixels, followed by an erosion with a
+     * square element of 2 * MORPH_SIZE + 1 pixels, both anchored at the bottom-right corner
+     * @param mask Depth mask
      */
-    private void createMaskFromDepth(Mat depth, double thresh, int threshType) {
-        Imgproc.threshold(depth, depth, thresh, 255, threshType);
-        Imgproc.dilate(depth, depth, elementSmall);
-        Imgproc.erode(depth, depth, elementLarge);
+    private void refineMask(BitMask mask) {
+        mask.dilate(MORPH_SIZE).erode(MORPH_SIZE * 2);
     }
 
     //endregion
@@ -0,0 +1,606 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary image mask that stores one bit per pixel, 64 pixels per long word. Each row starts at
+ * a new word, so the rows can be scanned word by word, and the padding bits after the last
+ * column of a row are always zero. Compared to a 0/255 CV_8UC1 Mat it is 8 times smaller, and
+ * the boolean operations work on 64 pixels at a time.
+ * <p>
+ * The runs of a row are found with nextSetBit / nextClearBit and their reverse counterparts,
+ * e.g. the run containing x spans [previousClearBit(y, x) + 1, nextClearBit(y, x) - 1].
+ * A mask can be thresholded straight from the raw depth and dilated / eroded in place, so
+ * Mats are needed only at the display and OpenCV edges, through fromMat / toMat.
+ * <p>
+ * Not thread-safe.
+ */
+public class BitMask {
+
+    private int width;
+    private int height;
+    private int wordsPerRow;
+    private long[] words;
+    private long lastWordMask;
+
+    // scratch of the Mat conversions
+    private byte[] pixels;
+
+    /**
+     * Creates an empty (0 x 0) mask; it is sized on the first fromMat, copyFrom or resize call
+     */
+    public BitMask() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a mask with all the bits clear
+     * @param width Mask width in pixels
+     * @param height Mask height in pixels
+     */
+    public BitMask(final int width, final int height) {
+        words = new long[0];
+        resize(width, height);
+    }
+
+    /**
+     * Resizes the mask if the given size differs from the current one; the contents are
+     * undefined after a resize
+     * @param width Mask width in pixels
+     * @param height Mask height in pixels
+     * @return This mask
+     */
+    @NonNull
+    public BitMask resize(final int width, final int height) {
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("resize: negative size");
+        if (width == this.width && height == this.height)
+            return this;
+
+        this.width = width;
+        this.height = height;
+        wordsPerRow = (width + 63) >>> 6;
+        if (words.length < wordsPerRow * height)
+            words = new long[wordsPerRow * height];
+        lastWordMask = (width & 63) == 0 ? -1L : (1L << (width & 63)) - 1;
+        return clear();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param x Column
+     * @param y Row
+     * @return True if the bit of the pixel is set
+     */
+    public boolean get(final int x, final int y) {
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * @param x Column
+     * @param y Row
+     * @param value New value of the bit of the pixel
+     */
+    public void set(final int x, final int y, final boolean value) {
+        final int index = y * wordsPerRow + (x >>> 6);
+        if (value)
+            words[index] |= 1L << x;
+        else
+            words[index] &= ~(1L << x);
+    }
+
+    /**
+     * Clears all the bits
+     * @return This mask
+     */
+    @NonNull
+    public BitMask clear() {
+        Arrays.fill(words, 0, wordsPerRow * height, 0L);
+        return this;
+    }
+
+    /**
+     * Sets all the bits
+     * @return This mask
+     */
+    @NonNull
+    public BitMask fill() {
+        Arrays.fill(words, 0, wordsPerRow * height, -1L);
+        clearPadding();
+        return this;
+    }
+
+    /**
+     * Copies the size and the bits of the given mask
+     * @param other Source mask
+     * @return This mask
+     */
+    @NonNull
+    public BitMask copyFrom(@NonNull final BitMask other) {
+        resize(other.width, other.height);
+        System.arraycopy(other.words, 0, words, 0, wordsPerRow * height);
+        return this;
+    }
+
+    /**
+     * this = this AND other
+     * @param other Mask with the same size
+     * @return This mask
+     */
+    @NonNull
+    public BitMask and(@NonNull final BitMask other) {
+        checkSize(other);
+        final int count = wordsPerRow * height;
+        for (int i = 0; i < count; i++)
+            words[i] &= other.words[i];
+        return this;
+    }
+
+    /**
+     * this = this OR other
+     * @param other Mask with the same size
+     * @return This mask
+     */
+    @NonNull
+    public BitMask or(@NonNull final BitMask other) {
+        checkSize(other);
+        final int count = wordsPerRow * height;
+        for (int i = 0; i < count; i++)
+            words[i] |= other.words[i];
+        return this;
+    }
+
+    /**
+     * this = this AND NOT other
+     * @param other Mask with the same size
+     * @return This mask
+     */
+    @NonNull
+    public BitMask andNot(@NonNull final BitMask other) {
+        checkSize(other);
+        final int count = wordsPerRow * height;
+        for (int i = 0; i < count; i++)
+            words[i] &= ~other.words[i];
+        return this;
+    }
+
+    /**
+     * this = NOT this
+     * @return This mask
+     */
+    @NonNull
+    public BitMask not() {
+        final int count = wordsPerRow * height;
+        for (int i = 0; i < count; i++)
+            words[i] = ~words[i];
+        clearPadding();
+        return this;
+    }
+
+    /**
+     * @return Number of set bits
+     */
+    public int cardinality() {
+        int count = 0;
+        final int wordCount = wordsPerRow * height;
+        for (int i = 0; i < wordCount; i++)
+            count += Long.bitCount(words[i]);
+        return count;
+    }
+
+    /**
+     * @param y Row
+     * @return Number of set bits in the given row
+     */
+    public int cardinality(final int y) {
+        int count = 0;
+        final int end = (y + 1) * wordsPerRow;
+        for (int i = y * wordsPerRow; i < end; i++)
+            count += Long.bitCount(words[i]);
+        return count;
+    }
+
+    /**
+     * @param y Row
+     * @param fromX First column to check
+     * @return Column of the first set bit at or after fromX in the row, -1 if there is none
+     */
+    public int nextSetBit(final int y, final int fromX) {
+        if (fromX >= width)
+            return -1;
+        final int base = y * wordsPerRow;
+        int i = Math.max(0, fromX) >>> 6;
+        long word = words[base + i] & (-1L << Math.max(0, fromX));
+        while (true) {
+            if (word != 0)
+                return (i << 6) + Long.numberOfTrailingZeros(word);
+            if (++i == wordsPerRow)
+                return -1;
+            word = words[base + i];
+        }
+    }
+
+    /**
+     * @param y Row
+     * @param fromX First column to check
+     * @return Column of the first clear bit at or after fromX in the row, width if there is none
+     */
+    public int nextClearBit(final int y, final int fromX) {
+        if (fromX >= width)
+            return width;
+        final int base = y * wordsPerRow;
+        int i = Math.max(0, fromX) >>> 6;
+        long word = ~words[base + i] & (-1L << Math.max(0, fromX));
+        while (true) {
+            if (word != 0)
+                return Math.min(width, (i << 6) + Long.numberOfTrailingZeros(word));
+            if (++i == wordsPerRow)
+                return width;
+            word = ~words[base + i];
+        }
+    }
+
+    /**
+     * @param y Row
+     * @param fromX Last column to check
+     * @return Column of the last set bit at or before fromX in the row, -1 if there is none
+     */
+    public int previousSetBit(final int y, final int fromX) {
+        if (fromX < 0 || width == 0)
+            return -1;
+        final int x = Math.min(fromX, width - 1);
+        final int base = y * wordsPerRow;
+        int i = x >>> 6;
+        long word = words[base + i] & (-1L >>> (63 - (x & 63)));
+        while (true) {
+            if (word != 0)
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (i-- == 0)
+                return -1;
+            word = words[base + i];
+        }
+    }
+
+    /**
+     * @param y Row
+     * @param fromX Last column to check
+     * @return Column of the last clear bit at or before fromX in the row, -1 if there is none
+     */
+    public int previousClearBit(final int y, final int fromX) {
+        if (fromX < 0)
+            return -1;
+        if (fromX >= width)
+            return fromX;
+        final int base = y * wordsPerRow;
+        int i = fromX >>> 6;
+        long word = ~words[base + i] & (-1L >>> (63 - (fromX & 63)));
+        while (true) {
+            if (word != 0)
+                return (i << 6) + 63 - Long.numberOfLeadingZeros(word);
+            if (i-- == 0)
+                return -1;
+            word = ~words[base + i];
+        }
+    }
+
+    /**
+     * Dilates the mask in place with a square element of (size + 1) x (size + 1) pixels anchored
+     * at its bottom-right corner: a bit becomes set if any bit of the window that spans size
+     * pixels to the left of and above it is set. The same as Imgproc.dilate with
+     * getStructuringElement(MORPH_RECT, (size + 1, size + 1), (size, size)).
+     * @param size Element size minus one (0 - 63)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask dilate(final int size) {
+        checkElementSize(size);
+        if (size == 0)
+            return this;
+        // horizontal pass; the words of a row are updated from the last one, so the previous
+        // word is still the original
+        for (int y = 0; y < height; y++) {
+            final int base = y * wordsPerRow;
+            for (int i = wordsPerRow - 1; i >= 0; i--) {
+                final long word = words[base + i];
+                final long previous = i > 0 ? words[base + i - 1] : 0L;
+                long result = word;
+                for (int k = 1; k <= size; k++)
+                    result |= (word << k) | (previous >>> (64 - k));
+                words[base + i] = result;
+            }
+        }
+        clearPadding();
+        // vertical pass; the rows are updated from the last one, so the rows above are still
+        // the result of the horizontal pass
+        for (int y = height - 1; y > 0; y--) {
+            final int base = y * wordsPerRow;
+            for (int r = Math.max(0, y - size); r < y; r++) {
+                final int other = r * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++)
+                    words[base + i] |= words[other + i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Erodes the mask in place with the element of {@link #dilate(int)}: a bit stays set only
+     * if all the bits of its window are set. The pixels outside the mask are ignored, as by
+     * Imgproc.erode with the default border.
+     * @param size Element size minus one (0 - 63)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask erode(final int size) {
+        checkElementSize(size);
+        if (size == 0)
+            return this;
+        for (int y = 0; y < height; y++) {
+            final int base = y * wordsPerRow;
+            for (int i = wordsPerRow - 1; i >= 0; i--) {
+                final long word = words[base + i];
+                // the columns before the first one are ignored, i.e. treated as set
+                final long previous = i > 0 ? words[base + i - 1] : -1L;
+                long result = word;
+                for (int k = 1; k <= size; k++)
+                    result &= (word << k) | (previous >>> (64 - k));
+                words[base + i] = result;
+            }
+        }
+        clearPadding();
+        for (int y = height - 1; y > 0; y--) {
+            final int base = y * wordsPerRow;
+            for (int r = Math.max(0, y - size); r < y; r++) {
+                final int other = r * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++)
+                    words[base + i] &= words[other + i];
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the bits of the pixels whose raw depth is within the given bounds, resizing this mask
+     * if needed. Pixels without depth data (zero) are never inside.
+     * @param depth Raw depth (row major, index = row * width + column); read with the absolute getters
+     * @param width Image width
+     * @param height Image height
+     * @param lowerBound Lower bound in depth units (inclusive)
+     * @param upperBound Upper bound in depth units (inclusive)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask fromDepth(@NonNull final ShortBuffer depth, final int width, final int height,
+                             final int lowerBound, final int upperBound) {
+        resize(width, height);
+        final int low = Math.max(1, lowerBound);
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                final int x0 = i << 6;
+                final int n = Math.min(64, width - x0);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    final int d = depth.get(rowStart + x0 + b) & 0xFFFF;
+                    if (d >= low && d <= upperBound)
+                        word |= 1L << b;
+                }
+                words[base + i] = word;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the bits of the non-zero pixels of the given mask Mat, resizing this mask if needed
+     * @param src Mask Mat (CV_8UC1, continuous)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask fromMat(@NonNull final Mat src) {
+        readPixels(src);
+        final byte[] pixels = this.pixels;
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                final int x0 = i << 6;
+                final int n = Math.min(64, width - x0);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    if (pixels[rowStart + x0 + b] != 0)
+                        word |= 1L << b;
+                }
+                words[base + i] = word;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the bits of the pixels of the given Mat that are equal to the given value, e.g. the
+     * GC_FGD pixels of a grab-cut mask; resizes this mask if needed
+     * @param src Mat (CV_8UC1, continuous)
+     * @param value Pixel value (0 - 255)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask fromMat(@NonNull final Mat src, final int value) {
+        readPixels(src);
+        final byte[] pixels = this.pixels;
+        final byte v = (byte) value;
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                final int x0 = i << 6;
+                final int n = Math.min(64, width - x0);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    if (pixels[rowStart + x0 + b] == v)
+                        word |= 1L << b;
+                }
+                words[base + i] = word;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the bits of the pixels of the given Mat that are within the given bounds, e.g. a
+     * threshold of a grayscale image; resizes this mask if needed
+     * @param src Mat (CV_8UC1, continuous)
+     * @param lowerBound Lower bound (inclusive, 0 - 255)
+     * @param upperBound Upper bound (inclusive, 0 - 255)
+     * @return This mask
+     */
+    @NonNull
+    public BitMask fromMat(@NonNull final Mat src, final int lowerBound, final int upperBound) {
+        readPixels(src);
+        final byte[] pixels = this.pixels;
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                final int x0 = i << 6;
+                final int n = Math.min(64, width - x0);
+                long word = 0;
+                for (int b = 0; b < n; b++) {
+                    final int value = pixels[rowStart + x0 + b] & 0xFF;
+                    if (value >= lowerBound && value <= upperBound)
+                        word |= 1L << b;
+                }
+                words[base + i] = word;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes the mask as a 0/255 Mat
+     * @param dst Destination Mat; becomes CV_8UC1 with the mask size
+     * @return The destination Mat
+     */
+    @NonNull
+    public Mat toMat(@NonNull final Mat dst) {
+        return toMat(dst, 255, 0);
+    }
+
+    /**
+     * Writes the mask into a Mat, e.g. the initial labels of grab-cut
+     * @param dst Destination Mat; becomes CV_8UC1 with the mask size
+     * @param setValue Pixel value of the set bits (0 - 255)
+     * @param clearValue Pixel value of the clear bits (0 - 255)
+     * @return The destination Mat
+     */
+    @NonNull
+    public Mat toMat(@NonNull final Mat dst, final int setValue, final int clearValue) {
+        dst.create(height, width, CvType.CV_8UC1);
+        ensurePixels();
+        final byte[] pixels = this.pixels;
+        final byte set = (byte) setValue;
+        final byte clear = (byte) clearValue;
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                final int x0 = i << 6;
+                final int n = Math.min(64, width - x0);
+                final long word = words[base + i];
+                for (int b = 0; b < n; b++)
+                    pixels[rowStart + x0 + b] = (word & (1L << b)) != 0 ? set : clear;
+            }
+        }
+        dst.put(0, 0, pixels);
+        return dst;
+    }
+
+    /**
+     * Sets the pixels of the given Mat to the given value where the bits are set; the other
+     * pixels are not changed
+     * @param dst Mat (CV_8UC1, continuous) with the mask size
+     * @param value Pixel value (0 - 255)
+     * @return The destination Mat
+     */
+    @NonNull
+    public Mat paint(@NonNull final Mat dst, final int value) {
+        if (dst.cols() != width || dst.rows() != height)
+            throw new IllegalArgumentException("paint: Mat size does not match the mask");
+        readPixels(dst);
+        final byte[] pixels = this.pixels;
+        final byte v = (byte) value;
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            final int base = y * wordsPerRow;
+            for (int i = 0; i < wordsPerRow; i++) {
+                long word = words[base + i];
+                while (word != 0) {
+                    pixels[rowStart + (i << 6) + Long.numberOfTrailingZeros(word)] = v;
+                    word &= word - 1;
+                }
+            }
+        }
+        dst.put(0, 0, pixels);
+        return dst;
+    }
+
+    /**
+     * Resizes the mask to the given Mat and copies its pixels into the scratch array
+     * @param src Mat (CV_8UC1, continuous)
+     */
+    private void readPixels(final Mat src) {
+        if (src.type() != CvType.CV_8UC1 || !src.isContinuous())
+            throw new IllegalArgumentException("readPixels: Mat should be a continuous CV_8UC1 Mat");
+        resize(src.cols(), src.rows());
+        ensurePixels();
+        src.get(0, 0, pixels);
+    }
+
+    /**
+     * Allocates the scratch array of the Mat conversions if the mask size has grown
+     */
+    private void ensurePixels() {
+        if (pixels == null || pixels.length != width * height)
+            pixels = new byte[width * height];
+    }
+
+    /**
+     * Clears the padding bits after the last column of each row
+     */
+    private void clearPadding() {
+        if (lastWordMask == -1L || wordsPerRow == 0)
+            return;
+        for (int y = 0; y < height; y++)
+            words[(y + 1) * wordsPerRow - 1] &= lastWordMask;
+    }
+
+    /**
+     * @param size Element size minus one of dilate / erode
+     */
+    private static void checkElementSize(final int size) {
+        if (size < 0 || size > 63)
+            throw new IllegalArgumentException("checkElementSize: element size should be within [0, 63]");
+    }
+
+    /**
+     * @param other Mask to compare
+     */
+    private void checkSize(final BitMask other) {
+        if (other.width != width || other.height != height)
+            throw new IllegalArgumentException("checkSize: mask sizes do not match");
+    }
+}
@@ -0,0 +1,110 @@
+package com.bridgewiz.realsensecombined;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvException;
+import org.opencv.core.Mat;
+
+/**
+ * Shows the Mats produced by a frame loop on an ImageView through pooled bitmaps, with
+ * triple buffering: at any time one bitmap is shown on the view, at most one is posted and
+ * waiting for the UI thread, and a free one is written. A bitmap is written only after it has
+ * been replaced on the view, so the view never shows a bitmap that is being written.
+ * A posted bitmap that is superseded before the UI thread shows it goes straight back to the pool.
+ */
+public class BitmapDisplay {
+
+    private final Activity activity;
+    private final ImageView imageView;
+    private final BitmapPool pool;
+
+    // guarded by lock
+    private final Object lock = new Object();
+    private Bitmap pendingBitmap;
+    private Bitmap shownBitmap;
+
+    private final Runnable showPending = this::showPending;
+
+    /**
+     * @param activity Activity that owns the view; used to post the updates to the UI thread
+     * @param imageView View to show the bitmaps on
+     * @param pool Pool to obtain the bitmaps from; may be shared by the displays of an activity
+     */
+    public BitmapDisplay(@NonNull Activity activity, @NonNull ImageView imageView, @NonNull BitmapPool pool) {
+        this.activity = activity;
+        this.imageView = imageView;
+        this.pool = pool;
+    }
+
+    /**
+     * Converts the given Mat into a pooled bitmap and posts it to the view. Can be called from
+     * any thread.
+     * @param mat Mat instance (8UC1, 8UC3 or 8UC4)
+     * @throws CvException on conversion failure
+     */
+    public void show(@NonNull final Mat mat) throws CvException {
+        Bitmap bitmap = pool.obtain(mat.cols(), mat.rows(), Bitmap.Config.ARGB_8888);
+        try {
+            CvHelpers.ColorMat2Bitmap(mat, bitmap);
+        }
+        catch (CvException e) {
+            pool.recycle(bitmap);
+            throw e;
+        }
+
+        Bitmap superseded;
+        synchronized (lock) {
+            superseded = pendingBitmap;
+            pendingBitmap = bitmap;
+        }
+        // a posted update is already waiting if there was a pending bitmap; it will show the new one
+        if (superseded != null)
+            pool.recycle(superseded);
+        else
+            activity.runOnUiThread(showPending);
+    }
+
+    /**
+     * Removes the image from the view and returns the bitmaps to the pool. Should be called
+     * on the UI thread.
+     */
+    public void clear() {
+        Bitmap pending;
+        Bitmap shown;
+        synchronized (lock) {
+            pending = pendingBitmap;
+            shown = shownBitmap;
+            pendingBitmap = null;
+            shownBitmap = null;
+        }
+        imageView.setImageDrawable(null);
+        if (pending != null)
+            pool.recycle(pending);
+        if (shown != null)
+            pool.recycle(shown);
+    }
+
+    /**
+     * Shows the pending bitmap on the view and returns the previously shown one to the pool.
+     * Runs on the UI thread.
+     */
+    private void showPending() {
+        Bitmap bitmap;
+        Bitmap previous;
+        synchronized (lock) {
+            bitmap = pendingBitmap;
+            if (bitmap == null)
+                return;
+            pendingBitmap = null;
+            previous = shownBitmap;
+            shownBitmap = bitmap;
+        }
+        imageView.setImageBitmap(bitmap);
+        if (previous != null)
+            pool.recycle(previous);
+    }
+}
@@ -0,0 +1,117 @@
+package com.bridgewiz.realsensecombined;
+
+import android.graphics.Bitmap;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Pool of the mutable bitmaps used in displaying the processed Mats, keyed by the bitmap size
+ * and config. A bitmap is returned to the pool once it is neither shown nor about to be shown
+ * (see {@link BitmapDisplay}), so the frame loops stop allocating bitmaps once the pool is warm.
+ * <p>
+ * The pool is thread-safe; bitmaps are obtained on the processing thread and usually
+ * returned on the UI thread.
+ */
+public class BitmapPool {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * Maximum number of free bitmaps kept per key; the extra ones are left to the GC
+     */
+    private static final int MAX_FREE_PER_KEY = 4;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private Bitmap[][] freeBitmaps = new Bitmap[INITIAL_CAPACITY][];
+    private int[] freeCounts = new int[INITIAL_CAPACITY];
+    private int count = 0;
+
+    /**
+     * Returns a free bitmap of the given size and config, creating one if there is none
+     * @param width Bitmap width
+     * @param height Bitmap height
+     * @param config Bitmap config
+     * @return Mutable bitmap; its contents are undefined
+     */
+    @NonNull
+    public synchronized Bitmap obtain(final int width, final int height, @NonNull final Bitmap.Config config) {
+        final int index = indexOf(createKey(width, height, config));
+        if (index >= 0 && freeCounts[index] > 0) {
+            freeCounts[index]--;
+            Bitmap bitmap = freeBitmaps[index][freeCounts[index]];
+            freeBitmaps[index][freeCounts[index]] = null;
+            return bitmap;
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns the given bitmap to the pool. The bitmap must not be shown or written anymore.
+     * @param bitmap Bitmap obtained from this pool
+     */
+    public synchronized void recycle(@NonNull final Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable())
+            return;
+
+        final long key = createKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        int index = indexOf(key);
+        if (index < 0)
+            index = add(key);
+        if (freeCounts[index] < MAX_FREE_PER_KEY) {
+            freeBitmaps[index][freeCounts[index]] = bitmap;
+            freeCounts[index]++;
+        }
+    }
+
+    /**
+     * Drops all the free bitmaps of the pool
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < count; i++) {
+            Arrays.fill(freeBitmaps[i], null);
+            freeCounts[i] = 0;
+        }
+    }
+
+    /**
+     * @param key Pool key
+     * @return Index of the given key, -1 if not present
+     */
+    private int indexOf(final long key) {
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an empty free list for the given key
+     * @param key Pool key
+     * @return Index of the added key
+     */
+    private int add(final long key) {
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            freeBitmaps = Arrays.copyOf(freeBitmaps, count * 2);
+            freeCounts = Arrays.copyOf(freeCounts, count * 2);
+        }
+        keys[count] = key;
+        freeBitmaps[count] = new Bitmap[MAX_FREE_PER_KEY];
+        freeCounts[count] = 0;
+        return count++;
+    }
+
+    /**
+     * Creates the pool key of a bitmap
+     * @param width Bitmap width (< 2^24)
+     * @param height Bitmap height (< 2^24)
+     * @param config Bitmap config
+     * @return Key packed into a single long
+     */
+    private static long createKey(final int width, final int height, final Bitmap.Config config) {
+        return ((long) config.ordinal() << 48) | ((long) width << 24) | height;
+    }
+}
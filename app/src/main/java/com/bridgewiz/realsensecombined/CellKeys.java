@@ -0,0 +1,74 @@
+package com.bridgewiz.realsensecombined;
+
+/**
+ * Packs the integer coordinates of a cell of a 3D grid (a voxel, a TSDF block or an octree
+ * cell) into a non-negative long, the key of a {@link LongIntHashMap}. Each axis takes 21 bits
+ * and is offset by 2^20, so the coordinates within [-2^20, 2^20) can be packed; the other cells
+ * get INVALID_KEY.
+ */
+public final class CellKeys {
+
+    /**
+     * Key of the cells that can not be packed; never a key of a LongIntHashMap
+     */
+    public static final long INVALID_KEY = -1;
+
+    private static final int AXIS_BITS = 21;
+    private static final int AXIS_OFFSET = 1 << (AXIS_BITS - 1);
+    private static final int AXIS_MASK = (1 << AXIS_BITS) - 1;
+
+    private CellKeys() {
+    }
+
+    /**
+     * @param x Cell x coordinate
+     * @param y Cell y coordinate
+     * @param z Cell z coordinate
+     * @return Packed coordinates; INVALID_KEY if a coordinate is out of [-2^20, 2^20)
+     */
+    public static long pack(final int x, final int y, final int z) {
+        if (x < -AXIS_OFFSET || y < -AXIS_OFFSET || z < -AXIS_OFFSET
+                || x >= AXIS_OFFSET || y >= AXIS_OFFSET || z >= AXIS_OFFSET)
+            return INVALID_KEY;
+        return ((long) (x + AXIS_OFFSET) << (2 * AXIS_BITS)) | ((long) (y + AXIS_OFFSET) << AXIS_BITS) | (z + AXIS_OFFSET);
+    }
+
+    /**
+     * @param x x coordinate in cell units
+     * @param y y coordinate in cell units
+     * @param z z coordinate in cell units
+     * @return Packed coordinates of the cell that contains the given position; INVALID_KEY if
+     * it is out of the packable range or not a number
+     */
+    public static long packFloor(final float x, final float y, final float z) {
+        // also rejects NaN and the infinities, which the int conversion would clamp
+        if (!(x >= -AXIS_OFFSET && y >= -AXIS_OFFSET && z >= -AXIS_OFFSET
+                && x < AXIS_OFFSET && y < AXIS_OFFSET && z < AXIS_OFFSET))
+            return INVALID_KEY;
+        return pack((int) Math.floor(x), (int) Math.floor(y), (int) Math.floor(z));
+    }
+
+    /**
+     * @param key Valid key
+     * @return Cell x coordinate
+     */
+    public static int unpackX(final long key) {
+        return (int) (key >>> (2 * AXIS_BITS)) - AXIS_OFFSET;
+    }
+
+    /**
+     * @param key Valid key
+     * @return Cell y coordinate
+     */
+    public static int unpackY(final long key) {
+        return (int) ((key >>> AXIS_BITS) & AXIS_MASK) - AXIS_OFFSET;
+    }
+
+    /**
+     * @param key Valid key
+     * @return Cell z coordinate
+     */
+    public static int unpackZ(final long key) {
+        return (int) (key & AXIS_MASK) - AXIS_OFFSET;
+    }
+}
@@ -4,15 +4,14 @@ import static org.opencv.core.CvType.CV_8UC1;
 import static org.opencv.core.CvType.CV_8UC3;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.intel.realsense.librealsense.Align;
@@ -43,7 +42,6 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 
@@ -53,16 +51,19 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
 
     private ImageView imageViewColor;
     private ImageView imageViewChart;
+    private BitmapDisplay colorDisplay;
+    private BitmapDisplay chartDisplay;
+    private final BitmapPool bitmapPool = new BitmapPool();
     private TextView txtStatus;
 
     private RsContext rsContext;
     private Pipeline pipeline;
     private Context appContext;
-    private final Handler handler = new Handler();
+    private FrameLoop frameLoop;
 
     private boolean isStreaming = false;
-    private boolean isFrozen = false;
-    private boolean shouldSave = false;
+    private volatile boolean isFrozen = false;
+    private volatile boolean shouldSave = false;
 
     private Align align;
 
@@ -92,6 +93,8 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
         appContext = getApplicationContext();
         imageViewColor = findViewById(R.id.imgCentralDistanceChartColor);
         imageViewChart = findViewById(R.id.imgCentralDistanceChartChart);
+        colorDisplay = new BitmapDisplay(this, imageViewColor, bitmapPool);
+        chartDisplay = new BitmapDisplay(this, imageViewChart, bitmapPool);
         txtStatus = findViewById(R.id.txtCentralDistanceChartDistance);
 
         imageViewColor.setOnClickListener(view -> freezeImage());
@@ -150,110 +153,120 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
 
     private Mat colorMat;
     private Mat chartMat;
+    private DepthFrameConverter depthFrameConverter;
+    private short[] depthRow;
+    private final RowEdgeDetector rowEdgeDetector = new RowEdgeDetector();
 
     List<MatOfPoint> points = new ArrayList<>();
 
 
     private void initializeMats() {
-
+        colorMat = new Mat();
+        chartMat = new Mat();
+        depthFrameConverter = new DepthFrameConverter();
     }
 
-    private final Runnable mStreaming = new Runnable() {
+    private final FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
             if (isFrozen) {
                 if (shouldSave) {
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "color"), colorMat);
                     CvHelpers.Save(CvHelpers.createImagePath(saveDirectoryPath, "chart"), chartMat);
                     shouldSave = false;
-                    Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show();
+                    runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show());
                 }
-                handler.post(mStreaming);
                 return;
             }
 
-            try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = pipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
-
-                    VideoFrame colorFrame = processedFrameSet
-                            .first(StreamType.COLOR)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.VIDEO_FRAME);
-                    colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
-
-                    DepthFrame depthFrame = processedFrameSet
-                            .first(StreamType.DEPTH)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.DEPTH_FRAME);
-
-                    int depthWidth = depthFrame.getWidth();
-                    int halfDepthHeight = depthFrame.getHeight() / 2;
-
-
-                    // get the depth at the center in meters
-                    float centralDistance = depthFrame.getDistance(depthWidth / 2, halfDepthHeight);
-                    updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(centralDistance)));
-
-                    // create central depth chart
-
-                    // get mid-height distance values
-                    ArrayList<Float> distanceList = new ArrayList<>(depthWidth);
-                    for (int i = 0; i < depthWidth; i++) {
-                        distanceList.add(depthFrame.getDistance(i, halfDepthHeight));
-                    }
-
-                    float maxDistance = (float) Collections.max(distanceList);
-                    // assume 10 px margin at chart top, left, and right
-                    int chartHeight = 600;
-                    float scaleY = (chartHeight - 10) / maxDistance;
-                    int chartWidth = 800;
-                    float scaleX = (chartWidth - 20) / ((float) depthWidth);
-
-                    chartMat = new Mat(chartHeight, chartWidth, CV_8UC3);
-                    chartMat.setTo(Scalar.all(255));
-                    points.clear();
-                    MatOfPoint polyline = new MatOfPoint();
-
-                    List<Point> polyLinePoints = new ArrayList<>(depthWidth);
-                    List<MatOfPoint> polyLinePointsList = new ArrayList<>(1);
-
-                    for (int i = 0; i < depthWidth; i++) {
-                        float d = distanceList.get(i);
-                        polyLinePoints.add(new Point(10 + i * scaleX, (chartHeight - 10) - d * scaleY));
-                    }
-
-                    polyline.fromList(polyLinePoints);
-                    polyLinePointsList.add(polyline);
-                    Imgproc.polylines(chartMat, polyLinePointsList, false, Scalar.all(0),2);
-                    Imgproc.line(chartMat, new Point(chartWidth / 2.0, 0), new Point(chartWidth / 2.0, chartHeight), new Scalar(255, 0, 0), 4);
-
-                    try {
-                        Bitmap chartBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(chartMat);
-                        runOnUiThread(() -> imageViewChart.setImageBitmap(chartBitmap));
-                    } catch (CvException cve) {
-                        Log.e(TAG, "run: Conversion error on chart", cve);
-                    }
-
-                    // draw cross-hair
-                    try  {
-                        int rows = colorMat.rows();
-                        int cols = colorMat.cols();
-                        Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
-                        Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
-                        Bitmap colorBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                        runOnUiThread(() -> imageViewColor.setImageBitmap(colorBitmap));
-                    } catch (CvException cve) {
-                        Log.e(TAG, "run: Conversion error on color", cve);
-                    }
+            FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
+
+            VideoFrame colorFrame = processedFrameSet
+                    .first(StreamType.COLOR)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.VIDEO_FRAME);
+            CvHelpers.VideoFrame2Mat(colorFrame, colorMat);
+
+            DepthFrame depthFrame = processedFrameSet
+                    .first(StreamType.DEPTH)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.DEPTH_FRAME);
+
+            int depthWidth = depthFrame.getWidth();
+            int halfDepthHeight = depthFrame.getHeight() / 2;
+
+
+            // get the depth at the center in meters
+            float centralDistance = depthFrame.getDistance(depthWidth / 2, halfDepthHeight);
+            updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(centralDistance)));
+
+            // create central depth chart
+
+            // get mid-height distance values; a single row read from the raw depth instead of
+            // a getDistance call per pixel
+            Mat depthMat = depthFrameConverter.convert(depthFrame);
+            if (depthRow == null || depthRow.length != depthWidth)
+                depthRow = new short[depthWidth];
+            depthMat.get(halfDepthHeight, 0, depthRow);
+            float units = depthFrameConverter.getUnits();
+
+            float maxDistance = 0;
+            for (int i = 0; i < depthWidth; i++) {
+                maxDistance = Math.max(maxDistance, (depthRow[i] & 0xFFFF) * units);
+            }
+            // assume 10 px margin at chart top, left, and right
+            int chartHeight = 600;
+            float scaleY = (chartHeight - 10) / maxDistance;
+            int chartWidth = 800;
+            float scaleX = (chartWidth - 20) / ((float) depthWidth);
+
+            chartMat.create(chartHeight, chartWidth, CV_8UC3);
+            chartMat.setTo(Scalar.all(255));
+            points.clear();
+            MatOfPoint polyline = matReleaser.add(new MatOfPoint());
+
+            List<Point> polyLinePoints = new ArrayList<>(depthWidth);
+            List<MatOfPoint> polyLinePointsList = new ArrayList<>(1);
+
+            for (int i = 0; i < depthWidth; i++) {
+                float d = (depthRow[i] & 0xFFFF) * units;
+                polyLinePoints.add(new Point(10 + i * scaleX, (chartHeight - 10) - d * scaleY));
+            }
+
+            polyline.fromList(polyLinePoints);
+            polyLinePointsList.add(polyline);
+            Imgproc.polylines(chartMat, polyLinePointsList, false, Scalar.all(0),2);
+            Imgproc.line(chartMat, new Point(chartWidth / 2.0, 0), new Point(chartWidth / 2.0, chartHeight), new Scalar(255, 0, 0), 4);
+
+            // mark the edges of the central object: the pixels within center distance
+            // +- maxExpectedDiameter/2 that are connected to the center on the row
+            double maxExpectedDiameter = 0.5; // meters
+            int lowerBound = (int) Math.ceil((centralDistance - maxExpectedDiameter / 2) / units);
+            int upperBound = (int) Math.floor((centralDistance + maxExpectedDiameter / 2) / units);
+            if (rowEdgeDetector.detect(depthRow, depthWidth, depthWidth / 2, lowerBound, upperBound)) {
+                for (int edge : new int[] {rowEdgeDetector.getLeftEdge(), rowEdgeDetector.getRightEdge()}) {
+                    double x = 10 + edge * scaleX;
+                    Imgproc.line(chartMat, new Point(x, 0), new Point(x, chartHeight), new Scalar(0, 255, 0), 2);
                 }
-                handler.post(mStreaming);
             }
-            catch (Exception e) {
-                Log.e(TAG, "run: Streaming error", e);
+            Log.d(TAG, "run: Edge detection took " + rowEdgeDetector.getLastNanos() + " ns");
+
+            try {
+                chartDisplay.show(chartMat);
+            } catch (CvException cve) {
+                Log.e(TAG, "run: Conversion error on chart", cve);
             }
 
+            // draw cross-hair
+            try  {
+                int rows = colorMat.rows();
+                int cols = colorMat.cols();
+                Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
+                Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
+                colorDisplay.show(colorMat);
+            } catch (CvException cve) {
+                Log.e(TAG, "run: Conversion error on color", cve);
+            }
         }
     };
 
@@ -281,6 +294,7 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
         rsContext.setDevicesChangedCallback(deviceListener);
         pipeline = new Pipeline();
         align = new Align(StreamType.COLOR);
+        frameLoop = new FrameLoop(TAG, pipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
@@ -298,7 +312,7 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
         try {
             configAndStart();
             isStreaming = true;
-            handler.post(mStreaming);
+            frameLoop.start();
         }
         catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -312,7 +326,7 @@ public class CentralDistanceChartActivity extends AppCompatActivity {
         if (!isStreaming) return;
 
         try {
-            handler.removeCallbacks(mStreaming);
+            frameLoop.stop();
             pipeline.stop();
             isStreaming = false;
 
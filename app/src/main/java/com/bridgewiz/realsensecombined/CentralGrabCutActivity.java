@@ -1,30 +1,24 @@
 package com.bridgewiz.realsensecombined;
 
-import static org.opencv.core.CvType.CV_8UC1;
-
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.intel.realsense.librealsense.Align;
-import com.intel.realsense.librealsense.Colorizer;
 import com.intel.realsense.librealsense.Config;
 import com.intel.realsense.librealsense.DepthFrame;
 import com.intel.realsense.librealsense.DeviceList;
 import com.intel.realsense.librealsense.DeviceListener;
 import com.intel.realsense.librealsense.Extension;
-import com.intel.realsense.librealsense.Frame;
 import com.intel.realsense.librealsense.FrameReleaser;
 import com.intel.realsense.librealsense.FrameSet;
-import com.intel.realsense.librealsense.Option;
 import com.intel.realsense.librealsense.Pipeline;
 import com.intel.realsense.librealsense.PipelineProfile;
 import com.intel.realsense.librealsense.RsContext;
@@ -38,7 +32,6 @@ import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
-import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
@@ -52,25 +45,29 @@ public class CentralGrabCutActivity extends AppCompatActivity {
 
     private final String TAG = "CentralGrabCutActivity";
 
+    /**
+     * Size of the morphological refinement of the depth masks (see refineMask)
+     */
+    private static final int MORPH_SIZE = 3;
+
     private ImageView imageViewColor;
     private ImageView imageViewForeground;
+    private BitmapDisplay colorDisplay;
+    private BitmapDisplay foregroundDisplay;
+    private final BitmapPool bitmapPool = new BitmapPool();
     private TextView txtStatus;
 
     private RsContext rsContext;
     private Pipeline pipeline;
     private Context appContext;
-    private final Handler handler = new Handler();
+    private FrameLoop frameLoop;
     private boolean isStreaming = false;
-    private boolean shouldProcess = false;
-    private boolean isFrozen = false;
-    private boolean shouldSave = false;
+    private volatile boolean shouldProcess = false;
+    private volatile boolean isFrozen = false;
+    private volatile boolean shouldSave = false;
 
-    private Colorizer colorizer;
     private Align align;
 
-    private Mat elementSmall;
-    private Mat elementLarge;
-
     private String saveDirectoryPath;
 
     private final DecimalFormat decimalFormat = new DecimalFormat("#.##");
@@ -96,12 +93,13 @@ public class CentralGrabCutActivity extends AppCompatActivity {
         appContext = getApplicationContext();
         imageViewColor = findViewById(R.id.imgCentralGrabCutColor);
         imageViewForeground = findViewById(R.id.imgCentralGrabCutForeground);
+        colorDisplay = new BitmapDisplay(this, imageViewColor, bitmapPool);
+        foregroundDisplay = new BitmapDisplay(this, imageViewForeground, bitmapPool);
         txtStatus = findViewById(R.id.txtCentralGrabCutDistance);
 
         imageViewColor.setOnClickListener(view -> processImage());
         imageViewForeground.setOnClickListener(view -> saveImage());
 
-        createMorphElements();
         initializeMats();
     }
 
@@ -118,7 +116,6 @@ public class CentralGrabCutActivity extends AppCompatActivity {
 
         if (rsContext != null)
             rsContext.close();
-        colorizer.close();
         align.close();
         pipeline.close();
     }
@@ -154,10 +151,7 @@ public class CentralGrabCutActivity extends AppCompatActivity {
 
     // Extract Mats outside
     Mat colorMat;
-    Mat zeroMask;
     Mat mask;
-    Mat maskPrBGD;
-    Mat maskFGD;
     Mat bgModel;
     Mat fgModel;
     Mat foreground;
@@ -168,17 +162,20 @@ public class CentralGrabCutActivity extends AppCompatActivity {
     Mat far;
     Mat tree;
     Mat combinedBg;
-    Mat bwDepthMatMaster;
+    BitMask nearBits;
+    BitMask farBits;
+    BitMask backgroundBits;
+    BitMask treeBits;
+    DepthSegmenter depthSegmenter;
 
 
     /**
      * Initializes Mat objects used in processing
      */
     private void initializeMats() {
-        zeroMask = new Mat();
+        colorMat = new Mat();
+        depthSegmenter = new DepthSegmenter();
         mask = new Mat();
-        maskPrBGD = new Mat();
-        maskFGD = new Mat();
         bgModel = new Mat();
         fgModel = new Mat();
         foreground = new Mat();
@@ -189,17 +186,25 @@ public class CentralGrabCutActivity extends AppCompatActivity {
         far = new Mat();
         tree = new Mat();
         combinedBg = new Mat();
-
+        nearBits = new BitMask();
+        farBits = new BitMask();
+        backgroundBits = new BitMask();
+        treeBits = new BitMask();
     }
 
-    private final Runnable mStreaming = new Runnable() {
+    private final FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
 
             if (isFrozen) {
                 if (shouldSave) {
-                    String imagePath = CvHelpers.createImagePath(saveDirectoryPath, "bwDepthMaster");
-                    CvHelpers.SwapAndSave(imagePath, bwDepthMatMaster);
+                    // the bit masks are converted only when saved
+                    treeBits.toMat(tree);
+                    backgroundBits.toMat(combinedBg);
+                    nearBits.toMat(near);
+                    farBits.toMat(far);
+                    String imagePath = CvHelpers.createImagePath(saveDirectoryPath, "tree");
+                    CvHelpers.SwapAndSave(imagePath, tree);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "near"), near);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "far"), far);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "combinedBg"), combinedBg);
@@ -207,121 +212,96 @@ public class CentralGrabCutActivity extends AppCompatActivity {
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "gcFgdMask"), gcFgdMask);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "gcPrFgdMask"), gcPrFgdMask);
                     shouldSave = false;
-                    Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show();
+                    runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show());
                 }
-                handler.post(mStreaming);
                 return;
             }
 
-            try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = pipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
-
-                    VideoFrame colorFrame = processedFrameSet
-                            .first(StreamType.COLOR)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.VIDEO_FRAME);
-
-                    colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
-
-
-
-                    DepthFrame depthFrame = processedFrameSet
-                            .first(StreamType.DEPTH)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.DEPTH_FRAME);
+            FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
 
+            VideoFrame colorFrame = processedFrameSet
+                    .first(StreamType.COLOR)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.VIDEO_FRAME);
 
+            CvHelpers.VideoFrame2Mat(colorFrame, colorMat);
 
-                    // get the depth at center, both in terms of meters
-                    float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
-                    updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(distance)));
 
-                    if (shouldProcess) {
-                        // dev - for checking correctness of depthFrameMat values
-//                        Mat depthMat = CvHelpers.DepthFrame2Mat(depthFrame);
-//                        Mat dum = new Mat();
-//                        depthMat.convertTo(dum, CV_64F);
-//                        double distancePx = dum.get(dum.rows()/2, dum.cols()/2)[0];
-//                        double distancePxMeters = distancePx * depthFrame.getUnits();
-//                        Log.d(TAG, String.format("DistancePx: %f Units: %f distance: %f", distancePx, depthFrame.getUnits(), distancePxMeters));
 
-                        // get grayscale depth image
-                        colorizer.setValue(Option.COLOR_SCHEME, 2);
-                        Frame bwDepthFrame = depthFrame.applyFilter(colorizer).releaseWith(frameReleaser);
+            DepthFrame depthFrame = processedFrameSet
+                    .first(StreamType.DEPTH)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.DEPTH_FRAME);
 
-                        bwDepthMatMaster = CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME));
-                        Imgproc.cvtColor(bwDepthMatMaster, bwDepthMatMaster, Imgproc.COLOR_BGR2GRAY);
 
-                        // depth value of center in grayscale 8 bit depth image
-                        double du = bwDepthMatMaster.get(bwDepthMatMaster.rows() / 2, bwDepthMatMaster.cols() / 2)[0];
-                        // the differential value; any values different than center +- delta/2 will be background
-                        double maxExpectedDiameter = 0.5; // meters
-                        double delta = du * maxExpectedDiameter / distance / 2.0;
 
-                        double thresholdFar = du - delta;
-                        double thresholdNear = du + delta;
+            // get the depth at center, both in terms of meters
+            float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
+            updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(distance)));
 
-                        Log.d(TAG, String.format("run: far %s near %s", thresholdFar, thresholdNear));
+            if (shouldProcess) {
+                // dev - for checking correctness of depthFrameMat values
+//                Mat depthMat = CvHelpers.DepthFrame2Mat(depthFrame);
+//                Mat dum = new Mat();
+//                depthMat.convertTo(dum, CV_64F);
+//                double distancePx = dum.get(dum.rows()/2, dum.cols()/2)[0];
+//                double distancePxMeters = distancePx * depthFrame.getUnits();
+//                Log.d(TAG, String.format("DistancePx: %f Units: %f distance: %f", distancePx, depthFrame.getUnits(), distancePxMeters));
 
-                        near = bwDepthMatMaster.clone();
-                        createMaskFromDepth(near, thresholdNear, Imgproc.THRESH_BINARY);
+                // any pixels farther than center distance +- maxExpectedDiameter/2 will be background
+                double maxExpectedDiameter = 0.5; // meters
+                double thresholdNear = distance - maxExpectedDiameter / 2.0;
+                double thresholdFar = distance + maxExpectedDiameter / 2.0;
 
-                        far = bwDepthMatMaster.clone();
-                        createMaskFromDepth(far, thresholdFar, Imgproc.THRESH_BINARY_INV);
+                Log.d(TAG, String.format("run: far %s near %s", thresholdFar, thresholdNear));
 
-                        // combine near and far backgrounds
-                        Core.bitwise_or(near, far, combinedBg);
+                // bit masks thresholded on the raw depth in meters
+                depthSegmenter.setDepthFrame(depthFrame);
 
-                        // the foreground is the inverse of background
-                        Core.bitwise_not(combinedBg, tree);
+                refineMask(depthSegmenter.createBitMask(0, thresholdNear, nearBits));
 
-                        mask.create(near.size(), CV_8UC1);
-                        mask.setTo(Scalar.all(Imgproc.GC_BGD)); // default guess is background
+                // pixels without depth data are far as well
+                refineMask(depthSegmenter.createBitMask(0, thresholdFar, farBits).not());
 
-                        Core.compare(far, new Scalar(255), maskPrBGD, Core.CMP_EQ);
-                        mask.setTo(Scalar.all(Imgproc.GC_PR_BGD), maskPrBGD);
+                // combine near and far backgrounds
+                backgroundBits.copyFrom(nearBits).or(farBits);
 
-                        Core.compare(near, new Scalar(255), maskPrBGD, Core.CMP_EQ);
-                        mask.setTo(Scalar.all(Imgproc.GC_PR_BGD), maskPrBGD);
+                // the foreground is the inverse of background
+                treeBits.copyFrom(backgroundBits).not();
 
-                        Core.compare(tree, new Scalar(255), maskFGD, Core.CMP_EQ);
-                        mask.setTo(Scalar.all(Imgproc.GC_FGD), maskFGD);
+                // near and far are probably background, and the rest is foreground; since the
+                // three cover the whole image, the grab-cut mask is written in a single pass
+                treeBits.toMat(mask, Imgproc.GC_FGD, Imgproc.GC_PR_BGD);
 
-                        Imgproc.grabCut(colorMat, mask, new Rect(), bgModel, fgModel, 1, Imgproc.GC_INIT_WITH_MASK);
+                Imgproc.grabCut(colorMat, mask, new Rect(), bgModel, fgModel, 1, Imgproc.GC_INIT_WITH_MASK);
 
-                        Core.compare(mask, new Scalar(Imgproc.GC_FGD), gcFgdMask, Core.CMP_EQ);
-                        Core.compare(mask, new Scalar(Imgproc.GC_PR_FGD), gcPrFgdMask, Core.CMP_EQ);
-                        // Probably-Foreground mask is inaccurate??
-//                        Core.bitwise_or(gcFgdMask, gcPrFgdMask, gcCombinedFgMask);
+                Core.compare(mask, new Scalar(Imgproc.GC_FGD), gcFgdMask, Core.CMP_EQ);
+                Core.compare(mask, new Scalar(Imgproc.GC_PR_FGD), gcPrFgdMask, Core.CMP_EQ);
+                // Probably-Foreground mask is inaccurate??
+//                Core.bitwise_or(gcFgdMask, gcPrFgdMask, gcCombinedFgMask);
 
-                        foreground = new Mat();
-                        colorMat.copyTo(foreground, gcFgdMask);
+                // released with the frame unless the result is frozen
+                Mat result = matReleaser.newMat();
+                colorMat.copyTo(result, gcFgdMask);
 
-                        try {
-                            Bitmap bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(foreground);
-                            runOnUiThread(()-> imageViewForeground.setImageBitmap(bitmap));
-                            shouldProcess = false;
-                            isFrozen = true;
-                        } catch (CvException e) {
-                            Log.e(TAG, "run: Conversion error", e);
-                        }
-                    }
-
-                    // draw cross-hair
-                    int rows = colorMat.rows();
-                    int cols = colorMat.cols();
-                    Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
-                    Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
-                    Bitmap colorBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                    runOnUiThread(() -> imageViewColor.setImageBitmap(colorBitmap));
+                try {
+                    foregroundDisplay.show(result);
+                    // keep the frozen result
+                    foreground.release();
+                    foreground = matReleaser.promote(result);
+                    shouldProcess = false;
+                    isFrozen = true;
+                } catch (CvException e) {
+                    Log.e(TAG, "run: Conversion error", e);
                 }
-                handler.post(mStreaming);
-            }
-            catch (Exception e) {
-                Log.e(TAG, "run: Streaming error", e);
             }
+
+            // draw cross-hair
+            int rows = colorMat.rows();
+            int cols = colorMat.cols();
+            Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
+            Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
+            colorDisplay.show(colorMat);
         }
     };
 
@@ -348,8 +328,8 @@ public class CentralGrabCutActivity extends AppCompatActivity {
         rsContext = new RsContext();
         rsContext.setDevicesChangedCallback(deviceListener);
         pipeline = new Pipeline();
-        colorizer = new Colorizer();
         align = new Align(StreamType.COLOR);
+        frameLoop = new FrameLoop(TAG, pipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
@@ -367,7 +347,7 @@ public class CentralGrabCutActivity extends AppCompatActivity {
         try {
             configAndStart();
             isStreaming = true;
-            handler.post(mStreaming);
+            frameLoop.start();
         }
         catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -381,7 +361,7 @@ public class CentralGrabCutActivity extends AppCompatActivity {
         if (!isStreaming) return;
 
         try {
-            handler.removeCallbacks(mStreaming);
+            frameLoop.stop();
             pipeline.stop();
             isStreaming = false;
 
@@ -408,7 +388,7 @@ public class CentralGrabCutActivity extends AppCompatActivity {
     private synchronized void processImage() {
         if (isFrozen) {
             isFrozen = false;
-            imageViewForeground.setImageDrawable(null);
+            foregroundDisplay.clear();
         }
         else {
             shouldProcess = true;
@@ -418,37 +398,13 @@ public class CentralGrabCutActivity extends AppCompatActivity {
     //region Image Processing
 
     /**
-     * Creates the required morphological operation elements
-     */
-    private void createMorphElements() {
-        final int erosionSize = 3;
-        elementSmall = createElement(erosionSize);
-        elementLarge = createElement(erosionSize * 2);
-    }
-
-    /**
-     * Creates a generic square morphological operation element
-     * @param elementSize One side of square element
-     * @return The square element
-     */
-    private Mat createElement(int elementSize) {
-        return Imgproc.getStructuringElement(
-                Imgproc.MORPH_RECT,
-                new Size(elementSize + 1, elementSize + 1),
-                new Point(elementSize, elementSize)
-        );
-    }
-
-    /**
-     * Converts the given depth image (Mat) into a mask image
-     * @param depth Depth image of type Mat
-     * @param thresh Threshold value
-     * @param threshType Threshold type
+     * Removes the small holes and the thin regions of the given depth mask; the same as a
+     * dilation with a square element of MORPH_SIZE + 1 pixels, followed by an erosion with a
+     * square element of 2 * MORPH_SIZE + 1 pixels, both anchored at the bottom-right corner
+     * @param mask Depth mask
      */
-    private void createMaskFromDepth(Mat depth, double thresh, int threshType) {
-        Imgproc.threshold(depth, depth, thresh, 255, threshType);
-        Imgproc.dilate(depth, depth, elementSmall);
-        Imgproc.erode(depth, depth, elementLarge);
+    private void refineMask(BitMask mask) {
+        mask.dilate(MORPH_SIZE).erode(MORPH_SIZE * 2);
     }
 
     //endregion
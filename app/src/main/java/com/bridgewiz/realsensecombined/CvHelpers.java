@@ -13,6 +13,7 @@ import com.intel.realsense.librealsense.VideoFrame;
 
 import org.opencv.android.Utils;
 import org.opencv.core.CvException;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
@@ -26,11 +27,20 @@ import java.util.Locale;
 public class CvHelpers {
 
     private static final String TAG = "CvHelpers";
+
+    // pixel buffer of the RGBA path of ColorMat2Bitmap, reused by each frame loop thread
+    private static final ThreadLocal<byte[]> rgbaPixels = new ThreadLocal<>();
+
     /**
      * The date formatter used to format dates in creating file names.
      */
     public static final SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH-mm-ss", Locale.US);
 
+    /**
+     * Scratch buffer pools of the threads that convert frames; each processing thread gets its own pool
+     */
+    private static final ThreadLocal<FrameBufferPool> frameBufferPools = ThreadLocal.withInitial(FrameBufferPool::new);
+
     /**
      * Converts the given lib-sense VideoFrame (not DepthFrame) to OpenCV Mat.
      * @param frame VideoFrame instance
@@ -42,11 +52,44 @@ public class CvHelpers {
         final int bufferSize = (int)(frameMat.total() * frameMat.elemSize());
         byte[] dataBuffer = new byte[bufferSize];
         frame.getData(dataBuffer);
-        ByteBuffer.wrap(dataBuffer).order(ByteOrder.LITTLE_ENDIAN).asReadOnlyBuffer().get(dataBuffer);
         frameMat.put(0,0, dataBuffer);
         return frameMat;
     }
 
+    /**
+     * Converts the given lib-sense VideoFrame (8 bits per channel, e.g. RGB8 or the output of a
+     * Colorizer) into the given Mat, using the scratch buffer pool of the calling thread. The Mat
+     * is (re)allocated only if its size or type does not match the frame, therefore converting
+     * the frames of a stream into the same Mat does not allocate in steady state.
+     * @param frame VideoFrame instance
+     * @param dst Destination Mat; becomes CV_8UC(bytes per pixel) with the frame size
+     * @return The destination Mat
+     */
+    @NonNull
+    public static Mat VideoFrame2Mat(@NonNull final VideoFrame frame, @NonNull final Mat dst) {
+        return VideoFrame2Mat(frame, dst, frameBufferPools.get());
+    }
+
+    /**
+     * Converts the given lib-sense VideoFrame (8 bits per channel, e.g. RGB8 or the output of a
+     * Colorizer) into the given Mat, using the scratch buffer of the given pool.
+     * @param frame VideoFrame instance
+     * @param dst Destination Mat; becomes CV_8UC(bytes per pixel) with the frame size
+     * @param pool Scratch buffer pool; should not be shared between threads
+     * @return The destination Mat
+     */
+    @NonNull
+    public static Mat VideoFrame2Mat(@NonNull final VideoFrame frame, @NonNull final Mat dst, @NonNull final FrameBufferPool pool) {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        final int bytesPerPixel = frame.getBitsPerPixel() / 8;
+        dst.create(height, width, CvType.CV_8UC(bytesPerPixel));
+        byte[] dataBuffer = pool.obtainBuffer(width, height, bytesPerPixel);
+        frame.getData(dataBuffer);
+        dst.put(0, 0, dataBuffer);
+        return dst;
+    }
+
     /**
      * Converts an 16 bit Z16 type depth frame to CV_16UC1 Mat instance
      * @param frame Depth frame instance (16 bit Z16 type)
@@ -82,6 +125,38 @@ public class CvHelpers {
         }
     }
 
+    /**
+     * Converts the given OpenCV Mat into the given Android.graphics.Bitmap without allocating
+     * a new bitmap. Continuous RGBA Mats (8UC4) are copied directly into the bitmap pixels with
+     * copyPixelsFromBuffer, without the color conversion and alpha pre-multiplication pass, so
+     * their alpha should be opaque; 8UC1 and 8UC3 Mats are converted to RGBA.
+     * @param mat Mat instance (8UC1, 8UC3 or 8UC4)
+     * @param bitmap Bitmap instance (ARGB_8888) with the same size as the Mat
+     * @return The given bitmap
+     */
+    @NonNull
+    public static Bitmap ColorMat2Bitmap(@NonNull final Mat mat, @NonNull final Bitmap bitmap) throws CvException {
+        try {
+            if (mat.type() == CvType.CV_8UC4 && mat.isContinuous()) {
+                final int size = (int) (mat.total() * mat.elemSize());
+                byte[] pixels = rgbaPixels.get();
+                if (pixels == null || pixels.length != size) {
+                    pixels = new byte[size];
+                    rgbaPixels.set(pixels);
+                }
+                mat.get(0, 0, pixels);
+                bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            }
+            else
+                Utils.matToBitmap(mat, bitmap);
+            return bitmap;
+        }
+        catch (CvException e) {
+            Log.e(TAG, "ColorMat2Bitmap: conversion error", e);
+            throw e;
+        }
+    }
+
     /**
      * Converts the given Mat from RGB to BGR, and then saves as the given file name
      * @param path Path to save
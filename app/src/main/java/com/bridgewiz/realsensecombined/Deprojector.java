@@ -0,0 +1,274 @@
+package com.bridgewiz.realsensecombined;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.DepthFrame;
+import com.intel.realsense.librealsense.Extension;
+import com.intel.realsense.librealsense.Intrinsic;
+import com.intel.realsense.librealsense.PipelineProfile;
+import com.intel.realsense.librealsense.StreamProfile;
+import com.intel.realsense.librealsense.StreamProfileList;
+import com.intel.realsense.librealsense.StreamType;
+import com.intel.realsense.librealsense.VideoStreamProfile;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Sparse replacement of the lib-realsense Pointcloud filter: computes the 3D coordinates of only
+ * the requested pixels, straight from the raw depth, instead of all the vertices of a frame.
+ * <p>
+ * The intrinsics of the stream are read once (e.g. from the PipelineProfile returned by the
+ * Pipeline::start), and the normalized ray of each pixel, (u - ppx) / fx and (v - ppy) / fy, is
+ * precomputed into a column and a row table. The coordinates of pixel (u, v) are then
+ * z = depth * units, x = rayX[u] * z and y = rayY[v] * z, the same as rs2_deproject_pixel_to_point
+ * without a distortion model. The aligned depth of the activities uses the color intrinsics.
+ * <p>
+ * The depth frame is copied once per frame; the getters can be used from multiple threads after
+ * that (e.g. by fork-join tasks), but setDepthFrame should not be called concurrently with them.
+ */
+public class Deprojector {
+
+    private static final String TAG = "Deprojector";
+
+    private final DepthFrameConverter depthFrameConverter = new DepthFrameConverter();
+
+    private int width = -1;
+    private int height = -1;
+    private float[] rayX = new float[0];
+    private float[] rayY = new float[0];
+    private float ppx;
+    private float ppy;
+    private float fx;
+    private float fy;
+
+    private ShortBuffer depth;
+    private float units = Float.NaN;
+
+    /**
+     * Precomputes the ray tables of the given pinhole intrinsics
+     * @param width Image width
+     * @param height Image height
+     * @param ppx Principal point x in pixels
+     * @param ppy Principal point y in pixels
+     * @param fx Focal length x in pixels
+     * @param fy Focal length y in pixels
+     */
+    public synchronized void setIntrinsics(final int width, final int height, final float ppx, final float ppy,
+                                           final float fx, final float fy) {
+        if (rayX.length != width)
+            rayX = new float[width];
+        if (rayY.length != height)
+            rayY = new float[height];
+        for (int u = 0; u < width; u++)
+            rayX[u] = (u - ppx) / fx;
+        for (int v = 0; v < height; v++)
+            rayY[v] = (v - ppy) / fy;
+        this.ppx = ppx;
+        this.ppy = ppy;
+        this.fx = fx;
+        this.fy = fy;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Reads the intrinsics of the given stream from the pipeline profile and precomputes the ray tables
+     * @param profile Pipeline profile returned by Pipeline::start
+     * @param streamType Stream whose intrinsics are used; COLOR for the depth aligned to color
+     * @return True if the stream is found in the profile
+     * @throws Exception on intrinsics query failure
+     */
+    public boolean setIntrinsics(@NonNull final PipelineProfile profile, @NonNull final StreamType streamType) throws Exception {
+        try (StreamProfileList streams = profile.getStreams()) {
+            for (int i = 0; i < streams.getProfileCount(); i++) {
+                StreamProfile stream = streams.getProfile(i);
+                if (stream.getType() != streamType)
+                    continue;
+                VideoStreamProfile videoStream = stream.as(Extension.VIDEO_PROFILE);
+                Intrinsic intrinsic = videoStream.getIntrinsic();
+                setIntrinsics(intrinsic.getWidth(), intrinsic.getHeight(),
+                        intrinsic.getPpx(), intrinsic.getPpy(), intrinsic.getFx(), intrinsic.getFy());
+                Log.d(TAG, String.format("setIntrinsics: %s %dx%d fx %f fy %f", streamType,
+                        intrinsic.getWidth(), intrinsic.getHeight(), intrinsic.getFx(), intrinsic.getFy()));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if the intrinsics are set
+     */
+    public synchronized boolean hasIntrinsics() {
+        return width > 0;
+    }
+
+    /**
+     * Copies the raw depth of the given frame; the following calls deproject its pixels
+     * @param frame Depth frame with the size of the intrinsics
+     */
+    public void setDepthFrame(@NonNull final DepthFrame frame) {
+        synchronized (this) {
+            if (frame.getWidth() != width || frame.getHeight() != height)
+                throw new IllegalStateException(String.format("setDepthFrame: frame size %dx%d does not match the intrinsics %dx%d",
+                        frame.getWidth(), frame.getHeight(), width, height));
+        }
+        depthFrameConverter.convert(frame);
+        depth = depthFrameConverter.getDepthBuffer();
+        units = depthFrameConverter.getUnits();
+    }
+
+    /**
+     * Uses the given raw depth instead of a depth frame, e.g. a depth image rendered from a
+     * {@link TsdfVolume}; the following calls deproject its pixels
+     * @param depth Raw depth with the size of the intrinsics (row major); not copied
+     * @param units Metres per depth unit
+     */
+    public void setDepth(@NonNull final ShortBuffer depth, final float units) {
+        synchronized (this) {
+            if (depth.capacity() < width * height)
+                throw new IllegalStateException(String.format("setDepth: %d depth values do not cover the intrinsics %dx%d",
+                        depth.capacity(), width, height));
+        }
+        this.depth = depth;
+        this.units = units;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public float getPpx() {
+        return ppx;
+    }
+
+    public float getPpy() {
+        return ppy;
+    }
+
+    public float getFx() {
+        return fx;
+    }
+
+    public float getFy() {
+        return fy;
+    }
+
+    /**
+     * @return Raw depth of the current frame (row major, index = row * width + column); null
+     * before the first frame. Use the absolute getters.
+     */
+    public ShortBuffer getDepthBuffer() {
+        return depth;
+    }
+
+    /**
+     * @return Metres per depth unit of the current frame; NaN before the first frame
+     */
+    public float getUnits() {
+        return units;
+    }
+
+    /**
+     * @param u Column
+     * @param v Row
+     * @return z coordinate in metres; 0 if there is no depth data
+     */
+    public float getZ(final int u, final int v) {
+        return (depth.get(v * width + u) & 0xFFFF) * units;
+    }
+
+    /**
+     * @param u Column
+     * @param v Row
+     * @return x coordinate in metres; 0 if there is no depth data
+     */
+    public float getX(final int u, final int v) {
+        return rayX[u] * getZ(u, v);
+    }
+
+    /**
+     * @param u Column
+     * @param v Row
+     * @return y coordinate in metres; 0 if there is no depth data
+     */
+    public float getY(final int u, final int v) {
+        return rayY[v] * getZ(u, v);
+    }
+
+    /**
+     * Deprojects the pixels of the given rows
+     * @param startRow First row
+     * @param endRow Row after the last row
+     * @param xyz Destination array of at least (endRow - startRow) * width * 3 floats; the
+     *            coordinates of pixel (u, v) start at ((v - startRow) * width + u) * 3, in the
+     *            order of the Pointcloud vertices
+     */
+    public void deprojectRows(final int startRow, final int endRow, @NonNull final float[] xyz) {
+        int index = 0;
+        for (int v = startRow; v < endRow; v++) {
+            final float ry = rayY[v];
+            final int rowIndex = v * width;
+            for (int u = 0; u < width; u++) {
+                final float z = (depth.get(rowIndex + u) & 0xFFFF) * units;
+                xyz[index++] = rayX[u] * z;
+                xyz[index++] = ry * z;
+                xyz[index++] = z;
+            }
+        }
+    }
+
+    /**
+     * Deprojects the pixels of the given rows into separate coordinate arrays
+     * @param startRow First row
+     * @param endRow Row after the last row
+     * @param xs Destination of the x coordinates, at least height * width floats; the coordinates
+     *           of pixel (u, v) are at v * width + u (also for ys and zs)
+     * @param ys Destination of the y coordinates
+     * @param zs Destination of the z coordinates
+     */
+    public void deprojectRows(final int startRow, final int endRow, @NonNull final float[] xs,
+                              @NonNull final float[] ys, @NonNull final float[] zs) {
+        deprojectRows(startRow, endRow, xs, ys, zs, startRow);
+    }
+
+    /**
+     * Deprojects the pixels of the given rows into separate coordinate arrays that cover only
+     * a band of the image, e.g. the rows that are measured
+     * @param startRow First row
+     * @param endRow Row after the last row
+     * @param xs Destination of the x coordinates; the coordinates of pixel (u, v) are at
+     *           (v - startRow + destinationRow) * width + u (also for ys and zs)
+     * @param ys Destination of the y coordinates
+     * @param zs Destination of the z coordinates
+     * @param destinationRow Row of the destination arrays that receives startRow
+     */
+    public void deprojectRows(final int startRow, final int endRow, @NonNull final float[] xs,
+                              @NonNull final float[] ys, @NonNull final float[] zs, final int destinationRow) {
+        for (int v = startRow; v < endRow; v++) {
+            final float ry = rayY[v];
+            final int rowIndex = v * width;
+            final int destinationIndex = (v - startRow + destinationRow) * width;
+            for (int u = 0; u < width; u++) {
+                final float z = (depth.get(rowIndex + u) & 0xFFFF) * units;
+                xs[destinationIndex + u] = rayX[u] * z;
+                ys[destinationIndex + u] = ry * z;
+                zs[destinationIndex + u] = z;
+            }
+        }
+    }
+
+    /**
+     * Releases the copy of the depth frame; the intrinsics are kept
+     */
+    public void release() {
+        depthFrameConverter.release();
+        depth = null;
+    }
+}
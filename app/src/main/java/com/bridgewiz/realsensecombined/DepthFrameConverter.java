@@ -0,0 +1,142 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.DepthFrame;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Converts raw Z16 depth frames into a reused CV_16UC1 Mat. The wrapper only exposes the frame
+ * data as a copy into a Java array, so a frame is copied twice: through JNI into a reused
+ * scratch array, then with a bulk put into the direct byte buffer that backs the Mat. There are
+ * no per-frame arrays and no short[] conversion. The metres view applies DepthFrame.getUnits()
+ * into a reused CV_32FC1 Mat.
+ * <p>
+ * The returned Mats are owned by the converter and are overwritten by the next conversion.
+ * An instance should be used by a single (processing) thread.
+ */
+public class DepthFrameConverter {
+
+    private static final int BYTES_PER_PIXEL = 2;
+
+    private int width = -1;
+    private int height = -1;
+    private float units = Float.NaN;
+
+    private byte[] scratchBuffer;
+    private ByteBuffer directBuffer;
+    private ShortBuffer depthBuffer;
+    private Mat depthMat;
+    private Mat metersMat;
+
+    /**
+     * Copies the given Z16 depth frame into the raw depth Mat
+     * @param frame Depth frame instance (16 bit Z16 type)
+     * @return Raw depth Mat (CV_16UC1) in depth units; owned by the converter
+     */
+    @NonNull
+    public Mat convert(@NonNull final DepthFrame frame) {
+        allocate(frame.getWidth(), frame.getHeight());
+        frame.getData(scratchBuffer);
+        directBuffer.clear();
+        directBuffer.put(scratchBuffer);
+        units = frame.getUnits();
+        return depthMat;
+    }
+
+    /**
+     * Copies the given raw depth values into the raw depth Mat, e.g. the depth of a recorded frame
+     * @param depth Raw depth values in depth units (row major, at least width * height values)
+     * @param frameWidth Frame width in pixels
+     * @param frameHeight Frame height in pixels
+     * @param depthUnits Metres per depth unit
+     * @return Raw depth Mat (CV_16UC1) in depth units; owned by the converter
+     */
+    @NonNull
+    public Mat convert(@NonNull final short[] depth, final int frameWidth, final int frameHeight, final float depthUnits) {
+        allocate(frameWidth, frameHeight);
+        depthBuffer.clear();
+        depthBuffer.put(depth, 0, frameWidth * frameHeight);
+        depthBuffer.clear();
+        units = depthUnits;
+        return depthMat;
+    }
+
+    /**
+     * Copies the given Z16 depth frame into the raw depth Mat and converts it to metres
+     * @param frame Depth frame instance (16 bit Z16 type)
+     * @return Depth Mat (CV_32FC1) in metres; owned by the converter
+     */
+    @NonNull
+    public Mat convertToMeters(@NonNull final DepthFrame frame) {
+        convert(frame);
+        depthMat.convertTo(metersMat, CvType.CV_32FC1, units);
+        return metersMat;
+    }
+
+    /**
+     * @return Raw depth Mat (CV_16UC1) of the last conversion; null before the first conversion
+     */
+    public Mat getDepthMat() {
+        return depthMat;
+    }
+
+    /**
+     * @return Raw depth values of the last conversion, backing the raw depth Mat (row major,
+     * index = row * width + column); null before the first conversion. Absolute gets are safe
+     * to be used from multiple threads.
+     */
+    public ShortBuffer getDepthBuffer() {
+        return depthBuffer;
+    }
+
+    /**
+     * @return Metres per depth unit of the last converted frame; NaN before the first conversion
+     */
+    public float getUnits() {
+        return units;
+    }
+
+    /**
+     * Releases the native memory of the Mats. The converter can be used again afterwards.
+     */
+    public void release() {
+        if (depthMat != null)
+            depthMat.release();
+        if (metersMat != null)
+            metersMat.release();
+        depthMat = null;
+        metersMat = null;
+        directBuffer = null;
+        depthBuffer = null;
+        scratchBuffer = null;
+        width = -1;
+        height = -1;
+    }
+
+    /**
+     * (Re)allocates the buffers if the frame size has changed
+     * @param frameWidth Frame width in pixels
+     * @param frameHeight Frame height in pixels
+     */
+    private void allocate(final int frameWidth, final int frameHeight) {
+        if (frameWidth == width && frameHeight == height)
+            return;
+
+        release();
+        width = frameWidth;
+        height = frameHeight;
+        scratchBuffer = new byte[width * height * BYTES_PER_PIXEL];
+        // Z16 data is little endian, which is the native order of the Android devices
+        directBuffer = ByteBuffer.allocateDirect(scratchBuffer.length).order(ByteOrder.nativeOrder());
+        depthBuffer = directBuffer.asShortBuffer();
+        depthMat = new Mat(height, width, CvType.CV_16UC1, directBuffer);
+        metersMat = new Mat(height, width, CvType.CV_32FC1);
+    }
+}
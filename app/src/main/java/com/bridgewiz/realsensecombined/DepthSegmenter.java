@@ -0,0 +1,362 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.DepthFrame;
+import com.intel.realsense.librealsense.VideoFrame;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Segments the scene by the metric depth, thresholding the raw Z16 depth directly instead of
+ * a colorized 8 bit proxy of it. The metre limits are converted into depth units once per call,
+ * and the mask is produced by a single inRange pass over the 16 bit depth Mat. Pixels without
+ * depth data (zero) are never inside a range.
+ * <p>
+ * {@link #extractForeground(Mat, double, double)} creates the mask and the masked color image
+ * in a single pass over the depth and the color, split into row chunks processed in parallel.
+ * The color, mask and foreground Mats are backed by direct buffers, so the kernel reads and
+ * writes the Mat data without any copies or intermediate masks, and nothing is allocated in
+ * steady state. The color frames should be copied with {@link #setColorFrame(VideoFrame)}; other
+ * color Mats are copied into the color buffer first.
+ * <p>
+ * The depth frame should be aligned to the color stream if the mask is applied to color images.
+ * An instance should be used by a single (processing) thread.
+ */
+public class DepthSegmenter {
+
+    private static final int MAX_DEPTH_VALUE = 0xFFFF;
+
+    private final DepthFrameConverter depthFrameConverter = new DepthFrameConverter();
+    private final Scalar lowerBound = new Scalar(0);
+    private final Scalar upperBound = new Scalar(0);
+    private final RowTask[] tasks;
+
+    private int colorWidth = -1;
+    private int colorHeight = -1;
+    private int channels = -1;
+    private byte[] colorScratch;
+    private ByteBuffer colorBuffer;
+    private ByteBuffer maskBuffer;
+    private ByteBuffer foregroundBuffer;
+    private Mat colorMat;
+    private Mat foregroundMask;
+    private Mat foreground;
+
+    // inputs of the current extraction, read by the tasks
+    private ShortBuffer depth;
+    private int lower;
+    private int upper;
+
+    /**
+     * Creates a segmenter that splits the rows into as many chunks as the available processors
+     */
+    public DepthSegmenter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Number of row chunks processed in parallel by extractForeground
+     */
+    public DepthSegmenter(final int parallelism) {
+        tasks = new RowTask[Math.max(1, parallelism)];
+        for (int i = 0; i < tasks.length; i++)
+            tasks[i] = new RowTask(i);
+    }
+
+    /**
+     * Copies the given depth frame into the raw depth Mat of the segmenter; the following
+     * createMask calls use this frame.
+     * @param frame Depth frame instance (16 bit Z16 type)
+     */
+    public void setDepthFrame(@NonNull final DepthFrame frame) {
+        depthFrameConverter.convert(frame);
+    }
+
+    /**
+     * Copies the given raw depth values into the raw depth Mat of the segmenter, e.g. the depth
+     * of a recorded frame; the following createMask calls use this depth.
+     * @param depth Raw depth values in depth units (row major)
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param units Metres per depth unit
+     */
+    public void setDepth(@NonNull final short[] depth, final int width, final int height, final float units) {
+        depthFrameConverter.convert(depth, width, height, units);
+    }
+
+    /**
+     * Copies the given color frame into the color Mat of the segmenter, which extractForeground
+     * reads without a copy
+     * @param frame Color frame instance (8 bits per channel, e.g. RGB8)
+     * @return Color Mat (CV_8UC(bytes per pixel)); owned by the segmenter and overwritten by the
+     * next frame. It can be drawn on after the extraction.
+     */
+    @NonNull
+    public Mat setColorFrame(@NonNull final VideoFrame frame) {
+        allocate(frame.getWidth(), frame.getHeight(), frame.getBitsPerPixel() / 8);
+        frame.getData(colorScratch);
+        colorBuffer.clear();
+        colorBuffer.put(colorScratch);
+        return colorMat;
+    }
+
+    /**
+     * Creates the mask of the pixels whose depth is within the given range. setDepthFrame
+     * should be called before.
+     * @param nearMeters Near limit in metres (inclusive)
+     * @param farMeters Far limit in metres (inclusive)
+     * @param mask Destination mask (CV_8UC1); 255 inside the range, 0 elsewhere
+     * @return The destination mask
+     */
+    @NonNull
+    public Mat createMask(final double nearMeters, final double farMeters, @NonNull final Mat mask) {
+        final Mat depthMat = depthFrameConverter.getDepthMat();
+        if (depthMat == null)
+            throw new IllegalStateException("createMask: no depth frame is set");
+
+        setBounds(nearMeters, farMeters);
+        Core.inRange(depthMat, lowerBound, upperBound, mask);
+        return mask;
+    }
+
+    /**
+     * Creates the run-length encoded mask of the pixels whose depth is within the given range,
+     * directly from the raw depth without an intermediate 8 bit mask. setDepthFrame should be
+     * called before.
+     * @param nearMeters Near limit in metres (inclusive)
+     * @param farMeters Far limit in metres (inclusive)
+     * @param mask Destination mask
+     * @return The destination mask
+     */
+    @NonNull
+    public RleMask createRunMask(final double nearMeters, final double farMeters, @NonNull final RleMask mask) {
+        final Mat depthMat = depthFrameConverter.getDepthMat();
+        if (depthMat == null)
+            throw new IllegalStateException("createRunMask: no depth frame is set");
+
+        setBounds(nearMeters, farMeters);
+        return mask.fromDepth(depthFrameConverter.getDepthBuffer(), depthMat.cols(), depthMat.rows(),
+                (int) lowerBound.val[0], (int) upperBound.val[0]);
+    }
+
+    /**
+     * Creates the bit mask of the pixels whose depth is within the given range, directly from
+     * the raw depth without an intermediate 8 bit mask. setDepthFrame should be called before.
+     * @param nearMeters Near limit in metres (inclusive)
+     * @param farMeters Far limit in metres (inclusive)
+     * @param mask Destination mask
+     * @return The destination mask
+     */
+    @NonNull
+    public BitMask createBitMask(final double nearMeters, final double farMeters, @NonNull final BitMask mask) {
+        final Mat depthMat = depthFrameConverter.getDepthMat();
+        if (depthMat == null)
+            throw new IllegalStateException("createBitMask: no depth frame is set");
+
+        setBounds(nearMeters, farMeters);
+        return mask.fromDepth(depthFrameConverter.getDepthBuffer(), depthMat.cols(), depthMat.rows(),
+                (int) lowerBound.val[0], (int) upperBound.val[0]);
+    }
+
+    /**
+     * Masks out the pixels of the given color image whose depth is not within the given range,
+     * and keeps the mask (see getForegroundMask). The output is the same as createMask followed
+     * by color.copyTo(foreground, mask) into an empty Mat. setDepthFrame should be called before.
+     * @param color Color image (8 bits per channel) aligned to the depth; preferably the Mat
+     *              returned by setColorFrame, other Mats are copied first
+     * @param nearMeters Near limit in metres (inclusive)
+     * @param farMeters Far limit in metres (inclusive)
+     * @return Foreground image; owned by the segmenter and overwritten by the next call
+     */
+    @NonNull
+    public Mat extractForeground(@NonNull final Mat color, final double nearMeters, final double farMeters) {
+        final Mat depthMat = depthFrameConverter.getDepthMat();
+        if (depthMat == null)
+            throw new IllegalStateException("extractForeground: no depth frame is set");
+        if (color.cols() != depthMat.cols() || color.rows() != depthMat.rows() || color.depth() != CvType.CV_8U)
+            throw new IllegalArgumentException("extractForeground: the color image should be 8 bit with the depth frame size");
+
+        if (color != colorMat) {
+            allocate(color.cols(), color.rows(), color.channels());
+            color.get(0, 0, colorScratch);
+            colorBuffer.clear();
+            colorBuffer.put(colorScratch);
+        }
+        setBounds(nearMeters, farMeters);
+        depth = depthFrameConverter.getDepthBuffer();
+        lower = (int) lowerBound.val[0];
+        upper = (int) upperBound.val[0];
+
+        for (RowTask task : tasks)
+            task.reinitialize();
+        ForkJoinTask.invokeAll(tasks);
+
+        depth = null;
+        return foreground;
+    }
+
+    /**
+     * Copies the given depth frame and masks out the pixels of the given color image that are
+     * not within maxDiameter / 2 metres of the given distance
+     * @param frame Depth frame instance (16 bit Z16 type)
+     * @param color Color image (8 bits per channel) aligned to the depth
+     * @param distance Distance of the object in metres
+     * @param maxDiameter Maximum expected diameter of the object in metres
+     * @return Foreground image; owned by the segmenter and overwritten by the next call
+     */
+    @NonNull
+    public Mat extractForeground(@NonNull final DepthFrame frame, @NonNull final Mat color, final double distance, final double maxDiameter) {
+        setDepthFrame(frame);
+        return extractForeground(color, distance - maxDiameter / 2, distance + maxDiameter / 2);
+    }
+
+    /**
+     * @return Foreground mask (CV_8UC1) of the last extractForeground call; null before the first call
+     */
+    public Mat getForegroundMask() {
+        return foregroundMask;
+    }
+
+    /**
+     * Copies the given depth frame and creates the mask of the pixels within maxDiameter / 2
+     * metres of the given distance, e.g. the pixels of a tree trunk at the center of the image
+     * @param frame Depth frame instance (16 bit Z16 type)
+     * @param distance Distance of the object in metres
+     * @param maxDiameter Maximum expected diameter of the object in metres
+     * @param mask Destination mask (CV_8UC1); 255 for the object, 0 elsewhere
+     * @return The destination mask
+     */
+    @NonNull
+    public Mat createMask(@NonNull final DepthFrame frame, final double distance, final double maxDiameter, @NonNull final Mat mask) {
+        setDepthFrame(frame);
+        return createMask(distance - maxDiameter / 2, distance + maxDiameter / 2, mask);
+    }
+
+    /**
+     * Converts the given metre limits into the depth value bounds of the current frame
+     * @param nearMeters Near limit in metres
+     * @param farMeters Far limit in metres
+     */
+    private void setBounds(final double nearMeters, final double farMeters) {
+        final double units = depthFrameConverter.getUnits();
+        // zero is no data, therefore the lowest valid depth value is 1
+        lowerBound.val[0] = Math.max(1, Math.ceil(nearMeters / units));
+        upperBound.val[0] = Math.min(MAX_DEPTH_VALUE, Math.floor(farMeters / units));
+    }
+
+    /**
+     * @return Raw depth Mat (CV_16UC1) of the last frame; null before the first frame
+     */
+    public Mat getDepthMat() {
+        return depthFrameConverter.getDepthMat();
+    }
+
+    /**
+     * @return Metres per depth unit of the last frame; NaN before the first frame
+     */
+    public float getUnits() {
+        return depthFrameConverter.getUnits();
+    }
+
+    /**
+     * Releases the native memory of the depth, color and foreground Mats. The segmenter can be used again afterwards.
+     */
+    public void release() {
+        depthFrameConverter.release();
+        releaseColor();
+    }
+
+    private void releaseColor() {
+        if (colorMat != null) {
+            colorMat.release();
+            foregroundMask.release();
+            foreground.release();
+        }
+        colorMat = null;
+        foregroundMask = null;
+        foreground = null;
+        colorScratch = null;
+        colorBuffer = null;
+        maskBuffer = null;
+        foregroundBuffer = null;
+        colorWidth = -1;
+        colorHeight = -1;
+        channels = -1;
+    }
+
+    /**
+     * (Re)allocates the color, mask and foreground buffers and their Mats if the color size or
+     * the number of channels has changed
+     * @param width Image width in pixels
+     * @param height Image height in pixels
+     * @param colorChannels Number of bytes per color pixel
+     */
+    private void allocate(final int width, final int height, final int colorChannels) {
+        if (width == colorWidth && height == colorHeight && colorChannels == channels)
+            return;
+
+        releaseColor();
+        colorWidth = width;
+        colorHeight = height;
+        channels = colorChannels;
+        colorScratch = new byte[width * height * channels];
+        colorBuffer = ByteBuffer.allocateDirect(colorScratch.length);
+        maskBuffer = ByteBuffer.allocateDirect(width * height);
+        foregroundBuffer = ByteBuffer.allocateDirect(colorScratch.length);
+        colorMat = new Mat(height, width, CvType.CV_8UC(channels), colorBuffer);
+        foregroundMask = new Mat(height, width, CvType.CV_8UC1, maskBuffer);
+        foreground = new Mat(height, width, CvType.CV_8UC(channels), foregroundBuffer);
+    }
+
+    /**
+     * Writes the mask and the foreground of a chunk of rows; chunk i of n covers the rows
+     * [i * height / n, (i + 1) * height / n). Each pixel reads its depth and color once, and
+     * writes its mask byte and foreground bytes once.
+     */
+    private class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+
+        RowTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            final int first = (int) ((long) index * colorHeight / tasks.length) * colorWidth;
+            final int last = (int) ((long) (index + 1) * colorHeight / tasks.length) * colorWidth;
+            final ShortBuffer depthValues = depth;
+            final ByteBuffer color = colorBuffer;
+            final ByteBuffer mask = maskBuffer;
+            final ByteBuffer output = foregroundBuffer;
+            final int pixelBytes = channels;
+            final int low = lower;
+            final int high = upper;
+            for (int i = first; i < last; i++) {
+                final int value = depthValues.get(i) & 0xFFFF;
+                final int offset = i * pixelBytes;
+                if (value >= low && value <= high) {
+                    mask.put(i, (byte) 255);
+                    for (int c = 0; c < pixelBytes; c++)
+                        output.put(offset + c, color.get(offset + c));
+                }
+                else {
+                    mask.put(i, (byte) 0);
+                    for (int c = 0; c < pixelBytes; c++)
+                        output.put(offset + c, (byte) 0);
+                }
+            }
+        }
+    }
+}
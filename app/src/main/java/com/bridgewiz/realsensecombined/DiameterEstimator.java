@@ -0,0 +1,422 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Measures the diameter of a vertical object (a tree trunk) on every row of a band instead of a
+ * single row, so that a bad row (a hole, a branch, bark texture) does not ruin the reading.
+ * Each row is measured with the three approaches of the MaskAndCloud activity:
+ * <ol>
+ *     <li>mask: the edges are searched on the foreground mask (a Mat or the runs of an
+ *     {@link RleMask}) and then deprojected</li>
+ *     <li>cloud: the edges are the last pixels within the metric depth range from the seed</li>
+ *     <li>extended cloud: the cloud diameter extended by one vertex spacing at each side</li>
+ * </ol>
+ * The edges of the first two approaches are refined to sub-pixel precision on the depth
+ * discontinuity with {@link SubPixelEdge} (unless disabled), so the diameter is measured between
+ * the boundaries instead of the centers of the outermost object pixels.
+ * <p>
+ * The rows of the band are deprojected into a {@link PointGrid} with the height of the band
+ * (grid row i is image row startRow + i), and the cloud approaches find their edges with its
+ * row scans on the z coordinates.
+ * <p>
+ * The rows are split into a fixed number of chunks that run on the common fork-join pool, each
+ * with its own {@link RowEdgeDetector}. The per-row diameters (the profile) are then reduced into
+ * the median, the trimmed mean and the spread (interquartile range) of the valid rows.
+ * <p>
+ * The tasks and the result arrays are reused, so there is no allocation once the band size is
+ * stable. The results are overwritten by the next call. An instance should be used by a single
+ * (processing) thread.
+ */
+public class DiameterEstimator {
+
+    private static final float DEFAULT_TRIM_FRACTION = 0.1f;
+
+    private final RowTask[] tasks;
+    private final Result maskResult = new Result();
+    private final Result cloudResult = new Result();
+    private final Result extendedCloudResult = new Result();
+    private final PointGrid grid = new PointGrid();
+    private float[] sortedDiameters = new float[0];
+    private float trimFraction = DEFAULT_TRIM_FRACTION;
+    private boolean subPixelEdges = true;
+    private long lastNanos;
+
+    // inputs of the current call, read by the tasks; one of the masks is set
+    private Mat mask;
+    private RleMask runMask;
+    private Deprojector deprojector;
+    private int seedX;
+    private int startRow;
+    private int rowCount;
+    private float nearZ;
+    private float farZ;
+
+    /**
+     * Creates an estimator that splits the rows into as many chunks as the available processors
+     */
+    public DiameterEstimator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Number of row chunks processed in parallel
+     */
+    public DiameterEstimator(final int parallelism) {
+        tasks = new RowTask[Math.max(1, parallelism)];
+        for (int i = 0; i < tasks.length; i++)
+            tasks[i] = new RowTask(i);
+    }
+
+    /**
+     * Measures the diameter on the rows [startRow, endRow)
+     * @param mask Foreground mask (CV_8UC1) aligned to the depth
+     * @param deprojector Deprojector with the depth frame set; only the rows of the band are deprojected
+     * @param seedX Column of a pixel inside the object on all rows, e.g. the center column
+     * @param startRow First row of the band
+     * @param endRow Row after the last row of the band
+     * @param nearZ Near depth limit of the object in metres for the cloud approaches
+     * @param farZ Far depth limit of the object in metres for the cloud approaches
+     */
+    public void estimate(@NonNull final Mat mask, @NonNull final Deprojector deprojector, final int seedX,
+                         final int startRow, final int endRow, final double nearZ, final double farZ) {
+        if (mask.rows() != deprojector.getHeight() || mask.cols() != deprojector.getWidth())
+            throw new IllegalArgumentException("estimate: mask and depth sizes do not match");
+        this.mask = mask;
+        estimate(deprojector, seedX, startRow, endRow, nearZ, farZ);
+    }
+
+    /**
+     * Measures the diameter on the rows [startRow, endRow), searching the approach 1 edges on
+     * the runs of a run-length encoded mask instead of the pixels of a Mat
+     * @param mask Foreground mask aligned to the depth
+     * @param deprojector Deprojector with the depth frame set; only the rows of the band are deprojected
+     * @param seedX Column of a pixel inside the object on all rows, e.g. the center column
+     * @param startRow First row of the band
+     * @param endRow Row after the last row of the band
+     * @param nearZ Near depth limit of the object in metres for the cloud approaches
+     * @param farZ Far depth limit of the object in metres for the cloud approaches
+     */
+    public void estimate(@NonNull final RleMask mask, @NonNull final Deprojector deprojector, final int seedX,
+                         final int startRow, final int endRow, final double nearZ, final double farZ) {
+        if (mask.getHeight() != deprojector.getHeight() || mask.getWidth() != deprojector.getWidth())
+            throw new IllegalArgumentException("estimate: mask and depth sizes do not match");
+        this.runMask = mask;
+        estimate(deprojector, seedX, startRow, endRow, nearZ, farZ);
+    }
+
+    /**
+     * Measures the rows of the band with the mask that is set by the public estimate calls
+     */
+    private void estimate(final Deprojector deprojector, final int seedX, final int startRow, final int endRow,
+                          final double nearZ, final double farZ) {
+        final long start = System.nanoTime();
+        if (startRow < 0 || endRow > deprojector.getHeight() || startRow >= endRow) {
+            this.mask = null;
+            this.runMask = null;
+            throw new IllegalArgumentException("estimate: invalid row band");
+        }
+
+        this.deprojector = deprojector;
+        this.seedX = seedX;
+        this.startRow = startRow;
+        this.rowCount = endRow - startRow;
+        this.nearZ = (float) nearZ;
+        this.farZ = (float) farZ;
+        grid.allocate(deprojector.getWidth(), rowCount);
+        maskResult.allocate(startRow, rowCount);
+        cloudResult.allocate(startRow, rowCount);
+        extendedCloudResult.allocate(startRow, rowCount);
+
+        for (RowTask task : tasks)
+            task.reinitialize();
+        ForkJoinTask.invokeAll(tasks);
+
+        this.mask = null;
+        this.runMask = null;
+        this.deprojector = null;
+        reduce(maskResult);
+        reduce(cloudResult);
+        reduce(extendedCloudResult);
+        lastNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * @return Result of the mask approach (approach 1)
+     */
+    @NonNull
+    public Result getMaskResult() {
+        return maskResult;
+    }
+
+    /**
+     * @return Result of the cloud approach (approach 2)
+     */
+    @NonNull
+    public Result getCloudResult() {
+        return cloudResult;
+    }
+
+    /**
+     * @return Result of the extended cloud approach (approach 3)
+     */
+    @NonNull
+    public Result getExtendedCloudResult() {
+        return extendedCloudResult;
+    }
+
+    /**
+     * @param trimFraction Fraction of the valid rows dropped at each end for the trimmed mean, in [0, 0.5)
+     */
+    public void setTrimFraction(final float trimFraction) {
+        if (trimFraction < 0 || trimFraction >= 0.5f)
+            throw new IllegalArgumentException("setTrimFraction: fraction should be in [0, 0.5)");
+        this.trimFraction = trimFraction;
+    }
+
+    /**
+     * @param subPixelEdges True to refine the edges of the mask and the cloud approaches to sub-pixel precision
+     */
+    public void setSubPixelEdges(final boolean subPixelEdges) {
+        this.subPixelEdges = subPixelEdges;
+    }
+
+    /**
+     * @return Duration of the last estimate call in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * Computes the statistics of the valid diameters of the given result
+     * @param result Result with the profile filled
+     */
+    private void reduce(final Result result) {
+        if (sortedDiameters.length < rowCount)
+            sortedDiameters = new float[rowCount];
+        int n = 0;
+        for (int i = 0; i < rowCount; i++) {
+            if (!Float.isNaN(result.profile[i]))
+                sortedDiameters[n++] = result.profile[i];
+        }
+        result.validRows = n;
+        if (n == 0) {
+            result.median = Float.NaN;
+            result.trimmedMean = Float.NaN;
+            result.spread = Float.NaN;
+            return;
+        }
+        Arrays.sort(sortedDiameters, 0, n);
+        result.median = quantile(n, 0.5f);
+        result.spread = quantile(n, 0.75f) - quantile(n, 0.25f);
+
+        final int trimmed = (int) (n * trimFraction);
+        double sum = 0;
+        for (int i = trimmed; i < n - trimmed; i++)
+            sum += sortedDiameters[i];
+        result.trimmedMean = (float) (sum / (n - 2 * trimmed));
+    }
+
+    /**
+     * @param n Number of sorted values
+     * @param q Quantile in [0, 1]
+     * @return Linearly interpolated quantile of the sorted values
+     */
+    private float quantile(final int n, final float q) {
+        final float position = q * (n - 1);
+        final int lower = (int) position;
+        final int upper = Math.min(lower + 1, n - 1);
+        return sortedDiameters[lower] + (position - lower) * (sortedDiameters[upper] - sortedDiameters[lower]);
+    }
+
+    /**
+     * Diameters of an approach on the rows of the band, in centimetres, and their statistics.
+     * The rows where the edges are not found have NaN diameters and -1 edges.
+     */
+    public static class Result {
+
+        private float[] profile = new float[0];
+        private int[] leftEdges = new int[0];
+        private int[] rightEdges = new int[0];
+        private int startRow;
+        private int rowCount;
+        private int validRows;
+        private float median = Float.NaN;
+        private float trimmedMean = Float.NaN;
+        private float spread = Float.NaN;
+
+        private void allocate(final int firstRow, final int rows) {
+            if (profile.length < rows) {
+                profile = new float[rows];
+                leftEdges = new int[rows];
+                rightEdges = new int[rows];
+            }
+            startRow = firstRow;
+            rowCount = rows;
+        }
+
+        private void set(final int i, final int left, final int right, final float diameter) {
+            leftEdges[i] = left;
+            rightEdges[i] = right;
+            profile[i] = diameter;
+        }
+
+        public int getStartRow() {
+            return startRow;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /**
+         * @param row Image row within the band
+         * @return Diameter on the row in centimetres; NaN if not measured
+         */
+        public float getDiameter(final int row) {
+            return profile[row - startRow];
+        }
+
+        /**
+         * @param row Image row within the band
+         * @return Left edge column on the row; -1 if not found
+         */
+        public int getLeftEdge(final int row) {
+            return leftEdges[row - startRow];
+        }
+
+        /**
+         * @param row Image row within the band
+         * @return Right edge column on the row; -1 if not found
+         */
+        public int getRightEdge(final int row) {
+            return rightEdges[row - startRow];
+        }
+
+        /**
+         * @return Number of rows with a measured diameter
+         */
+        public int getValidRows() {
+            return validRows;
+        }
+
+        /**
+         * @return Median of the diameters in centimetres; NaN if no valid rows
+         */
+        public float getMedian() {
+            return median;
+        }
+
+        /**
+         * @return Trimmed mean of the diameters in centimetres; NaN if no valid rows
+         */
+        public float getTrimmedMean() {
+            return trimmedMean;
+        }
+
+        /**
+         * @return Interquartile range of the diameters in centimetres; NaN if no valid rows
+         */
+        public float getSpread() {
+            return spread;
+        }
+    }
+
+    /**
+     * Measures a chunk of rows; chunk i of n covers the rows [i * rowCount / n, (i + 1) * rowCount / n)
+     * of the band
+     */
+    private class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private final RowEdgeDetector rowEdgeDetector = new RowEdgeDetector();
+
+        RowTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            final int first = (int) ((long) index * rowCount / tasks.length);
+            final int last = (int) ((long) (index + 1) * rowCount / tasks.length);
+            grid.fillRows(deprojector, startRow + first, startRow + last, first);
+            for (int i = first; i < last; i++) {
+                final int row = startRow + i;
+                measureMask(i, row);
+                measureCloud(i, row);
+            }
+        }
+
+        /**
+         * Approach 1: edges on the foreground mask, x coordinates from the point cloud
+         */
+        private void measureMask(final int i, final int row) {
+            final boolean found = runMask != null
+                    ? rowEdgeDetector.detect(runMask, row, seedX)
+                    : rowEdgeDetector.detect(mask, row, seedX);
+            if (!found) {
+                maskResult.set(i, -1, -1, Float.NaN);
+                return;
+            }
+            final int left = rowEdgeDetector.getLeftEdge();
+            final int right = rowEdgeDetector.getRightEdge();
+            // the mask may be hole-filled, but there are no coordinates without depth
+            if (grid.getZ(left, i) == 0 || grid.getZ(right, i) == 0) {
+                maskResult.set(i, left, right, Float.NaN);
+                return;
+            }
+            maskResult.set(i, left, right, (edgeX(i, row, right, 1) - edgeX(i, row, left, -1)) * 100);
+        }
+
+        /**
+         * Approaches 2 and 3: the last vertices within the depth range from the seed outwards
+         */
+        private void measureCloud(final int i, final int row) {
+            // the edges are the pixels before the first ones out of the range; none if the seed
+            // is out of the range (left == seedX + 1) or the range reaches the border (-1)
+            int left = grid.firstOutsideInRow(i, seedX, -1, nearZ, farZ);
+            int right = grid.firstOutsideInRow(i, seedX, 1, nearZ, farZ);
+            left = left < 0 || left == seedX ? -1 : left + 1;
+            right = right < 0 || right == seedX ? -1 : right - 1;
+            if (left < 0 || right < 0) {
+                cloudResult.set(i, left, right, Float.NaN);
+                extendedCloudResult.set(i, left, right, Float.NaN);
+                return;
+            }
+
+            final float leftX = grid.getX(left, i);
+            final float rightX = grid.getX(right, i);
+            cloudResult.set(i, left, right, (edgeX(i, row, right, 1) - edgeX(i, row, left, -1)) * 100);
+
+            // the vertices outside the edges may have no coordinates; assume the spacing of the
+            // edge vertex and its neighbor towards the center. A single vertex wide object has
+            // no such neighbor, left + 1 and right - 1 would be out of it
+            if (left == right) {
+                extendedCloudResult.set(i, left - 1, right + 1, Float.NaN);
+                return;
+            }
+            final float leftDelta = Math.abs(grid.getX(left + 1, i) - leftX);
+            final float rightDelta = Math.abs(rightX - grid.getX(right - 1, i));
+            extendedCloudResult.set(i, left - 1, right + 1, ((rightX + rightDelta) - (leftX - leftDelta)) * 100);
+        }
+
+        /**
+         * @return x coordinate of the given edge; the boundary if sub-pixel edges are enabled,
+         * the edge pixel center otherwise
+         */
+        private float edgeX(final int i, final int row, final int edge, final int direction) {
+            if (subPixelEdges)
+                return SubPixelEdge.edgeX(deprojector, row, edge, direction);
+            return grid.getX(edge, i);
+        }
+    }
+}
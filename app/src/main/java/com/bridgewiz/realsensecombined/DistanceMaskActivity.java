@@ -1,28 +1,24 @@
 package com.bridgewiz.realsensecombined;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.intel.realsense.librealsense.Align;
-import com.intel.realsense.librealsense.Colorizer;
 import com.intel.realsense.librealsense.Config;
 import com.intel.realsense.librealsense.DepthFrame;
 import com.intel.realsense.librealsense.DeviceList;
 import com.intel.realsense.librealsense.DeviceListener;
 import com.intel.realsense.librealsense.Extension;
-import com.intel.realsense.librealsense.Frame;
 import com.intel.realsense.librealsense.FrameReleaser;
 import com.intel.realsense.librealsense.FrameSet;
-import com.intel.realsense.librealsense.Option;
 import com.intel.realsense.librealsense.Pipeline;
 import com.intel.realsense.librealsense.PipelineProfile;
 import com.intel.realsense.librealsense.RsContext;
@@ -30,7 +26,6 @@ import com.intel.realsense.librealsense.StreamType;
 import com.intel.realsense.librealsense.VideoFrame;
 
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.Core;
 import org.opencv.core.CvException;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
@@ -50,19 +45,21 @@ public class DistanceMaskActivity extends AppCompatActivity {
 
     private ImageView imageViewColor;
     private ImageView imageViewForeground;
+    private BitmapDisplay colorDisplay;
+    private BitmapDisplay foregroundDisplay;
+    private final BitmapPool bitmapPool = new BitmapPool();
     private TextView txtStatus;
 
     private RsContext rsContext;
     private Pipeline pipeline;
     private Context appContext;
-    private final Handler handler = new Handler();
+    private FrameLoop frameLoop;
 
     private boolean isStreaming = false;
-    private boolean shouldProcess = false;
-    private boolean isFrozen = false;
-    private boolean shouldSave = false;
+    private volatile boolean shouldProcess = false;
+    private volatile boolean isFrozen = false;
+    private volatile boolean shouldSave = false;
 
-    private Colorizer colorizer;
     private Align align;
 
     private String saveDirectoryPath;
@@ -91,6 +88,8 @@ public class DistanceMaskActivity extends AppCompatActivity {
         appContext = getApplicationContext();
         imageViewColor = findViewById(R.id.imgDistanceMaskColor);
         imageViewForeground = findViewById(R.id.imgDistanceMaskForeground);
+        colorDisplay = new BitmapDisplay(this, imageViewColor, bitmapPool);
+        foregroundDisplay = new BitmapDisplay(this, imageViewForeground, bitmapPool);
         txtStatus = findViewById(R.id.txtDistanceMaskDistance);
 
         imageViewColor.setOnClickListener(view -> processImage());
@@ -113,7 +112,6 @@ public class DistanceMaskActivity extends AppCompatActivity {
         if (rsContext != null)
             rsContext.close();
 
-        colorizer.close();
         pipeline.close();
         align.close();
     }
@@ -148,107 +146,77 @@ public class DistanceMaskActivity extends AppCompatActivity {
     };
 
     private Mat colorMat;
-    private Mat nearMask;
-    private Mat farMask;
-    private Mat combinedMask;
     private Mat foreground;
+    private DepthSegmenter depthSegmenter;
+    private final RowEdgeDetector rowEdgeDetector = new RowEdgeDetector();
 
     private void initializeMats() {
-        farMask = new Mat();
-        nearMask = new Mat();
-        combinedMask = new Mat();
+        depthSegmenter = new DepthSegmenter();
     }
 
-    private final Runnable mStreaming = new Runnable() {
+    private final FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
             if (isFrozen) {
                 if (shouldSave) {
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "original"), colorMat);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPath, "foreground"), foreground);
                     shouldSave = false;
-                    Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show();
+                    runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.saved), Toast.LENGTH_SHORT).show());
                 }
-                handler.post(mStreaming);
                 return;
             }
-            try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = pipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
-
-                    VideoFrame colorFrame = processedFrameSet
-                            .first(StreamType.COLOR)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.VIDEO_FRAME);
-
-                    colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
-
-                    DepthFrame depthFrame = processedFrameSet
-                            .first(StreamType.DEPTH)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.DEPTH_FRAME);
-
-                    // get the depth at the center in meters
-                    float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
-                    updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(distance)));
-
-                    if (shouldProcess) {
-                        // get grayscale depth image
-                        colorizer.setValue(Option.COLOR_SCHEME, 2);
-                        Frame bwDepthFrame = depthFrame.applyFilter(colorizer).releaseWith(frameReleaser);
-
-                        Mat bwDepthMatMaster = CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME));
-                        Imgproc.cvtColor(bwDepthMatMaster, bwDepthMatMaster, Imgproc.COLOR_BGR2GRAY);
-
-                        // depth value of the center in the grayscale 8 bit depth image
-                        double du = bwDepthMatMaster.get(bwDepthMatMaster.rows() / 2, bwDepthMatMaster.cols() / 2)[0];
-                        // the differential value; any values different than center +- delta/2 will be erased
-
-                        double maxExpectedDiameter = 0.5; // meters
-                        double delta = du * maxExpectedDiameter / distance / 2;
-
-                        double thresholdFar = du - delta;
-                        double thresholdNear = du + delta;
-
-                        Log.d(TAG, String.format("run: far %s near %s", thresholdFar, thresholdNear));
-
-                        // We need {!(near OR far)} which is equal to {!near AND !far}, which is shorter
-                        // This is the reason CMP_GT and CMP_LT are in reverse
-                        Core.compare(bwDepthMatMaster, Scalar.all(thresholdFar), farMask, Core.CMP_GT);
-                        Core.compare(bwDepthMatMaster, Scalar.all(thresholdNear), nearMask, Core.CMP_LT);
-
-                        Core.bitwise_and(farMask, nearMask, combinedMask);
-
-
-                        foreground = new Mat();
-                        colorMat.copyTo(foreground, combinedMask);
-
-                        try {
-                            Bitmap bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(foreground);
-                            runOnUiThread(()-> imageViewForeground.setImageBitmap(bitmap));
-                            shouldProcess = false;
-                            isFrozen = true;
-                        } catch (CvException e) {
-                            Log.e(TAG, "run: Conversion error", e);
-                        }
+            FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
+
+            VideoFrame colorFrame = processedFrameSet
+                    .first(StreamType.COLOR)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.VIDEO_FRAME);
+
+            // copied into the direct buffer that the foreground extraction reads
+            colorMat = depthSegmenter.setColorFrame(colorFrame);
+
+            DepthFrame depthFrame = processedFrameSet
+                    .first(StreamType.DEPTH)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.DEPTH_FRAME);
+
+            // get the depth at the center in meters
+            float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
+            updateStatusText(String.format(Locale.US, "Mesafe: %s metre", decimalFormat.format(distance)));
+
+            if (shouldProcess) {
+                // any pixels farther than center distance +- maxExpectedDiameter/2 will be erased;
+                // thresholded on the raw depth in meters. The foreground is owned by the segmenter
+                // and stays valid until the next extraction
+                double maxExpectedDiameter = 0.5; // meters
+                foreground = depthSegmenter.extractForeground(depthFrame, colorMat, distance, maxExpectedDiameter);
+
+                // mark the edges of the object on the center row of the mask
+                int centerY = colorMat.rows() / 2;
+                if (rowEdgeDetector.detect(depthSegmenter.getForegroundMask(), centerY, colorMat.cols() / 2)) {
+                    for (int edge : new int[] {rowEdgeDetector.getLeftEdge(), rowEdgeDetector.getRightEdge()})
+                        Imgproc.line(colorMat, new Point(edge, centerY - 20), new Point(edge, centerY + 20), new Scalar(0, 255, 0), 3);
+                }
+                Log.d(TAG, "run: Edge detection took " + rowEdgeDetector.getLastNanos() + " ns");
+
+                try {
+                    foregroundDisplay.show(foreground);
+                    shouldProcess = false;
+                    isFrozen = true;
+                } catch (CvException e) {
+                    Log.e(TAG, "run: Conversion error", e);
+                }
 
-                    }
+            }
 
 
-                    // draw cross-hair
-                    int rows = colorMat.rows();
-                    int cols = colorMat.cols();
-                    Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
-                    Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
-                    Bitmap colorBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                    runOnUiThread(() -> imageViewColor.setImageBitmap(colorBitmap));
-                }
-                handler.post(mStreaming);
-            }
-            catch (Exception e) {
-                Log.e(TAG, "run: Streaming error", e);
-            }
+            // draw cross-hair
+            int rows = colorMat.rows();
+            int cols = colorMat.cols();
+            Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
+            Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
+            colorDisplay.show(colorMat);
         }
     };
 
@@ -275,8 +243,8 @@ public class DistanceMaskActivity extends AppCompatActivity {
         rsContext = new RsContext();
         rsContext.setDevicesChangedCallback(deviceListener);
         pipeline = new Pipeline();
-        colorizer = new Colorizer();
         align = new Align(StreamType.COLOR);
+        frameLoop = new FrameLoop(TAG, pipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
@@ -294,7 +262,7 @@ public class DistanceMaskActivity extends AppCompatActivity {
         try {
             configAndStart();
             isStreaming = true;
-            handler.post(mStreaming);
+            frameLoop.start();
         }
         catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -308,7 +276,7 @@ public class DistanceMaskActivity extends AppCompatActivity {
         if (!isStreaming) return;
 
         try {
-            handler.removeCallbacks(mStreaming);
+            frameLoop.stop();
             pipeline.stop();
             isStreaming = false;
 
@@ -335,7 +303,7 @@ public class DistanceMaskActivity extends AppCompatActivity {
     private synchronized void processImage() {
         if (isFrozen) {
             isFrozen = false;
-            imageViewForeground.setImageDrawable(null);
+            foregroundDisplay.clear();
         }
         else {
             shouldProcess = true;
@@ -0,0 +1,67 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Pool of the scratch byte arrays used in copying the lib-realsense frame data to OpenCV Mats.
+ * The buffers are keyed by the stream resolution and pixel format (bytes per pixel), so each
+ * stream gets the same buffer on every frame and no Java heap is allocated in steady state.
+ * <p>
+ * The pool is not thread-safe; it should be used by a single (processing) thread. The contents
+ * of a buffer are valid only until the next frame of the same stream is copied.
+ */
+public class FrameBufferPool {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private byte[][] buffers = new byte[INITIAL_CAPACITY][];
+    private int count = 0;
+
+    /**
+     * Returns the scratch buffer of the given stream, creating it on the first call
+     * @param width Frame width in pixels
+     * @param height Frame height in pixels
+     * @param bytesPerPixel Number of bytes per pixel of the stream format
+     * @return Byte array of width * height * bytesPerPixel bytes
+     */
+    @NonNull
+    public byte[] obtainBuffer(final int width, final int height, final int bytesPerPixel) {
+        final long key = createKey(width, height, bytesPerPixel);
+        for (int i = 0; i < count; i++) {
+            if (keys[i] == key)
+                return buffers[i];
+        }
+
+        if (count == keys.length) {
+            keys = Arrays.copyOf(keys, count * 2);
+            buffers = Arrays.copyOf(buffers, count * 2);
+        }
+        byte[] buffer = new byte[width * height * bytesPerPixel];
+        keys[count] = key;
+        buffers[count] = buffer;
+        count++;
+        return buffer;
+    }
+
+    /**
+     * Drops all the pooled buffers
+     */
+    public void clear() {
+        Arrays.fill(buffers, null);
+        count = 0;
+    }
+
+    /**
+     * Creates the pool key of a stream
+     * @param width Frame width in pixels (< 2^24)
+     * @param height Frame height in pixels (< 2^24)
+     * @param bytesPerPixel Number of bytes per pixel (< 2^16)
+     * @return Key packed into a single long
+     */
+    private static long createKey(final int width, final int height, final int bytesPerPixel) {
+        return ((long) bytesPerPixel << 48) | ((long) width << 24) | height;
+    }
+}
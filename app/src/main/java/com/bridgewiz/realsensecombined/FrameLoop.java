@@ -0,0 +1,361 @@
+package com.bridgewiz.realsensecombined;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.FrameReleaser;
+import com.intel.realsense.librealsense.FrameSet;
+import com.intel.realsense.librealsense.Pipeline;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the frame loop of an activity off the main looper. A dedicated acquisition thread
+ * acquires the frame sets of the pipeline and hands them over to a single-threaded processing
+ * executor, which calls the given {@link FrameProcessor} for each of them. Acquisition of the
+ * next frame set overlaps the processing of the current one.
+ * <p>
+ * In {@link AcquisitionMode#NEXT_FRAME} mode every frame set is processed in order of arrival,
+ * so a slow processor falls behind the camera. In {@link AcquisitionMode#LATEST_FRAME} mode only
+ * the newest frame set is kept and the older ones that are not processed yet are dropped; the
+ * received, processed, failed and dropped frame counts are available through the getters.
+ * <p>
+ * The processor runs on a background thread, therefore it should update the views only
+ * through posted updates (e.g. runOnUiThread).
+ */
+public class FrameLoop {
+
+    private static final String TAG = "FrameLoop";
+
+    /**
+     * Timeout of a single wait for frames; also bounds the time that stop() waits for
+     * the acquisition thread when the camera is not delivering frames.
+     */
+    private static final int WAIT_FOR_FRAMES_TIMEOUT_MS = 1000;
+
+    /**
+     * Interval of the warnings while stop() waits for the frame set in process to be finished
+     */
+    private static final int STOP_WARNING_INTERVAL_S = 5;
+
+    /**
+     * Sleep duration between the polls that did not return any frames in LATEST_FRAME mode
+     */
+    private static final int POLL_INTERVAL_MS = 2;
+
+    /**
+     * Determines which frame sets reach the processor
+     */
+    public enum AcquisitionMode {
+        /**
+         * Blocking wait for frames; every frame set is processed, the acquisition thread waits
+         * while the processor is busy
+         */
+        NEXT_FRAME,
+        /**
+         * Non-blocking polling for frames; the newest frame set replaces (and releases) the one
+         * waiting for the processor, so the processor always gets the most recent frame set
+         */
+        LATEST_FRAME
+    }
+
+    /**
+     * Callback that processes the frame sets on the processing thread
+     */
+    public interface FrameProcessor {
+        /**
+         * Processes a single frame set. The frame set, any frame registered to the given
+         * frame releaser and any Mat registered to the given Mat releaser are released once
+         * this call returns.
+         * @param frameSet Frame set acquired from the pipeline
+         * @param frameReleaser Frame releaser that should release the frames derived from the frame set
+         * @param matReleaser Mat releaser for the temporary Mats of the frame; Mats that should
+         *                    outlive the frame must be promoted
+         * @throws Exception on processing failure; it is logged and the loop continues
+         */
+        void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception;
+    }
+
+    private final String name;
+    private final Pipeline pipeline;
+    private final FrameProcessor processor;
+    private final AcquisitionMode mode;
+
+    // used only on the processing thread, closed at the end of each frame
+    private final MatReleaser matReleaser = new MatReleaser();
+
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesProcessed = new AtomicLong();
+    private final AtomicLong framesFailed = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+
+    // the hand-over slot between the acquisition and the processing threads, guarded by slotLock
+    private final Object slotLock = new Object();
+    private FrameSet pendingFrameSet;
+    private boolean isProcessing = false;
+
+    private volatile boolean isRunning = false;
+    private Thread acquisitionThread;
+    private ExecutorService processingExecutor;
+
+    /**
+     * Creates a frame loop in NEXT_FRAME mode; the loop does not run until start() is called.
+     * @param name Name of the loop, used in the thread names and logs
+     * @param pipeline Pipeline to acquire the frames from
+     * @param processor Processor of the frame sets
+     */
+    public FrameLoop(@NonNull String name, @NonNull Pipeline pipeline, @NonNull FrameProcessor processor) {
+        this(name, pipeline, processor, AcquisitionMode.NEXT_FRAME);
+    }
+
+    /**
+     * Creates a frame loop; the loop does not run until start() is called.
+     * @param name Name of the loop, used in the thread names and logs
+     * @param pipeline Pipeline to acquire the frames from
+     * @param processor Processor of the frame sets
+     * @param mode Acquisition mode
+     */
+    public FrameLoop(@NonNull String name, @NonNull Pipeline pipeline, @NonNull FrameProcessor processor, @NonNull AcquisitionMode mode) {
+        this.name = name;
+        this.pipeline = pipeline;
+        this.processor = processor;
+        this.mode = mode;
+    }
+
+    /**
+     * @return True if the loop is started and not stopped yet
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * @return Number of frame sets acquired from the pipeline since the last start
+     */
+    public long getFramesReceived() {
+        return framesReceived.get();
+    }
+
+    /**
+     * @return Number of frame sets that are processed successfully since the last start
+     */
+    public long getFramesProcessed() {
+        return framesProcessed.get();
+    }
+
+    /**
+     * @return Number of frame sets whose processing threw an exception since the last start
+     */
+    public long getFramesFailed() {
+        return framesFailed.get();
+    }
+
+    /**
+     * @return Number of frame sets that are released without being processed since the last start
+     */
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    /**
+     * Starts the acquisition thread and the processing executor. Does nothing if already running.
+     */
+    public synchronized void start() {
+        if (isRunning) return;
+
+        framesReceived.set(0);
+        framesProcessed.set(0);
+        framesFailed.set(0);
+        framesDropped.set(0);
+
+        isRunning = true;
+        processingExecutor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, name + "-processing"));
+        acquisitionThread = new Thread(this::acquire, name + "-acquisition");
+        acquisitionThread.start();
+    }
+
+    /**
+     * Stops the loop and waits for the threads to finish, so that the pipeline and the filters
+     * used by the processor can be safely stopped and closed after this call. Waits for the frame
+     * set in process however long it takes, since the processor may still hold its frames.
+     * Does nothing if not running.
+     */
+    public synchronized void stop() {
+        if (!isRunning) return;
+
+        isRunning = false;
+        synchronized (slotLock) {
+            slotLock.notifyAll();
+        }
+        try {
+            acquisitionThread.join();
+            processingExecutor.shutdown();
+            while (!processingExecutor.awaitTermination(STOP_WARNING_INTERVAL_S, TimeUnit.SECONDS))
+                Log.w(TAG, "stop: still waiting for " + name + " processing to finish");
+        }
+        catch (InterruptedException e) {
+            Log.e(TAG, "stop: Interrupted while stopping " + name, e);
+            Thread.currentThread().interrupt();
+        }
+        synchronized (slotLock) {
+            if (pendingFrameSet != null) {
+                pendingFrameSet.close();
+                pendingFrameSet = null;
+                framesDropped.incrementAndGet();
+            }
+        }
+        acquisitionThread = null;
+        processingExecutor = null;
+
+        Log.d(TAG, String.format("stop: %s frames received %d processed %d failed %d dropped %d",
+                name, framesReceived.get(), framesProcessed.get(), framesFailed.get(), framesDropped.get()));
+    }
+
+    /**
+     * Acquisition thread body
+     */
+    private void acquire() {
+        if (mode == AcquisitionMode.LATEST_FRAME)
+            acquireLatest();
+        else
+            acquireNext();
+    }
+
+    /**
+     * Waits for the frames and hands them over to the processing executor. Blocks while the
+     * previous frame set is not taken over by the processor yet.
+     */
+    private void acquireNext() {
+        while (isRunning) {
+            FrameSet frameSet;
+            try {
+                frameSet = pipeline.waitForFrames(WAIT_FOR_FRAMES_TIMEOUT_MS);
+            }
+            catch (Exception e) {
+                // the wrapper reports a wait that timed out (no frames, e.g. a paused camera) as
+                // an exception; that is a normal condition, the loop just waits again
+                if (isRunning)
+                    Log.d(TAG, "acquireNext: " + name + " no frames within " + WAIT_FOR_FRAMES_TIMEOUT_MS + " ms: " + e.getMessage());
+                continue;
+            }
+            framesReceived.incrementAndGet();
+
+            synchronized (slotLock) {
+                while (isRunning && pendingFrameSet != null) {
+                    try {
+                        slotLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        isRunning = false;
+                    }
+                }
+                if (!isRunning) {
+                    frameSet.close();
+                    framesDropped.incrementAndGet();
+                    return;
+                }
+                handOver(frameSet);
+            }
+        }
+    }
+
+    /**
+     * Polls for the frames without blocking, keeps the newest frame set and hands it over to
+     * the processing executor. A frame set that is not taken over by the processor yet is
+     * released and replaced by the newer one.
+     */
+    private void acquireLatest() {
+        while (isRunning) {
+            FrameSet frameSet;
+            try {
+                frameSet = pipeline.pollForFrames();
+            }
+            catch (Exception e) {
+                if (isRunning)
+                    Log.e(TAG, "acquireLatest: " + name + " failed to poll frames", e);
+                frameSet = null;
+            }
+
+            if (frameSet == null) {
+                try {
+                    //noinspection BusyWait
+                    Thread.sleep(POLL_INTERVAL_MS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            // the frame set may outlive the next poll, take it out of the frame pool of the pipeline
+            frameSet.keep();
+            framesReceived.incrementAndGet();
+
+            synchronized (slotLock) {
+                if (pendingFrameSet != null) {
+                    pendingFrameSet.close();
+                    framesDropped.incrementAndGet();
+                }
+                if (!isRunning) {
+                    frameSet.close();
+                    framesDropped.incrementAndGet();
+                    return;
+                }
+                handOver(frameSet);
+            }
+        }
+    }
+
+    /**
+     * Puts the given frame set into the empty hand-over slot and makes sure that the processing
+     * executor is draining the slot. Should be called while holding the slotLock.
+     * @param frameSet Frame set to process
+     */
+    private void handOver(FrameSet frameSet) {
+        pendingFrameSet = frameSet;
+        if (!isProcessing) {
+            isProcessing = true;
+            processingExecutor.execute(this::process);
+        }
+    }
+
+    /**
+     * Processing thread body; processes the handed over frame sets until the slot is empty
+     */
+    private void process() {
+        while (true) {
+            FrameSet frameSet;
+            synchronized (slotLock) {
+                frameSet = pendingFrameSet;
+                pendingFrameSet = null;
+                if (frameSet == null || !isRunning) {
+                    isProcessing = false;
+                    if (frameSet != null) {
+                        frameSet.close();
+                        framesDropped.incrementAndGet();
+                    }
+                    slotLock.notifyAll();
+                    return;
+                }
+                slotLock.notifyAll();
+            }
+
+            try (FrameReleaser frameReleaser = new FrameReleaser()) {
+                processor.process(frameSet.releaseWith(frameReleaser), frameReleaser, matReleaser);
+                framesProcessed.incrementAndGet();
+            }
+            catch (Exception e) {
+                framesFailed.incrementAndGet();
+                Log.e(TAG, "process: " + name + " processing error", e);
+            }
+            finally {
+                matReleaser.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Static 3D k-d tree over the vertices of a point cloud for the nearest neighbor, k nearest
+ * neighbors and radius queries. The vertices without depth data are left out.
+ * <p>
+ * The tree is implicit: the coordinate arrays are partitioned in place, and the node of the range
+ * [lo, hi) is its median position (lo + hi) / 2, which splits the range on the axis of the
+ * largest extent. The ranges of at most {@link #LEAF_SIZE} vertices are leaves that are searched
+ * linearly. There are no node objects, and the queries read the coordinates of a subtree from a
+ * contiguous range of the arrays.
+ * <p>
+ * The two halves of the large ranges are partitioned in parallel on the common fork-join pool.
+ * The arrays are reused by the next build. The queries can be run from multiple threads, but not
+ * concurrently with a build.
+ */
+public class KdTree {
+
+    private static final int LEAF_SIZE = 8;
+    private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] zs = new float[0];
+    private int[] indices = new int[0];
+    private byte[] axes = new byte[0];
+    private int size;
+
+    /**
+     * Builds the tree over the vertices of the given source with depth data
+     * @param source Vertices; e.g. a PointGrid of a frozen frame
+     * @return Number of vertices in the tree
+     */
+    public int build(@NonNull final VertexSource source) {
+        final int n = source.getCount();
+        if (indices.length < n) {
+            xs = new float[n];
+            ys = new float[n];
+            zs = new float[n];
+            indices = new int[n];
+            axes = new byte[n];
+        }
+        size = 0;
+        for (int i = 0; i < n; i++) {
+            final float z = source.getZ(i);
+            if (z == 0)
+                continue;
+            xs[size] = source.getX(i);
+            ys[size] = source.getY(i);
+            zs[size] = z;
+            indices[size++] = i;
+        }
+        ForkJoinPool.commonPool().invoke(new BuildTask(0, size));
+        return size;
+    }
+
+    /**
+     * @return Number of vertices in the tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param x Query x in metres
+     * @param y Query y in metres
+     * @param z Query z in metres
+     * @return Source index of the nearest vertex; -1 if the tree is empty
+     */
+    public int nearest(final float x, final float y, final float z) {
+        final int[] index = new int[1];
+        final float[] distance = new float[1];
+        return nearest(x, y, z, 1, index, distance) == 1 ? index[0] : -1;
+    }
+
+    /**
+     * Finds the k nearest vertices of the given position
+     * @param x Query x in metres
+     * @param y Query y in metres
+     * @param z Query z in metres
+     * @param k Number of neighbors
+     * @param outIndices Destination of at least k source indices, sorted by the distance
+     * @param outSquaredDistances Destination of at least k squared distances in square metres
+     * @return Number of neighbors found; less than k if the tree is smaller
+     */
+    public int nearest(final float x, final float y, final float z, final int k,
+                       @NonNull final int[] outIndices, @NonNull final float[] outSquaredDistances) {
+        if (k <= 0 || size == 0)
+            return 0;
+        // max heap of the best k on tree positions; the root is the farthest of them
+        final Heap heap = new Heap(k);
+        searchNearest(0, size, x, y, z, heap);
+        // pop the farthest first to fill the outputs in increasing distance
+        final int count = heap.count;
+        for (int i = count - 1; i >= 0; i--) {
+            outSquaredDistances[i] = heap.distances[0];
+            outIndices[i] = indices[heap.positions[0]];
+            heap.pop();
+        }
+        return count;
+    }
+
+    /**
+     * Finds the vertices within the given radius of the given position
+     * @param x Query x in metres
+     * @param y Query y in metres
+     * @param z Query z in metres
+     * @param radius Radius in metres
+     * @param outIndices Destination of the source indices, in no particular order; the search
+     *                   stops when it is full
+     * @return Number of vertices written into outIndices
+     */
+    public int radius(final float x, final float y, final float z, final float radius, @NonNull final int[] outIndices) {
+        if (size == 0 || outIndices.length == 0)
+            return 0;
+        return searchRadius(0, size, x, y, z, radius * radius, outIndices, 0);
+    }
+
+    private void searchNearest(final int lo, final int hi, final float x, final float y, final float z, final Heap heap) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi; i++)
+                heap.offer(i, squaredDistance(i, x, y, z));
+            return;
+        }
+        final int mid = (lo + hi) >>> 1;
+        heap.offer(mid, squaredDistance(mid, x, y, z));
+        final float delta = axisDelta(mid, x, y, z);
+        // the near side first; the far side only if the splitting plane is closer than the worst of the best k
+        if (delta < 0) {
+            searchNearest(lo, mid, x, y, z, heap);
+            if (delta * delta < heap.worst())
+                searchNearest(mid + 1, hi, x, y, z, heap);
+        } else {
+            searchNearest(mid + 1, hi, x, y, z, heap);
+            if (delta * delta < heap.worst())
+                searchNearest(lo, mid, x, y, z, heap);
+        }
+    }
+
+    private int searchRadius(final int lo, final int hi, final float x, final float y, final float z,
+                             final float squaredRadius, final int[] out, int count) {
+        if (hi - lo <= LEAF_SIZE) {
+            for (int i = lo; i < hi && count < out.length; i++) {
+                if (squaredDistance(i, x, y, z) <= squaredRadius)
+                    out[count++] = indices[i];
+            }
+            return count;
+        }
+        final int mid = (lo + hi) >>> 1;
+        if (squaredDistance(mid, x, y, z) <= squaredRadius && count < out.length)
+            out[count++] = indices[mid];
+        final float delta = axisDelta(mid, x, y, z);
+        if (delta <= 0 || delta * delta <= squaredRadius)
+            count = searchRadius(lo, mid, x, y, z, squaredRadius, out, count);
+        if (delta >= 0 || delta * delta <= squaredRadius)
+            count = searchRadius(mid + 1, hi, x, y, z, squaredRadius, out, count);
+        return count;
+    }
+
+    private float squaredDistance(final int i, final float x, final float y, final float z) {
+        final float dx = xs[i] - x;
+        final float dy = ys[i] - y;
+        final float dz = zs[i] - z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * @return Signed distance of the query from the splitting plane of the node; negative on the lower side
+     */
+    private float axisDelta(final int mid, final float x, final float y, final float z) {
+        switch (axes[mid]) {
+            case 0:
+                return x - xs[mid];
+            case 1:
+                return y - ys[mid];
+            default:
+                return z - zs[mid];
+        }
+    }
+
+    /**
+     * Partitions the range around its median on the axis of the largest extent, then the halves
+     */
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+
+        BuildTask(final int lo, final int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= LEAF_SIZE)
+                return;
+            final int axis = widestAxis();
+            final float[] values = axis == 0 ? xs : axis == 1 ? ys : zs;
+            final int mid = (lo + hi) >>> 1;
+            select(values, mid);
+            axes[mid] = (byte) axis;
+            if (hi - lo >= PARALLEL_THRESHOLD) {
+                invokeAll(new BuildTask(lo, mid), new BuildTask(mid + 1, hi));
+            } else {
+                new BuildTask(lo, mid).compute();
+                new BuildTask(mid + 1, hi).compute();
+            }
+        }
+
+        private int widestAxis() {
+            int axis = 0;
+            float widest = -1;
+            for (int a = 0; a < 3; a++) {
+                final float[] values = a == 0 ? xs : a == 1 ? ys : zs;
+                float min = Float.MAX_VALUE;
+                float max = -Float.MAX_VALUE;
+                for (int i = lo; i < hi; i++) {
+                    final float v = values[i];
+                    if (v < min)
+                        min = v;
+                    if (v > max)
+                        max = v;
+                }
+                if (max - min > widest) {
+                    widest = max - min;
+                    axis = a;
+                }
+            }
+            return axis;
+        }
+
+        /**
+         * Quickselect: moves the k-th smallest value of the range to k, the smaller ones before it
+         * and the larger ones after it
+         */
+        private void select(final float[] values, final int k) {
+            int left = lo;
+            int right = hi - 1;
+            while (right > left) {
+                // median of three pivot
+                final int middle = (left + right) >>> 1;
+                if (values[middle] < values[left])
+                    swap(middle, left);
+                if (values[right] < values[left])
+                    swap(right, left);
+                if (values[right] < values[middle])
+                    swap(right, middle);
+                final float pivot = values[middle];
+
+                int i = left;
+                int j = right;
+                while (i <= j) {
+                    while (values[i] < pivot)
+                        i++;
+                    while (values[j] > pivot)
+                        j--;
+                    if (i <= j) {
+                        swap(i, j);
+                        i++;
+                        j--;
+                    }
+                }
+                if (k <= j)
+                    right = j;
+                else if (k >= i)
+                    left = i;
+                else
+                    return;
+            }
+        }
+
+        private void swap(final int i, final int j) {
+            final float x = xs[i];
+            xs[i] = xs[j];
+            xs[j] = x;
+            final float y = ys[i];
+            ys[i] = ys[j];
+            ys[j] = y;
+            final float z = zs[i];
+            zs[i] = zs[j];
+            zs[j] = z;
+            final int index = indices[i];
+            indices[i] = indices[j];
+            indices[j] = index;
+        }
+    }
+
+    /**
+     * Bounded max heap of the best candidates of a k nearest neighbors query
+     */
+    private static class Heap {
+
+        private final int[] positions;
+        private final float[] distances;
+        private int count;
+
+        Heap(final int capacity) {
+            positions = new int[capacity];
+            distances = new float[capacity];
+        }
+
+        /**
+         * @return Squared distance a candidate has to beat; infinite until the heap is full
+         */
+        float worst() {
+            return count < positions.length ? Float.POSITIVE_INFINITY : distances[0];
+        }
+
+        void offer(final int position, final float distance) {
+            if (count < positions.length) {
+                int i = count++;
+                while (i > 0) {
+                    final int parent = (i - 1) / 2;
+                    if (distances[parent] >= distance)
+                        break;
+                    positions[i] = positions[parent];
+                    distances[i] = distances[parent];
+                    i = parent;
+                }
+                positions[i] = position;
+                distances[i] = distance;
+            } else if (distance < distances[0]) {
+                siftDown(position, distance);
+            }
+        }
+
+        void pop() {
+            count--;
+            if (count > 0)
+                siftDown(positions[count], distances[count]);
+        }
+
+        private void siftDown(final int position, final float distance) {
+            int i = 0;
+            while (true) {
+                final int left = 2 * i + 1;
+                if (left >= count)
+                    break;
+                final int right = left + 1;
+                final int child = right < count && distances[right] > distances[left] ? right : left;
+                if (distances[child] <= distance)
+                    break;
+                positions[i] = positions[child];
+                distances[i] = distances[child];
+                i = child;
+            }
+            positions[i] = position;
+            distances[i] = distance;
+        }
+    }
+}
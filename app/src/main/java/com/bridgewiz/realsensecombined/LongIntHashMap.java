@@ -0,0 +1,128 @@
+package com.bridgewiz.realsensecombined;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative long keys to int values, e.g. from packed voxel
+ * coordinates ({@link CellKeys}) to output indices. The keys and the values are kept in two primitive arrays with
+ * linear probing, so there are no boxed keys and no entry objects. The capacity is a power of two
+ * and doubles when the map is half full; it is kept by clear.
+ * <p>
+ * Not thread-safe.
+ */
+public class LongIntHashMap {
+
+    private static final long EMPTY_KEY = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param expectedSize Number of keys the map holds without growing
+     */
+    public LongIntHashMap(final int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        allocate(capacity);
+    }
+
+    /**
+     * @param key Non-negative key
+     * @return Value of the key; -1 if the key is not in the map
+     */
+    public int get(final long key) {
+        int index = hash(key) & mask;
+        while (true) {
+            final long current = keys[index];
+            if (current == key)
+                return values[index];
+            if (current == EMPTY_KEY)
+                return -1;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * Adds the given key with the given value unless the key is in the map
+     * @param key Non-negative key
+     * @param value Value of a new key
+     * @return Value of the key if it is already in the map; -1 if it is added
+     */
+    public int putIfAbsent(final long key, final int value) {
+        int index = hash(key) & mask;
+        while (true) {
+            final long current = keys[index];
+            if (current == key)
+                return values[index];
+            if (current == EMPTY_KEY)
+                break;
+            index = (index + 1) & mask;
+        }
+
+        // keep the load factor at most 0.5
+        if ((size + 1) * 2 > keys.length) {
+            rehash(keys.length * 2);
+            index = hash(key) & mask;
+            while (keys[index] != EMPTY_KEY)
+                index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        size++;
+        return -1;
+    }
+
+    /**
+     * @return Number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the keys; keeps the capacity
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY_KEY);
+        size = 0;
+    }
+
+    private void allocate(final int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY_KEY);
+    }
+
+    private void rehash(final int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY_KEY)
+                continue;
+            int index = hash(oldKeys[i]) & mask;
+            while (keys[index] != EMPTY_KEY)
+                index = (index + 1) & mask;
+            keys[index] = oldKeys[i];
+            values[index] = oldValues[i];
+        }
+    }
+
+    /**
+     * Finalizer of MurmurHash3; spreads the keys over the table
+     */
+    private static int hash(final long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+}
@@ -1,50 +1,47 @@
 package com.bridgewiz.realsensecombined;
 
 import android.content.Context;
-import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SwitchCompat;
 
 import com.google.android.material.slider.Slider;
 import com.intel.realsense.librealsense.Align;
-import com.intel.realsense.librealsense.Colorizer;
 import com.intel.realsense.librealsense.Config;
 import com.intel.realsense.librealsense.DepthFrame;
 import com.intel.realsense.librealsense.DeviceList;
 import com.intel.realsense.librealsense.DeviceListener;
 import com.intel.realsense.librealsense.Extension;
-import com.intel.realsense.librealsense.Frame;
 import com.intel.realsense.librealsense.FrameReleaser;
 import com.intel.realsense.librealsense.FrameSet;
 import com.intel.realsense.librealsense.HoleFillingFilter;
-import com.intel.realsense.librealsense.Option;
 import com.intel.realsense.librealsense.Pipeline;
 import com.intel.realsense.librealsense.PipelineProfile;
-import com.intel.realsense.librealsense.Pointcloud;
-import com.intel.realsense.librealsense.Points;
 import com.intel.realsense.librealsense.RsContext;
-import com.intel.realsense.librealsense.StreamFormat;
 import com.intel.realsense.librealsense.StreamType;
 import com.intel.realsense.librealsense.VideoFrame;
 
 import org.opencv.android.OpenCVLoader;
-import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.imgproc.Imgproc;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ShortBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
@@ -58,28 +55,35 @@ public class MaskAndCloudActivity extends AppCompatActivity {
     private final String TAG = "MaskAndCloudActivity";
 
     private ImageView imageViewColor;
+    private BitmapDisplay colorDisplay;
+    private final BitmapPool bitmapPool = new BitmapPool();
     private TextView txtDistance;
     private TextView txtDiameter;
     private TextView txtDiameterAlt;
     private TextView txtMaxDiameter;
     private TextView txtLastSaved;
     private TextView txtDiameterAlt3;
+    private TextView txtDiameterFit;
+    private TextView txtDiameterFused;
 
     private RsContext rsContext;
     private Pipeline pipeline;
     private Context appContext;
-    private final Handler handler = new Handler();
+    private FrameLoop frameLoop;
 
     private boolean isStreaming = false;
-    private boolean shouldProcess = false;
-    private boolean isFrozen = false;
-    private boolean shouldSave = false;
-    private boolean shouldFillHoles = false;
-    private boolean isCurrentForeground = false;
+    private volatile boolean shouldProcess = false;
+    private volatile boolean isFrozen = false;
+    // set while the processing thread measures the fused model and indexes the frozen cloud
+    private volatile boolean isFreezing = false;
+    // guards the hand-over of the freeze state between the processing and the UI threads; held
+    // only while the flags change, never during the freeze work
+    private final Object stateLock = new Object();
+    private volatile boolean shouldSave = false;
+    private volatile boolean shouldFillHoles = false;
+    private volatile boolean isCurrentForeground = false;
 
     private Align align;
-    private Pointcloud pointcloud;
-    private Colorizer colorizer;
     private HoleFillingFilter holeFillingFilter;
 
     private String saveDirectoryPathImage;
@@ -87,11 +91,51 @@ public class MaskAndCloudActivity extends AppCompatActivity {
     private float lastDiameter = Float.NaN;
     private float lastDiameterAlt = Float.NaN;
     private float lastDiameterAlt3 = Float.NaN;
+    private float lastFitDiameter = Float.NaN;
+    private float lastFitInlierRatio = Float.NaN;
+    private float lastFitTilt = Float.NaN;
+    private float lastFusedDiameter = Float.NaN;
     private float lastDistance = -1;
+
+    // the cloud of the frozen frame and its index for the point to point measurements
+    private final PointGrid frozenGrid = new PointGrid();
+    private final KdTree frozenTree = new KdTree();
+    private final NormalEstimator frozenNormals = new NormalEstimator();
+    private final int[] pickIndices = new int[PICK_NEIGHBORS];
+    private final float[] pickDistances = new float[PICK_NEIGHBORS];
+    private final float[] pickedPoint = new float[3];
+    private final float[] lastTouch = new float[2];
+    private boolean hasPickedPoint = false;
     private final DecimalFormat decimalFormat = new DecimalFormat("#.##", new DecimalFormatSymbols(Locale.US));
     // the differential limit; any values outside center +- delta will be erased
     private double maxExpectedDiameter = 0.75; // meters
 
+    // a measurement stops when the 95% confidence interval of the diameter is within +- tolerance
+    private static final float DIAMETER_TOLERANCE = 0.5f; // centimeters
+    private static final int MIN_DIAMETER_SAMPLES = 5;
+    private static final int MAX_MEASUREMENT_FRAMES = 60;
+
+    // the records are written into a new file whenever the columns change, so that the rows of
+    // a file always match its header; increment when adding or removing columns
+    private static final int RECORDS_VERSION = 2;
+
+    // RANSAC trunk fitting on every other vertex of the edge band, within a fraction of a frame
+    private static final float FIT_INLIER_THRESHOLD = 0.005f; // meters
+    private static final int FIT_MAX_ITERATIONS = 200;
+    private static final long FIT_TIME_BUDGET_NANOS = 5_000_000L;
+    private static final int FIT_SAMPLING_STEP = 2;
+
+    // a picked point is the centroid of the nearest vertices of the touched pixel
+    private static final int PICK_NEIGHBORS = 16;
+    // the depth of a surface seen at a grazing angle is unreliable; the normal of a picked point
+    // should be within 75 degrees of the view ray
+    private static final float MIN_PICK_INCIDENCE_COSINE = (float) Math.cos(Math.toRadians(75));
+
+    // the frames of a measurement are fused into 5 mm voxels, at most 4096 blocks of 8^3 voxels (10 MB)
+    private static final float FUSION_VOXEL_SIZE = 0.005f; // meters
+    private static final float FUSION_TRUNCATION = 0.02f; // meters
+    private static final int FUSION_BLOCK_BUDGET = 4096;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -116,10 +160,13 @@ public class MaskAndCloudActivity extends AppCompatActivity {
 
         appContext = getApplicationContext();
         imageViewColor = findViewById(R.id.imgMaskAndCloudColor);
+        colorDisplay = new BitmapDisplay(this, imageViewColor, bitmapPool);
         txtDiameter = findViewById(R.id.txtMaskAndCloudDiameter);
         txtDistance = findViewById(R.id.txtMaskAndCloudDistance);
         txtDiameterAlt = findViewById(R.id.txtMaskAndCloudDiameterAlt);
         txtDiameterAlt3 = findViewById(R.id.txtMaskAndCloudDiameterAlt3);
+        txtDiameterFit = findViewById(R.id.txtMaskAndCloudDiameterFit);
+        txtDiameterFused = findViewById(R.id.txtMaskAndCloudDiameterFused);
         txtMaxDiameter = findViewById(R.id.txtActivityMaskAndCloudExpectedDiameter);
         txtLastSaved = findViewById(R.id.txtMaskAndCloudLastSaved);
         SwitchCompat swhFillHoles = findViewById(R.id.swhMaskAndCloudFillHoles);
@@ -128,6 +175,12 @@ public class MaskAndCloudActivity extends AppCompatActivity {
         updateLabel(txtMaxDiameter, R.string.maximum_diameter_expected, (float) maxExpectedDiameter * 100);
 
         imageViewColor.setOnClickListener(view -> processImage());
+        imageViewColor.setOnTouchListener((view, event) -> {
+            lastTouch[0] = event.getX();
+            lastTouch[1] = event.getY();
+            return false;
+        });
+        imageViewColor.setOnLongClickListener(view -> pickPoint());
 //        imageViewForeground.setOnClickListener(view -> saveImage());
         swhFillHoles.setOnCheckedChangeListener((compoundButton, b) -> {
             if (isFrozen) {
@@ -178,7 +231,6 @@ public class MaskAndCloudActivity extends AppCompatActivity {
 
         pipeline.close();
         align.close();
-        pointcloud.close();
         holeFillingFilter.close();
     }
 
@@ -230,26 +282,34 @@ public class MaskAndCloudActivity extends AppCompatActivity {
 
     private Mat colorMat;
     private Mat foregroundMat;
-    private Mat farMask;
-    private Mat nearMask;
-    private Mat combinedMask;
     private Mat colorMatWithBorders;
+    private DepthSegmenter depthSegmenter;
+    private final RleMask trunkMask = new RleMask();
+    private final Deprojector deprojector = new Deprojector();
+    private final DiameterEstimator diameterEstimator = new DiameterEstimator();
+    private final TrunkFitter trunkFitter = new TrunkFitter(FIT_INLIER_THRESHOLD, FIT_MAX_ITERATIONS, FIT_TIME_BUDGET_NANOS);
+    private final TemporalEstimator maskSamples = new TemporalEstimator(DIAMETER_TOLERANCE, MIN_DIAMETER_SAMPLES, MAX_MEASUREMENT_FRAMES);
+    private final TemporalEstimator cloudSamples = new TemporalEstimator(DIAMETER_TOLERANCE, MIN_DIAMETER_SAMPLES, MAX_MEASUREMENT_FRAMES);
+    private final TemporalEstimator extendedCloudSamples = new TemporalEstimator(DIAMETER_TOLERANCE, MIN_DIAMETER_SAMPLES, MAX_MEASUREMENT_FRAMES);
+    private final TsdfVolume tsdfVolume = new TsdfVolume(FUSION_VOXEL_SIZE, FUSION_TRUNCATION, FUSION_BLOCK_BUDGET);
+    private final Deprojector fusedDeprojector = new Deprojector();
+    private final DiameterEstimator fusedDiameterEstimator = new DiameterEstimator();
+    private short[] fusedDepth = new short[0];
 
     /**
      * Initializes the Mats that need to be instantiated before any calls.
      */
     private void initializeMats() {
-        farMask = new Mat();
-        nearMask = new Mat();
-        combinedMask = new Mat();
+        colorMatWithBorders = new Mat();
+        depthSegmenter = new DepthSegmenter();
     }
 
     /**
-     * The main runnable that does all the work
+     * The main frame processor that does all the work
      */
-    private final Runnable mStreaming = new Runnable() {
+    private final FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
             if (isFrozen) {
                 if (shouldSave) {
                     Date date = new Date();
@@ -258,310 +318,383 @@ public class MaskAndCloudActivity extends AppCompatActivity {
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPathImage, "foreground", date), foregroundMat);
                     CvHelpers.SwapAndSave(CvHelpers.createImagePath(saveDirectoryPathImage, "edges", date), colorMatWithBorders);
                     saveRecord(CvHelpers.simpleDateFormat.format(date), lastDistance);
+                    saveTrunkMask(CvHelpers.simpleDateFormat.format(date));
 
                     shouldSave = false;
                     updateLabel(txtLastSaved, R.string.last_saved_filename, CvHelpers.simpleDateFormat.format(date));
                 }
-                handler.post(mStreaming);
                 return;
             }
-            try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = pipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
+            FrameSet processedFrameSet = frameSet.applyFilter(align).releaseWith(frameReleaser);
 
-                    VideoFrame colorFrame = processedFrameSet
-                            .first(StreamType.COLOR)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.VIDEO_FRAME);
+            VideoFrame colorFrame = processedFrameSet
+                    .first(StreamType.COLOR)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.VIDEO_FRAME);
 
 
-                    colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
+            // copied into the direct buffer that the foreground extraction reads
+            colorMat = depthSegmenter.setColorFrame(colorFrame);
 
-                    colorMatWithBorders = colorMat.clone();
+            colorMat.copyTo(colorMatWithBorders);
 
 
-                    // get the depth at the center in meters
-                    DepthFrame depthFrame = processedFrameSet
-                            .first(StreamType.DEPTH)
-                            .releaseWith(frameReleaser)
-                            .as(Extension.DEPTH_FRAME);
-                    float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
-                    lastDistance = distance;
-                     updateLabel(txtDistance, R.string.distance_with_placeholder, distance);
+            // get the depth at the center in meters
+            DepthFrame depthFrame = processedFrameSet
+                    .first(StreamType.DEPTH)
+                    .releaseWith(frameReleaser)
+                    .as(Extension.DEPTH_FRAME);
+            float distance = depthFrame.getDistance(depthFrame.getWidth()/2, depthFrame.getHeight()/2);
+            lastDistance = distance;
+             updateLabel(txtDistance, R.string.distance_with_placeholder, distance);
 
 
 
-                    if (shouldProcess) {
-                        // get grayscale depth image
-                        colorizer.setValue(Option.COLOR_SCHEME, 2);
-                        Frame bwDepthFrame;
-                        if (shouldFillHoles)
-                            bwDepthFrame = depthFrame
-                                    .applyFilter(holeFillingFilter)
-                                    .applyFilter(colorizer)
-                                    .releaseWith(frameReleaser);
+            if (shouldProcess) {
+                DepthFrame segmentationFrame = depthFrame;
+                if (shouldFillHoles)
+                    segmentationFrame = depthFrame
+                            .applyFilter(holeFillingFilter)
+                            .releaseWith(frameReleaser)
+                            .as(Extension.DEPTH_FRAME);
+
+                int centerY = depthFrame.getHeight() / 2;
+                int centerX = depthFrame.getWidth() / 2;
+
+                // keep the pixels within center distance +- maxExpectedDiameter/2 meters,
+                // thresholded on the raw depth. The foreground is owned by the segmenter and stays
+                // valid until the next extraction
+                Mat foreground = depthSegmenter.extractForeground(segmentationFrame, colorMat, distance, maxExpectedDiameter);
+                // the same range as runs, for the approach 1 edges and the saved session
+                depthSegmenter.createRunMask(distance - maxExpectedDiameter / 2, distance + maxExpectedDiameter / 2, trunkMask);
+
+                // only the pixels that are needed are deprojected into 3D, instead of running
+                // the Pointcloud filter on the whole frame
+                deprojector.setDepthFrame(depthFrame);
+
+                // the frames of the measurement are fused within the depth range of the trunk
+                float nearZ = (float) (distance - maxExpectedDiameter);
+                float farZ = (float) (distance + maxExpectedDiameter);
+                tsdfVolume.integrate(deprojector, nearZ, farZ);
+
+                // y coordinates for start and end of the tree edge lines
+                int edgeStartY = (int) (colorMatWithBorders.rows() * 0.3);
+                int edgeEndY = edgeStartY * 2;
+
+
+                /*
+                 * Dev-test: the following code gets the middle distance from the deprojector
+                 * to compare it with the distance obtained above
+
+                float x = deprojector.getX(centerX, centerY);
+                float y = deprojector.getY(centerX, centerY);
+                float z = deprojector.getZ(centerX, centerY);
+                Log.d(TAG, String.format("run: Cloud points coordinates: %s %s %s", x, y, z));
+                 */
+
+                /* APPROACH 1
+                 * Calculate tree edges from the runs of the trunk mask, then use these edge
+                 * pixel coordinates for seeking the 3D coordinates inside the point cloud
+                 *
+                 * APPROACH 2: Seek the tree edge points directly within the metric depth of
+                 * the point cloud instead of first finding it in the foreground image and
+                 * then translating the pixel coordinates.
+                 * We still need the foreground image for UI and UX
+                 *
+                 * APPROACH 3:
+                 * The same with approach 2, but the tree is assumed to start
+                 * with the first pixel of the black zone from the center, rather than
+                 * the first pixel before/after the black zone, i.e. the diameter calculated
+                 * in approach 2 is extended by the spacing of the edge vertex and its neighbor
+                 * towards the center at each side, since the black vertices have no coordinates.
+                 *
+                 * All approaches measure every row between edgeStartY and edgeEndY in parallel,
+                 * seeking from the center column outwards, and report the median of the rows.
+                 * An edge is not found if the trunk reaches the border on that row.
+                 */
+                diameterEstimator.estimate(trunkMask, deprojector, centerX,
+                        edgeStartY, edgeEndY + 1, nearZ, farZ);
+                Log.d(TAG, "run: Diameter estimation took " + diameterEstimator.getLastNanos() + " ns");
+
+                /* APPROACH 4
+                 * Fit a cylinder (or at least a circle on the horizontal plane) to the trunk
+                 * vertices between the approach 1 edges, which does not assume that the trunk
+                 * faces the camera squarely
+                 */
+                trunkFitter.setMaxRadius((float) maxExpectedDiameter / 2);
+                trunkFitter.collect(deprojector, diameterEstimator.getMaskResult(), FIT_SAMPLING_STEP);
+                fitTrunk();
+
+                // the per-frame medians are accumulated until the confidence interval of the
+                // approach 1 diameter is narrow enough (or the frame limit is reached)
+                DiameterEstimator.Result maskResult = diameterEstimator.getMaskResult();
+                DiameterEstimator.Result cloudResult = diameterEstimator.getCloudResult();
+                DiameterEstimator.Result extendedCloudResult = diameterEstimator.getExtendedCloudResult();
+                boolean finished = maskSamples.add(maskResult.getMedian());
+                cloudSamples.add(cloudResult.getMedian());
+                extendedCloudSamples.add(extendedCloudResult.getMedian());
+
+                lastDiameter = maskSamples.getMean();
+                lastDiameterAlt = cloudSamples.getMean();
+                lastDiameterAlt3 = extendedCloudSamples.getMean();
+                updateDiameterLabel(txtDiameter, maskSamples);
+                updateDiameterLabel(txtDiameterAlt, cloudSamples);
+                updateDiameterLabel(txtDiameterAlt3, extendedCloudSamples);
+
+                // draw the tree edges from approach 1 onto the colorMatWithBorders
+                // using white color
+                if (maskResult.getValidRows() > 0)
+                    drawEdges(maskResult, Scalar.all(255));
+                // draw the tree edges from approach 2 onto the colorMatWithBorders
+                // using blue color.
+                // we are not drawing results of approach 3 because it is just 1 px shifted
+                // values of approach 2
+                if (cloudResult.getValidRows() > 0)
+                    drawEdges(cloudResult, new Scalar(0, 0, 255));
+
+                if (finished) {
+                    Log.d(TAG, String.format(Locale.US, "run: Measurement finished after %d frames with %d samples",
+                            maskSamples.getFrameCount(), maskSamples.getCount()));
+                    // the state is flipped before the freeze work; a tap is ignored while
+                    // isFreezing is set, so it can not start a new measurement and reset the
+                    // volume while the fused model is measured
+                    synchronized (stateLock) {
+                        isFrozen = true;
+                        isFreezing = true;
+                        shouldProcess = false;
+                    }
+                    try {
+                        if (isCurrentForeground)
+                            colorDisplay.show(foreground);
                         else
-                            bwDepthFrame = depthFrame
-                                    .applyFilter(colorizer)
-                                    .releaseWith(frameReleaser);
-
-                        Mat bwDepthMatMaster = CvHelpers.VideoFrame2Mat(bwDepthFrame.as(Extension.VIDEO_FRAME));
-                        Imgproc.cvtColor(bwDepthMatMaster, bwDepthMatMaster, Imgproc.COLOR_BGR2GRAY);
-
-                        // depth value at the center in the grayscale 8bit depth image
-                        int centerY = depthFrame.getHeight() / 2;
-                        int centerX = depthFrame.getWidth() / 2;
-                        double du = bwDepthMatMaster.get(bwDepthMatMaster.rows() / 2, bwDepthMatMaster.cols() / 2)[0];
-
-
-                        // scale maxExpectedDiameter to 8bit pixel values based on distance
-                        double delta = du * maxExpectedDiameter / distance / 2;
-
-                        double thresholdFar = du - delta;
-                        double thresholdNear = du + delta;
-
-                        // We need {!(near OR far)} which is equivalent to {!near AND !far}, which is shorter
-                        // This is the reason CMP_GT and CMP_LT are in reverse
-                        Core.compare(bwDepthMatMaster, Scalar.all(thresholdFar), farMask, Core.CMP_GT);
-                        Core.compare(bwDepthMatMaster, Scalar.all(thresholdNear), nearMask, Core.CMP_LT);
-                        Core.bitwise_and(farMask, nearMask, combinedMask);
-
-                        foregroundMat = new Mat();
-                        colorMat.copyTo(foregroundMat, combinedMask);
-
-                        FrameSet frameSetPointCloud = processedFrameSet.applyFilter(pointcloud).releaseWith(frameReleaser);
-                        Frame pointCloudFrame = frameSetPointCloud
-                                .first(StreamType.DEPTH, StreamFormat.XYZ32F)
-                                .releaseWith(frameReleaser);
-
-                        Points cloudPoints = pointCloudFrame.as(Extension.POINTS);
-                        int count = cloudPoints.getCount();
-                        Log.d(TAG, "run: Number of vertices in point cloud: " + count);
-
-                        // y coordinates for start and end of the tree edge lines
-                        int edgeStartY = (int) (colorMatWithBorders.rows() * 0.3);
-                        int edgeEndY = edgeStartY * 2;
-
-
-                        float[] vertices = cloudPoints.getVertices();
-                        /* for indexing of vertices with respect to depth image, see
-                         *  https://github.com/IntelRealSense/librealsense/issues/9340
-                         *  for pixel (i,j) the coordinates starting index is
-                         * (j * (depthFrameWidth) + i) * 3
-                         * This is the x coordinate; y and z coordinates are +1 and +2 away
-                         * from this value.
-                         */
-
-                        /*
-                         * Dev-test: the following code gets the middle distance from point cloud
-                         * to compare it with the distance obtained above
-
-                        int midIndex = (centerY * depthFrame.getWidth() + centerX) * 3;
-                        float x = vertices[midIndex];
-                        float y = vertices[midIndex + 1];
-                        float z = vertices[midIndex + 2];
-                        Log.d(TAG, String.format("run: Cloud points coordinates: %s %s %s", x, y, z));
-                         */
-
-                        /* APPROACH 1
-                         * Calculate tree edges from the foreground image, then use these edge
-                         * pixel coordinates for seeking the 3D coordinates inside the point cloud
-                         */
-
-                        // in the mid-height, seek the first zeroes from center to outwards in x
-                        int leftIndex = -1;
-                        for (int i = centerX; i >=0 ; i--) {
-                            double[] channels = foregroundMat.get(centerY, i);
-                            if (Arrays.stream(channels).sum() == 0) {
-                                leftIndex = i + 1;
-                                break;
-                            }
-                        }
-
-                        int rightIndex = -1;
-                        for (int i = centerX; i < foregroundMat.cols(); i++) {
-                            double [] channels = foregroundMat.get(centerY, i);
-                            if (Arrays.stream(channels).sum() == 0) {
-                                rightIndex = i - 1;
-                                break;
-                            }
-                        }
-
-
-                        int vertexYIndex = centerY * depthFrame.getWidth();
-
-                        if (leftIndex == -1 || rightIndex == -1) {
-                             updateLabel(txtDiameter, R.string.failed_to_find_tree_edge);
-                        }
-                        else {
-                            int leftEdgeVertexIndex = (vertexYIndex + leftIndex) * 3;
-                            int rightEdgeVertexIndex = (vertexYIndex + rightIndex) * 3;
-
-                            Log.d(TAG, String.format("run: left and right pixel indices %d %d", leftIndex, rightIndex));
-                            Log.d(TAG, String.format("run: left and right vertex indices %d %d", leftEdgeVertexIndex, rightEdgeVertexIndex));
-
-                            float leftEdgeX = vertices[leftEdgeVertexIndex];
-                            float leftEdgeY = vertices[leftEdgeVertexIndex + 1];
-                            float leftEdgeZ = vertices[leftEdgeVertexIndex + 2];
-
-                            float rightEdgeX = vertices[rightEdgeVertexIndex];
-                            float rightEdgeY = vertices[rightEdgeVertexIndex + 1];
-                            float rightEdgeZ = vertices[rightEdgeVertexIndex + 2];
-
-                            Log.d(TAG, String.format("run: Left Edge Point: %f %f %f", leftEdgeX, leftEdgeY, leftEdgeZ));
-                            Log.d(TAG, String.format("run: Right Edge Point: %f %f %f", rightEdgeX, rightEdgeY, rightEdgeZ));
-
-                            float diameterRaw = (rightEdgeX - leftEdgeX) * 100; // centimeters
-                            lastDiameter = diameterRaw;
-                            updateLabel(txtDiameter, R.string.diameter_with_placeholder, diameterRaw);
-
-                            // draw the tree edge lines from approach 1 onto the colorMatWithBorders
-                            // using white color
-                            Imgproc.line(colorMatWithBorders,
-                                    new Point(leftIndex, edgeStartY),
-                                    new Point(leftIndex, edgeEndY),
-                                    Scalar.all(255),
-                                    2);
-                            Imgproc.line(colorMatWithBorders,
-                                    new Point(rightIndex, edgeStartY),
-                                    new Point(rightIndex, edgeEndY),
-                                    Scalar.all(255),
-                                    2);
-                        }
-
-                        /*
-                         * APPROACH 2: We already have point cloud; therefore seek the tree edge
-                         * points directly within the point cloud array instead of first finding
-                         * it in the foreground image and then translating the pixel coordinates.
-                         * We still need the foreground image for UI and UX
-                         */
-
-                        int midIndex = (centerY * depthFrame.getWidth() + centerX) * 3;
-
-                        double thresholdNearZ = distance - maxExpectedDiameter;
-                        double thresholdFarZ = distance + maxExpectedDiameter;
-
-                        float leftX = Float.NaN;
-                        float rightX = Float.NaN;
-                        int leftXIndex = 0;
-                        int rightXIndex = 0;
-                        // seek half of image width
-                        /* NOTE
-                         * Having branches inside loops is suboptimal, however, this loop is
-                         * expected be run for a maximum of 320 times (most of the time around 50-60)
-                         * therefore a single loop with branches is used instead of having two loops.
-                         */
-                        for (int i = 1; i < depthFrame.getWidth() / 2 ; i++) {
-                            // left search
-                            if (Float.isNaN(leftX)) {
-                                int leftZIndex = (midIndex - 1) - (i * 3); // skips first neighbor pixel but not important
-                                float leftZ = vertices[leftZIndex];
-                                // if leftZ is zero, that
-                                if (leftZ == 0 || leftZ < thresholdNearZ || leftZ > thresholdFarZ) {
-
-                                    leftXIndex = leftZIndex + 1; // remember the order is x,y,z,x,y,z,x,y,z,x...
-                                    leftX = vertices[leftXIndex];
-                                }
-                            }
-                            // right search
-                            if (Float.isNaN(rightX)) {
-                                int rightZIndex = (midIndex + 2) + (i * 3);
-                                float rightZ = vertices[rightZIndex];
-                                if (rightZ == 0 || rightZ < thresholdNearZ || rightZ > thresholdFarZ) {
-                                    rightXIndex = rightZIndex - 5; // remember the order is x,y,z,x,y,z,x,y,z,x...
-                                    rightX = vertices[rightXIndex];
-                                }
-                            }
-                            if (!Float.isNaN(leftX) && !Float.isNaN(rightX))
-                                break;
-                        }
-
-                        if (Float.isNaN(leftX) || Float.isNaN(rightX)) {
-                            updateLabel(txtDiameterAlt, R.string.failed_to_find_tree_edge);
-                        }
-                        else {
-                            float diameterRaw = (rightX - leftX) * 100; // centimeters
-                            lastDiameterAlt = diameterRaw;
-                            updateLabel(txtDiameterAlt, R.string.diameter_with_placeholder, diameterRaw);
-
-                            /* APPROACH 3:
-                             * The same with approach 2, but the tree is assumed to start
-                             * with the first pixel of the black zone from the center, rather than
-                             * the first pixel before/after the black zone
-                             * i.e. the diameter calculated in approach 2 is extended by 1 vertex at each side.
-                             * Problem: The new edge vertices are black, so they have no x and y coordinates.
-                             * Solution: Calculate the deltaX between the approach 2 edge vertex and its
-                             * neighbor towards center, then assume it is valid for the distance
-                             * between the approach 2 edge vertex and its neighbor away from the center
-                             * (approach 3 edge vertex).
-                             * */
-
-                            int leftXNeighborIndex = leftXIndex + 3;
-                            float leftXNeighborDelta = Math.abs(vertices[leftXNeighborIndex] - vertices[leftXIndex]);
-                            int rightXNeighborIndex = rightXIndex - 3;
-                            float rightXNeighborDelta = Math.abs(vertices[rightXNeighborIndex] - vertices[rightXIndex]);
-
-                            Log.d(TAG, String.format("run: Right And Left X NeighborDeltas: %f %f", rightXNeighborDelta, leftXNeighborDelta));
-
-                            float diameterRaw3 = ((rightX + rightXNeighborDelta) - (leftX - leftXNeighborDelta)) * 100; // centimeters
-                            updateLabel(txtDiameterAlt3, R.string.diameter_with_placeholder, diameterRaw3);
-
-
-                            // draw the tree edge lines from approach 2 onto the colorMatWithBorders
-                            // using blue color.
-                            // we are not drawing results of approach 3 because it is just 1 px shifted
-                            // values of approach 2
-                            Imgproc.line(colorMatWithBorders,
-                                    new Point((leftXIndex / 3f) % depthFrame.getWidth(), edgeStartY),
-                                    new Point((leftXIndex / 3f) % depthFrame.getWidth(), edgeEndY),
-                                    new Scalar(0,0,255),
-                                    2);
-                            Imgproc.line(colorMatWithBorders,
-                                    new Point((rightXIndex / 3f) % depthFrame.getWidth(), edgeStartY),
-                                    new Point((rightXIndex / 3f) % depthFrame.getWidth(), edgeEndY),
-                                    new Scalar(0,0,255),
-                                    2);
-                        }
-
-
-
-
-
-                        try {
-                            Bitmap bitmap;
-                            if (isCurrentForeground)
-                                bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(foregroundMat);
-                            else
-                                bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMatWithBorders);
-
-                            runOnUiThread(()->imageViewColor.setImageBitmap(bitmap));
-
-                            shouldProcess = false;
-                            isFrozen = true;
-                        }
-                        catch (Exception e) {
-                            Log.e(TAG, "run: Conversion error", e);
-                        }
+                            colorDisplay.show(colorMatWithBorders);
+
+                        // keep the frozen result for saving and toggling
+                        foregroundMat = foreground;
+                        measureFusedModel(centerX, edgeStartY, edgeEndY + 1, nearZ, farZ);
+                        indexFrozenCloud();
+                    }
+                    catch (Exception e) {
+                        Log.e(TAG, "run: Freeze error", e);
                     }
-                    // Draw cross-hair to colorMat and update UI
-                    if (!isFrozen) {
-                        int rows = colorMat.rows();
-                        int cols = colorMat.cols();
-                        Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
-                        Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
-                        Bitmap colorBitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                        runOnUiThread(() -> imageViewColor.setImageBitmap(colorBitmap));
+                    finally {
+                        isFreezing = false;
                     }
                 }
-                handler.post(mStreaming);
             }
-            catch (Exception e) {
-                Log.e(TAG, "run: Streaming error", e);
+            // Draw cross-hair to colorMat and update UI
+            if (!isFrozen) {
+                int rows = colorMat.rows();
+                int cols = colorMat.cols();
+                Imgproc.line(colorMat, new Point(0, rows/2f), new Point(cols, rows/2f), new Scalar(255,0,0), 3);
+                Imgproc.line(colorMat, new Point(cols/2f, 0), new Point(cols/2f, rows), new Scalar(255,0,0), 3);
+                colorDisplay.show(colorMat);
             }
         }
     };
 
+    /**
+     * Shows the mean diameter of the given samples with its 95% confidence interval and the
+     * number of samples
+     * @param textView Text view instance
+     * @param samples Diameter samples of the current measurement
+     */
+    private void updateDiameterLabel(final TextView textView, final TemporalEstimator samples) {
+        if (samples.getCount() == 0) {
+            updateLabel(textView, R.string.failed_to_find_tree_edge);
+            return;
+        }
+        final float mean = samples.getMean();
+        final float halfWidth = samples.getCount() < 2 ? 0 : samples.getConfidenceHalfWidth();
+        final int count = samples.getCount();
+        runOnUiThread(()->textView.setText(getString(R.string.diameter_with_confidence, mean, halfWidth, count)));
+    }
+
+    /**
+     * Fits the trunk to the collected vertices and shows the diameter of the fit; the cylinder
+     * if found, the circle of the whole band otherwise
+     */
+    private void fitTrunk() {
+        boolean isCylinder = trunkFitter.fitCylinder();
+        TrunkFitter.Circle circle = trunkFitter.getCircle();
+        lastFitInlierRatio = circle.getInlierRatio();
+        lastFitTilt = trunkFitter.getTiltDegrees();
+        lastFitDiameter = (isCylinder ? trunkFitter.getCylinderDiameter() : circle.getRadius() * 2) * 100; // centimeters
+        Log.d(TAG, String.format(Locale.US, "fitTrunk: %d vertices, %d iterations%s, axis %s",
+                trunkFitter.getPointCount(), circle.getIterations(), circle.isTimedOut() ? " (timed out)" : "",
+                Arrays.toString(trunkFitter.getAxis())));
+
+        if (Float.isNaN(lastFitDiameter)) {
+            updateLabel(txtDiameterFit, R.string.failed_to_fit_trunk);
+            return;
+        }
+        final float diameter = lastFitDiameter;
+        final float tilt = isCylinder ? lastFitTilt : 0;
+        final float inlierRatio = lastFitInlierRatio;
+        runOnUiThread(()->txtDiameterFit.setText(getString(R.string.fit_diameter_with_placeholders, diameter, tilt, inlierRatio)));
+    }
+
+    /**
+     * Draws the per-row tree edges of the given result onto colorMatWithBorders, connecting
+     * the edges of consecutive measured rows
+     * @param result Diameter estimation result
+     * @param color Line color
+     */
+    private void drawEdges(final DiameterEstimator.Result result, final Scalar color) {
+        final int endRow = result.getStartRow() + result.getRowCount();
+        for (int row = result.getStartRow() + 1; row < endRow; row++) {
+            if (Float.isNaN(result.getDiameter(row - 1)) || Float.isNaN(result.getDiameter(row)))
+                continue;
+            Imgproc.line(colorMatWithBorders,
+                    new Point(result.getLeftEdge(row - 1), row - 1),
+                    new Point(result.getLeftEdge(row), row),
+                    color,
+                    2);
+            Imgproc.line(colorMatWithBorders,
+                    new Point(result.getRightEdge(row - 1), row - 1),
+                    new Point(result.getRightEdge(row), row),
+                    color,
+                    2);
+        }
+    }
+
+    /**
+     * Renders the depth of the frames fused during the measurement and measures the diameter on
+     * it with the cloud approach (approach 2)
+     * @param seedX Column of a pixel inside the trunk
+     * @param startRow First row of the band
+     * @param endRow Row after the last row of the band
+     * @param nearZ Near depth limit of the trunk in metres
+     * @param farZ Far depth limit of the trunk in metres
+     */
+    private void measureFusedModel(final int seedX, final int startRow, final int endRow, final float nearZ, final float farZ) {
+        final long start = System.nanoTime();
+        final int width = deprojector.getWidth();
+        final int height = deprojector.getHeight();
+        if (fusedDepth.length != width * height)
+            fusedDepth = new short[width * height];
+        tsdfVolume.render(deprojector, nearZ, farZ, fusedDepth);
+        fusedDeprojector.setIntrinsics(width, height, deprojector.getPpx(), deprojector.getPpy(),
+                deprojector.getFx(), deprojector.getFy());
+        fusedDeprojector.setDepth(ShortBuffer.wrap(fusedDepth), deprojector.getUnits());
+        fusedDiameterEstimator.estimate(trunkMask, fusedDeprojector, seedX,
+                startRow, endRow, nearZ, farZ);
+        lastFusedDiameter = fusedDiameterEstimator.getCloudResult().getMedian();
+        Log.d(TAG, String.format(Locale.US, "measureFusedModel: %d frames, %d blocks (%d dropped) in %d ms",
+                tsdfVolume.getFrameCount(), tsdfVolume.getBlockCount(), tsdfVolume.getDroppedBlocks(),
+                (System.nanoTime() - start) / 1000000));
+
+        if (Float.isNaN(lastFusedDiameter)) {
+            updateLabel(txtDiameterFused, R.string.failed_to_find_tree_edge);
+            return;
+        }
+        final float diameter = lastFusedDiameter;
+        final int frames = tsdfVolume.getFrameCount();
+        runOnUiThread(()->txtDiameterFused.setText(getString(R.string.fused_diameter_with_placeholders, diameter, frames)));
+    }
+
+    /**
+     * Deprojects the whole frozen frame from its own depth, builds its k-d tree for the point to
+     * point measurements and estimates its normals. The fused depth covers only the depth band
+     * of the trunk, so it is used for the fused diameter only.
+     */
+    private void indexFrozenCloud() {
+        final long start = System.nanoTime();
+        synchronized (frozenTree) {
+            frozenGrid.allocate(deprojector.getWidth(), deprojector.getHeight());
+            frozenGrid.fillRows(deprojector, 0, deprojector.getHeight());
+            frozenTree.build(frozenGrid);
+            frozenNormals.estimate(frozenGrid);
+        }
+        Log.d(TAG, String.format(Locale.US, "indexFrozenCloud: %d vertices, %d normals (%d ms) in %d ms",
+                frozenTree.size(), frozenNormals.getValidCount(), frozenNormals.getLastNanos() / 1000000,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Picks the point under the last touch on the frozen image. Every second point shows the
+     * distance between the last two points.
+     * @return True if the long click is consumed
+     */
+    private boolean pickPoint() {
+        if (!isFrozen)
+            return false;
+        if (isFreezing) {
+            Toast.makeText(appContext, getString(R.string.freeze_in_progress), Toast.LENGTH_SHORT).show();
+            return true;
+        }
+        // view to image pixel coordinates; the image has the size of the aligned depth
+        Matrix inverse = new Matrix();
+        if (!imageViewColor.getImageMatrix().invert(inverse))
+            return true;
+        float[] pixel = lastTouch.clone();
+        inverse.mapPoints(pixel);
+        final int u = (int) pixel[0];
+        final int v = (int) pixel[1];
+
+        float x = 0, y = 0, z = 0;
+        synchronized (frozenTree) {
+            if (u < 0 || v < 0 || u >= frozenGrid.getWidth() || v >= frozenGrid.getHeight() || frozenGrid.getZ(u, v) == 0) {
+                Toast.makeText(appContext, getString(R.string.no_depth_at_point), Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            if (!facesCamera(u, v)) {
+                Toast.makeText(appContext, getString(R.string.oblique_surface_at_point), Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            // the centroid of the nearest vertices in 3D suppresses the noise of a single pixel
+            final int count = frozenTree.nearest(frozenGrid.getX(u, v), frozenGrid.getY(u, v), frozenGrid.getZ(u, v),
+                    PICK_NEIGHBORS, pickIndices, pickDistances);
+            for (int i = 0; i < count; i++) {
+                x += frozenGrid.getX(pickIndices[i]);
+                y += frozenGrid.getY(pickIndices[i]);
+                z += frozenGrid.getZ(pickIndices[i]);
+            }
+            x /= count;
+            y /= count;
+            z /= count;
+        }
+
+        if (!hasPickedPoint) {
+            pickedPoint[0] = x;
+            pickedPoint[1] = y;
+            pickedPoint[2] = z;
+            hasPickedPoint = true;
+            updateLabel(txtDistance, R.string.first_point_picked);
+        }
+        else {
+            final float dx = x - pickedPoint[0];
+            final float dy = y - pickedPoint[1];
+            final float dz = z - pickedPoint[2];
+            hasPickedPoint = false;
+            updateLabel(txtDistance, R.string.point_distance_with_placeholder, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) * 100);
+        }
+        return true;
+    }
+
+    /**
+     * Checks the normal of the given pixel of the frozen cloud against its view ray; should be
+     * called while holding the frozenTree lock
+     * @param u Column
+     * @param v Row
+     * @return True if the surface faces the camera within the pick incidence limit; also true if
+     * the pixel has no normal (too few neighbors to tell)
+     */
+    private boolean facesCamera(final int u, final int v) {
+        final int i = v * frozenGrid.getWidth() + u;
+        final float nx = frozenNormals.getNormalXs()[i];
+        final float ny = frozenNormals.getNormalYs()[i];
+        final float nz = frozenNormals.getNormalZs()[i];
+        if (nx == 0 && ny == 0 && nz == 0)
+            return true;
+        final float x = frozenGrid.getX(i);
+        final float y = frozenGrid.getY(i);
+        final float z = frozenGrid.getZ(i);
+        // the normal is oriented towards the camera, against the ray of the vertex
+        final float cosine = -(nx * x + ny * y + nz * z) / (float) Math.sqrt(x * x + y * y + z * z);
+        return cosine >= MIN_PICK_INCIDENCE_COSINE;
+    }
+
     /**
      * Toggles the result image between the foreground image and the color stream with
      * edges drawn onto it.
@@ -571,47 +704,78 @@ public class MaskAndCloudActivity extends AppCompatActivity {
         if (!isFrozen)
             return;
 
-        Bitmap bitmap;
         if (isCurrentForeground) {
-            bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMatWithBorders);
+            colorDisplay.show(colorMatWithBorders);
         }
         else {
-            bitmap = CvHelpers.ColorMat2BitmapNoChannelSwap(foregroundMat);
+            colorDisplay.show(foregroundMat);
         }
-        runOnUiThread(()->imageViewColor.setImageBitmap(bitmap));
         isCurrentForeground = !isCurrentForeground;
     }
 
     /**
-     * Saves the last measurement into records.csv in the activity-specific folder
+     * Saves the last measurement into the records file of the current column layout
+     * (records-v{RECORDS_VERSION}.csv) in the activity-specific folder
      * @param lastFileName Last time-stamp that is used to save the image files
      * @param distance Last measured distance
      */
     private void saveRecord(String lastFileName, final float distance) {
-        File recordsFile = new File(saveDirectoryPathDocument, "records.csv");
+        File recordsFile = new File(saveDirectoryPathDocument, "records-v" + RECORDS_VERSION + ".csv");
         if (!recordsFile.exists()){
             try (FileWriter fw = new FileWriter(recordsFile, true)) {
-                fw.append("Last File Name, Max Expected Diameter (m), Distance (m), Should Fill Holes, Last Diameter (cm), Last Diameter Alt2 (cm), Last Diameter Alt3 (cm)\r\n");
+                fw.append("Last File Name, Max Expected Diameter (m), Distance (m), Should Fill Holes, Last Diameter (cm), Last Diameter Alt2 (cm), Last Diameter Alt3 (cm), " +
+                        "Last Diameter CI95 (cm), Last Diameter Alt2 CI95 (cm), Last Diameter Alt3 CI95 (cm), Sample Count, Sample Count Alt2, Frame Count, " +
+                        "Median Diameter (cm), Median Diameter Alt2 (cm), Median Diameter Alt3 (cm), " +
+                        "Fit Diameter (cm), Fit Inlier Ratio, Fit Tilt (deg), Fused Diameter (cm)\r\n");
             }
             catch (IOException e) {
                 Log.e(TAG, "saveRecord: Failed to save record header", e);
-                Toast.makeText(appContext, getString(R.string.save_header_failed), Toast.LENGTH_SHORT).show();
+                runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.save_header_failed), Toast.LENGTH_SHORT).show());
             }
         }
         try (FileWriter fileWriter = new FileWriter(recordsFile, true)) {
             fileWriter.append(
-                    String.format(Locale.US, "%s,%s,%s,%s,%s,%s,%s\r\n",
+                    String.format(Locale.US, "%s,%s,%s,%s,%s,%s,%s,%s,%s,%s,%d,%d,%d,%s,%s,%s,%s,%s,%s,%s\r\n",
                             lastFileName,
                             decimalFormat.format(maxExpectedDiameter),
                             decimalFormat.format(distance),
                             shouldFillHoles,
                             decimalFormat.format(lastDiameter),
                             decimalFormat.format(lastDiameterAlt),
-                            decimalFormat.format(lastDiameterAlt3)));
+                            decimalFormat.format(lastDiameterAlt3),
+                            decimalFormat.format(maskSamples.getConfidenceHalfWidth()),
+                            decimalFormat.format(cloudSamples.getConfidenceHalfWidth()),
+                            decimalFormat.format(extendedCloudSamples.getConfidenceHalfWidth()),
+                            maskSamples.getCount(),
+                            cloudSamples.getCount(),
+                            maskSamples.getFrameCount(),
+                            decimalFormat.format(maskSamples.getMedian()),
+                            decimalFormat.format(cloudSamples.getMedian()),
+                            decimalFormat.format(extendedCloudSamples.getMedian()),
+                            decimalFormat.format(lastFitDiameter),
+                            decimalFormat.format(lastFitInlierRatio),
+                            decimalFormat.format(lastFitTilt),
+                            decimalFormat.format(lastFusedDiameter)));
         }
         catch (IOException e) {
             Log.e(TAG, "saveRecord: Failed to save record", e);
-            Toast.makeText(appContext, getString(R.string.save_record_failed), Toast.LENGTH_SHORT).show();
+            runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.save_record_failed), Toast.LENGTH_SHORT).show());
+        }
+    }
+
+    /**
+     * Saves the run-length encoded trunk mask of the last measurement next to the records
+     * (see RleMask.writeTo for the format)
+     * @param lastFileName Last time-stamp that is used to save the image files
+     */
+    private void saveTrunkMask(String lastFileName) {
+        File maskFile = new File(saveDirectoryPathDocument, lastFileName + "-trunk.rle");
+        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(maskFile))) {
+            trunkMask.writeTo(outputStream);
+        }
+        catch (IOException e) {
+            Log.e(TAG, "saveTrunkMask: Failed to save trunk mask", e);
+            runOnUiThread(() -> Toast.makeText(appContext, getString(R.string.save_record_failed), Toast.LENGTH_SHORT).show());
         }
     }
 
@@ -624,8 +788,11 @@ public class MaskAndCloudActivity extends AppCompatActivity {
             config.enableStream(StreamType.DEPTH, 640, 480);
             config.enableStream(StreamType.DEPTH, 640, 480);
             // try statement is needed here to release resources allocated by the Pipeline::start
-            //noinspection EmptyTryBlock
-            try (PipelineProfile ignored = pipeline.start()) {}
+            try (PipelineProfile profile = pipeline.start()) {
+                // the depth is aligned to the color stream; therefore it has the color intrinsics
+                if (!deprojector.setIntrinsics(profile, StreamType.COLOR))
+                    Log.e(TAG, "configAndStart: No color stream in the pipeline profile");
+            }
         }
     }
 
@@ -639,9 +806,8 @@ public class MaskAndCloudActivity extends AppCompatActivity {
         rsContext.setDevicesChangedCallback(deviceListener);
         pipeline = new Pipeline();
         align = new Align(StreamType.COLOR); // TODO align to depth or color?
-        pointcloud = new Pointcloud(StreamType.DEPTH);
-        colorizer = new Colorizer();
         holeFillingFilter = new HoleFillingFilter();
+        frameLoop = new FrameLoop(TAG, pipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
@@ -659,7 +825,7 @@ public class MaskAndCloudActivity extends AppCompatActivity {
         try {
             configAndStart();
             isStreaming = true;
-            handler.post(mStreaming);
+            frameLoop.start();
         }
         catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -673,7 +839,7 @@ public class MaskAndCloudActivity extends AppCompatActivity {
         if (!isStreaming) return;
 
         try {
-            handler.removeCallbacks(mStreaming);
+            frameLoop.stop();
             pipeline.stop();
             isStreaming = false;
         }
@@ -685,25 +851,53 @@ public class MaskAndCloudActivity extends AppCompatActivity {
     /**
      * Initializes the saving sequence of the measurement for the next frame.
      */
-    private synchronized void saveImage() {
-        if (isFrozen)
-            shouldSave = true;
-        else
-            Toast.makeText(appContext, getString(R.string.error_cannot_save_unfrozen), Toast.LENGTH_SHORT).show();
+    private void saveImage() {
+        synchronized (stateLock) {
+            if (isFrozen) {
+                shouldSave = true;
+                return;
+            }
+        }
+        Toast.makeText(appContext, getString(R.string.error_cannot_save_unfrozen), Toast.LENGTH_SHORT).show();
     }
 
     /**
      * If the system is in frozen state, resumes streaming; otherwise initialize the
-     * processing sequence.
+     * processing sequence. Ignored while the processing thread is finishing a measurement.
+     */
+    private void processImage() {
+        if (isFreezing) {
+            Toast.makeText(appContext, getString(R.string.freeze_in_progress), Toast.LENGTH_SHORT).show();
+            return;
+        }
+        synchronized (stateLock) {
+            // checked again under the lock; the flags are only flipped while holding it
+            if (!isFreezing)
+                resetOrStartMeasurement();
+        }
+    }
+
+    /**
+     * Resumes streaming if frozen, otherwise starts a new measurement; should be called while
+     * holding the stateLock
      */
-    private synchronized void processImage() {
+    private void resetOrStartMeasurement() {
         if (isFrozen) {
             isFrozen = false;
+            hasPickedPoint = false;
             updateLabel(txtDiameter, R.string.waiting_for_process);
             updateLabel(txtDiameterAlt, R.string.waiting_for_process);
+            updateLabel(txtDiameterAlt3, R.string.waiting_for_process);
+            updateLabel(txtDiameterFit, R.string.waiting_for_process);
+            updateLabel(txtDiameterFused, R.string.waiting_for_process);
             updateLabel(txtLastSaved, R.string.nothing_saved_yet);
         }
-        else {
+        else if (!shouldProcess) {
+            // the estimators are not touched by the frame loop until shouldProcess is set
+            maskSamples.reset();
+            cloudSamples.reset();
+            extendedCloudSamples.reset();
+            tsdfVolume.reset();
             shouldProcess = true;
         }
     }
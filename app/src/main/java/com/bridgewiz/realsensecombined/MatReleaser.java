@@ -0,0 +1,89 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.Mat;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+
+/**
+ * Frame scoped arena of OpenCV Mats, the Mat counterpart of the lib-realsense FrameReleaser.
+ * The Mats created through (or registered to) the releaser during a frame are released when
+ * the releaser is closed at the end of the frame, so their native memory is freed right away
+ * instead of waiting for the finalizers. A Mat that must outlive the frame (e.g. a frozen
+ * result) is taken out of the arena with {@link #promote(Mat)} and is released by its new owner.
+ * <p>
+ * The releaser can be reused after being closed. It is not thread-safe; it should be used
+ * by a single (processing) thread.
+ */
+public class MatReleaser implements Closeable {
+
+    private final ArrayList<Mat> mats = new ArrayList<>();
+
+    /**
+     * Creates an empty Mat that is released at the end of the frame
+     * @return Empty Mat instance
+     */
+    @NonNull
+    public Mat newMat() {
+        return add(new Mat());
+    }
+
+    /**
+     * Creates a Mat that is released at the end of the frame
+     * @param rows Number of rows
+     * @param cols Number of columns
+     * @param type Mat type, e.g. CV_8UC3
+     * @return Mat instance; contents are undefined
+     */
+    @NonNull
+    public Mat newMat(final int rows, final int cols, final int type) {
+        return add(new Mat(rows, cols, type));
+    }
+
+    /**
+     * Registers the given Mat so that it is released at the end of the frame
+     * @param mat Mat instance (or a subclass, e.g. MatOfPoint)
+     * @return The given Mat
+     */
+    @NonNull
+    public <T extends Mat> T add(@NonNull final T mat) {
+        mats.add(mat);
+        return mat;
+    }
+
+    /**
+     * Takes the given Mat out of the arena; the caller becomes responsible for releasing it
+     * @param mat Mat registered to this releaser
+     * @return The given Mat
+     */
+    @NonNull
+    public <T extends Mat> T promote(@NonNull final T mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                break;
+            }
+        }
+        return mat;
+    }
+
+    /**
+     * @return Number of Mats that will be released on close
+     */
+    public int size() {
+        return mats.size();
+    }
+
+    /**
+     * Releases all the registered Mats
+     */
+    @Override
+    public void close() {
+        for (int i = 0; i < mats.size(); i++) {
+            mats.get(i).release();
+        }
+        mats.clear();
+    }
+}
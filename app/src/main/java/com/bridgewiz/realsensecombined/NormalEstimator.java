@@ -0,0 +1,224 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Estimates the surface normals of an organized point cloud ({@link PointGrid}) from the pixel
+ * neighbors instead of a neighbor search. The normal of a vertex is the cross product of its
+ * horizontal tangent (the vertex on the right minus the vertex on the left) and its vertical
+ * tangent (the vertex below minus the vertex above), oriented towards the camera. A neighbor
+ * without depth data or across a depth discontinuity (a jump larger than a fraction of the
+ * depth) is replaced by the vertex itself, so the edges of an object get one-sided tangents.
+ * The vertices without depth data, or without a tangent in either direction, get (0, 0, 0).
+ * <p>
+ * The rows are split into a fixed number of chunks that run on the common fork-join pool. The
+ * normals are written into three float arrays in the layout of the grid (index = row * width +
+ * column), which are reused and overwritten by the next call. An instance should be used by a
+ * single (processing) thread.
+ */
+public class NormalEstimator {
+
+    private static final float DEFAULT_MAX_DEPTH_JUMP = 0.05f;
+
+    private final RowTask[] tasks;
+    private float[] nxs = new float[0];
+    private float[] nys = new float[0];
+    private float[] nzs = new float[0];
+    private int pixelRadius = 1;
+    private float maxDepthJump = DEFAULT_MAX_DEPTH_JUMP;
+    private int validCount;
+    private long lastNanos;
+
+    // inputs of the current call, read by the tasks
+    private PointGrid grid;
+    private int startRow;
+    private int rowCount;
+
+    /**
+     * Creates an estimator that splits the rows into as many chunks as the available processors
+     */
+    public NormalEstimator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism Number of row chunks processed in parallel
+     */
+    public NormalEstimator(final int parallelism) {
+        tasks = new RowTask[Math.max(1, parallelism)];
+        for (int i = 0; i < tasks.length; i++)
+            tasks[i] = new RowTask(i);
+    }
+
+    /**
+     * Estimates the normals of all the vertices of the given grid
+     * @param grid Organized point cloud
+     * @return Number of vertices with a normal
+     */
+    public int estimate(@NonNull final PointGrid grid) {
+        return estimate(grid, 0, grid.getHeight());
+    }
+
+    /**
+     * Estimates the normals of the vertices of the rows [startRow, endRow); the normals of the
+     * other rows are not updated
+     * @param grid Organized point cloud; the rows of the band and the pixel radius around it should be filled
+     * @param startRow First row
+     * @param endRow Row after the last row
+     * @return Number of vertices of the rows with a normal
+     */
+    public int estimate(@NonNull final PointGrid grid, final int startRow, final int endRow) {
+        final long start = System.nanoTime();
+        if (startRow < 0 || endRow > grid.getHeight() || startRow >= endRow)
+            throw new IllegalArgumentException("estimate: invalid row band");
+        final int size = grid.getCount();
+        if (nxs.length < size) {
+            nxs = new float[size];
+            nys = new float[size];
+            nzs = new float[size];
+        }
+        this.grid = grid;
+        this.startRow = startRow;
+        this.rowCount = endRow - startRow;
+
+        for (RowTask task : tasks)
+            task.reinitialize();
+        ForkJoinTask.invokeAll(tasks);
+
+        this.grid = null;
+        validCount = 0;
+        for (RowTask task : tasks)
+            validCount += task.count;
+        lastNanos = System.nanoTime() - start;
+        return validCount;
+    }
+
+    /**
+     * @param pixelRadius Distance of the neighbors in pixels; larger values smooth the noise of
+     *                    the depth at the cost of detail
+     */
+    public void setPixelRadius(final int pixelRadius) {
+        this.pixelRadius = Math.max(1, pixelRadius);
+    }
+
+    /**
+     * @param maxDepthJump Largest depth difference of neighbors on the same surface, as a fraction of the depth
+     */
+    public void setMaxDepthJump(final float maxDepthJump) {
+        this.maxDepthJump = maxDepthJump;
+    }
+
+    /**
+     * @return Number of vertices with a normal in the last call
+     */
+    public int getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * @return Duration of the last call in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return x components of the normals; index = row * width + column of the grid. Do not modify.
+     */
+    @NonNull
+    public float[] getNormalXs() {
+        return nxs;
+    }
+
+    /**
+     * @return y components of the normals (positive downwards, as the y of the vertices). Do not modify.
+     */
+    @NonNull
+    public float[] getNormalYs() {
+        return nys;
+    }
+
+    /**
+     * @return z components of the normals; negative towards the camera. Do not modify.
+     */
+    @NonNull
+    public float[] getNormalZs() {
+        return nzs;
+    }
+
+    /**
+     * Estimates the normals of a chunk of rows; chunk i of n covers the rows
+     * [i * rowCount / n, (i + 1) * rowCount / n) of the band
+     */
+    private class RowTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private int count;
+
+        RowTask(int index) {
+            this.index = index;
+        }
+
+        @Override
+        protected void compute() {
+            final int first = startRow + (int) ((long) index * rowCount / tasks.length);
+            final int last = startRow + (int) ((long) (index + 1) * rowCount / tasks.length);
+            final int width = grid.getWidth();
+            final int height = grid.getHeight();
+            final float[] xs = grid.getXs();
+            final float[] ys = grid.getYs();
+            final float[] zs = grid.getZs();
+            count = 0;
+            for (int row = first; row < last; row++) {
+                for (int column = 0; column < width; column++) {
+                    final int i = row * width + column;
+                    final float z = zs[i];
+                    nxs[i] = 0;
+                    nys[i] = 0;
+                    nzs[i] = 0;
+                    if (z == 0)
+                        continue;
+                    final float jump = maxDepthJump * z;
+                    final int left = column >= pixelRadius ? neighbor(zs, i, i - pixelRadius, jump) : i;
+                    final int right = column + pixelRadius < width ? neighbor(zs, i, i + pixelRadius, jump) : i;
+                    final int up = row >= pixelRadius ? neighbor(zs, i, i - pixelRadius * width, jump) : i;
+                    final int down = row + pixelRadius < height ? neighbor(zs, i, i + pixelRadius * width, jump) : i;
+                    if (left == right || up == down)
+                        continue;
+
+                    final float hx = xs[right] - xs[left];
+                    final float hy = ys[right] - ys[left];
+                    final float hz = zs[right] - zs[left];
+                    final float vx = xs[down] - xs[up];
+                    final float vy = ys[down] - ys[up];
+                    final float vz = zs[down] - zs[up];
+                    float nx = hy * vz - hz * vy;
+                    float ny = hz * vx - hx * vz;
+                    float nz = hx * vy - hy * vx;
+                    final float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                    if (length == 0)
+                        continue;
+                    // towards the camera: against the ray of the vertex
+                    final float scale = nx * xs[i] + ny * ys[i] + nz * z > 0 ? -1 / length : 1 / length;
+                    nxs[i] = nx * scale;
+                    nys[i] = ny * scale;
+                    nzs[i] = nz * scale;
+                    count++;
+                }
+            }
+        }
+
+        /**
+         * @return The given neighbor if it is on the surface of vertex i; i otherwise
+         */
+        private int neighbor(final float[] zs, final int i, final int neighbor, final float jump) {
+            final float z = zs[neighbor];
+            return z != 0 && Math.abs(z - zs[i]) <= jump ? neighbor : i;
+        }
+    }
+}
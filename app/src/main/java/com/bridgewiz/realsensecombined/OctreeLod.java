@@ -0,0 +1,388 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Level of detail structure of a point cloud for a progressive preview and export. The bounding
+ * cube of the cloud is divided like an octree: level 0 has 32 cells per axis, and each level
+ * halves the cells of the previous one. Every vertex is stored once, in the coarsest level whose
+ * cell of the vertex is still empty, so level 0 is an evenly spread subset of a few thousand
+ * vertices (about 1200 for a 640x480 depth frame, whose surfaces occupy a thin layer of the
+ * cells), and the levels up to L together are the cloud at the resolution of level L. The last
+ * level takes all the remaining vertices, so all the levels together are the whole cloud.
+ * <p>
+ * The levels are built one at a time with {@link #refine()}: level 0 is a single pass over the
+ * vertices (a few milliseconds), and each next level is a pass over the remaining vertices, so
+ * the coarse levels can be used while the finer ones are built on another thread. The occupied
+ * cells of a level are tracked in a {@link LongIntHashMap} of the packed cell coordinates
+ * ({@link CellKeys}).
+ * <p>
+ * The vertices are stored level by level, so a file written with {@link #writeTo(FileChannel)}
+ * can be reopened progressively, reading the coarse levels first with a {@link Reader}.
+ * <p>
+ * The VertexSource getters cover the completed levels. The completed levels can be read from
+ * other threads while refine is running; begin should not be called concurrently with them.
+ */
+public class OctreeLod implements VertexSource {
+
+    /**
+     * File name extension of the octrees, without the dot
+     */
+    public static final String EXTENSION = "rsot";
+    /**
+     * Maximum number of levels; the last one takes all the remaining vertices
+     */
+    public static final int MAX_LEVELS = 10;
+
+    private static final int MAGIC = 0x544F5352;
+    private static final int VERSION = 1;
+    private static final int BASE_DEPTH = 5;
+    private static final int BYTES_PER_VERTEX = 12;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final LongIntHashMap cells = new LongIntHashMap(1 << 14);
+    private final int[] levelStarts = new int[MAX_LEVELS + 1];
+    private volatile int levelCount;
+
+    private float originX;
+    private float originY;
+    private float originZ;
+    private float size;
+
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] zs = new float[0];
+
+    // vertices that are not in a level yet
+    private float[] pendingX = new float[0];
+    private float[] pendingY = new float[0];
+    private float[] pendingZ = new float[0];
+    private int pendingCount;
+
+    /**
+     * Takes the vertices with depth data of the given source and computes their bounding cube;
+     * the levels are built by the following refine calls
+     * @param source Vertices
+     * @return Number of vertices with depth data
+     */
+    public int begin(@NonNull final VertexSource source) {
+        final int n = source.getCount();
+        allocate(n);
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        pendingCount = 0;
+        for (int i = 0; i < n; i++) {
+            final float z = source.getZ(i);
+            if (z == 0)
+                continue;
+            final float x = source.getX(i);
+            final float y = source.getY(i);
+            pendingX[pendingCount] = x;
+            pendingY[pendingCount] = y;
+            pendingZ[pendingCount] = z;
+            pendingCount++;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+        originX = minX;
+        originY = minY;
+        originZ = minZ;
+        // slightly larger than the extent, so the maximum falls into the last cell
+        size = pendingCount == 0 ? 1 : Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) * 1.0001f + 1e-6f;
+        levelStarts[0] = 0;
+        levelCount = 0;
+        return pendingCount;
+    }
+
+    /**
+     * Builds the next level from the remaining vertices
+     * @return True if there are more levels to build
+     */
+    public boolean refine() {
+        final int level = levelCount;
+        if (level == MAX_LEVELS || pendingCount == 0)
+            return false;
+        final int start = levelStarts[level];
+        int end = start;
+        if (level == MAX_LEVELS - 1) {
+            System.arraycopy(pendingX, 0, xs, start, pendingCount);
+            System.arraycopy(pendingY, 0, ys, start, pendingCount);
+            System.arraycopy(pendingZ, 0, zs, start, pendingCount);
+            end += pendingCount;
+            pendingCount = 0;
+        } else {
+            final float scale = (1 << (BASE_DEPTH + level)) / size;
+            cells.clear();
+            int remaining = 0;
+            for (int i = 0; i < pendingCount; i++) {
+                final float x = pendingX[i];
+                final float y = pendingY[i];
+                final float z = pendingZ[i];
+                final long key = CellKeys.pack((int) ((x - originX) * scale), (int) ((y - originY) * scale),
+                        (int) ((z - originZ) * scale));
+                if (cells.putIfAbsent(key, end) < 0) {
+                    xs[end] = x;
+                    ys[end] = y;
+                    zs[end] = z;
+                    end++;
+                } else {
+                    pendingX[remaining] = x;
+                    pendingY[remaining] = y;
+                    pendingZ[remaining] = z;
+                    remaining++;
+                }
+            }
+            pendingCount = remaining;
+        }
+        levelStarts[level + 1] = end;
+        // publishes the vertices of the level to the readers
+        levelCount = level + 1;
+        return pendingCount > 0 && levelCount < MAX_LEVELS;
+    }
+
+    /**
+     * Builds all the levels of the given vertices
+     * @param source Vertices
+     */
+    public void build(@NonNull final VertexSource source) {
+        begin(source);
+        //noinspection StatementWithEmptyBody
+        while (refine()) ;
+    }
+
+    /**
+     * @return Number of completed levels
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @param level Completed level
+     * @return Index of the first vertex of the level
+     */
+    public int getLevelStart(final int level) {
+        return levelStarts[level];
+    }
+
+    /**
+     * @param level Completed level
+     * @return Number of vertices in the level
+     */
+    public int getLevelSize(final int level) {
+        return levelStarts[level + 1] - levelStarts[level];
+    }
+
+    /**
+     * @param level Level
+     * @return Edge length of the cells of the level in metres
+     */
+    public float getCellSize(final int level) {
+        return size / (1 << (BASE_DEPTH + level));
+    }
+
+    /**
+     * @return Number of vertices in the completed levels
+     */
+    @Override
+    public int getCount() {
+        return levelStarts[levelCount];
+    }
+
+    @Override
+    public float getX(final int index) {
+        return xs[index];
+    }
+
+    @Override
+    public float getY(final int index) {
+        return ys[index];
+    }
+
+    @Override
+    public float getZ(final int index) {
+        return zs[index];
+    }
+
+    /**
+     * Writes the completed levels
+     * @param channel Destination channel, positioned at the start of the file
+     * @throws IOException on write failure
+     */
+    public void writeTo(@NonNull final FileChannel channel) throws IOException {
+        final int levels = levelCount;
+        final ByteBuffer header = ByteBuffer.allocate(headerSize(levels)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION)
+                .putFloat(originX).putFloat(originY).putFloat(originZ).putFloat(size)
+                .putInt(levels);
+        for (int i = 0; i <= levels; i++)
+            header.putInt(levelStarts[i]);
+        header.flip();
+        writeFully(channel, header);
+
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final int count = levelStarts[levels];
+        for (int i = 0; i < count; ) {
+            buffer.clear();
+            while (i < count && buffer.remaining() >= BYTES_PER_VERTEX) {
+                buffer.putFloat(xs[i]).putFloat(ys[i]).putFloat(zs[i]);
+                i++;
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+    }
+
+    /**
+     * (Re)allocates the arrays for the given number of vertices
+     */
+    private void allocate(final int capacity) {
+        if (xs.length < capacity) {
+            xs = new float[capacity];
+            ys = new float[capacity];
+            zs = new float[capacity];
+            pendingX = new float[capacity];
+            pendingY = new float[capacity];
+            pendingZ = new float[capacity];
+        }
+    }
+
+    private static int headerSize(final int levels) {
+        return 7 * 4 + (levels + 1) * 4;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Progressive reader of an octree file: the header is read on open, and the levels are read
+     * one at a time, coarsest first, into an OctreeLod. An instance should be used by a single thread.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final float originX;
+        private final float originY;
+        private final float originZ;
+        private final float size;
+        private final int[] levelStarts;
+
+        /**
+         * Opens the given octree file and reads its header
+         * @param octreeFile Octree file
+         * @throws IOException on read failure, if the file is not an octree or if its level
+         * offsets are not consistent with its length
+         */
+        public Reader(@NonNull final File octreeFile) throws IOException {
+            file = new RandomAccessFile(octreeFile, "r");
+            channel = file.getChannel();
+            try {
+                final ByteBuffer header = read(0, 7 * 4);
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Reader: not an octree: " + octreeFile.getName());
+                final int version = header.getInt();
+                if (version != VERSION)
+                    throw new IOException("Reader: unsupported octree version " + version);
+                originX = header.getFloat();
+                originY = header.getFloat();
+                originZ = header.getFloat();
+                size = header.getFloat();
+                final int levels = header.getInt();
+                if (levels < 0 || levels > MAX_LEVELS)
+                    throw new IOException("Reader: invalid level count " + levels);
+                levelStarts = new int[levels + 1];
+                read(7 * 4, levelStarts.length * 4).asIntBuffer().get(levelStarts);
+                // the offsets size the arrays of prepare, so they are checked against the file
+                if (levelStarts[0] != 0)
+                    throw new IOException("Reader: invalid first level start " + levelStarts[0]);
+                for (int i = 1; i <= levels; i++)
+                    if (levelStarts[i] < levelStarts[i - 1])
+                        throw new IOException("Reader: decreasing level start " + levelStarts[i]);
+                if (headerSize(levels) + (long) levelStarts[levels] * BYTES_PER_VERTEX > channel.size())
+                    throw new IOException("Reader: " + levelStarts[levels] + " vertices do not fit the octree file");
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return Number of levels in the file
+         */
+        public int getLevelCount() {
+            return levelStarts.length - 1;
+        }
+
+        /**
+         * Prepares the given octree for the levels of the file; its completed levels are dropped
+         * @param lod Destination octree
+         */
+        public void prepare(@NonNull final OctreeLod lod) {
+            lod.allocate(levelStarts[levelStarts.length - 1]);
+            lod.originX = originX;
+            lod.originY = originY;
+            lod.originZ = originZ;
+            lod.size = size;
+            lod.pendingCount = 0;
+            lod.levelStarts[0] = 0;
+            lod.levelCount = 0;
+        }
+
+        /**
+         * Reads the next level of the given prepared octree
+         * @param lod Octree prepared by this reader
+         * @return True if there are more levels to read
+         * @throws IOException on read failure
+         */
+        public boolean readNextLevel(@NonNull final OctreeLod lod) throws IOException {
+            final int level = lod.levelCount;
+            if (level >= getLevelCount())
+                return false;
+            final int start = levelStarts[level];
+            final int end = levelStarts[level + 1];
+            final ByteBuffer vertices = read(headerSize(getLevelCount()) + (long) start * BYTES_PER_VERTEX,
+                    (end - start) * BYTES_PER_VERTEX);
+            for (int i = start; i < end; i++) {
+                lod.xs[i] = vertices.getFloat();
+                lod.ys[i] = vertices.getFloat();
+                lod.zs[i] = vertices.getFloat();
+            }
+            lod.levelStarts[level + 1] = end;
+            lod.levelCount = level + 1;
+            return lod.levelCount < getLevelCount();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private ByteBuffer read(final long position, final int length) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                final int n = channel.read(buffer, offset);
+                if (n < 0)
+                    throw new IOException("read: unexpected end of the octree");
+                offset += n;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
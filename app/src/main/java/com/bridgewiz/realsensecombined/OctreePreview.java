@@ -0,0 +1,155 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Renders the levels of an {@link OctreeLod} into ARGB pixels for a progressive preview. Each
+ * level is projected through a pinhole camera at the origin (the camera of the cloud) as soon as
+ * it is available, so level 0 gives the overview and the finer levels stream in the details.
+ * The vertices are drawn as squares of the projected cell size of their level, which fill the
+ * pixels until they get their own vertices: the pixel of a vertex keeps the nearest vertex that
+ * projects into it, and the rest of a square replaces the squares of the coarser levels and the
+ * farther squares of its own level. The colors encode the depth from near (red) to far (blue),
+ * within the depth range of level 0.
+ * <p>
+ * An instance should be used by a single thread.
+ */
+public class OctreePreview {
+
+    private static final int BACKGROUND = 0xFF000000;
+    private static final int MAX_HALF_SIZE = 8;
+
+    private final int width;
+    private final int height;
+    private final float focalLength;
+    private final int[] pixels;
+    private final float[] depths;
+    private final byte[] levels;
+    private final boolean[] projected;
+    private float nearZ;
+    private float farZ;
+
+    /**
+     * @param width Preview width in pixels
+     * @param height Preview height in pixels
+     * @param focalLength Focal length of the preview camera in pixels
+     */
+    public OctreePreview(final int width, final int height, final float focalLength) {
+        this.width = width;
+        this.height = height;
+        this.focalLength = focalLength;
+        pixels = new int[width * height];
+        depths = new float[width * height];
+        levels = new byte[width * height];
+        projected = new boolean[width * height];
+        clear();
+    }
+
+    /**
+     * Clears the preview to the background
+     */
+    public void clear() {
+        Arrays.fill(pixels, BACKGROUND);
+        Arrays.fill(depths, Float.MAX_VALUE);
+        Arrays.fill(levels, (byte) 0);
+        Arrays.fill(projected, false);
+    }
+
+    /**
+     * Draws the given completed level of the octree; level 0 clears the preview and sets the
+     * depth range of the colors
+     * @param lod Octree with the level completed
+     * @param level Level to draw
+     * @return Number of the vertices of the level that project into the preview
+     */
+    public int draw(@NonNull final OctreeLod lod, final int level) {
+        if (level < 0 || level >= lod.getLevelCount())
+            throw new IllegalArgumentException("draw: level " + level + " is not completed");
+        final int start = lod.getLevelStart(level);
+        final int end = start + lod.getLevelSize(level);
+        if (level == 0) {
+            clear();
+            nearZ = Float.MAX_VALUE;
+            farZ = 0;
+            for (int i = start; i < end; i++) {
+                final float z = lod.getZ(i);
+                if (z > 0) {
+                    nearZ = Math.min(nearZ, z);
+                    farZ = Math.max(farZ, z);
+                }
+            }
+        }
+
+        // levels are stored from 1, so 0 is an empty pixel
+        final byte levelTag = (byte) (level + 1);
+        final float cellSize = lod.getCellSize(level);
+        final float range = farZ > nearZ ? farZ - nearZ : 1;
+        int drawn = 0;
+        for (int i = start; i < end; i++) {
+            final float z = lod.getZ(i);
+            if (z <= 0)
+                continue;
+            final int u = Math.round(width / 2f + focalLength * lod.getX(i) / z);
+            final int v = Math.round(height / 2f + focalLength * lod.getY(i) / z);
+            final int halfSize = Math.min(MAX_HALF_SIZE, (int) (focalLength * cellSize / z / 2));
+            final int color = color((z - nearZ) / range);
+            if (u >= 0 && u < width && v >= 0 && v < height) {
+                final int p = v * width + u;
+                if (!projected[p] || depths[p] > z) {
+                    pixels[p] = color;
+                    depths[p] = z;
+                    levels[p] = levelTag;
+                    projected[p] = true;
+                }
+                drawn++;
+            }
+            for (int y = Math.max(0, v - halfSize); y <= Math.min(height - 1, v + halfSize); y++) {
+                for (int x = Math.max(0, u - halfSize); x <= Math.min(width - 1, u + halfSize); x++) {
+                    final int p = y * width + x;
+                    if (projected[p] || (levels[p] == levelTag && depths[p] <= z))
+                        continue;
+                    pixels[p] = color;
+                    depths[p] = z;
+                    levels[p] = levelTag;
+                }
+            }
+        }
+        return drawn;
+    }
+
+    /**
+     * @return ARGB pixels of the preview (row major); overwritten by the next draw
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * @return Depth of each pixel in metres; MAX_VALUE for the background
+     */
+    public float[] getDepths() {
+        return depths;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param t Relative depth; 0 near, 1 far (clamped)
+     * @return Opaque color from red (near) through green to blue (far)
+     */
+    private static int color(final float t) {
+        final float clamped = Math.max(0, Math.min(1, t));
+        final int red = (int) (255 * Math.max(0, 1 - 2 * clamped));
+        final int blue = (int) (255 * Math.max(0, 2 * clamped - 1));
+        final int green = 255 - red - blue;
+        return 0xFF000000 | (red << 16) | (green << 8) | blue;
+    }
+}
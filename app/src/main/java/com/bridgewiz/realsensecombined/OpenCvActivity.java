@@ -1,16 +1,15 @@
 package com.bridgewiz.realsensecombined;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.SwitchCompat;
 
@@ -44,21 +43,28 @@ public class OpenCvActivity extends AppCompatActivity {
     private TextView txtStatus;
     private ImageView imgOpenCVStreamDepth;
     private ImageView imgOpenCVStreamColor;
+    private BitmapDisplay depthDisplay;
+    private BitmapDisplay colorDisplay;
+    private final BitmapPool bitmapPool = new BitmapPool();
 
     private RsContext rsContext;
     private Pipeline mPipeline;
     private Context mAppContext;
-    private final Handler mHandler = new Handler();
+    private FrameLoop mFrameLoop;
     private boolean isStreaming = false;
 
     // required filters and helpers
     private Colorizer colorizer;
     private Align align;
     private HoleFillingFilter holeFillingFilter;
-    private boolean shouldFillHoles = false;
+    private volatile boolean shouldFillHoles = false;
 
     private File saveDirectory;
-    private boolean shouldSaveImage = false;
+    private volatile boolean shouldSaveImage = false;
+
+    // reused by the processing thread on every frame
+    private Mat depthMat;
+    private Mat colorMat;
 
 
     @Override
@@ -75,6 +81,8 @@ public class OpenCvActivity extends AppCompatActivity {
         mAppContext = getApplicationContext();
         imgOpenCVStreamDepth = findViewById(R.id.imgOpencvStreamDepth);
         imgOpenCVStreamColor = findViewById(R.id.imgOpencvStreamColor);
+        depthDisplay = new BitmapDisplay(this, imgOpenCVStreamDepth, bitmapPool);
+        colorDisplay = new BitmapDisplay(this, imgOpenCVStreamColor, bitmapPool);
         txtStatus = findViewById(R.id.txtOpencvStatus);
 
         saveDirectory = new File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "DepthMaps");
@@ -88,6 +96,10 @@ public class OpenCvActivity extends AppCompatActivity {
         SwitchCompat fillHolesSwitch = findViewById(R.id.swhOpencvShouldFillHoles);
         fillHolesSwitch.setOnCheckedChangeListener((compoundButton, b) -> shouldFillHoles = b);
         imgOpenCVStreamDepth.setOnClickListener(view -> saveImages());
+
+        // requires OpenCV to be loaded
+        depthMat = new Mat();
+        colorMat = new Mat();
     }
 
     @Override
@@ -146,6 +158,7 @@ public class OpenCvActivity extends AppCompatActivity {
         colorizer = new Colorizer();
         holeFillingFilter = new HoleFillingFilter();
         align = new Align(StreamType.COLOR);
+        mFrameLoop = new FrameLoop(TAG, mPipeline, mStreaming, FrameLoop.AcquisitionMode.LATEST_FRAME);
 
         try (DeviceList list = rsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
@@ -156,65 +169,52 @@ public class OpenCvActivity extends AppCompatActivity {
     }
 
     /**
-     * Runnable that does the processing
+     * Frame processor that does the processing
      */
-    Runnable mStreaming = new Runnable() {
+    FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
+        public void process(@NonNull FrameSet frameSet, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
+            FrameSet processed;
+            if (shouldFillHoles)
+                processed = frameSet
+                    .applyFilter(align).releaseWith(frameReleaser)
+                    .applyFilter(holeFillingFilter).releaseWith(frameReleaser)
+                    .applyFilter(colorizer).releaseWith(frameReleaser)
+                    ;
+            else
+                processed = frameSet
+                        .applyFilter(align).releaseWith(frameReleaser)
+                        .applyFilter(colorizer).releaseWith(frameReleaser)
+                        ;
+
+            // Acquire depth map image
+            VideoFrame depthFrame = processed.first(StreamType.DEPTH).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
+            CvHelpers.VideoFrame2Mat(depthFrame, depthMat);
+            // Acquire color image
+            VideoFrame colorFrame = processed.first(StreamType.COLOR).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
+            CvHelpers.VideoFrame2Mat(colorFrame, colorMat);
+
             try {
-                try (FrameReleaser frameReleaser = new FrameReleaser()) {
-                    FrameSet frameSet = mPipeline.waitForFrames().releaseWith(frameReleaser);
-                    FrameSet processed;
-                    if (shouldFillHoles)
-                        processed = frameSet
-                            .applyFilter(align).releaseWith(frameReleaser)
-                            .applyFilter(holeFillingFilter).releaseWith(frameReleaser)
-                            .applyFilter(colorizer).releaseWith(frameReleaser)
-                            ;
-                    else
-                        processed = frameSet
-                                .applyFilter(align).releaseWith(frameReleaser)
-                                .applyFilter(colorizer).releaseWith(frameReleaser)
-                                ;
-
-                    // Acquire depth map image
-                    VideoFrame depthFrame = processed.first(StreamType.DEPTH).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
-                    Mat depthMat = CvHelpers.VideoFrame2Mat(depthFrame);
-                    // Acquire color image
-                    VideoFrame colorFrame = processed.first(StreamType.COLOR).releaseWith(frameReleaser).as(Extension.VIDEO_FRAME);
-                    Mat colorMat = CvHelpers.VideoFrame2Mat(colorFrame);
-
-                    try {
-                        Bitmap bitmapDepth = CvHelpers.ColorMat2BitmapNoChannelSwap(depthMat);
-                        Bitmap bitmapColor = CvHelpers.ColorMat2BitmapNoChannelSwap(colorMat);
-                        runOnUiThread(() -> {
-                            imgOpenCVStreamDepth.setImageBitmap(bitmapDepth);
-                            imgOpenCVStreamColor.setImageBitmap(bitmapColor);
-                        });
-                    }
-                    catch (CvException e) {
-                        Log.e(TAG, "run: conversion error", e);
-                    }
-
-                    if (shouldSaveImage) {
-                        try {
-                            String colorImagePath = CvHelpers.createImagePath(saveDirectory.getPath(),"color");
-                            String depthImagePath = CvHelpers.createImagePath(saveDirectory.getPath(), "depth");
-
-                            CvHelpers.SwapAndSave(colorImagePath, colorMat);
-                            CvHelpers.SwapAndSave(depthImagePath, depthMat);
-
-                            Toast.makeText(mAppContext, getString(R.string.saved), Toast.LENGTH_SHORT).show();
-                        } catch (Exception e) {
-                            Log.e(TAG, "run: Failed to save images", e);
-                        }
-                        shouldSaveImage = false;
-                    }
-                }
-                mHandler.post(mStreaming);
+                depthDisplay.show(depthMat);
+                colorDisplay.show(colorMat);
+            }
+            catch (CvException e) {
+                Log.e(TAG, "run: conversion error", e);
             }
-            catch (Exception e) {
-                Log.e(TAG, "Streaming error", e);
+
+            if (shouldSaveImage) {
+                try {
+                    String colorImagePath = CvHelpers.createImagePath(saveDirectory.getPath(),"color");
+                    String depthImagePath = CvHelpers.createImagePath(saveDirectory.getPath(), "depth");
+
+                    CvHelpers.SwapAndSave(colorImagePath, colorMat);
+                    CvHelpers.SwapAndSave(depthImagePath, depthMat);
+
+                    runOnUiThread(() -> Toast.makeText(mAppContext, getString(R.string.saved), Toast.LENGTH_SHORT).show());
+                } catch (Exception e) {
+                    Log.e(TAG, "run: Failed to save images", e);
+                }
+                shouldSaveImage = false;
             }
         }
     };
@@ -243,7 +243,7 @@ public class OpenCvActivity extends AppCompatActivity {
             Log.d(TAG, "startRsCamera: try start streaming");
             configAndStart();
             isStreaming = true;
-            mHandler.post(mStreaming);
+            mFrameLoop.start();
             Log.d(TAG, "startRsCamera: Streaming started");
         } catch (Exception e) {
             Log.e(TAG, "startRsCamera: Failed to start streaming", e);
@@ -260,7 +260,7 @@ public class OpenCvActivity extends AppCompatActivity {
             Log.d(TAG, "stopRsCamera: Try stop streaming");
 
             isStreaming = false;
-            mHandler.removeCallbacks(mStreaming);
+            mFrameLoop.stop();
             mPipeline.stop();
 
             Log.d(TAG, "stopRsCamera: Streaming stopped");
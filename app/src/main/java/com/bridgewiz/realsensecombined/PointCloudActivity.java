@@ -1,15 +1,20 @@
 package com.bridgewiz.realsensecombined;
 
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Environment;
 import android.util.Log;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
+import android.widget.RadioGroup;
 import android.widget.TextView;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 
 import com.intel.realsense.librealsense.DepthFrame;
@@ -39,9 +44,21 @@ import java.util.Locale;
 public class PointCloudActivity extends AppCompatActivity {
 
     private final String TAG = "PointCloudActivity";
+    /**
+     * Voxel size of the downsampled exports in metres
+     */
+    private static final float VOXEL_LEAF_SIZE = 0.01f;
+    /**
+     * Size and focal length of the octree preview in pixels; about the depth camera at 640x480
+     */
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 480;
+    private static final float PREVIEW_FOCAL_LENGTH = 380;
     private final DecimalFormat decimalFormat = new DecimalFormat("#.##");
     private TextView txtDistance;
     private Button btnSavePointCloud;
+    private Button btnOpenOctree;
+    private ImageView imgOctreePreview;
     private ProgressBar pbPointCloud;
     private TextView txtStatus;
     private EditText edtDiameter;
@@ -50,8 +67,13 @@ public class PointCloudActivity extends AppCompatActivity {
 
     private RsContext rsContext;
     private Pointcloud pointcloud;
+    private VertexBufferPool vertexBufferPool;
+    private final Deprojector deprojector = new Deprojector();
+    private final PointCloudExporter pointCloudExporter = new PointCloudExporter();
 
     private boolean shouldSavePointCloud = false;
+    private volatile PointCloudExporter.Format exportFormat = PointCloudExporter.Format.ARCHIVE;
+    private volatile float exportLeafSize = 0;
 
     private String lastCloudFileName = "";
 
@@ -74,8 +96,12 @@ public class PointCloudActivity extends AppCompatActivity {
     private void stream() throws Exception {
         Pipeline pipeline = new Pipeline();
         // try is required to release the resources allocated by the Pipeline::start() method
-        //noinspection EmptyTryBlock
-        try (PipelineProfile ignored = pipeline.start()){}
+        try (PipelineProfile profile = pipeline.start()) {
+            // the point cloud has a vertex for each depth pixel
+            vertexBufferPool = VertexBufferPool.create(profile, StreamType.DEPTH);
+            // the archives keep the raw depth with the depth intrinsics
+            deprojector.setIntrinsics(profile, StreamType.DEPTH);
+        }
 
         while (!streamingThread.isInterrupted()) {
             try (FrameReleaser frameReleaser = new FrameReleaser()) {
@@ -89,12 +115,26 @@ public class PointCloudActivity extends AppCompatActivity {
                 runOnUiThread(() -> txtDistance.setText("Kamera Ortasi Mesafe: " + decimalFormat.format(centralDepth)));
                 imgStream.upload(frameSet);
                 if (shouldSavePointCloud) {
+                    shouldSavePointCloud = false;
                     runOnUiThread(() -> {
+                        pbPointCloud.setProgress(0);
                         pbPointCloud.setVisibility(View.VISIBLE);
-                        txtDistance.setText("NOKTA BULUTU KAYDEDILIYOR, BU ISLEM 1 DAKIKAYA KADAR SUREBILIR");
                         btnSavePointCloud.setEnabled(false);
                     });
 
+                    PointCloudExporter.Format format = exportFormat;
+                    File externalDocumentsDir = getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS);
+                    Date date = new Date();
+                    File exportFile = new File(externalDocumentsDir, String.format(Locale.US, "%s.%s",
+                            dateFormat.format(date), format.getExtension()));
+                    if (format == PointCloudExporter.Format.ARCHIVE) {
+                        // The archive is written from the raw depth, without the point cloud; the
+                        // depth is not copied again until the export is done (the button is disabled)
+                        deprojector.setDepthFrame(depthFrame);
+                        pointCloudExporter.exportArchive(deprojector, exportFile, new ExportListener(null));
+                        continue;
+                    }
+
                     // The point cloud always returns the same number of vertices; total pixel count (?)
                     FrameSet frameSetWithPointCloud = frameSet.applyFilter(pointcloud).releaseWith(frameReleaser);
                     Frame pointCloudFrame = frameSetWithPointCloud
@@ -104,28 +144,116 @@ public class PointCloudActivity extends AppCompatActivity {
                     Points cloudPoints = pointCloudFrame.as(Extension.POINTS);
                     int count = cloudPoints.getCount();
                     Log.d(TAG, "Number of vertices in point cloud: " + count);
-                    float[] vertices = cloudPoints.getVertices();
-                    // The vertices array has x,y,z coordinates concatenated for one vertex after another
-                    File externalDocumentsDir = getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS);
-                    Date date = new Date();
-                    File exportFile = new File(externalDocumentsDir, String.format(Locale.US, "%s.csv", dateFormat.format(date)));
-                    try (FileWriter fileWriter = new FileWriter(exportFile, true)) {
-                        for (int i = 0; i < vertices.length; i += 3) {
-                            fileWriter.append(String.format(Locale.US, "%f,%f,%f\r\n", vertices[i], vertices[i + 1], vertices[i + 2]));
-                        }
-                    }
-                    lastCloudFileName = exportFile.getName();
-                    shouldSavePointCloud = false;
-                    runOnUiThread(()-> {
-                        btnSavePointCloud.setEnabled(true);
-                        pbPointCloud.setVisibility(View.GONE);
-                    });
+                    // The vertices are copied into a pooled buffer instead of a new float[] per call;
+                    // the buffer is written on the exporter thread and recycled when it is done
+                    VertexBuffer vertexBuffer = vertexBufferPool.obtain();
+                    vertexBuffer.fill(cloudPoints);
+                    pointCloudExporter.export(vertexBuffer, exportFile, format, exportLeafSize, new ExportListener(vertexBuffer));
                 }
             }
         }
         pipeline.stop();
     }
 
+    /**
+     * Shows the progress of a point cloud export and recycles its vertex buffer (if any) when it is done
+     */
+    private class ExportListener implements PointCloudExporter.Listener {
+
+        private final VertexBuffer vertexBuffer;
+
+        ExportListener(@Nullable final VertexBuffer vertexBuffer) {
+            this.vertexBuffer = vertexBuffer;
+        }
+
+        @Override
+        public void onProgress(int written, int total) {
+            final int percent = (int) ((long) written * 100 / total);
+            runOnUiThread(() -> {
+                pbPointCloud.setProgress(percent);
+                txtStatus.setText(getString(R.string.saving_point_cloud_with_placeholder, percent));
+            });
+        }
+
+        @Override
+        public void onExported(@NonNull File file) {
+            if (vertexBuffer != null)
+                vertexBufferPool.recycle(vertexBuffer);
+            runOnUiThread(() -> {
+                lastCloudFileName = file.getName();
+                txtStatus.setText(getString(R.string.saved_with_placeholder, file.getName()));
+                btnSavePointCloud.setEnabled(true);
+                pbPointCloud.setVisibility(View.GONE);
+            });
+        }
+
+        @Override
+        public void onFailed(@NonNull File file, @NonNull Exception e) {
+            if (vertexBuffer != null)
+                vertexBufferPool.recycle(vertexBuffer);
+            runOnUiThread(() -> {
+                txtStatus.setText(R.string.save_point_cloud_failed);
+                btnSavePointCloud.setEnabled(true);
+                pbPointCloud.setVisibility(View.GONE);
+            });
+        }
+    }
+
+    /**
+     * Reopens the last saved octree on a background thread and shows it level by level: level 0
+     * is drawn as soon as it is read, and each finer level is drawn over it when it arrives
+     */
+    private void openLastOctree() {
+        File externalDocumentsDir = getExternalFilesDir(Environment.DIRECTORY_DOCUMENTS);
+        File[] octreeFiles = externalDocumentsDir == null ? null
+                : externalDocumentsDir.listFiles((dir, name) -> name.endsWith("." + OctreeLod.EXTENSION));
+        if (octreeFiles == null || octreeFiles.length == 0) {
+            txtStatus.setText(R.string.no_octree_saved);
+            return;
+        }
+        File lastFile = octreeFiles[0];
+        for (File file : octreeFiles)
+            if (file.lastModified() > lastFile.lastModified())
+                lastFile = file;
+
+        btnOpenOctree.setEnabled(false);
+        final File octreeFile = lastFile;
+        new Thread(() -> previewOctree(octreeFile)).start();
+    }
+
+    /**
+     * Reads the given octree progressively and posts the preview after each level
+     * @param octreeFile Octree file
+     */
+    private void previewOctree(final File octreeFile) {
+        OctreeLod lod = new OctreeLod();
+        OctreePreview preview = new OctreePreview(PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_FOCAL_LENGTH);
+        try (OctreeLod.Reader reader = new OctreeLod.Reader(octreeFile)) {
+            reader.prepare(lod);
+            final int levelCount = reader.getLevelCount();
+            while (lod.getLevelCount() < levelCount) {
+                reader.readNextLevel(lod);
+                final int level = lod.getLevelCount() - 1;
+                preview.draw(lod, level);
+                // a bitmap per level; the pixels are drawn over by the next level
+                final Bitmap bitmap = Bitmap.createBitmap(preview.getPixels(), preview.getWidth(),
+                        preview.getHeight(), Bitmap.Config.ARGB_8888);
+                final int count = lod.getCount();
+                runOnUiThread(() -> {
+                    imgOctreePreview.setImageBitmap(bitmap);
+                    imgOctreePreview.setVisibility(View.VISIBLE);
+                    txtStatus.setText(getString(R.string.octree_level_with_placeholders,
+                            octreeFile.getName(), level + 1, levelCount, count));
+                });
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "previewOctree: " + octreeFile.getName(), e);
+            runOnUiThread(() -> txtStatus.setText(R.string.open_octree_failed));
+        } finally {
+            runOnUiThread(() -> btnOpenOctree.setEnabled(true));
+        }
+    }
+
     /**
      * Saves a record to 'records.csv'
      */
@@ -157,15 +285,33 @@ public class PointCloudActivity extends AppCompatActivity {
 
         btnSavePointCloud = findViewById(R.id.btnPointCloudSave);
         Button btnSaveRecord = findViewById(R.id.btnSaveRecord);
+        btnOpenOctree = findViewById(R.id.btnOpenOctree);
+        imgOctreePreview = findViewById(R.id.imgOctreePreview);
         txtDistance = findViewById(R.id.txtPointCloudCentralDistance);
         txtStatus = findViewById(R.id.txtStatus);
         edtDiameter = findViewById(R.id.edtDiameter);
+        RadioGroup rgExportFormat = findViewById(R.id.rgPointCloudFormat);
+        CheckBox chkDownsample = findViewById(R.id.chkPointCloudDownsample);
         pbPointCloud = findViewById(R.id.pbSavingPointCloud);
         imgStream = findViewById(R.id.imgPointCloudColor);
 
 
-        btnSavePointCloud.setOnClickListener(view-> shouldSavePointCloud = true);
+        btnSavePointCloud.setOnClickListener(view-> {
+            int checkedId = rgExportFormat.getCheckedRadioButtonId();
+            if (checkedId == R.id.rbPointCloudPly)
+                exportFormat = PointCloudExporter.Format.PLY;
+            else if (checkedId == R.id.rbPointCloudCsv)
+                exportFormat = PointCloudExporter.Format.CSV;
+            else if (checkedId == R.id.rbPointCloudOctree)
+                exportFormat = PointCloudExporter.Format.OCTREE;
+            else
+                exportFormat = PointCloudExporter.Format.ARCHIVE;
+            exportLeafSize = chkDownsample.isChecked() ? VOXEL_LEAF_SIZE : 0;
+            shouldSavePointCloud = true;
+        });
         btnSaveRecord.setOnClickListener(view -> saveRecord());
+        btnOpenOctree.setOnClickListener(view -> openLastOctree());
+        imgOctreePreview.setOnClickListener(view -> imgOctreePreview.setVisibility(View.GONE));
 
         RsContext.init(getApplicationContext());
         rsContext = new RsContext();
@@ -194,6 +340,7 @@ public class PointCloudActivity extends AppCompatActivity {
     @Override
     protected void onDestroy() {
         streamingThread.interrupt();
+        pointCloudExporter.shutdown();
         pointcloud.close();
         rsContext.close();
         super.onDestroy();
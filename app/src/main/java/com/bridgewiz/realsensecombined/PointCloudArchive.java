@@ -0,0 +1,370 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact file format of an organized point cloud. Instead of the float x, y, z of each vertex,
+ * the archive keeps the raw 16 bit depth of the frame, the depth units and the pinhole
+ * intrinsics of the depth stream; the vertices are restored on load the same way as
+ * {@link Deprojector} computes them, so there is no loss compared to the Pointcloud filter.
+ * <p>
+ * The rows are stored in blocks of {@link #ROWS_PER_BLOCK} rows. In a block, each depth value is
+ * replaced by its difference from the left neighbor (the first pixel of a row from the first
+ * pixel of the row above), zigzag coded into 16 bits, split into a low and a high byte plane,
+ * and the planes are compressed with Deflate. A block does not depend on the others, so the
+ * reader decompresses only the blocks of the requested rows.
+ * <p>
+ * Layout (little endian): magic "RSCA", version, width, height, units, ppx, ppy, fx, fy,
+ * rows per block, block count, block count + 1 block offsets relative to the end of the
+ * header, and the compressed blocks.
+ */
+public final class PointCloudArchive {
+
+    /**
+     * File name extension of the archives, without the dot
+     */
+    public static final String EXTENSION = "rsca";
+    /**
+     * Number of rows compressed together; the unit of the random access
+     */
+    public static final int ROWS_PER_BLOCK = 16;
+
+    private static final int MAGIC = 0x41435352;
+    private static final int VERSION = 1;
+    private static final int FIXED_HEADER_SIZE = 11 * 4;
+
+    /**
+     * Receives the progress of an archive write
+     */
+    public interface ProgressListener {
+        /**
+         * @param rows Number of rows written so far
+         * @param total Number of rows of the frame
+         */
+        void onProgress(int rows, int total);
+    }
+
+    private PointCloudArchive() {
+    }
+
+    /**
+     * Writes the current depth frame of the given deprojector into an archive
+     * @param deprojector Deprojector with the intrinsics and the depth frame set
+     * @param channel Destination channel, positioned at the start of the file
+     * @param listener Progress listener; may be null
+     * @throws IOException on write failure
+     */
+    public static void write(@NonNull final Deprojector deprojector, @NonNull final FileChannel channel,
+                             @Nullable final ProgressListener listener) throws IOException {
+        final ShortBuffer depth = deprojector.getDepthBuffer();
+        if (depth == null)
+            throw new IllegalStateException("write: no depth frame");
+        final int width = deprojector.getWidth();
+        final int height = deprojector.getHeight();
+        final int blockCount = (height + ROWS_PER_BLOCK - 1) / ROWS_PER_BLOCK;
+
+        final ByteBuffer header = ByteBuffer.allocate(headerSize(blockCount)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+                .putFloat(deprojector.getUnits())
+                .putFloat(deprojector.getPpx()).putFloat(deprojector.getPpy())
+                .putFloat(deprojector.getFx()).putFloat(deprojector.getFy())
+                .putInt(ROWS_PER_BLOCK).putInt(blockCount);
+
+        final long start = channel.position();
+        channel.position(start + header.capacity());
+        final byte[] planes = new byte[ROWS_PER_BLOCK * width * 2];
+        final byte[] compressed = new byte[planes.length + 64];
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            int offset = 0;
+            for (int block = 0; block < blockCount; block++) {
+                header.putInt(offset);
+                final int firstRow = block * ROWS_PER_BLOCK;
+                final int rows = Math.min(ROWS_PER_BLOCK, height - firstRow);
+                final int length = encodeBlock(depth, width, firstRow, rows, planes);
+
+                deflater.reset();
+                deflater.setInput(planes, 0, length);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int n = deflater.deflate(compressed);
+                    writeFully(channel, ByteBuffer.wrap(compressed, 0, n));
+                    offset += n;
+                }
+                if (listener != null)
+                    listener.onProgress(firstRow + rows, height);
+            }
+            header.putInt(offset);
+        } finally {
+            deflater.end();
+        }
+
+        header.flip();
+        long position = start;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+    }
+
+    /**
+     * Zigzag codes the differences of the given rows into a low and a high byte plane
+     * @return Number of bytes of the planes
+     */
+    private static int encodeBlock(final ShortBuffer depth, final int width, final int firstRow,
+                                   final int rows, final byte[] planes) {
+        final int count = rows * width;
+        int rowStart = 0;
+        for (int r = 0; r < rows; r++) {
+            final int rowIndex = (firstRow + r) * width;
+            int prediction = r == 0 ? 0 : depth.get(rowIndex - width) & 0xFFFF;
+            for (int u = 0; u < width; u++) {
+                final int value = depth.get(rowIndex + u) & 0xFFFF;
+                final int difference = (short) (value - prediction);
+                final int code = (difference << 1) ^ (difference >> 31);
+                planes[rowStart + u] = (byte) code;
+                planes[count + rowStart + u] = (byte) (code >> 8);
+                prediction = value;
+            }
+            rowStart += width;
+        }
+        return count * 2;
+    }
+
+    private static int headerSize(final int blockCount) {
+        return FIXED_HEADER_SIZE + (blockCount + 1) * 4;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Random access reader of an archive. The last decompressed block is cached, so reading the
+     * rows in order decompresses each block once. An instance should be used by a single thread.
+     */
+    public static class Reader implements Closeable {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Inflater inflater = new Inflater();
+        private final int width;
+        private final int height;
+        private final float units;
+        private final float ppx;
+        private final float ppy;
+        private final float fx;
+        private final float fy;
+        private final int rowsPerBlock;
+        private final long dataStart;
+        private final int[] blockOffsets;
+        private final byte[] compressed;
+        private final byte[] planes;
+        private final short[] blockDepth;
+        private int cachedBlock = -1;
+
+        /**
+         * Opens the given archive and reads its header
+         * @param archiveFile Archive file
+         * @throws IOException on read failure or if the file is not an archive
+         */
+        public Reader(@NonNull final File archiveFile) throws IOException {
+            file = new RandomAccessFile(archiveFile, "r");
+            channel = file.getChannel();
+            try {
+                final ByteBuffer header = read(0, FIXED_HEADER_SIZE);
+                if (header.getInt() != MAGIC)
+                    throw new IOException("Reader: not a point cloud archive: " + archiveFile.getName());
+                final int version = header.getInt();
+                if (version != VERSION)
+                    throw new IOException("Reader: unsupported archive version " + version);
+                width = header.getInt();
+                height = header.getInt();
+                units = header.getFloat();
+                ppx = header.getFloat();
+                ppy = header.getFloat();
+                fx = header.getFloat();
+                fy = header.getFloat();
+                rowsPerBlock = header.getInt();
+                final int blockCount = header.getInt();
+
+                blockOffsets = new int[blockCount + 1];
+                read(FIXED_HEADER_SIZE, blockOffsets.length * 4).asIntBuffer().get(blockOffsets);
+                dataStart = headerSize(blockCount);
+                int maxBlockSize = 0;
+                for (int i = 0; i < blockCount; i++)
+                    maxBlockSize = Math.max(maxBlockSize, blockOffsets[i + 1] - blockOffsets[i]);
+                compressed = new byte[maxBlockSize];
+                planes = new byte[rowsPerBlock * width * 2];
+                blockDepth = new short[rowsPerBlock * width];
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return Metres per depth unit
+         */
+        public float getUnits() {
+            return units;
+        }
+
+        public float getPpx() {
+            return ppx;
+        }
+
+        public float getPpy() {
+            return ppy;
+        }
+
+        public float getFx() {
+            return fx;
+        }
+
+        public float getFy() {
+            return fy;
+        }
+
+        /**
+         * Reads the raw depth of the given rows
+         * @param startRow First row
+         * @param endRow Row after the last row
+         * @param depth Destination of at least (endRow - startRow) * width values; the depth of
+         *              pixel (u, v) is at (v - startRow) * width + u
+         * @throws IOException on read failure or a corrupt block
+         */
+        public void readDepthRows(final int startRow, final int endRow, @NonNull final short[] depth) throws IOException {
+            for (int row = startRow; row < endRow; ) {
+                final int block = row / rowsPerBlock;
+                final int blockEnd = Math.min(endRow, (block + 1) * rowsPerBlock);
+                decodeBlock(block);
+                System.arraycopy(blockDepth, (row - block * rowsPerBlock) * width,
+                        depth, (row - startRow) * width, (blockEnd - row) * width);
+                row = blockEnd;
+            }
+        }
+
+        /**
+         * Restores the vertices of the given rows into the grid, which is allocated with the
+         * size of the archive; the other rows of the grid are not changed
+         * @param startRow First row
+         * @param endRow Row after the last row
+         * @param grid Destination grid
+         * @throws IOException on read failure or a corrupt block
+         */
+        public void readRows(final int startRow, final int endRow, @NonNull final PointGrid grid) throws IOException {
+            grid.allocate(width, height);
+            final float[] xs = grid.getXs();
+            final float[] ys = grid.getYs();
+            final float[] zs = grid.getZs();
+            for (int row = startRow; row < endRow; ) {
+                final int block = row / rowsPerBlock;
+                final int blockEnd = Math.min(endRow, (block + 1) * rowsPerBlock);
+                decodeBlock(block);
+                for (; row < blockEnd; row++) {
+                    final float rayY = (row - ppy) / fy;
+                    final int blockIndex = (row - block * rowsPerBlock) * width;
+                    final int rowIndex = row * width;
+                    for (int u = 0; u < width; u++) {
+                        final float z = (blockDepth[blockIndex + u] & 0xFFFF) * units;
+                        xs[rowIndex + u] = (u - ppx) / fx * z;
+                        ys[rowIndex + u] = rayY * z;
+                        zs[rowIndex + u] = z;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            file.close();
+        }
+
+        /**
+         * Decompresses the given block into the block depth unless it is the cached one
+         */
+        private void decodeBlock(final int block) throws IOException {
+            if (block < 0 || block >= blockOffsets.length - 1)
+                throw new IndexOutOfBoundsException("decodeBlock: row out of the archive");
+            if (block == cachedBlock)
+                return;
+            cachedBlock = -1;
+
+            final int size = blockOffsets[block + 1] - blockOffsets[block];
+            final ByteBuffer buffer = ByteBuffer.wrap(compressed, 0, size);
+            long position = dataStart + blockOffsets[block];
+            while (buffer.hasRemaining()) {
+                final int n = channel.read(buffer, position);
+                if (n < 0)
+                    throw new IOException("decodeBlock: unexpected end of the archive");
+                position += n;
+            }
+
+            final int rows = Math.min(rowsPerBlock, height - block * rowsPerBlock);
+            final int count = rows * width;
+            inflater.reset();
+            inflater.setInput(compressed, 0, size);
+            try {
+                int length = 0;
+                while (length < count * 2 && !inflater.finished()) {
+                    final int n = inflater.inflate(planes, length, count * 2 - length);
+                    if (n == 0 && inflater.needsInput())
+                        break;
+                    length += n;
+                }
+                if (length != count * 2)
+                    throw new IOException("decodeBlock: corrupt block " + block);
+            } catch (DataFormatException e) {
+                throw new IOException("decodeBlock: corrupt block " + block, e);
+            }
+
+            for (int r = 0; r < rows; r++) {
+                final int rowStart = r * width;
+                int prediction = r == 0 ? 0 : blockDepth[rowStart - width] & 0xFFFF;
+                for (int u = 0; u < width; u++) {
+                    final int code = (planes[rowStart + u] & 0xFF) | (planes[count + rowStart + u] & 0xFF) << 8;
+                    final int difference = (code >>> 1) ^ -(code & 1);
+                    final int value = (prediction + difference) & 0xFFFF;
+                    blockDepth[rowStart + u] = (short) value;
+                    prediction = value;
+                }
+            }
+            cachedBlock = block;
+        }
+
+        private ByteBuffer read(final long position, final int size) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = position;
+            while (buffer.hasRemaining()) {
+                final int n = channel.read(buffer, offset);
+                if (n < 0)
+                    throw new IOException("read: unexpected end of the archive");
+                offset += n;
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
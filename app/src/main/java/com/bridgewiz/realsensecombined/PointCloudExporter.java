@@ -0,0 +1,325 @@
+package com.bridgewiz.realsensecombined;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Writes the vertices of a {@link VertexBuffer} (or the depth of a {@link Deprojector}) into a
+ * file on a background thread, so the streaming thread keeps running while a point cloud is
+ * being saved.
+ * <p>
+ * The file is written through a FileChannel:
+ * <ul>
+ *     <li>PLY: binary little endian PLY with a float x, y, z vertex element. The vertex bytes
+ *     are written straight from the direct buffer of the VertexBuffer in large slices.</li>
+ *     <li>CSV: the legacy "x,y,z" lines with six decimals (the same as "%f", including NaN and
+ *     Infinity), formatted into a direct buffer without creating any Strings.</li>
+ *     <li>ARCHIVE: the compressed raw depth and intrinsics of a {@link PointCloudArchive}, about
+ *     a tenth of the PLY size.</li>
+ *     <li>OCTREE: the levels of an {@link OctreeLod}, coarsest first, so the cloud can be reopened
+ *     progressively. The levels are built on the export thread.</li>
+ * </ul>
+ * All the vertices are written, including the ones without depth data (0, 0, 0), so the row and
+ * column of a vertex can be recovered from its index, unless the PLY, CSV and octree exports are
+ * downsampled with a {@link VoxelDownsampler} (centroid of each voxel) on the export thread.
+ * <p>
+ * The exports run one at a time on a single thread; the listener is called on that thread.
+ */
+public class PointCloudExporter {
+
+    private static final String TAG = "PointCloudExporter";
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int SLICE_VERTICES = BUFFER_SIZE / VertexBuffer.BYTES_PER_VERTEX;
+    /**
+     * Longest CSV line: 3 x (sign, 39 integer digits of the largest float, point, 6 decimals) + 2 commas + CRLF
+     */
+    private static final int MAX_CSV_LINE_LENGTH = 3 * 47 + 4;
+    /**
+     * Values at least this large are formatted with String.format, their scaled value would not fit into a long
+     */
+    private static final float MAX_FAST_DECIMAL = 1e12f;
+
+    /**
+     * File formats of the export
+     */
+    public enum Format {
+        PLY("ply"),
+        CSV("csv"),
+        ARCHIVE(PointCloudArchive.EXTENSION),
+        OCTREE(OctreeLod.EXTENSION);
+
+        private final String extension;
+
+        Format(final String extension) {
+            this.extension = extension;
+        }
+
+        /**
+         * @return File name extension of the format, without the dot
+         */
+        @NonNull
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * Receives the progress of an export; called on the export thread
+     */
+    public interface Listener {
+        /**
+         * @param written Number of vertices written so far
+         * @param total Number of vertices of the export
+         */
+        void onProgress(int written, int total);
+
+        /**
+         * Called when the file is written; the vertex buffer is not used afterwards
+         * @param file Written file
+         */
+        void onExported(@NonNull File file);
+
+        /**
+         * Called when the export fails; the vertex buffer is not used afterwards
+         * @param file File that could not be written
+         * @param e Cause of the failure
+         */
+        void onFailed(@NonNull File file, @NonNull Exception e);
+    }
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    // used only by the export thread
+    private VoxelDownsampler voxelDownsampler;
+    private OctreeLod octreeLod;
+
+    /**
+     * Queues an export of the given vertices
+     * @param vertexBuffer Vertices to write; should not be modified until the listener is notified
+     * @param file Destination file; overwritten if it exists
+     * @param format File format; PLY, CSV or OCTREE
+     * @param leafSize Voxel size in metres to downsample the vertices before writing; 0 to write all the vertices
+     * @param listener Listener of the export; the progress is reported in written vertices (in
+     *                 vertices placed into the levels for an octree)
+     */
+    public void export(@NonNull final VertexBuffer vertexBuffer, @NonNull final File file,
+                       @NonNull final Format format, final float leafSize, @NonNull final Listener listener) {
+        if (format == Format.ARCHIVE)
+            throw new IllegalArgumentException("export: archives are written from the depth, use exportArchive");
+        executor.execute(() -> {
+            final long start = System.nanoTime();
+            final int count;
+            // any failure, including the downsampling, is reported to the listener, so the
+            // caller never waits for an export that has died with the task
+            try {
+                VertexSource vertices = vertexBuffer;
+                if (leafSize > 0) {
+                    if (voxelDownsampler == null || voxelDownsampler.getLeafSize() != leafSize)
+                        voxelDownsampler = new VoxelDownsampler(leafSize, VoxelDownsampler.Mode.CENTROID);
+                    voxelDownsampler.downsample(vertexBuffer);
+                    vertices = voxelDownsampler;
+                }
+                try (FileOutputStream outputStream = new FileOutputStream(file);
+                     FileChannel channel = outputStream.getChannel()) {
+                    if (format == Format.PLY)
+                        writePly(vertices, channel, listener);
+                    else if (format == Format.CSV)
+                        writeCsv(vertices, channel, listener);
+                    else
+                        writeOctree(vertices, channel, listener);
+                }
+                count = vertices.getCount();
+            } catch (Exception e) {
+                Log.e(TAG, "export: failed to write " + file.getName(), e);
+                listener.onFailed(file, e);
+                return;
+            }
+            Log.d(TAG, String.format(Locale.US, "export: %s %d vertices in %d ms", file.getName(),
+                    count, (System.nanoTime() - start) / 1000000));
+            listener.onExported(file);
+        });
+    }
+
+    /**
+     * Queues an archive export of the current depth frame of the given deprojector
+     * @param deprojector Deprojector with the intrinsics and the depth frame set; the depth frame
+     *                    should not be changed until the listener is notified
+     * @param file Destination file; overwritten if it exists
+     * @param listener Listener of the export; the progress is reported in vertices
+     */
+    public void exportArchive(@NonNull final Deprojector deprojector, @NonNull final File file,
+                              @NonNull final Listener listener) {
+        executor.execute(() -> {
+            final long start = System.nanoTime();
+            final int width = deprojector.getWidth();
+            try (FileOutputStream outputStream = new FileOutputStream(file);
+                 FileChannel channel = outputStream.getChannel()) {
+                PointCloudArchive.write(deprojector, channel,
+                        (rows, total) -> listener.onProgress(rows * width, total * width));
+            } catch (Exception e) {
+                Log.e(TAG, "exportArchive: failed to write " + file.getName(), e);
+                listener.onFailed(file, e);
+                return;
+            }
+            Log.d(TAG, String.format(Locale.US, "exportArchive: %s %d bytes in %d ms", file.getName(),
+                    file.length(), (System.nanoTime() - start) / 1000000));
+            listener.onExported(file);
+        });
+    }
+
+    /**
+     * Stops the export thread after the queued exports
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void writePly(final VertexSource vertices, final FileChannel channel, final Listener listener) throws IOException {
+        final int count = vertices.getCount();
+        final String header = "ply\n" +
+                "format binary_little_endian 1.0\n" +
+                "element vertex " + count + "\n" +
+                "property float x\n" +
+                "property float y\n" +
+                "property float z\n" +
+                "end_header\n";
+        writeFully(channel, ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII)));
+
+        if (vertices instanceof VertexBuffer) {
+            final ByteBuffer bytes = ((VertexBuffer) vertices).getBytes();
+            if (bytes.order() == ByteOrder.LITTLE_ENDIAN) {
+                for (int i = 0; i < count; i += SLICE_VERTICES) {
+                    final int end = Math.min(count, i + SLICE_VERTICES);
+                    bytes.limit(end * VertexBuffer.BYTES_PER_VERTEX);
+                    bytes.position(i * VertexBuffer.BYTES_PER_VERTEX);
+                    writeFully(channel, bytes);
+                    listener.onProgress(end, count);
+                }
+                return;
+            }
+        }
+
+        // the byte order of the PLY is fixed; other sources (and big endian hosts) go through the output buffer
+        for (int i = 0; i < count; ) {
+            outputBuffer.clear();
+            while (i < count && outputBuffer.remaining() >= VertexBuffer.BYTES_PER_VERTEX) {
+                outputBuffer.putFloat(vertices.getX(i));
+                outputBuffer.putFloat(vertices.getY(i));
+                outputBuffer.putFloat(vertices.getZ(i));
+                i++;
+            }
+            outputBuffer.flip();
+            writeFully(channel, outputBuffer);
+            listener.onProgress(i, count);
+        }
+    }
+
+    private void writeOctree(final VertexSource vertices, final FileChannel channel, final Listener listener) throws IOException {
+        if (octreeLod == null)
+            octreeLod = new OctreeLod();
+        final long start = System.nanoTime();
+        final int total = octreeLod.begin(vertices);
+        boolean refining = octreeLod.refine();
+        Log.d(TAG, String.format(Locale.US, "writeOctree: coarse level of %d vertices in %d ms",
+                octreeLod.getCount(), (System.nanoTime() - start) / 1000000));
+        listener.onProgress(octreeLod.getCount(), total);
+        while (refining) {
+            refining = octreeLod.refine();
+            listener.onProgress(octreeLod.getCount(), total);
+        }
+        octreeLod.writeTo(channel);
+    }
+
+    private void writeCsv(final VertexSource vertices, final FileChannel channel, final Listener listener) throws IOException {
+        final int count = vertices.getCount();
+        outputBuffer.clear();
+        for (int i = 0; i < count; i++) {
+            if (outputBuffer.remaining() < MAX_CSV_LINE_LENGTH) {
+                outputBuffer.flip();
+                writeFully(channel, outputBuffer);
+                outputBuffer.clear();
+                listener.onProgress(i, count);
+            }
+            putDecimal(vertices.getX(i));
+            outputBuffer.put((byte) ',');
+            putDecimal(vertices.getY(i));
+            outputBuffer.put((byte) ',');
+            putDecimal(vertices.getZ(i));
+            outputBuffer.put((byte) '\r');
+            outputBuffer.put((byte) '\n');
+        }
+        outputBuffer.flip();
+        writeFully(channel, outputBuffer);
+        listener.onProgress(count, count);
+    }
+
+    /**
+     * Puts the given value with six decimals (rounded half up) into the output buffer; the
+     * special values and the sign are written as by "%f" ("NaN", "Infinity", "-0.000000")
+     */
+    private void putDecimal(final float value) {
+        if (Float.isNaN(value)) {
+            putAscii("NaN");
+            return;
+        }
+        if (Float.isInfinite(value)) {
+            putAscii(value > 0 ? "Infinity" : "-Infinity");
+            return;
+        }
+        if (Math.abs(value) >= MAX_FAST_DECIMAL) {
+            putAscii(String.format(Locale.US, "%f", value));
+            return;
+        }
+        final long scaled = Math.round(Math.abs((double) value) * 1000000);
+        // the sign bit, so that -0 and the small negative values are "-0.000000" as well
+        if (Float.floatToRawIntBits(value) < 0)
+            outputBuffer.put((byte) '-');
+        final long integer = scaled / 1000000;
+        final long fraction = scaled % 1000000;
+        putDigits(integer, 1);
+        outputBuffer.put((byte) '.');
+        putDigits(fraction, 6);
+    }
+
+    /**
+     * Puts the given ASCII text into the output buffer
+     */
+    private void putAscii(final String text) {
+        for (int i = 0; i < text.length(); i++)
+            outputBuffer.put((byte) text.charAt(i));
+    }
+
+    /**
+     * Puts the decimal digits of the given non-negative value, left padded with zeros to the given width
+     */
+    private void putDigits(final long value, final int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        digits = Math.max(digits, minDigits);
+        final int position = outputBuffer.position();
+        long v = value;
+        for (int i = digits - 1; i >= 0; i--) {
+            outputBuffer.put(position + i, (byte) ('0' + v % 10));
+            v /= 10;
+        }
+        outputBuffer.position(position + digits);
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
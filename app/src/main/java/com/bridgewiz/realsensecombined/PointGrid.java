@@ -0,0 +1,211 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Organized point cloud in a structure-of-arrays layout: the x, y and z coordinates of the
+ * pixel (column, row) are xs[i], ys[i] and zs[i] with i = row * width + column, instead of the
+ * interleaved x, y, z vertices of Points::getVertices. Pixels without depth data have z = 0.
+ * <p>
+ * The scan primitives walk a single primitive array with a unit (row) or width (column) stride,
+ * e.g. "the first column where z leaves [near, far]", so the callers do not need the stride 3
+ * index arithmetic of the interleaved vertices.
+ * <p>
+ * The arrays are reused, so there is no allocation once the size is stable. Disjoint rows can be
+ * filled from multiple threads; reading while filling the same rows is not safe.
+ */
+public class PointGrid implements VertexSource {
+
+    private int width;
+    private int height;
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] zs = new float[0];
+
+    /**
+     * (Re)allocates the arrays for the given size; the contents are undefined afterwards
+     * @param gridWidth Number of columns
+     * @param gridHeight Number of rows
+     */
+    public void allocate(final int gridWidth, final int gridHeight) {
+        final int size = gridWidth * gridHeight;
+        if (xs.length != size) {
+            xs = new float[size];
+            ys = new float[size];
+            zs = new float[size];
+        }
+        width = gridWidth;
+        height = gridHeight;
+    }
+
+    /**
+     * Deinterleaves the vertices of the given buffer into the grid
+     * @param vertexBuffer Vertex buffer of a frame
+     * @param gridWidth Width of the depth stream; the vertex count should be a multiple of it
+     */
+    public void fill(@NonNull final VertexBuffer vertexBuffer, final int gridWidth) {
+        allocate(gridWidth, vertexBuffer.getCount() / gridWidth);
+        final FloatBuffer vertices = vertexBuffer.getVertices();
+        for (int i = 0, j = 0; i < xs.length; i++, j += 3) {
+            xs[i] = vertices.get(j);
+            ys[i] = vertices.get(j + 1);
+            zs[i] = vertices.get(j + 2);
+        }
+    }
+
+    /**
+     * Deprojects the given rows of the current depth frame of the deprojector into the grid;
+     * the grid should be allocated with the size of the deprojector
+     * @param deprojector Deprojector with the depth frame set
+     * @param startRow First row
+     * @param endRow Row after the last row
+     */
+    public void fillRows(@NonNull final Deprojector deprojector, final int startRow, final int endRow) {
+        deprojector.deprojectRows(startRow, endRow, xs, ys, zs);
+    }
+
+    /**
+     * Deprojects the given rows of the current depth frame of the deprojector into the grid
+     * rows starting at gridRow, so a grid with the height of a band can hold the rows of the band
+     * @param deprojector Deprojector with the depth frame set; its width should be the grid width
+     * @param startRow First image row
+     * @param endRow Image row after the last row
+     * @param gridRow Grid row of the first image row
+     */
+    public void fillRows(@NonNull final Deprojector deprojector, final int startRow, final int endRow, final int gridRow) {
+        deprojector.deprojectRows(startRow, endRow, xs, ys, zs, gridRow);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Number of vertices (width * height)
+     */
+    @Override
+    public int getCount() {
+        return width * height;
+    }
+
+    @Override
+    public float getX(final int index) {
+        return xs[index];
+    }
+
+    @Override
+    public float getY(final int index) {
+        return ys[index];
+    }
+
+    @Override
+    public float getZ(final int index) {
+        return zs[index];
+    }
+
+    public float getX(final int column, final int row) {
+        return xs[row * width + column];
+    }
+
+    public float getY(final int column, final int row) {
+        return ys[row * width + column];
+    }
+
+    public float getZ(final int column, final int row) {
+        return zs[row * width + column];
+    }
+
+    /**
+     * @return x coordinates (row major); owned by the grid
+     */
+    @NonNull
+    public float[] getXs() {
+        return xs;
+    }
+
+    /**
+     * @return y coordinates (row major); owned by the grid
+     */
+    @NonNull
+    public float[] getYs() {
+        return ys;
+    }
+
+    /**
+     * @return z coordinates (row major), 0 for no data; owned by the grid
+     */
+    @NonNull
+    public float[] getZs() {
+        return zs;
+    }
+
+    /**
+     * Scans a row from the given column towards the given direction for the first pixel whose
+     * z is not in [near, far] (pixels without data are never in the range)
+     * @param row Row
+     * @param fromColumn First column to check
+     * @param direction -1 to scan to the left, +1 to scan to the right
+     * @param near Near limit of z (inclusive)
+     * @param far Far limit of z (inclusive)
+     * @return Column of the first pixel out of the range; -1 if all the pixels up to the border are in the range
+     */
+    public int firstOutsideInRow(final int row, final int fromColumn, final int direction, final float near, final float far) {
+        final int rowIndex = row * width;
+        final int end = direction > 0 ? width : -1;
+        for (int column = fromColumn; column != end; column += direction) {
+            final float z = zs[rowIndex + column];
+            if (z == 0 || z < near || z > far)
+                return column;
+        }
+        return -1;
+    }
+
+    /**
+     * Scans a column from the given row towards the given direction for the first pixel whose
+     * z is not in [near, far] (pixels without data are never in the range)
+     * @param column Column
+     * @param fromRow First row to check
+     * @param direction -1 to scan upwards, +1 to scan downwards
+     * @param near Near limit of z (inclusive)
+     * @param far Far limit of z (inclusive)
+     * @return Row of the first pixel out of the range; -1 if all the pixels up to the border are in the range
+     */
+    public int firstOutsideInColumn(final int column, final int fromRow, final int direction, final float near, final float far) {
+        final int end = direction > 0 ? height : -1;
+        for (int row = fromRow; row != end; row += direction) {
+            final float z = zs[row * width + column];
+            if (z == 0 || z < near || z > far)
+                return row;
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the pixels of the rectangle [left, right) x [top, bottom) whose z is in [near, far]
+     * @param left First column
+     * @param top First row
+     * @param right Column after the last column
+     * @param bottom Row after the last row
+     * @param near Near limit of z (inclusive)
+     * @param far Far limit of z (inclusive)
+     * @return Number of pixels in the range
+     */
+    public int countInRange(final int left, final int top, final int right, final int bottom, final float near, final float far) {
+        int count = 0;
+        for (int row = top; row < bottom; row++) {
+            final int rowIndex = row * width;
+            for (int i = rowIndex + left; i < rowIndex + right; i++) {
+                final float z = zs[i];
+                if (z != 0 && z >= near && z <= far)
+                    count++;
+            }
+        }
+        return count;
+    }
+}
@@ -1,10 +1,10 @@
 package com.bridgewiz.realsensecombined;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
@@ -39,7 +39,7 @@ public class ProcessingActivity extends AppCompatActivity {
     private GLRsSurfaceView mGLSurfaceViewOrg;
     private GLRsSurfaceView mGLSurfaceViewProcessed;
     private boolean mIsStreaming = false;
-    private final Handler mHandler = new Handler();
+    private FrameLoop mFrameLoop;
 
     private Pipeline mPipeline;
 
@@ -116,6 +116,7 @@ public class ProcessingActivity extends AppCompatActivity {
         mRsContext.setDevicesChangedCallback(mListener);
 
         mPipeline = new Pipeline();
+        mFrameLoop = new FrameLoop(TAG, mPipeline, mStreaming);
 
         //init filters
         mAlign = new Align(StreamType.COLOR);
@@ -166,33 +167,24 @@ public class ProcessingActivity extends AppCompatActivity {
     };
 
     /**
-     * Runnable that does the processing
+     * Frame processor that does the processing
      */
-    Runnable mStreaming = new Runnable() {
+    FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
-            try {
-                try(FrameReleaser fr = new FrameReleaser()){
-                    FrameSet frames = mPipeline.waitForFrames().releaseWith(fr);
-                    FrameSet orgSet = frames.applyFilter(mColorizerOrg).releaseWith(fr);
-                    FrameSet processedSet = frames.applyFilter(mDecimationFilter).releaseWith(fr).
-                            applyFilter(mHoleFillingFilter).releaseWith(fr).
-                            applyFilter(mTemporalFilter).releaseWith(fr).
-                            applyFilter(mSpatialFilter).releaseWith(fr).
-                            applyFilter(mThresholdFilter).releaseWith(fr).
-                            applyFilter(mColorizerProcessed).releaseWith(fr).
-                            applyFilter(mAlign).releaseWith(fr);
-                    try(Frame org = orgSet.first(StreamType.DEPTH, StreamFormat.RGB8).releaseWith(fr)){
-                        try(Frame processed = processedSet.first(StreamType.DEPTH, StreamFormat.RGB8).releaseWith(fr)){
-                            mGLSurfaceViewOrg.upload(org);
-                            mGLSurfaceViewProcessed.upload(processed);
-                        }
-                    }
+        public void process(@NonNull FrameSet frames, @NonNull FrameReleaser fr, @NonNull MatReleaser matReleaser) throws Exception {
+            FrameSet orgSet = frames.applyFilter(mColorizerOrg).releaseWith(fr);
+            FrameSet processedSet = frames.applyFilter(mDecimationFilter).releaseWith(fr).
+                    applyFilter(mHoleFillingFilter).releaseWith(fr).
+                    applyFilter(mTemporalFilter).releaseWith(fr).
+                    applyFilter(mSpatialFilter).releaseWith(fr).
+                    applyFilter(mThresholdFilter).releaseWith(fr).
+                    applyFilter(mColorizerProcessed).releaseWith(fr).
+                    applyFilter(mAlign).releaseWith(fr);
+            try(Frame org = orgSet.first(StreamType.DEPTH, StreamFormat.RGB8).releaseWith(fr)){
+                try(Frame processed = processedSet.first(StreamType.DEPTH, StreamFormat.RGB8).releaseWith(fr)){
+                    mGLSurfaceViewOrg.upload(org);
+                    mGLSurfaceViewProcessed.upload(processed);
                 }
-                mHandler.post(mStreaming);
-            }
-            catch (Exception e) {
-                Log.e(TAG, "streaming, error: " + e.getMessage());
             }
         }
     };
@@ -224,7 +216,7 @@ public class ProcessingActivity extends AppCompatActivity {
             mGLSurfaceViewProcessed.clear();
             configAndStart();
             mIsStreaming = true;
-            mHandler.post(mStreaming);
+            mFrameLoop.start();
             Log.d(TAG, "streaming started successfully");
         } catch (Exception e) {
             Log.d(TAG, "failed to start streaming");
@@ -240,7 +232,7 @@ public class ProcessingActivity extends AppCompatActivity {
         try {
             Log.d(TAG, "try stop streaming");
             mIsStreaming = false;
-            mHandler.removeCallbacks(mStreaming);
+            mFrameLoop.stop();
             mPipeline.stop();
             Log.d(TAG, "streaming stopped successfully");
             mGLSurfaceViewOrg.clear();
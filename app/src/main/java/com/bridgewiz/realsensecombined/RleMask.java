@@ -0,0 +1,510 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Run-length encoded binary mask. Each row is a sorted list of disjoint, non-adjacent horizontal
+ * runs [start, end) of set pixels. A trunk foreground is usually one or two runs per row, so the
+ * mask takes a few integers per row, and the questions about a row (e.g. which run contains the
+ * center column) are answered by looking at its runs instead of scanning the pixels.
+ * <p>
+ * The runs are stored in a single int array as start / end pairs, and rowOffsets[y] is the index
+ * of the first run of row y. The mask can be serialized in a compact varint format for saving
+ * it with the measurements.
+ * <p>
+ * Not thread-safe.
+ */
+public class RleMask {
+
+    private static final int FORMAT_VERSION = 1;
+    // larger than any depth stream; a larger size in a file is corrupt data, not a mask
+    private static final int MAX_SIZE = 1 << 14;
+    private static final int INITIAL_RUN_CAPACITY = 1024;
+
+    private int width;
+    private int height;
+    private int[] rowOffsets = new int[1];
+    private int[] runs = new int[INITIAL_RUN_CAPACITY * 2];
+    private int runCount;
+
+    // the second buffer that the operations write into; swapped with the main one afterwards
+    private int[] nextRowOffsets = new int[1];
+    private int[] nextRuns = new int[INITIAL_RUN_CAPACITY * 2];
+    private int nextRunCount;
+
+    // scratch of the vertical morphology
+    private long[] packedRuns = new long[INITIAL_RUN_CAPACITY];
+    // scratch masks of the vertical erosion, created on the first erosion and reused after that
+    private RleMask erodeSource;
+    private RleMask erodeRow;
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return Total number of runs
+     */
+    public int getRunCount() {
+        return runCount;
+    }
+
+    /**
+     * @param y Row
+     * @return Number of runs in the given row
+     */
+    public int getRunCount(final int y) {
+        return rowOffsets[y + 1] - rowOffsets[y];
+    }
+
+    /**
+     * @param y Row
+     * @param i Index of the run in the row
+     * @return First column of the run
+     */
+    public int getRunStart(final int y, final int i) {
+        return runs[(rowOffsets[y] + i) * 2];
+    }
+
+    /**
+     * @param y Row
+     * @param i Index of the run in the row
+     * @return Column after the last column of the run
+     */
+    public int getRunEnd(final int y, final int i) {
+        return runs[(rowOffsets[y] + i) * 2 + 1];
+    }
+
+    /**
+     * Finds the run of the given row that contains the given column, e.g. the trunk run at the
+     * center column
+     * @param y Row
+     * @param x Column
+     * @return Index of the run in the row, -1 if the pixel is not set
+     */
+    public int findRun(final int y, final int x) {
+        // binary search on the run starts of the row
+        int low = rowOffsets[y];
+        int high = rowOffsets[y + 1] - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (runs[mid * 2] > x)
+                high = mid - 1;
+            else if (runs[mid * 2 + 1] <= x)
+                low = mid + 1;
+            else
+                return mid - rowOffsets[y];
+        }
+        return -1;
+    }
+
+    /**
+     * @param x Column
+     * @param y Row
+     * @return True if the pixel is set
+     */
+    public boolean get(final int x, final int y) {
+        return findRun(y, x) >= 0;
+    }
+
+    /**
+     * @return Number of set pixels
+     */
+    public int area() {
+        int area = 0;
+        for (int i = 0; i < runCount; i++)
+            area += runs[i * 2 + 1] - runs[i * 2];
+        return area;
+    }
+
+    /**
+     * Encodes the pixels of the given depth values that are within the given range, in a
+     * single pass over the depth
+     * @param depth Raw depth values (row major)
+     * @param width Depth width
+     * @param height Depth height
+     * @param lowerBound Lowest depth value inside the range (inclusive, at least 1)
+     * @param upperBound Highest depth value inside the range (inclusive)
+     * @return This mask
+     */
+    @NonNull
+    public RleMask fromDepth(@NonNull final ShortBuffer depth, final int width, final int height,
+                             final int lowerBound, final int upperBound) {
+        final int low = Math.max(1, lowerBound);
+        beginNext(width, height);
+        for (int y = 0; y < height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            final int rowStart = y * width;
+            int start = -1;
+            for (int x = 0; x < width; x++) {
+                final int d = depth.get(rowStart + x) & 0xFFFF;
+                final boolean inside = d >= low && d <= upperBound;
+                if (inside && start < 0) {
+                    start = x;
+                }
+                else if (!inside && start >= 0) {
+                    appendNext(start, x);
+                    start = -1;
+                }
+            }
+            if (start >= 0)
+                appendNext(start, width);
+        }
+        return swap(width, height);
+    }
+
+    /**
+     * Copies the size and the runs of the given mask
+     * @param other Source mask
+     * @return This mask
+     */
+    @NonNull
+    public RleMask copyFrom(@NonNull final RleMask other) {
+        if (other == this)
+            return this;
+        beginNext(other.width, other.height);
+        ensureNextRunCapacity(other.runCount);
+        System.arraycopy(other.rowOffsets, 0, nextRowOffsets, 0, other.height + 1);
+        System.arraycopy(other.runs, 0, nextRuns, 0, other.runCount * 2);
+        nextRunCount = other.runCount;
+        return swap(other.width, other.height);
+    }
+
+    /**
+     * this = a OR b; this mask may be one of the operands
+     * @param a First mask
+     * @param b Second mask with the same size
+     * @return This mask
+     */
+    @NonNull
+    public RleMask union(@NonNull final RleMask a, @NonNull final RleMask b) {
+        checkSize(a, b);
+        beginNext(a.width, a.height);
+        for (int y = 0; y < a.height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            int i = a.rowOffsets[y];
+            int j = b.rowOffsets[y];
+            final int iEnd = a.rowOffsets[y + 1];
+            final int jEnd = b.rowOffsets[y + 1];
+            while (i < iEnd || j < jEnd) {
+                if (j >= jEnd || (i < iEnd && a.runs[i * 2] <= b.runs[j * 2])) {
+                    appendMergedNext(y, a.runs[i * 2], a.runs[i * 2 + 1]);
+                    i++;
+                }
+                else {
+                    appendMergedNext(y, b.runs[j * 2], b.runs[j * 2 + 1]);
+                    j++;
+                }
+            }
+        }
+        return swap(a.width, a.height);
+    }
+
+    /**
+     * this = a AND b; this mask may be one of the operands
+     * @param a First mask
+     * @param b Second mask with the same size
+     * @return This mask
+     */
+    @NonNull
+    public RleMask intersection(@NonNull final RleMask a, @NonNull final RleMask b) {
+        checkSize(a, b);
+        beginNext(a.width, a.height);
+        for (int y = 0; y < a.height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            int i = a.rowOffsets[y];
+            int j = b.rowOffsets[y];
+            final int iEnd = a.rowOffsets[y + 1];
+            final int jEnd = b.rowOffsets[y + 1];
+            while (i < iEnd && j < jEnd) {
+                final int start = Math.max(a.runs[i * 2], b.runs[j * 2]);
+                final int end = Math.min(a.runs[i * 2 + 1], b.runs[j * 2 + 1]);
+                if (start < end)
+                    appendNext(start, end);
+                // advance the run that ends first
+                if (a.runs[i * 2 + 1] < b.runs[j * 2 + 1])
+                    i++;
+                else
+                    j++;
+            }
+        }
+        return swap(a.width, a.height);
+    }
+
+    /**
+     * Dilates the mask with a (2 * radiusX + 1) x (2 * radiusY + 1) rectangle
+     * @param radiusX Horizontal radius in pixels
+     * @param radiusY Vertical radius in pixels
+     * @return This mask
+     */
+    @NonNull
+    public RleMask dilate(final int radiusX, final int radiusY) {
+        // horizontal: grow each run, merging the runs that touch
+        beginNext(width, height);
+        for (int y = 0; y < height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            for (int i = rowOffsets[y]; i < rowOffsets[y + 1]; i++)
+                appendMergedNext(y, Math.max(0, runs[i * 2] - radiusX), Math.min(width, runs[i * 2 + 1] + radiusX));
+        }
+        swap(width, height);
+        if (radiusY <= 0)
+            return this;
+
+        // vertical: each row is the union of the rows within radiusY
+        beginNext(width, height);
+        for (int y = 0; y < height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            final int from = rowOffsets[Math.max(0, y - radiusY)];
+            final int to = rowOffsets[Math.min(height, y + radiusY + 1)];
+            final int count = to - from;
+            if (packedRuns.length < count)
+                packedRuns = new long[Math.max(count, packedRuns.length * 2)];
+            for (int i = 0; i < count; i++)
+                packedRuns[i] = ((long) runs[(from + i) * 2] << 32) | runs[(from + i) * 2 + 1];
+            Arrays.sort(packedRuns, 0, count);
+            for (int i = 0; i < count; i++)
+                appendMergedNext(y, (int) (packedRuns[i] >>> 32), (int) packedRuns[i]);
+        }
+        return swap(width, height);
+    }
+
+    /**
+     * Erodes the mask with a (2 * radiusX + 1) x (2 * radiusY + 1) rectangle; the pixels outside
+     * the mask bounds do not erode the border pixels
+     * @param radiusX Horizontal radius in pixels
+     * @param radiusY Vertical radius in pixels
+     * @return This mask
+     */
+    @NonNull
+    public RleMask erode(final int radiusX, final int radiusY) {
+        // horizontal: shrink each run, except at the image borders
+        beginNext(width, height);
+        for (int y = 0; y < height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            for (int i = rowOffsets[y]; i < rowOffsets[y + 1]; i++) {
+                final int start = runs[i * 2] == 0 ? 0 : runs[i * 2] + radiusX;
+                final int end = runs[i * 2 + 1] == width ? width : runs[i * 2 + 1] - radiusX;
+                if (start < end)
+                    appendNext(start, end);
+            }
+        }
+        swap(width, height);
+        if (radiusY <= 0)
+            return this;
+
+        // vertical: each row is the intersection of the rows within radiusY
+        if (erodeSource == null) {
+            erodeSource = new RleMask();
+            erodeRow = new RleMask();
+        }
+        final RleMask source = erodeSource.copyFrom(this);
+        final RleMask row = erodeRow;
+        for (int dy = 1; dy <= radiusY; dy++) {
+            intersection(this, row.shiftRows(source, dy));
+            intersection(this, row.shiftRows(source, -dy));
+        }
+        return this;
+    }
+
+    /**
+     * Writes the mask into a 0/255 Mat
+     * @param dst Destination Mat; becomes CV_8UC1 with the mask size
+     * @param scratch Scratch array of at least width * height bytes; allocated if null or small
+     * @return The scratch array, for reuse in the following calls
+     */
+    @NonNull
+    public byte[] toMat(@NonNull final Mat dst, byte[] scratch) {
+        dst.create(height, width, CvType.CV_8UC1);
+        if (scratch == null || scratch.length < width * height)
+            scratch = new byte[width * height];
+        Arrays.fill(scratch, 0, width * height, (byte) 0);
+        for (int y = 0; y < height; y++) {
+            final int rowStart = y * width;
+            for (int i = rowOffsets[y]; i < rowOffsets[y + 1]; i++)
+                Arrays.fill(scratch, rowStart + runs[i * 2], rowStart + runs[i * 2 + 1], (byte) 255);
+        }
+        dst.put(0, 0, scratch);
+        return scratch;
+    }
+
+    /**
+     * Writes the mask in the compact format: version, width, height, then for each row the run
+     * count followed by (start - previous end, length) of each run, all as unsigned varints.
+     * @param outputStream Output stream; not closed
+     * @throws IOException on write failure
+     */
+    public void writeTo(@NonNull final OutputStream outputStream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(outputStream);
+        writeVarint(out, FORMAT_VERSION);
+        writeVarint(out, width);
+        writeVarint(out, height);
+        for (int y = 0; y < height; y++) {
+            writeVarint(out, rowOffsets[y + 1] - rowOffsets[y]);
+            int previousEnd = 0;
+            for (int i = rowOffsets[y]; i < rowOffsets[y + 1]; i++) {
+                writeVarint(out, runs[i * 2] - previousEnd);
+                writeVarint(out, runs[i * 2 + 1] - runs[i * 2]);
+                previousEnd = runs[i * 2 + 1];
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads a mask written by writeTo into this mask
+     * @param inputStream Input stream; not closed
+     * @return This mask
+     * @throws IOException on read failure, an unknown format or corrupt data (an invalid size,
+     * run count or run); this mask is not changed then
+     */
+    @NonNull
+    public RleMask readFrom(@NonNull final InputStream inputStream) throws IOException {
+        final DataInputStream in = new DataInputStream(inputStream);
+        final int version = readVarint(in);
+        if (version != FORMAT_VERSION)
+            throw new IOException("readFrom: unknown mask format version " + version);
+        final int maskWidth = readVarint(in);
+        final int maskHeight = readVarint(in);
+        if (maskWidth <= 0 || maskHeight <= 0 || maskWidth > MAX_SIZE || maskHeight > MAX_SIZE)
+            throw new IOException("readFrom: invalid mask size " + maskWidth + "x" + maskHeight);
+        // the runs of a row are separated by gaps
+        final int maxRunCount = maskWidth / 2 + 1;
+        beginNext(maskWidth, maskHeight);
+        for (int y = 0; y < maskHeight; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            final int count = readVarint(in);
+            if (count < 0 || count > maxRunCount)
+                throw new IOException("readFrom: invalid run count " + count + " in row " + y);
+            int previousEnd = 0;
+            for (int i = 0; i < count; i++) {
+                // the varints may overflow into negative numbers, which these checks catch too
+                final int start = previousEnd + readVarint(in);
+                final int end = start + readVarint(in);
+                if (start < previousEnd || start >= end)
+                    throw new IOException("readFrom: invalid run in row " + y);
+                if (end > maskWidth)
+                    throw new IOException("readFrom: run exceeds the mask width in row " + y);
+                appendNext(start, end);
+                previousEnd = end;
+            }
+        }
+        return swap(maskWidth, maskHeight);
+    }
+
+    /**
+     * Sets this mask to the given mask shifted vertically; the rows shifted in from outside are
+     * full, so that they do not erode the border rows
+     * @param source Source mask
+     * @param dy Row offset; row y of this mask is row y + dy of the source
+     * @return This mask
+     */
+    private RleMask shiftRows(final RleMask source, final int dy) {
+        beginNext(source.width, source.height);
+        for (int y = 0; y < source.height; y++) {
+            nextRowOffsets[y] = nextRunCount;
+            final int sourceY = y + dy;
+            if (sourceY < 0 || sourceY >= source.height) {
+                appendNext(0, source.width);
+                continue;
+            }
+            for (int i = source.rowOffsets[sourceY]; i < source.rowOffsets[sourceY + 1]; i++)
+                appendNext(source.runs[i * 2], source.runs[i * 2 + 1]);
+        }
+        return swap(source.width, source.height);
+    }
+
+    /**
+     * Starts writing a mask of the given size into the second buffer
+     */
+    private void beginNext(final int maskWidth, final int maskHeight) {
+        if (nextRowOffsets.length < maskHeight + 1)
+            nextRowOffsets = new int[maskHeight + 1];
+        nextRunCount = 0;
+    }
+
+    /**
+     * Appends a run to the current row of the second buffer; the run must start after the
+     * end of the previous run
+     */
+    private void appendNext(final int start, final int end) {
+        ensureNextRunCapacity(nextRunCount + 1);
+        nextRuns[nextRunCount * 2] = start;
+        nextRuns[nextRunCount * 2 + 1] = end;
+        nextRunCount++;
+    }
+
+    /**
+     * Appends a run to row y of the second buffer, merging it into the previous run of the
+     * row if they overlap or touch; the runs must be appended in the order of their starts
+     */
+    private void appendMergedNext(final int y, final int start, final int end) {
+        if (nextRunCount > nextRowOffsets[y] && start <= nextRuns[nextRunCount * 2 - 1]) {
+            nextRuns[nextRunCount * 2 - 1] = Math.max(end, nextRuns[nextRunCount * 2 - 1]);
+            return;
+        }
+        appendNext(start, end);
+    }
+
+    private void ensureNextRunCapacity(final int count) {
+        if (nextRuns.length < count * 2)
+            nextRuns = Arrays.copyOf(nextRuns, Math.max(count * 2, nextRuns.length * 2));
+    }
+
+    /**
+     * Makes the second buffer the contents of this mask
+     * @return This mask
+     */
+    private RleMask swap(final int maskWidth, final int maskHeight) {
+        nextRowOffsets[maskHeight] = nextRunCount;
+
+        int[] offsets = rowOffsets;
+        rowOffsets = nextRowOffsets;
+        nextRowOffsets = offsets;
+        int[] runArray = runs;
+        runs = nextRuns;
+        nextRuns = runArray;
+        runCount = nextRunCount;
+        width = maskWidth;
+        height = maskHeight;
+        return this;
+    }
+
+    private static void checkSize(final RleMask a, final RleMask b) {
+        if (a.width != b.width || a.height != b.height)
+            throw new IllegalArgumentException("checkSize: mask sizes do not match");
+    }
+
+    private static void writeVarint(final DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(final DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("readVarint: malformed varint");
+    }
+}
@@ -0,0 +1,191 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Finds the left and right edges of the object that covers a seed pixel of an image row,
+ * e.g. the tree trunk at the center of a foreground image. A pixel belongs to the object if any
+ * of its channels is non-zero, and the edges are the outermost object pixels that are connected
+ * to the seed on the row.
+ * <p>
+ * The row is copied out of the Mat with a single bulk get into a reusable buffer, instead of a
+ * Mat.get(row, col) call (and a double[]) per pixel, so the search does not allocate once the
+ * row size is stable. Run-length encoded masks are supported too, where the edges are the ends
+ * of the run that contains the seed, and so are rows of raw depth with a depth range. The duration of each call is measured for profiling.
+ * <p>
+ * Not thread-safe; each thread that scans rows should use its own detector.
+ */
+public class RowEdgeDetector {
+
+    private byte[] rowBuffer = new byte[0];
+
+    private int leftEdge = -1;
+    private int rightEdge = -1;
+
+    private long lastNanos;
+    private long totalNanos;
+    private int callCount;
+
+    /**
+     * Searches the edges on the given row of an 8 bit image. An edge is not found (-1) if the
+     * object reaches the image border on that side, or if the seed pixel is not an object pixel.
+     * @param image 8 bit image, e.g. a foreground image or a mask
+     * @param row Row index
+     * @param seedX Column of a pixel inside the object
+     * @return True if both edges are found
+     */
+    public boolean detect(@NonNull final Mat image, final int row, final int seedX) {
+        final long start = System.nanoTime();
+        if (image.depth() != CvType.CV_8U)
+            throw new IllegalArgumentException("detect: image should be an 8 bit Mat");
+
+        final int width = image.cols();
+        final int channels = image.channels();
+        final int length = width * channels;
+        if (rowBuffer.length < length)
+            rowBuffer = new byte[length];
+        image.get(row, 0, rowBuffer);
+
+        leftEdge = -1;
+        rightEdge = -1;
+        if (isObject(seedX, channels)) {
+            int x = seedX;
+            while (x > 0 && isObject(x - 1, channels))
+                x--;
+            if (x > 0)
+                leftEdge = x;
+
+            x = seedX;
+            while (x < width - 1 && isObject(x + 1, channels))
+                x++;
+            if (x < width - 1)
+                rightEdge = x;
+        }
+        return finish(start);
+    }
+
+    /**
+     * Searches the edges on the given row of a run-length encoded mask; the result is the same
+     * as the search on the 0/255 Mat of the mask.
+     * @param mask Run-length encoded mask
+     * @param row Row index
+     * @param seedX Column of a pixel inside the object
+     * @return True if both edges are found
+     */
+    public boolean detect(@NonNull final RleMask mask, final int row, final int seedX) {
+        final long start = System.nanoTime();
+        leftEdge = -1;
+        rightEdge = -1;
+        final int run = mask.findRun(row, seedX);
+        if (run >= 0) {
+            final int runStart = mask.getRunStart(row, run);
+            final int runEnd = mask.getRunEnd(row, run);
+            if (runStart > 0)
+                leftEdge = runStart;
+            if (runEnd < mask.getWidth())
+                rightEdge = runEnd - 1;
+        }
+        return finish(start);
+    }
+
+    /**
+     * Searches the edges on a row of raw depth values, e.g. a row of a Z16 depth Mat read with
+     * a single bulk get; a pixel belongs to the object if its depth is within the given bounds,
+     * so pixels without depth data (zero) never do
+     * @param depthRow Raw depth of the row
+     * @param width Number of pixels of the row
+     * @param seedX Column of a pixel inside the object
+     * @param lowerBound Lower bound of the object depth in depth units (inclusive)
+     * @param upperBound Upper bound of the object depth in depth units (inclusive)
+     * @return True if both edges are found
+     */
+    public boolean detect(@NonNull final short[] depthRow, final int width, final int seedX,
+                          final int lowerBound, final int upperBound) {
+        final long start = System.nanoTime();
+        final int low = Math.max(1, lowerBound);
+        leftEdge = -1;
+        rightEdge = -1;
+        if (isInRange(depthRow[seedX], low, upperBound)) {
+            int x = seedX;
+            while (x > 0 && isInRange(depthRow[x - 1], low, upperBound))
+                x--;
+            if (x > 0)
+                leftEdge = x;
+
+            x = seedX;
+            while (x < width - 1 && isInRange(depthRow[x + 1], low, upperBound))
+                x++;
+            if (x < width - 1)
+                rightEdge = x;
+        }
+        return finish(start);
+    }
+
+    /**
+     * @return Column of the leftmost object pixel of the last search; -1 if not found
+     */
+    public int getLeftEdge() {
+        return leftEdge;
+    }
+
+    /**
+     * @return Column of the rightmost object pixel of the last search; -1 if not found
+     */
+    public int getRightEdge() {
+        return rightEdge;
+    }
+
+    /**
+     * @return Duration of the last call in nanoseconds
+     */
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    /**
+     * @return Average duration of the calls since the last resetTiming in nanoseconds; 0 if no calls
+     */
+    public long getAverageNanos() {
+        return callCount == 0 ? 0 : totalNanos / callCount;
+    }
+
+    /**
+     * @return Number of calls since the last resetTiming
+     */
+    public int getCallCount() {
+        return callCount;
+    }
+
+    /**
+     * Clears the timing statistics
+     */
+    public void resetTiming() {
+        lastNanos = 0;
+        totalNanos = 0;
+        callCount = 0;
+    }
+
+    private boolean isObject(final int x, final int channels) {
+        final int offset = x * channels;
+        for (int k = 0; k < channels; k++) {
+            if (rowBuffer[offset + k] != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isInRange(final short depth, final int lowerBound, final int upperBound) {
+        final int d = depth & 0xFFFF;
+        return d >= lowerBound && d <= upperBound;
+    }
+
+    private boolean finish(final long start) {
+        lastNanos = System.nanoTime() - start;
+        totalNanos += lastNanos;
+        callCount++;
+        return leftEdge >= 0 && rightEdge >= 0;
+    }
+}
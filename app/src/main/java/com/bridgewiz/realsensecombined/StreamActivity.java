@@ -1,10 +1,10 @@
 package com.bridgewiz.realsensecombined;
 
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.widget.TextView;
@@ -13,6 +13,7 @@ import com.intel.realsense.librealsense.Colorizer;
 import com.intel.realsense.librealsense.Config;
 import com.intel.realsense.librealsense.DeviceList;
 import com.intel.realsense.librealsense.DeviceListener;
+import com.intel.realsense.librealsense.FrameReleaser;
 import com.intel.realsense.librealsense.FrameSet;
 import com.intel.realsense.librealsense.GLRsSurfaceView;
 import com.intel.realsense.librealsense.Pipeline;
@@ -28,7 +29,7 @@ public class StreamActivity extends AppCompatActivity {
     private TextView mBackgroundText;
     private GLRsSurfaceView mGLSurfaceView;
     private boolean mIsStreaming = false;
-    private final Handler mHandler = new Handler();
+    private FrameLoop mFrameLoop;
 
     private Pipeline mPipeline;
     private Colorizer mColorizer;
@@ -85,6 +86,7 @@ public class StreamActivity extends AppCompatActivity {
 
         mPipeline = new Pipeline();
         mColorizer = new Colorizer();
+        mFrameLoop = new FrameLoop(TAG, mPipeline, mStreaming);
         try (DeviceList list = mRsContext.queryDevices()) {
             if (list.getDeviceCount() > 0) {
                 showConnectionLabel(false);
@@ -119,20 +121,13 @@ public class StreamActivity extends AppCompatActivity {
     };
 
     /**
-     * Runnable that does the processing
+     * Frame processor that does the processing
      */
-    Runnable mStreaming = new Runnable() {
+    FrameLoop.FrameProcessor mStreaming = new FrameLoop.FrameProcessor() {
         @Override
-        public void run() {
-            try {
-                try (FrameSet frames = mPipeline.waitForFrames()) {
-                    try (FrameSet processed = frames.applyFilter(mColorizer)) {
-                        mGLSurfaceView.upload(processed);
-                    }
-                }
-                mHandler.post(mStreaming);
-            } catch (Exception e) {
-                Log.e(TAG, "Streaming error: ", e);
+        public void process(@NonNull FrameSet frames, @NonNull FrameReleaser frameReleaser, @NonNull MatReleaser matReleaser) throws Exception {
+            try (FrameSet processed = frames.applyFilter(mColorizer)) {
+                mGLSurfaceView.upload(processed);
             }
         }
     };
@@ -162,7 +157,7 @@ public class StreamActivity extends AppCompatActivity {
             mGLSurfaceView.clear();
             configAndStart();
             mIsStreaming = true;
-            mHandler.post(mStreaming);
+            mFrameLoop.start();
             Log.d(TAG, "streaming started successfully");
         } catch (Exception e) {
             Log.d(TAG, "Failed to start streaming");
@@ -179,7 +174,7 @@ public class StreamActivity extends AppCompatActivity {
             Log.d(TAG, "Try stop streaming");
 
             mIsStreaming = false;
-            mHandler.removeCallbacks(mStreaming);
+            mFrameLoop.stop();
             mPipeline.stop();
             mGLSurfaceView.clear();
             Log.d(TAG, "streaming stopped successfully");
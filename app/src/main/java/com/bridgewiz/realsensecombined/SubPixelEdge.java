@@ -0,0 +1,89 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Sub-pixel localization of an object edge on a depth discontinuity. The coarse edge is the
+ * outermost object pixel of a row; the exact boundary is somewhere between its center and the
+ * center of the next (background) pixel, and the mixed pixels on the boundary have depths in
+ * between the object and the background.
+ * <p>
+ * The depth profile of a four pixel window across the edge (one pixel inwards, the edge, and two
+ * pixels outwards) is compared against the level halfway between the object and the background
+ * depths, and the boundary is where the profile crosses this level, linearly interpolated
+ * between the pixel centers. A perfect step gives a boundary half a pixel outside the edge
+ * pixel. If there is no background depth (no data outside the edge), the boundary is assumed
+ * to be half a pixel outside.
+ * <p>
+ * Only the window around the edge is deprojected, so the cost is a few pixels per edge.
+ */
+public final class SubPixelEdge {
+
+    private static final float DEFAULT_OFFSET = 0.5f;
+    private static final float MIN_OFFSET = -0.5f;
+    private static final float MAX_OFFSET = 1.5f;
+
+    private SubPixelEdge() {
+    }
+
+    /**
+     * Locates the boundary of the given edge pixel
+     * @param deprojector Deprojector with the depth frame set
+     * @param row Row of the edge
+     * @param edge Column of the outermost object pixel; its inner neighbor should be in the row
+     * @param direction -1 for a left edge, +1 for a right edge
+     * @return Distance of the boundary from the edge pixel center towards the outside in pixels,
+     * in [-0.5, 1.5]
+     */
+    public static float offset(@NonNull final Deprojector deprojector, final int row, final int edge, final int direction) {
+        final float inner = z(deprojector, row, edge - direction);
+        if (inner == 0)
+            return DEFAULT_OFFSET;
+        final float outer = z(deprojector, row, edge + direction);
+        final float far = z(deprojector, row, edge + 2 * direction);
+        // the pixel next to the edge may be a mixed one; prefer the one after for the background
+        final float background = far != 0 ? far : outer;
+        if (background == 0 || background == inner)
+            return DEFAULT_OFFSET;
+
+        final float level = (inner + background) / 2;
+        float previous = inner;
+        for (int i = 0; i <= 2; i++) {
+            float current = z(deprojector, row, edge + i * direction);
+            // no data means background
+            if (current == 0)
+                current = background;
+            if ((previous - level) * (current - level) <= 0 && previous != current) {
+                final float position = i - 1 + (level - previous) / (current - previous);
+                return Math.max(MIN_OFFSET, Math.min(MAX_OFFSET, position));
+            }
+            previous = current;
+        }
+        return DEFAULT_OFFSET;
+    }
+
+    /**
+     * Locates the boundary of the given edge pixel and returns its x coordinate. The pixel size at
+     * the edge is its depth over the focal length, so it does not depend on the neighbors, which
+     * may have no depth data
+     * @param deprojector Deprojector with the depth frame set
+     * @param row Row of the edge
+     * @param edge Column of the outermost object pixel; its inner neighbor should be in the row
+     * @param direction -1 for a left edge, +1 for a right edge
+     * @return x coordinate of the boundary in metres
+     */
+    public static float edgeX(@NonNull final Deprojector deprojector, final int row, final int edge, final int direction) {
+        final float edgeX = deprojector.getX(edge, row);
+        final float pitch = deprojector.getZ(edge, row) / deprojector.getFx();
+        return edgeX + direction * offset(deprojector, row, edge, direction) * pitch;
+    }
+
+    /**
+     * @return z coordinate of the given column; 0 (no data) outside the row
+     */
+    private static float z(final Deprojector deprojector, final int row, final int column) {
+        if (column < 0 || column >= deprojector.getWidth())
+            return 0;
+        return deprojector.getZ(column, row);
+    }
+}
@@ -0,0 +1,229 @@
+package com.bridgewiz.realsensecombined;
+
+import java.util.Arrays;
+
+/**
+ * Streaming estimator of a quantity measured once per frame, e.g. the diameter of a tree.
+ * The samples are accumulated in constant memory: the mean and the variance with Welford's
+ * online algorithm, and the median with the P-square quantile sketch (Jain &amp; Chlamtac), which
+ * keeps five markers instead of the samples. The confidence interval of the mean uses the
+ * Student-t quantile of the sample count, which is much wider than the normal one for the few
+ * samples of a measurement (2.78 instead of 1.96 for 5 samples).
+ * <p>
+ * The estimation is finished once the 95% confidence interval of the mean is narrower than
+ * the tolerance (after a minimum number of samples), or when the maximum number of frames is
+ * reached so that a measurement that does not converge still ends. NaN samples (failed frames)
+ * count as frames but not as samples.
+ * <p>
+ * Not thread-safe.
+ */
+public class TemporalEstimator {
+
+    private static final double Z_95 = 1.959964;
+    /**
+     * Two-sided 95% Student-t quantiles (t 0.975) for 1 - 30 degrees of freedom
+     */
+    private static final double[] T_95 = {
+            12.7062, 4.3027, 3.1824, 2.7764, 2.5706, 2.4469, 2.3646, 2.3060, 2.2622, 2.2281,
+            2.2010, 2.1788, 2.1604, 2.1448, 2.1314, 2.1199, 2.1098, 2.1009, 2.0930, 2.0860,
+            2.0796, 2.0739, 2.0687, 2.0639, 2.0595, 2.0555, 2.0518, 2.0484, 2.0452, 2.0423
+    };
+    private static final int MARKERS = 5;
+
+    private final float tolerance;
+    private final int minSamples;
+    private final int maxFrames;
+
+    private int frameCount;
+    private int count;
+    private double mean;
+    private double m2;
+
+    // P-square markers: heights, actual positions, desired positions and their increments
+    private final double[] heights = new double[MARKERS];
+    private final int[] positions = new int[MARKERS];
+    private final double[] desiredPositions = new double[MARKERS];
+    private final double[] increments = {0, 0.25, 0.5, 0.75, 1};
+    private final double[] firstSamples = new double[MARKERS];
+
+    /**
+     * @param tolerance Half width of the 95% confidence interval to stop at, in the units of the samples
+     * @param minSamples Minimum number of samples before stopping (at least 2)
+     * @param maxFrames Maximum number of frames before stopping regardless of the confidence
+     */
+    public TemporalEstimator(final float tolerance, final int minSamples, final int maxFrames) {
+        if (minSamples < 2 || maxFrames < minSamples)
+            throw new IllegalArgumentException("TemporalEstimator: invalid sample limits");
+        this.tolerance = tolerance;
+        this.minSamples = minSamples;
+        this.maxFrames = maxFrames;
+        reset();
+    }
+
+    /**
+     * Clears the samples for a new measurement
+     */
+    public void reset() {
+        frameCount = 0;
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        for (int i = 0; i < MARKERS; i++) {
+            positions[i] = i + 1;
+            desiredPositions[i] = 1 + 4 * increments[i];
+        }
+    }
+
+    /**
+     * Adds the sample of a frame
+     * @param value Sample; NaN for a failed frame
+     * @return True if the estimation is finished
+     */
+    public boolean add(final float value) {
+        frameCount++;
+        if (!Float.isNaN(value)) {
+            count++;
+            final double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+            addToSketch(value);
+        }
+        return isFinished();
+    }
+
+    /**
+     * @return True if the confidence interval is narrower than the tolerance
+     */
+    public boolean isConverged() {
+        return count >= minSamples && getConfidenceHalfWidth() <= tolerance;
+    }
+
+    /**
+     * @return True if converged or the maximum number of frames is reached
+     */
+    public boolean isFinished() {
+        return isConverged() || frameCount >= maxFrames;
+    }
+
+    /**
+     * @return Number of frames, including the failed ones
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return Number of valid samples
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean of the samples; NaN if no samples
+     */
+    public float getMean() {
+        return count == 0 ? Float.NaN : (float) mean;
+    }
+
+    /**
+     * @return Sample variance; NaN for less than two samples
+     */
+    public float getVariance() {
+        return count < 2 ? Float.NaN : (float) (m2 / (count - 1));
+    }
+
+    /**
+     * @return Sample standard deviation; NaN for less than two samples
+     */
+    public float getStandardDeviation() {
+        return (float) Math.sqrt(getVariance());
+    }
+
+    /**
+     * @return Half width of the 95% confidence interval of the mean; NaN for less than two samples
+     */
+    public float getConfidenceHalfWidth() {
+        return count < 2 ? Float.NaN : (float) (t95(count - 1) * Math.sqrt(m2 / (count - 1) / count));
+    }
+
+    /**
+     * @param degreesOfFreedom Degrees of freedom (at least 1)
+     * @return Two-sided 95% Student-t quantile; from the table up to 30 degrees of freedom, from
+     * the Cornish-Fisher expansion around the normal quantile above that (error below 1e-4)
+     */
+    static double t95(final int degreesOfFreedom) {
+        if (degreesOfFreedom <= T_95.length)
+            return T_95[degreesOfFreedom - 1];
+        final double z = Z_95;
+        final double z3 = z * z * z;
+        final double z5 = z3 * z * z;
+        final double n = degreesOfFreedom;
+        return z + (z3 + z) / (4 * n) + (5 * z5 + 16 * z3 + 3 * z) / (96 * n * n)
+                + (3 * z5 * z * z + 19 * z5 + 17 * z3 - 15 * z) / (384 * n * n * n);
+    }
+
+    /**
+     * @return Median of the samples; exact up to five samples, estimated afterwards. NaN if no samples
+     */
+    public float getMedian() {
+        if (count == 0)
+            return Float.NaN;
+        if (count > MARKERS)
+            return (float) heights[2];
+        final double[] sorted = Arrays.copyOf(firstSamples, count);
+        Arrays.sort(sorted);
+        return (float) (count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2);
+    }
+
+    /**
+     * Adds a valid sample to the P-square median sketch
+     * @param value Sample
+     */
+    private void addToSketch(final double value) {
+        if (count <= MARKERS) {
+            firstSamples[count - 1] = value;
+            if (count == MARKERS) {
+                System.arraycopy(firstSamples, 0, heights, 0, MARKERS);
+                Arrays.sort(heights);
+            }
+            return;
+        }
+
+        // find the cell of the value, extending the extreme markers if needed
+        int k;
+        if (value < heights[0]) {
+            heights[0] = value;
+            k = 0;
+        }
+        else if (value >= heights[MARKERS - 1]) {
+            heights[MARKERS - 1] = value;
+            k = MARKERS - 2;
+        }
+        else {
+            k = 0;
+            while (value >= heights[k + 1])
+                k++;
+        }
+        for (int i = k + 1; i < MARKERS; i++)
+            positions[i]++;
+        for (int i = 0; i < MARKERS; i++)
+            desiredPositions[i] += increments[i];
+
+        // adjust the middle markers towards their desired positions
+        for (int i = 1; i < MARKERS - 1; i++) {
+            final double d = desiredPositions[i] - positions[i];
+            if ((d >= 1 && positions[i + 1] - positions[i] > 1) || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+                final int sign = d > 0 ? 1 : -1;
+                final double parabolic = heights[i] + (double) sign / (positions[i + 1] - positions[i - 1])
+                        * ((positions[i] - positions[i - 1] + sign) * (heights[i + 1] - heights[i]) / (positions[i + 1] - positions[i])
+                        + (positions[i + 1] - positions[i] - sign) * (heights[i] - heights[i - 1]) / (positions[i] - positions[i - 1]));
+                if (heights[i - 1] < parabolic && parabolic < heights[i + 1])
+                    heights[i] = parabolic;
+                else
+                    heights[i] += sign * (heights[i + sign] - heights[i]) / (positions[i + sign] - positions[i]);
+                positions[i] += sign;
+            }
+        }
+    }
+}
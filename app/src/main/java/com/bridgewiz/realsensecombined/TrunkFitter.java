@@ -0,0 +1,394 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Fits the trunk surface in the point cloud instead of taking the difference of two edge x
+ * coordinates, so that the diameter does not depend on the trunk facing the camera squarely.
+ * <p>
+ * The trunk vertices of a band of rows (the pixels between the per-row edges of a
+ * {@link DiameterEstimator.Result}) are collected into primitive arrays. A circle is fitted to
+ * their horizontal (x, z) projection with RANSAC: circles through three random vertices are
+ * scored by the number of vertices within the inlier threshold of the circle, and the best one
+ * is refined with a least squares (Kasa) fit of its inliers. Only the near side of the trunk is
+ * visible, therefore the circles with the center in front of the sampled vertices are rejected.
+ * The number of iterations is bounded, and the search stops when the time budget is spent.
+ * <p>
+ * The cylinder fit is an approximation for slightly tilted trunks: circles are fitted to the
+ * upper and the lower halves of the band separately, the axis is the line through their
+ * centers and the radius is the mean of their radii.
+ * <p>
+ * The arrays are reused, so there is no allocation once the number of vertices is stable.
+ * Not thread-safe.
+ */
+public class TrunkFitter {
+
+    private static final int MIN_POINTS = 10;
+
+    private final float inlierThreshold;
+    private final int maxIterations;
+    private final long timeBudgetNanos;
+    private float maxRadius = Float.MAX_VALUE;
+
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] zs = new float[0];
+    private int pointCount;
+    private int splitIndex;
+
+    private final Circle circle = new Circle();
+    private final Circle upperCircle = new Circle();
+    private final Circle lowerCircle = new Circle();
+    private final float[] axis = new float[3];
+    private float tiltDegrees = Float.NaN;
+
+    // xorshift state; deterministic so that the results are reproducible
+    private long randomState = 0x9E3779B97F4A7C15L;
+
+    /**
+     * @param inlierThreshold Maximum distance of an inlier vertex to the circle in metres
+     * @param maxIterations Maximum number of RANSAC iterations per circle
+     * @param timeBudgetNanos Time budget per fit call in nanoseconds
+     */
+    public TrunkFitter(final float inlierThreshold, final int maxIterations, final long timeBudgetNanos) {
+        this.inlierThreshold = inlierThreshold;
+        this.maxIterations = maxIterations;
+        this.timeBudgetNanos = timeBudgetNanos;
+    }
+
+    /**
+     * @param maxRadius Largest acceptable radius in metres, e.g. half of the maximum expected diameter
+     */
+    public void setMaxRadius(final float maxRadius) {
+        this.maxRadius = maxRadius;
+    }
+
+    /**
+     * Collects the trunk vertices between the per-row edges of the given result
+     * @param deprojector Deprojector with the depth frame set
+     * @param edges Per-row edges, e.g. the mask result of a DiameterEstimator
+     * @param step Sampling step in rows and columns; 1 collects all the vertices
+     * @return Number of collected vertices
+     */
+    public int collect(@NonNull final Deprojector deprojector, @NonNull final DiameterEstimator.Result edges, final int step) {
+        final int startRow = edges.getStartRow();
+        final int endRow = startRow + edges.getRowCount();
+        final int middleRow = startRow + edges.getRowCount() / 2;
+        pointCount = 0;
+        // -1 until the middle row is reached; 0 is a valid split if the upper half has no vertices
+        splitIndex = -1;
+        for (int row = startRow; row < endRow; row += step) {
+            if (row >= middleRow && splitIndex < 0)
+                splitIndex = pointCount;
+            final int left = edges.getLeftEdge(row);
+            final int right = edges.getRightEdge(row);
+            if (left < 0 || right < 0)
+                continue;
+            ensureCapacity(pointCount + (right - left) / step + 1);
+            for (int column = left; column <= right; column += step) {
+                final float z = deprojector.getZ(column, row);
+                if (z == 0)
+                    continue;
+                xs[pointCount] = deprojector.getX(column, row);
+                ys[pointCount] = deprojector.getY(column, row);
+                zs[pointCount] = z;
+                pointCount++;
+            }
+        }
+        if (splitIndex < 0)
+            splitIndex = pointCount;
+        return pointCount;
+    }
+
+    /**
+     * Fits a circle to the horizontal projection of all the collected vertices
+     * @return True if a circle is found
+     */
+    public boolean fitCircle() {
+        return fit(0, pointCount, System.nanoTime() + timeBudgetNanos, circle);
+    }
+
+    /**
+     * Fits a circle to all the collected vertices and a cylinder to the two halves of the band;
+     * the time budget is shared by the three fits (a half for the circle, a quarter for each half)
+     * @return True if the cylinder is found
+     */
+    public boolean fitCylinder() {
+        final long start = System.nanoTime();
+        tiltDegrees = Float.NaN;
+        fit(0, pointCount, start + timeBudgetNanos / 2, circle);
+        if (!fit(0, splitIndex, start + timeBudgetNanos / 4 * 3, upperCircle)
+                || !fit(splitIndex, pointCount, start + timeBudgetNanos, lowerCircle))
+            return false;
+
+        axis[0] = lowerCircle.centerX - upperCircle.centerX;
+        axis[1] = lowerCircle.y - upperCircle.y;
+        axis[2] = lowerCircle.centerZ - upperCircle.centerZ;
+        final float length = (float) Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+        if (length == 0 || axis[1] == 0)
+            return false;
+        // the y axis of the camera points down; make the axis point up
+        final float sign = axis[1] > 0 ? -1 : 1;
+        for (int i = 0; i < 3; i++)
+            axis[i] *= sign / length;
+        tiltDegrees = (float) Math.toDegrees(Math.acos(Math.min(1, Math.abs(axis[1]))));
+        return true;
+    }
+
+    /**
+     * @return Circle of all the collected vertices
+     */
+    @NonNull
+    public Circle getCircle() {
+        return circle;
+    }
+
+    /**
+     * @return Diameter of the cylinder in metres, the mean of the half band diameters; NaN if not found
+     */
+    public float getCylinderDiameter() {
+        if (Float.isNaN(tiltDegrees))
+            return Float.NaN;
+        return upperCircle.radius + lowerCircle.radius;
+    }
+
+    /**
+     * @return Unit axis of the cylinder (pointing up) in camera coordinates; valid after a successful fitCylinder
+     */
+    @NonNull
+    public float[] getAxis() {
+        return axis;
+    }
+
+    /**
+     * @return Angle between the cylinder axis and the vertical in degrees; NaN if not found
+     */
+    public float getTiltDegrees() {
+        return tiltDegrees;
+    }
+
+    /**
+     * @return Number of collected vertices
+     */
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Fits a circle to the vertices [from, to)
+     * @param from First vertex index
+     * @param to Vertex index after the last vertex
+     * @param deadline System.nanoTime value to stop at
+     * @param result Destination circle
+     * @return True if a circle is found
+     */
+    private boolean fit(final int from, final int to, final long deadline, final Circle result) {
+        result.reset(to - from);
+        if (to - from < MIN_POINTS)
+            return false;
+
+        final int n = to - from;
+        float bestX = 0, bestZ = 0, bestRadius = 0;
+        int bestInliers = 0;
+        int iteration = 0;
+        for (; iteration < maxIterations; iteration++) {
+            if (System.nanoTime() > deadline) {
+                result.timedOut = true;
+                break;
+            }
+            final int a = from + nextIndex(n);
+            final int b = from + nextIndex(n);
+            final int c = from + nextIndex(n);
+            if (a == b || b == c || a == c)
+                continue;
+
+            // circumcircle of the three vertices on the x-z plane
+            final float bx = xs[b] - xs[a], bz = zs[b] - zs[a];
+            final float cx = xs[c] - xs[a], cz = zs[c] - zs[a];
+            final float d = 2 * (bx * cz - bz * cx);
+            if (Math.abs(d) < 1e-9f)
+                continue;
+            final float b2 = bx * bx + bz * bz;
+            final float c2 = cx * cx + cz * cz;
+            final float ux = (cz * b2 - bz * c2) / d;
+            final float uz = (bx * c2 - cx * b2) / d;
+            final float radius = (float) Math.sqrt(ux * ux + uz * uz);
+            final float centerX = xs[a] + ux;
+            final float centerZ = zs[a] + uz;
+            // the visible surface is the near side of the trunk
+            if (radius > maxRadius || centerZ <= zs[a] || centerZ <= zs[b] || centerZ <= zs[c])
+                continue;
+
+            final int inliers = countInliers(from, to, centerX, centerZ, radius);
+            if (inliers > bestInliers) {
+                bestInliers = inliers;
+                bestX = centerX;
+                bestZ = centerZ;
+                bestRadius = radius;
+            }
+        }
+        result.iterations = iteration;
+        if (bestInliers == 0)
+            return false;
+
+        result.set(bestX, bestZ, bestRadius, bestInliers);
+        refine(from, to, result);
+        result.y = meanY(from, to, result);
+        return true;
+    }
+
+    private int countInliers(final int from, final int to, final float centerX, final float centerZ, final float radius) {
+        int inliers = 0;
+        for (int i = from; i < to; i++) {
+            final float dx = xs[i] - centerX;
+            final float dz = zs[i] - centerZ;
+            if (Math.abs((float) Math.sqrt(dx * dx + dz * dz) - radius) <= inlierThreshold)
+                inliers++;
+        }
+        return inliers;
+    }
+
+    /**
+     * Least squares (Kasa) circle fit of the inliers of the given circle: solves
+     * x^2 + z^2 + a x + b z + c = 0 with the normal equations. The refined circle is kept if it
+     * has at least as many inliers.
+     */
+    private void refine(final int from, final int to, final Circle result) {
+        double sxx = 0, sxz = 0, szz = 0, sx = 0, sz = 0, n = 0;
+        double sxw = 0, szw = 0, sw = 0;
+        for (int i = from; i < to; i++) {
+            final double dx = xs[i] - result.centerX;
+            final double dz = zs[i] - result.centerZ;
+            if (Math.abs(Math.sqrt(dx * dx + dz * dz) - result.radius) > inlierThreshold)
+                continue;
+            final double x = xs[i], z = zs[i];
+            final double w = -(x * x + z * z);
+            sxx += x * x; sxz += x * z; szz += z * z;
+            sx += x; sz += z; n++;
+            sxw += x * w; szw += z * w; sw += w;
+        }
+        // [sxx sxz sx; sxz szz sz; sx sz n] [a b c]' = [sxw szw sw]'
+        final double det = sxx * (szz * n - sz * sz) - sxz * (sxz * n - sz * sx) + sx * (sxz * sz - szz * sx);
+        if (Math.abs(det) < 1e-12)
+            return;
+        final double a = (sxw * (szz * n - sz * sz) - sxz * (szw * n - sz * sw) + sx * (szw * sz - szz * sw)) / det;
+        final double b = (sxx * (szw * n - sz * sw) - sxw * (sxz * n - sz * sx) + sx * (sxz * sw - szw * sx)) / det;
+        final double c = (sxx * (szz * sw - szw * sz) - sxz * (sxz * sw - szw * sx) + sxw * (sxz * sz - szz * sx)) / det;
+        final float centerX = (float) (-a / 2);
+        final float centerZ = (float) (-b / 2);
+        final double radiusSquared = centerX * centerX + centerZ * centerZ - c;
+        if (radiusSquared <= 0)
+            return;
+        final float radius = (float) Math.sqrt(radiusSquared);
+        if (radius > maxRadius)
+            return;
+        final int inliers = countInliers(from, to, centerX, centerZ, radius);
+        if (inliers >= result.inliers)
+            result.set(centerX, centerZ, radius, inliers);
+    }
+
+    private float meanY(final int from, final int to, final Circle result) {
+        double sum = 0;
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            final float dx = xs[i] - result.centerX;
+            final float dz = zs[i] - result.centerZ;
+            if (Math.abs((float) Math.sqrt(dx * dx + dz * dz) - result.radius) <= inlierThreshold) {
+                sum += ys[i];
+                count++;
+            }
+        }
+        return count == 0 ? Float.NaN : (float) (sum / count);
+    }
+
+    private int nextIndex(final int bound) {
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 7;
+        randomState ^= randomState << 17;
+        return (int) ((randomState >>> 1) % bound);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (xs.length >= capacity)
+            return;
+        final int newCapacity = Math.max(capacity, xs.length * 2);
+        xs = Arrays.copyOf(xs, newCapacity);
+        ys = Arrays.copyOf(ys, newCapacity);
+        zs = Arrays.copyOf(zs, newCapacity);
+    }
+
+    /**
+     * Circle on the horizontal (x-z) plane of the camera
+     */
+    public static class Circle {
+
+        private float centerX = Float.NaN;
+        private float centerZ = Float.NaN;
+        private float y = Float.NaN;
+        private float radius = Float.NaN;
+        private int inliers;
+        private int points;
+        private int iterations;
+        private boolean timedOut;
+
+        private void reset(final int pointCount) {
+            centerX = Float.NaN;
+            centerZ = Float.NaN;
+            y = Float.NaN;
+            radius = Float.NaN;
+            inliers = 0;
+            points = pointCount;
+            iterations = 0;
+            timedOut = false;
+        }
+
+        private void set(final float x, final float z, final float r, final int inlierCount) {
+            centerX = x;
+            centerZ = z;
+            radius = r;
+            inliers = inlierCount;
+        }
+
+        public float getCenterX() {
+            return centerX;
+        }
+
+        public float getCenterZ() {
+            return centerZ;
+        }
+
+        /**
+         * @return Mean y coordinate of the inliers
+         */
+        public float getY() {
+            return y;
+        }
+
+        /**
+         * @return Radius in metres; NaN if not found
+         */
+        public float getRadius() {
+            return radius;
+        }
+
+        /**
+         * @return Ratio of the inlier vertices to the fitted vertices; 0 if not found
+         */
+        public float getInlierRatio() {
+            return points == 0 ? 0 : (float) inliers / points;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        /**
+         * @return True if the search was stopped by the time budget
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Truncated signed distance fusion of consecutive depth frames into a sparse voxel volume, so
+ * that a surface can be extracted from many frames instead of a single noisy one.
+ * <p>
+ * Each voxel keeps the weighted average of the truncated distance of its center from the
+ * observed surface along the camera ray (positive in front of the surface, negative behind it,
+ * clamped to +/- 1 truncation) and the number of observations. The voxels are grouped into
+ * blocks of 8 x 8 x 8 that are allocated only around the observed surface within the depth
+ * band of a frame, and found through a {@link LongIntHashMap} of the packed block coordinates
+ * ({@link CellKeys}).
+ * The voxel data of all the blocks is in two primitive arrays that grow up to the block budget;
+ * the surface beyond the budget is not fused.
+ * <p>
+ * The volume is in the depth camera frame and there is no pose tracking, so the camera should
+ * be held still while the frames are fused (as during a measurement). The blocks are integrated
+ * in parallel, and the fused depth image is rendered by rows in parallel, on the common
+ * fork-join pool. An instance should be used by a single (processing) thread.
+ */
+public class TsdfVolume {
+
+    private static final int BLOCK_BITS = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+    private static final int BLOCK_VOXELS = BLOCK_SIZE * BLOCK_SIZE * BLOCK_SIZE;
+    private static final int MAX_WEIGHT = 100;
+    private static final int INITIAL_BLOCKS = 256;
+    // every other pixel of every other row is enough to allocate blocks of several pixels
+    private static final int ALLOCATION_STRIDE = 2;
+    private static final int INTEGRATION_THRESHOLD = 32;
+    private static final int RENDER_THRESHOLD = 16;
+
+    private final float voxelSize;
+    private final float truncation;
+    private final int blockBudget;
+    private final LongIntHashMap blocks = new LongIntHashMap(INITIAL_BLOCKS);
+
+    private int[] blockCoordinates = new int[INITIAL_BLOCKS * 3];
+    private float[] distances = new float[INITIAL_BLOCKS * BLOCK_VOXELS];
+    private byte[] weights = new byte[INITIAL_BLOCKS * BLOCK_VOXELS];
+    private int blockCount;
+    private int droppedBlocks;
+    private int frameCount;
+
+    // inputs of the current integration or rendering, read by the tasks
+    private Deprojector deprojector;
+    private ShortBuffer depth;
+    private short[] renderedDepth;
+    private float nearZ;
+    private float farZ;
+
+    /**
+     * @param voxelSize Edge length of the voxels in metres
+     * @param truncation Truncation distance in metres; a few voxels
+     * @param blockBudget Maximum number of blocks of 8 x 8 x 8 voxels
+     */
+    public TsdfVolume(final float voxelSize, final float truncation, final int blockBudget) {
+        if (!(voxelSize > 0) || !(truncation >= voxelSize) || blockBudget <= 0)
+            throw new IllegalArgumentException("TsdfVolume: invalid voxel size, truncation or block budget");
+        this.voxelSize = voxelSize;
+        this.truncation = truncation;
+        this.blockBudget = blockBudget;
+    }
+
+    /**
+     * Removes all the blocks; the arrays are kept for the next fusion
+     */
+    public void reset() {
+        blocks.clear();
+        blockCount = 0;
+        droppedBlocks = 0;
+        frameCount = 0;
+    }
+
+    /**
+     * Fuses the current depth frame of the given deprojector into the volume
+     * @param deprojector Deprojector with the intrinsics and the depth frame set
+     * @param nearZ Near limit of the fused depth in metres
+     * @param farZ Far limit of the fused depth in metres
+     * @return Number of blocks allocated for this frame
+     */
+    public int integrate(@NonNull final Deprojector deprojector, final float nearZ, final float farZ) {
+        this.deprojector = deprojector;
+        this.depth = deprojector.getDepthBuffer();
+        this.nearZ = nearZ;
+        this.farZ = farZ;
+        final int allocated = allocateBlocks();
+        ForkJoinPool.commonPool().invoke(new IntegrateTask(0, blockCount));
+        this.deprojector = null;
+        this.depth = null;
+        frameCount++;
+        return allocated;
+    }
+
+    /**
+     * Renders the fused surface as a depth image seen from the camera of the fused frames. The
+     * surface of a pixel is searched around the depth of the current frame of the deprojector,
+     * or along the whole depth band if the pixel has no depth in it.
+     * @param deprojector Deprojector with the intrinsics and the depth frame of the last integration
+     * @param nearZ Near limit of the rendered depth in metres
+     * @param farZ Far limit of the rendered depth in metres
+     * @param outDepth Destination of width * height depth values in the depth units of the
+     *                 deprojector (row major); 0 where no surface is found
+     */
+    public void render(@NonNull final Deprojector deprojector, final float nearZ, final float farZ,
+                       @NonNull final short[] outDepth) {
+        this.deprojector = deprojector;
+        this.depth = deprojector.getDepthBuffer();
+        this.nearZ = nearZ;
+        this.farZ = farZ;
+        this.renderedDepth = outDepth;
+        ForkJoinPool.commonPool().invoke(new RenderTask(0, deprojector.getHeight()));
+        this.deprojector = null;
+        this.depth = null;
+        this.renderedDepth = null;
+    }
+
+    /**
+     * @return Number of allocated blocks
+     */
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public int getBlockBudget() {
+        return blockBudget;
+    }
+
+    /**
+     * @return Number of blocks that could not be allocated because of the budget since the reset
+     */
+    public int getDroppedBlocks() {
+        return droppedBlocks;
+    }
+
+    /**
+     * @return Number of frames fused since the reset
+     */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public float getVoxelSize() {
+        return voxelSize;
+    }
+
+    /**
+     * Allocates the blocks around the surface of the depth frame: the blocks of the points at
+     * the observed depth and at +/- truncation along the ray of the sampled pixels
+     * @return Number of new blocks
+     */
+    private int allocateBlocks() {
+        final int width = deprojector.getWidth();
+        final int height = deprojector.getHeight();
+        final float units = deprojector.getUnits();
+        final float inverseVoxel = 1 / voxelSize;
+        final int start = blockCount;
+        for (int v = 0; v < height; v += ALLOCATION_STRIDE) {
+            final float rayY = (v - deprojector.getPpy()) / deprojector.getFy();
+            for (int u = 0; u < width; u += ALLOCATION_STRIDE) {
+                final float z = (depth.get(v * width + u) & 0xFFFF) * units;
+                if (z == 0 || z < nearZ || z > farZ)
+                    continue;
+                final float rayX = (u - deprojector.getPpx()) / deprojector.getFx();
+                for (int i = -1; i <= 1; i++) {
+                    final float sampleZ = z + i * truncation;
+                    final long key = blockKey(rayX * sampleZ * inverseVoxel, rayY * sampleZ * inverseVoxel, sampleZ * inverseVoxel);
+                    if (key == CellKeys.INVALID_KEY || blocks.get(key) >= 0)
+                        continue;
+                    if (blockCount == blockBudget) {
+                        droppedBlocks++;
+                        continue;
+                    }
+                    addBlock(key);
+                }
+            }
+        }
+        return blockCount - start;
+    }
+
+    private void addBlock(final long key) {
+        final int block = blockCount++;
+        if (block * 3 == blockCoordinates.length) {
+            final int capacity = Math.min(blockBudget, block * 2);
+            blockCoordinates = Arrays.copyOf(blockCoordinates, capacity * 3);
+            distances = Arrays.copyOf(distances, capacity * BLOCK_VOXELS);
+            weights = Arrays.copyOf(weights, capacity * BLOCK_VOXELS);
+        }
+        blocks.putIfAbsent(key, block);
+        blockCoordinates[block * 3] = CellKeys.unpackX(key);
+        blockCoordinates[block * 3 + 1] = CellKeys.unpackY(key);
+        blockCoordinates[block * 3 + 2] = CellKeys.unpackZ(key);
+        final int offset = block * BLOCK_VOXELS;
+        Arrays.fill(distances, offset, offset + BLOCK_VOXELS, 1);
+        Arrays.fill(weights, offset, offset + BLOCK_VOXELS, (byte) 0);
+    }
+
+    /**
+     * @return Truncated distance at the given point in truncations; NaN if the voxel is not observed
+     */
+    private float sample(final float x, final float y, final float z) {
+        final int ix = (int) Math.floor(x / voxelSize);
+        final int iy = (int) Math.floor(y / voxelSize);
+        final int iz = (int) Math.floor(z / voxelSize);
+        final long key = CellKeys.pack(ix >> BLOCK_BITS, iy >> BLOCK_BITS, iz >> BLOCK_BITS);
+        if (key == CellKeys.INVALID_KEY)
+            return Float.NaN;
+        final int block = blocks.get(key);
+        if (block < 0)
+            return Float.NaN;
+        final int voxel = block * BLOCK_VOXELS
+                + ((iz & BLOCK_MASK) << (2 * BLOCK_BITS)) + ((iy & BLOCK_MASK) << BLOCK_BITS) + (ix & BLOCK_MASK);
+        return weights[voxel] == 0 ? Float.NaN : distances[voxel];
+    }
+
+    /**
+     * @return Packed block coordinates of the given position in voxels; INVALID_KEY if out of the packable range
+     */
+    private static long blockKey(final float x, final float y, final float z) {
+        // the division by the block size is exact, so this is floor(x) >> BLOCK_BITS
+        return CellKeys.packFloor(x / BLOCK_SIZE, y / BLOCK_SIZE, z / BLOCK_SIZE);
+    }
+
+    /**
+     * Projects the voxels of a range of blocks into the depth frame and updates their averages
+     */
+    private class IntegrateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+
+        IntegrateTask(final int lo, final int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > INTEGRATION_THRESHOLD) {
+                final int mid = (lo + hi) >>> 1;
+                invokeAll(new IntegrateTask(lo, mid), new IntegrateTask(mid, hi));
+                return;
+            }
+            for (int block = lo; block < hi; block++)
+                integrateBlock(block);
+        }
+
+        private void integrateBlock(final int block) {
+            final int width = deprojector.getWidth();
+            final int height = deprojector.getHeight();
+            final float fx = deprojector.getFx();
+            final float fy = deprojector.getFy();
+            final float ppx = deprojector.getPpx();
+            final float ppy = deprojector.getPpy();
+            final float units = deprojector.getUnits();
+            final int originX = blockCoordinates[block * 3] << BLOCK_BITS;
+            final int originY = blockCoordinates[block * 3 + 1] << BLOCK_BITS;
+            final int originZ = blockCoordinates[block * 3 + 2] << BLOCK_BITS;
+            int voxel = block * BLOCK_VOXELS;
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                final float z = (originZ + k + 0.5f) * voxelSize;
+                if (z <= 0) {
+                    voxel += BLOCK_SIZE * BLOCK_SIZE;
+                    continue;
+                }
+                final float inverseZ = 1 / z;
+                for (int j = 0; j < BLOCK_SIZE; j++) {
+                    final float y = (originY + j + 0.5f) * voxelSize;
+                    final int v = (int) (y * inverseZ * fy + ppy + 0.5f);
+                    if (v < 0 || v >= height) {
+                        voxel += BLOCK_SIZE;
+                        continue;
+                    }
+                    for (int i = 0; i < BLOCK_SIZE; i++, voxel++) {
+                        final float x = (originX + i + 0.5f) * voxelSize;
+                        final int u = (int) (x * inverseZ * fx + ppx + 0.5f);
+                        if (u < 0 || u >= width)
+                            continue;
+                        final float observed = (depth.get(v * width + u) & 0xFFFF) * units;
+                        if (observed == 0 || observed < nearZ || observed > farZ)
+                            continue;
+                        final float sdf = observed - z;
+                        // the voxels far behind the surface are occluded, not empty
+                        if (sdf < -truncation)
+                            continue;
+                        final float tsdf = Math.min(1, sdf / truncation);
+                        final int weight = weights[voxel];
+                        distances[voxel] = (distances[voxel] * weight + tsdf) / (weight + 1);
+                        if (weight < MAX_WEIGHT)
+                            weights[voxel] = (byte) (weight + 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the zero crossing of the truncated distance along the rays of a range of rows
+     */
+    private class RenderTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int startRow;
+        private final int endRow;
+
+        RenderTask(final int startRow, final int endRow) {
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (endRow - startRow > RENDER_THRESHOLD) {
+                final int mid = (startRow + endRow) >>> 1;
+                invokeAll(new RenderTask(startRow, mid), new RenderTask(mid, endRow));
+                return;
+            }
+            final int width = deprojector.getWidth();
+            final float units = deprojector.getUnits();
+            for (int v = startRow; v < endRow; v++) {
+                final float rayY = (v - deprojector.getPpy()) / deprojector.getFy();
+                for (int u = 0; u < width; u++) {
+                    final int index = v * width + u;
+                    final float rayX = (u - deprojector.getPpx()) / deprojector.getFx();
+                    final float observed = (depth.get(index) & 0xFFFF) * units;
+                    final float z;
+                    if (observed >= nearZ && observed <= farZ)
+                        z = castRay(rayX, rayY, Math.max(nearZ, observed - 2 * truncation),
+                                Math.min(farZ, observed + 2 * truncation), voxelSize);
+                    else if (observed == 0)
+                        z = castRay(rayX, rayY, nearZ, farZ, truncation);
+                    else
+                        z = 0;
+                    renderedDepth[index] = (short) Math.min(0xFFFF, Math.round(z / units));
+                }
+            }
+        }
+
+        /**
+         * @return Depth of the first front to back zero crossing in [startZ, endZ], interpolated
+         * between the samples; 0 if there is none
+         */
+        private float castRay(final float rayX, final float rayY, final float startZ, final float endZ, final float step) {
+            float previousZ = startZ;
+            float previous = sample(rayX * startZ, rayY * startZ, startZ);
+            for (float z = startZ + step; z <= endZ; z += step) {
+                final float current = sample(rayX * z, rayY * z, z);
+                if (previous > 0 && current <= 0)
+                    return previousZ + step * previous / (previous - current);
+                previous = current;
+                previousZ = z;
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.Points;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Reusable buffer of the vertices of a point cloud frame. Points::getVertices allocates a new
+ * float[] (3 floats per pixel) for every call; this buffer is allocated once for the vertex
+ * count of the stream and is filled with the raw XYZ32F data of the frame instead. The wrapper only
+ * exposes the data as a copy into a Java array, so a fill is two bulk copies: through JNI into a
+ * reused scratch array, then into the direct buffer.
+ * <p>
+ * The vertices are kept in a direct, native order buffer, so they can be read with the absolute
+ * getters (from multiple threads) and written to a FileChannel without a further copy. The buffers
+ * are usually obtained from a {@link VertexBufferPool}.
+ */
+public class VertexBuffer implements VertexSource {
+
+    /**
+     * Size of a vertex (x, y, z as 32 bit floats) in bytes
+     */
+    public static final int BYTES_PER_VERTEX = 12;
+
+    private final int count;
+    private final byte[] scratchBuffer;
+    private final ByteBuffer byteBuffer;
+    private final FloatBuffer vertices;
+
+    /**
+     * @param count Number of vertices, i.e. the number of pixels of the depth stream
+     */
+    public VertexBuffer(final int count) {
+        this.count = count;
+        scratchBuffer = new byte[count * BYTES_PER_VERTEX];
+        // XYZ32F data is little endian, which is the native order of the Android devices
+        byteBuffer = ByteBuffer.allocateDirect(scratchBuffer.length).order(ByteOrder.nativeOrder());
+        vertices = byteBuffer.asFloatBuffer();
+    }
+
+    /**
+     * Copies the vertices of the given point cloud frame into the buffer
+     * @param points Point cloud frame with the vertex count of the buffer
+     */
+    public void fill(@NonNull final Points points) {
+        if (points.getCount() != count)
+            throw new IllegalArgumentException(String.format("fill: vertex count %d does not match the buffer size %d",
+                    points.getCount(), count));
+        points.getData(scratchBuffer);
+        byteBuffer.clear();
+        byteBuffer.put(scratchBuffer);
+        byteBuffer.clear();
+    }
+
+    /**
+     * @return Number of vertices
+     */
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public float getX(final int index) {
+        return vertices.get(index * 3);
+    }
+
+    @Override
+    public float getY(final int index) {
+        return vertices.get(index * 3 + 1);
+    }
+
+    @Override
+    public float getZ(final int index) {
+        return vertices.get(index * 3 + 2);
+    }
+
+    /**
+     * @return Vertices (x, y, z for each pixel, row major) in the order of Points::getVertices;
+     * use the absolute getters
+     */
+    @NonNull
+    public FloatBuffer getVertices() {
+        return vertices;
+    }
+
+    /**
+     * @return A new view of the raw vertex bytes, positioned at the start, e.g. for writing into
+     * a FileChannel
+     */
+    @NonNull
+    public ByteBuffer getBytes() {
+        return byteBuffer.duplicate().order(ByteOrder.nativeOrder());
+    }
+}
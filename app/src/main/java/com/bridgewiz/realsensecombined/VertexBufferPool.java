@@ -0,0 +1,82 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import com.intel.realsense.librealsense.Extension;
+import com.intel.realsense.librealsense.PipelineProfile;
+import com.intel.realsense.librealsense.StreamProfile;
+import com.intel.realsense.librealsense.StreamProfileList;
+import com.intel.realsense.librealsense.StreamType;
+import com.intel.realsense.librealsense.VideoStreamProfile;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of the {@link VertexBuffer}s of a stream, sized once from the stream profile. A buffer
+ * is obtained by the frame loop, filled and handed over to its consumer (e.g. an exporter on
+ * another thread), which returns it once it is done, so the point cloud path does not allocate
+ * a vertex array per frame.
+ * <p>
+ * The pool is thread-safe.
+ */
+public class VertexBufferPool {
+
+    private static final int MAX_FREE_BUFFERS = 2;
+
+    private final int vertexCount;
+    private final ArrayDeque<VertexBuffer> freeBuffers = new ArrayDeque<>();
+
+    /**
+     * @param vertexCount Number of vertices of each buffer
+     */
+    public VertexBufferPool(final int vertexCount) {
+        this.vertexCount = vertexCount;
+    }
+
+    /**
+     * Creates a pool for the point clouds of the given stream of the pipeline
+     * @param profile Pipeline profile returned by Pipeline::start
+     * @param streamType Stream whose pixels are the vertices, i.e. DEPTH
+     * @return Pool instance
+     * @throws Exception if the stream is not found or its profile cannot be queried
+     */
+    @NonNull
+    public static VertexBufferPool create(@NonNull final PipelineProfile profile, @NonNull final StreamType streamType) throws Exception {
+        try (StreamProfileList streams = profile.getStreams()) {
+            for (int i = 0; i < streams.getProfileCount(); i++) {
+                StreamProfile stream = streams.getProfile(i);
+                if (stream.getType() != streamType)
+                    continue;
+                VideoStreamProfile videoStream = stream.as(Extension.VIDEO_PROFILE);
+                return new VertexBufferPool(videoStream.getWidth() * videoStream.getHeight());
+            }
+        }
+        throw new Exception("create: no " + streamType + " stream in the pipeline profile");
+    }
+
+    /**
+     * Returns a free buffer, creating one if there is none
+     * @return Vertex buffer; its contents are undefined
+     */
+    @NonNull
+    public synchronized VertexBuffer obtain() {
+        VertexBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new VertexBuffer(vertexCount);
+    }
+
+    /**
+     * Returns the given buffer to the pool. The buffer must not be used anymore.
+     * @param buffer Buffer obtained from this pool
+     */
+    public synchronized void recycle(@NonNull final VertexBuffer buffer) {
+        if (buffer.getCount() == vertexCount && freeBuffers.size() < MAX_FREE_BUFFERS)
+            freeBuffers.push(buffer);
+    }
+
+    /**
+     * @return Number of vertices of each buffer
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+}
@@ -0,0 +1,20 @@
+package com.bridgewiz.realsensecombined;
+
+/**
+ * Read access to a set of vertices by index, e.g. the full cloud of a {@link VertexBuffer} or the
+ * reduced cloud of a {@link VoxelDownsampler}. The coordinates are in metres; a vertex without
+ * depth data is (0, 0, 0).
+ */
+public interface VertexSource {
+
+    /**
+     * @return Number of vertices
+     */
+    int getCount();
+
+    float getX(int index);
+
+    float getY(int index);
+
+    float getZ(int index);
+}
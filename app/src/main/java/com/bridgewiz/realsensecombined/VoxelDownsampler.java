@@ -0,0 +1,152 @@
+package com.bridgewiz.realsensecombined;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Voxel grid downsampling of a point cloud: the space is divided into cubes of the leaf size,
+ * and the vertices in each occupied cube are replaced by a single vertex, either their centroid
+ * or the first one. The vertices without depth data are dropped.
+ * <p>
+ * The cube of a vertex is found in a single pass with a {@link LongIntHashMap} whose keys are the
+ * packed cube coordinates ({@link CellKeys}), so there are no boxed keys and no entries. The
+ * table and the output arrays grow with the number of occupied cubes only, and they are reused
+ * by the next call, so the memory is bounded by the largest cloud seen.
+ * <p>
+ * The output is overwritten by the next call. An instance should be used by a single thread.
+ */
+public class VoxelDownsampler implements VertexSource {
+
+    /**
+     * Output vertex of a voxel
+     */
+    public enum Mode {
+        /**
+         * Mean of the vertices in the voxel
+         */
+        CENTROID,
+        /**
+         * First vertex of the voxel in the input order
+         */
+        FIRST
+    }
+
+    private static final int INITIAL_CAPACITY = 1 << 11;
+
+    private final float leafSize;
+    private final Mode mode;
+
+    private final LongIntHashMap voxels = new LongIntHashMap(INITIAL_CAPACITY);
+
+    private float[] xs = new float[INITIAL_CAPACITY];
+    private float[] ys = new float[INITIAL_CAPACITY];
+    private float[] zs = new float[INITIAL_CAPACITY];
+    private int[] counts = new int[INITIAL_CAPACITY];
+    private int count;
+
+    /**
+     * @param leafSize Edge length of the voxels in metres
+     * @param mode Output vertex of a voxel
+     */
+    public VoxelDownsampler(final float leafSize, @NonNull final Mode mode) {
+        if (!(leafSize > 0))
+            throw new IllegalArgumentException("VoxelDownsampler: leaf size should be positive");
+        this.leafSize = leafSize;
+        this.mode = mode;
+    }
+
+    /**
+     * Downsamples the given vertices; the result is read with the VertexSource getters
+     * @param source Input vertices
+     * @return Number of output vertices (occupied voxels)
+     */
+    public int downsample(@NonNull final VertexSource source) {
+        final int n = source.getCount();
+        for (int i = 0; i < count; i++)
+            counts[i] = 0;
+        voxels.clear();
+        count = 0;
+        final float inverseLeaf = 1 / leafSize;
+        for (int i = 0; i < n; i++) {
+            final float z = source.getZ(i);
+            if (z == 0)
+                continue;
+            final float x = source.getX(i);
+            final float y = source.getY(i);
+            final long key = CellKeys.packFloor(x * inverseLeaf, y * inverseLeaf, z * inverseLeaf);
+            if (key == CellKeys.INVALID_KEY)
+                continue;
+
+            int slot = voxels.putIfAbsent(key, count);
+            if (slot < 0) {
+                slot = count++;
+                if (slot == xs.length)
+                    growOutput();
+            }
+            if (counts[slot] == 0) {
+                xs[slot] = x;
+                ys[slot] = y;
+                zs[slot] = z;
+            } else if (mode == Mode.CENTROID) {
+                xs[slot] += x;
+                ys[slot] += y;
+                zs[slot] += z;
+            }
+            counts[slot]++;
+        }
+
+        if (mode == Mode.CENTROID) {
+            for (int i = 0; i < count; i++) {
+                final float scale = 1f / counts[i];
+                xs[i] *= scale;
+                ys[i] *= scale;
+                zs[i] *= scale;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of output vertices of the last call
+     */
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public float getX(final int index) {
+        return xs[index];
+    }
+
+    @Override
+    public float getY(final int index) {
+        return ys[index];
+    }
+
+    @Override
+    public float getZ(final int index) {
+        return zs[index];
+    }
+
+    /**
+     * @param index Output vertex index
+     * @return Number of input vertices in the voxel of the output vertex
+     */
+    public int getVoxelCount(final int index) {
+        return counts[index];
+    }
+
+    public float getLeafSize() {
+        return leafSize;
+    }
+
+    private void growOutput() {
+        final int size = xs.length * 2;
+        xs = Arrays.copyOf(xs, size);
+        ys = Arrays.copyOf(ys, size);
+        zs = Arrays.copyOf(zs, size);
+        counts = Arrays.copyOf(counts, size);
+    }
+}
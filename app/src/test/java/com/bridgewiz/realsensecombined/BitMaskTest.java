@@ -0,0 +1,141 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the word-parallel operations of {@link BitMask} with per-pixel references
+ */
+public class BitMaskTest {
+
+    @Test
+    public void dilate_matchesBruteForce() {
+        checkMorphology(true);
+    }
+
+    @Test
+    public void erode_matchesBruteForce() {
+        checkMorphology(false);
+    }
+
+    @Test
+    public void dilate_sizeZeroKeepsMask() {
+        BitMask mask = new BitMask(70, 3);
+        mask.set(0, 0, true);
+        mask.set(69, 2, true);
+        mask.dilate(0).erode(0);
+        assertEquals(2, mask.cardinality());
+        assertTrue(mask.get(0, 0));
+        assertTrue(mask.get(69, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dilate_rejectsLargeElement() {
+        new BitMask(8, 8).dilate(64);
+    }
+
+    @Test
+    public void not_keepsPaddingClear() {
+        // 100 columns use 28 bits of the second word; the rest should not be counted
+        BitMask mask = new BitMask(100, 2).not();
+        assertEquals(200, mask.cardinality());
+        assertEquals(100, mask.nextClearBit(0, 0));
+        mask.dilate(5);
+        assertEquals(200, mask.cardinality());
+    }
+
+    @Test
+    public void nextAndPreviousBits() {
+        BitMask mask = new BitMask(130, 1);
+        for (int x = 60; x < 70; x++)
+            mask.set(x, 0, true);
+        assertEquals(60, mask.nextSetBit(0, 0));
+        assertEquals(65, mask.nextSetBit(0, 65));
+        assertEquals(-1, mask.nextSetBit(0, 70));
+        assertEquals(70, mask.nextClearBit(0, 60));
+        assertEquals(69, mask.previousSetBit(0, 129));
+        assertEquals(59, mask.previousClearBit(0, 69));
+        assertEquals(-1, mask.previousSetBit(0, 59));
+    }
+
+    @Test
+    public void fromDepth_skipsMissingDepth() {
+        final int width = 67;
+        final int height = 2;
+        short[] depth = new short[width * height];
+        for (int i = 0; i < depth.length; i++)
+            depth[i] = (short) (i % 5 == 0 ? 0 : 1000 + i);
+        // values above 32767 are unsigned depth units
+        depth[66] = (short) 40000;
+        BitMask mask = new BitMask().fromDepth(ShortBuffer.wrap(depth), width, height, 0, 1100);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int d = depth[y * width + x] & 0xFFFF;
+                assertEquals(d != 0 && d <= 1100, mask.get(x, y));
+            }
+        }
+        mask.fromDepth(ShortBuffer.wrap(depth), width, height, 35000, 65535);
+        assertEquals(1, mask.cardinality());
+        assertTrue(mask.get(66, 0));
+    }
+
+    private static void checkMorphology(final boolean dilate) {
+        Random random = new Random(1);
+        for (int t = 0; t < 200; t++) {
+            final int width = 1 + random.nextInt(200);
+            final int height = 1 + random.nextInt(20);
+            final int size = random.nextInt(8);
+            boolean[][] pixels = new boolean[height][width];
+            BitMask mask = new BitMask(width, height);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    pixels[y][x] = random.nextInt(3) > 0;
+                    mask.set(x, y, pixels[y][x]);
+                }
+            }
+            boolean[][] expected = morphology(pixels, size, dilate);
+            if (dilate)
+                mask.dilate(size);
+            else
+                mask.erode(size);
+
+            int count = 0;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals("case " + t + " at " + x + ", " + y, expected[y][x], mask.get(x, y));
+                    if (expected[y][x])
+                        count++;
+                }
+            }
+            assertEquals(count, mask.cardinality());
+        }
+    }
+
+    /**
+     * Window of (size + 1) x (size + 1) pixels that ends at the pixel; the pixels outside are ignored
+     */
+    private static boolean[][] morphology(final boolean[][] pixels, final int size, final boolean dilate) {
+        final int height = pixels.length;
+        final int width = pixels[0].length;
+        boolean[][] result = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean value = !dilate;
+                for (int j = Math.max(0, y - size); j <= y; j++) {
+                    for (int i = Math.max(0, x - size); i <= x; i++) {
+                        if (dilate)
+                            value |= pixels[j][i];
+                        else
+                            value &= pixels[j][i];
+                    }
+                }
+                result[y][x] = value;
+            }
+        }
+        return result;
+    }
+}
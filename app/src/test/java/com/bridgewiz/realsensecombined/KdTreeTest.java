@@ -0,0 +1,132 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the {@link KdTree} queries with a brute force search
+ */
+public class KdTreeTest {
+
+    private final Random random = new Random(19);
+
+    @Test
+    public void nearest_matchesBruteForce() {
+        // larger than the parallel threshold, with repeated depths for ties on the split axis
+        VertexBuffer cloud = randomCloud(50000);
+        KdTree tree = new KdTree();
+        assertEquals(validCount(cloud), tree.build(cloud));
+
+        final int k = 10;
+        int[] indices = new int[k];
+        float[] distances = new float[k];
+        for (int q = 0; q < 100; q++) {
+            final float x = (random.nextFloat() - 0.5f) * 3;
+            final float y = (random.nextFloat() - 0.5f) * 2;
+            final float z = 1 + random.nextFloat() * 2;
+            float[] all = squaredDistances(cloud, x, y, z);
+            float[] sorted = all.clone();
+            Arrays.sort(sorted);
+
+            assertEquals(k, tree.nearest(x, y, z, k, indices, distances));
+            for (int i = 0; i < k; i++) {
+                assertEquals(sorted[i], distances[i], 0);
+                assertEquals(all[indices[i]], distances[i], 0);
+            }
+            assertEquals(sorted[0], all[tree.nearest(x, y, z)], 0);
+        }
+    }
+
+    @Test
+    public void radius_matchesBruteForce() {
+        VertexBuffer cloud = randomCloud(50000);
+        KdTree tree = new KdTree();
+        tree.build(cloud);
+        int[] indices = new int[cloud.getCount()];
+        for (int q = 0; q < 100; q++) {
+            final float x = (random.nextFloat() - 0.5f) * 3;
+            final float y = (random.nextFloat() - 0.5f) * 2;
+            final float z = 1 + random.nextFloat() * 2;
+            final float radius = 0.02f + random.nextFloat() * 0.1f;
+            float[] all = squaredDistances(cloud, x, y, z);
+
+            final int count = tree.radius(x, y, z, radius, indices);
+            int expected = 0;
+            for (float distance : all)
+                if (distance <= radius * radius)
+                    expected++;
+            assertEquals(expected, count);
+            for (int i = 0; i < count; i++)
+                assertTrue(all[indices[i]] <= radius * radius);
+            // no index twice
+            int[] found = Arrays.copyOf(indices, count);
+            Arrays.sort(found);
+            for (int i = 1; i < count; i++)
+                assertTrue(found[i] != found[i - 1]);
+        }
+    }
+
+    @Test
+    public void nearest_smallTree() {
+        KdTree tree = new KdTree();
+        assertEquals(-1, tree.nearest(0, 0, 1));
+        // rebuilt over a smaller cloud; the arrays of the previous build are reused
+        tree.build(randomCloud(1000));
+        VertexBuffer cloud = randomCloud(3);
+        assertEquals(validCount(cloud), tree.build(cloud));
+        int[] indices = new int[5];
+        float[] distances = new float[5];
+        assertEquals(tree.size(), tree.nearest(0, 0, 1, 5, indices, distances));
+        for (int i = 0; i < tree.size(); i++)
+            assertTrue(cloud.getZ(indices[i]) != 0);
+    }
+
+    /**
+     * Random vertices in front of the camera; a tenth without depth data, the depths rounded to
+     * centimetres
+     */
+    private VertexBuffer randomCloud(final int n) {
+        VertexBuffer cloud = new VertexBuffer(n);
+        FloatBuffer vertices = cloud.getVertices();
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && random.nextInt(10) == 0)
+                continue;
+            final float z = 1 + Math.round(random.nextFloat() * 200) / 100f;
+            vertices.put(i * 3, (random.nextFloat() - 0.5f) * 2 * z);
+            vertices.put(i * 3 + 1, (random.nextFloat() - 0.5f) * 1.5f * z);
+            vertices.put(i * 3 + 2, z);
+        }
+        return cloud;
+    }
+
+    private static int validCount(final VertexSource cloud) {
+        int count = 0;
+        for (int i = 0; i < cloud.getCount(); i++)
+            if (cloud.getZ(i) != 0)
+                count++;
+        return count;
+    }
+
+    /**
+     * @return Squared distances of the vertices; MAX_VALUE for the vertices without depth data
+     */
+    private static float[] squaredDistances(final VertexSource cloud, final float x, final float y, final float z) {
+        float[] distances = new float[cloud.getCount()];
+        for (int i = 0; i < distances.length; i++) {
+            if (cloud.getZ(i) == 0) {
+                distances[i] = Float.MAX_VALUE;
+                continue;
+            }
+            final float dx = cloud.getX(i) - x;
+            final float dy = cloud.getY(i) - y;
+            final float dz = cloud.getZ(i) - z;
+            distances[i] = dx * dx + dy * dy + dz * dz;
+        }
+        return distances;
+    }
+}
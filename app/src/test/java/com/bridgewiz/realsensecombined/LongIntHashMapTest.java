@@ -0,0 +1,78 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link LongIntHashMap} with a HashMap, and checks the {@link CellKeys} packing
+ */
+public class LongIntHashMapTest {
+
+    @Test
+    public void putIfAbsent_matchesHashMap() {
+        Random random = new Random(13);
+        // a small expected size, so that the table is rehashed several times
+        LongIntHashMap map = new LongIntHashMap(4);
+        Map<Long, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            // packed keys of nearby cells, which share most of their bits
+            final long key = CellKeys.pack(random.nextInt(40) - 20, random.nextInt(40) - 20, random.nextInt(40));
+            final Integer expected = reference.get(key);
+            assertEquals(expected == null ? -1 : expected, map.putIfAbsent(key, i));
+            if (expected == null)
+                reference.put(key, i);
+        }
+        assertEquals(reference.size(), map.size());
+        for (Map.Entry<Long, Integer> entry : reference.entrySet())
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        assertEquals(-1, map.get(CellKeys.pack(100, 100, 100)));
+        assertEquals(-1, map.get(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void clear_removesKeys() {
+        LongIntHashMap map = new LongIntHashMap(16);
+        for (int i = 0; i < 100; i++)
+            map.putIfAbsent(i, i);
+        map.clear();
+        assertEquals(0, map.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(-1, map.get(i));
+        assertEquals(-1, map.putIfAbsent(5, 50));
+        assertEquals(50, map.get(5));
+    }
+
+    @Test
+    public void cellKeys_roundTrip() {
+        final int limit = 1 << 20;
+        final int[] values = {-limit, -limit + 1, -1, 0, 1, 12345, limit - 1};
+        for (int x : values) {
+            for (int y : values) {
+                for (int z : values) {
+                    final long key = CellKeys.pack(x, y, z);
+                    assertTrue(key >= 0);
+                    assertEquals(x, CellKeys.unpackX(key));
+                    assertEquals(y, CellKeys.unpackY(key));
+                    assertEquals(z, CellKeys.unpackZ(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void cellKeys_rejectsOutOfRange() {
+        final int limit = 1 << 20;
+        assertEquals(CellKeys.INVALID_KEY, CellKeys.pack(limit, 0, 0));
+        assertEquals(CellKeys.INVALID_KEY, CellKeys.pack(0, -limit - 1, 0));
+        assertEquals(CellKeys.INVALID_KEY, CellKeys.packFloor(0, 0, Float.NaN));
+        assertEquals(CellKeys.INVALID_KEY, CellKeys.packFloor(Float.POSITIVE_INFINITY, 0, 0));
+        assertEquals(CellKeys.INVALID_KEY, CellKeys.packFloor(0, -1e9f, 0));
+        // floor, not truncation towards zero
+        assertEquals(CellKeys.pack(-1, 0, 2), CellKeys.packFloor(-0.5f, 0.5f, 2.99f));
+    }
+}
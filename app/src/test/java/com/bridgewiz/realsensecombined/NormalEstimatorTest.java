@@ -0,0 +1,110 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the {@link NormalEstimator} normals of synthetic surfaces with their true normals
+ */
+public class NormalEstimatorTest {
+
+    private static final int WIDTH = SyntheticTrunk.WIDTH;
+    private static final int HEIGHT = SyntheticTrunk.HEIGHT;
+    private static final float RADIUS = 0.2f;
+    private static final float CENTER_Z = SyntheticTrunk.CENTER_Z;
+
+    @Test
+    public void estimate_matchesCylinderNormals() {
+        PointGrid grid = grid(SyntheticTrunk.depth(RADIUS));
+        NormalEstimator estimator = new NormalEstimator(4);
+        estimator.setPixelRadius(2);
+        assertEquals(WIDTH * HEIGHT, estimator.estimate(grid));
+
+        final float[] nxs = estimator.getNormalXs();
+        final float[] nys = estimator.getNormalYs();
+        final float[] nzs = estimator.getNormalZs();
+        double errorSum = 0;
+        double maxError = 0;
+        int count = 0;
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                final int i = v * WIDTH + u;
+                final float z = grid.getZ(i);
+                if (z > 2)
+                    continue;
+                assertEquals(1, nxs[i] * nxs[i] + nys[i] * nys[i] + nzs[i] * nzs[i], 1e-4);
+                // the normal of the cylinder is the radial direction (x, 0, z - CENTER_Z) / RADIUS
+                final double dot = (nxs[i] * grid.getX(i) + nzs[i] * (z - CENTER_Z)) / RADIUS;
+                final double error = Math.toDegrees(Math.acos(Math.min(1, dot)));
+                errorSum += error;
+                maxError = Math.max(maxError, error);
+                count++;
+            }
+        }
+        // the depth is quantized to millimetres, which tilts the normals a little
+        assertTrue("mean error " + errorSum / count + " degrees", errorSum / count < 3);
+        // also at the silhouette, where the tangents are one-sided
+        assertTrue("max error " + maxError + " degrees", maxError < 10);
+    }
+
+    @Test
+    public void estimate_orientsTowardsCamera() {
+        // a wall at 2 m, facing the camera
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < depth.length; i++)
+            depth[i] = 2000;
+        PointGrid grid = grid(depth);
+        NormalEstimator estimator = new NormalEstimator();
+        estimator.estimate(grid);
+        for (int i = 0; i < depth.length; i++) {
+            assertEquals(0, estimator.getNormalXs()[i], 1e-6f);
+            assertEquals(0, estimator.getNormalYs()[i], 1e-6f);
+            assertEquals(-1, estimator.getNormalZs()[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void estimate_skipsMissingDepthAndJumps() {
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < depth.length; i++)
+            depth[i] = (short) (i % WIDTH < WIDTH / 2 ? 1000 : 3000);
+        // an isolated vertex without neighbors on its surface, and a hole
+        depth[100 * WIDTH + 100] = 1500;
+        depth[200 * WIDTH + 100] = 0;
+        PointGrid grid = grid(depth);
+        NormalEstimator estimator = new NormalEstimator();
+        final int count = estimator.estimate(grid);
+        assertEquals(WIDTH * HEIGHT - 2, count);
+        assertEquals(0, estimator.getNormalZs()[100 * WIDTH + 100], 0);
+        assertEquals(0, estimator.getNormalZs()[200 * WIDTH + 100], 0);
+        // the columns at the depth jump are not bent towards the other side
+        assertEquals(-1, estimator.getNormalZs()[240 * WIDTH + WIDTH / 2 - 1], 1e-6f);
+        assertEquals(-1, estimator.getNormalZs()[240 * WIDTH + WIDTH / 2], 1e-6f);
+    }
+
+    @Test
+    public void estimate_bandKeepsOtherRows() {
+        PointGrid grid = grid(SyntheticTrunk.depth(RADIUS));
+        NormalEstimator estimator = new NormalEstimator(3);
+        estimator.estimate(grid);
+        final float before = estimator.getNormalXs()[10 * WIDTH + 300];
+
+        assertEquals(20 * WIDTH, estimator.estimate(grid, 200, 220));
+        assertEquals(20 * WIDTH, estimator.getValidCount());
+        assertEquals(before, estimator.getNormalXs()[10 * WIDTH + 300], 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void estimate_rejectsInvalidBand() {
+        new NormalEstimator().estimate(grid(SyntheticTrunk.depth(RADIUS)), 10, 10);
+    }
+
+    private static PointGrid grid(final short[] depth) {
+        Deprojector deprojector = SyntheticTrunk.deprojector(depth);
+        PointGrid grid = new PointGrid();
+        grid.allocate(WIDTH, HEIGHT);
+        grid.fillRows(deprojector, 0, HEIGHT);
+        return grid;
+    }
+}
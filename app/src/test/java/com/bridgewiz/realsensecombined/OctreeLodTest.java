@@ -0,0 +1,186 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the levels of {@link OctreeLod} and their file round trip
+ */
+public class OctreeLodTest {
+
+    @Test
+    public void build_keepsEveryVertexOnce() {
+        VertexBuffer cloud = randomCloud(100000);
+        OctreeLod lod = new OctreeLod();
+        lod.build(cloud);
+
+        int valid = 0;
+        for (int i = 0; i < cloud.getCount(); i++)
+            if (cloud.getZ(i) != 0)
+                valid++;
+        assertEquals(valid, lod.getCount());
+        assertArrayEquals(sortedVertices(cloud), sortedVertices(lod));
+    }
+
+    @Test
+    public void levels_haveOneVertexPerCell() {
+        OctreeLod lod = new OctreeLod();
+        lod.begin(randomCloud(100000));
+        assertTrue(lod.refine());
+        // level 0 has 32 cells per axis
+        assertTrue(lod.getLevelSize(0) <= 32 * 32 * 32);
+        //noinspection StatementWithEmptyBody
+        while (lod.refine()) ;
+
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        for (int i = 0; i < lod.getCount(); i++) {
+            minX = Math.min(minX, lod.getX(i));
+            minY = Math.min(minY, lod.getY(i));
+            minZ = Math.min(minZ, lod.getZ(i));
+        }
+        // all the levels except the last one, which takes the remaining vertices
+        for (int level = 0; level < lod.getLevelCount() - 1; level++) {
+            final float cellSize = lod.getCellSize(level);
+            // the same rounding as the octree; the cell size is the cube size over a power of two
+            final float scale = 1 / cellSize;
+            Set<Long> cells = new HashSet<>();
+            for (int i = lod.getLevelStart(level); i < lod.getLevelStart(level) + lod.getLevelSize(level); i++) {
+                final long key = CellKeys.pack((int) ((lod.getX(i) - minX) * scale),
+                        (int) ((lod.getY(i) - minY) * scale), (int) ((lod.getZ(i) - minZ) * scale));
+                assertTrue("level " + level + " has two vertices in a cell", cells.add(key));
+            }
+            assertEquals(cellSize / 2, lod.getCellSize(level + 1), 0);
+        }
+    }
+
+    @Test
+    public void writeTo_readerRoundTrip() throws IOException {
+        OctreeLod lod = new OctreeLod();
+        lod.build(randomCloud(50000));
+        File file = File.createTempFile("octree", "." + OctreeLod.EXTENSION);
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(file);
+                 FileChannel channel = outputStream.getChannel()) {
+                lod.writeTo(channel);
+            }
+
+            OctreeLod read = new OctreeLod();
+            try (OctreeLod.Reader reader = new OctreeLod.Reader(file)) {
+                assertEquals(lod.getLevelCount(), reader.getLevelCount());
+                reader.prepare(read);
+                assertEquals(0, read.getCount());
+                // progressive: the coarsest level first
+                reader.readNextLevel(read);
+                assertEquals(lod.getLevelSize(0), read.getCount());
+                //noinspection StatementWithEmptyBody
+                while (reader.readNextLevel(read)) ;
+            }
+            assertEquals(lod.getLevelCount(), read.getLevelCount());
+            assertEquals(lod.getCount(), read.getCount());
+            for (int i = 0; i < lod.getCount(); i++) {
+                assertEquals(lod.getX(i), read.getX(i), 0);
+                assertEquals(lod.getY(i), read.getY(i), 0);
+                assertEquals(lod.getZ(i), read.getZ(i), 0);
+            }
+            for (int level = 0; level < lod.getLevelCount(); level++)
+                assertEquals(lod.getCellSize(level), read.getCellSize(level), 0);
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reader_rejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("octree", ".csv");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(new byte[64]);
+            }
+            new OctreeLod.Reader(file).close();
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void reader_rejectsInvalidLevelStarts() throws IOException {
+        OctreeLod lod = new OctreeLod();
+        lod.build(randomCloud(5000));
+        final int levels = lod.getLevelCount();
+        // the level starts follow the 7 ints of the header
+        final int lastStart = (7 + levels) * 4;
+        final int[][] corruptions = {
+                {7 * 4, 1},
+                {7 * 4 + 4, -1},
+                {lastStart, lod.getCount() + 1},
+                {lastStart, Integer.MAX_VALUE}};
+        for (int[] corruption : corruptions) {
+            File file = File.createTempFile("octree", "." + OctreeLod.EXTENSION);
+            try {
+                try (FileOutputStream outputStream = new FileOutputStream(file);
+                     FileChannel channel = outputStream.getChannel()) {
+                    lod.writeTo(channel);
+                    ByteBuffer value = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                    value.putInt(0, corruption[1]);
+                    channel.write(value, corruption[0]);
+                }
+                try {
+                    new OctreeLod.Reader(file).close();
+                    fail("accepted level start " + corruption[1] + " at " + corruption[0]);
+                } catch (IOException expected) {
+                    // rejected before prepare allocates
+                }
+            }
+            finally {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private static VertexBuffer randomCloud(final int n) {
+        Random random = new Random(23);
+        VertexBuffer cloud = new VertexBuffer(n);
+        FloatBuffer vertices = cloud.getVertices();
+        for (int i = 0; i < n; i++) {
+            if (random.nextInt(10) == 0)
+                continue;
+            final float z = 0.5f + random.nextFloat() * 3;
+            vertices.put(i * 3, (random.nextFloat() - 0.5f) * z);
+            vertices.put(i * 3 + 1, (random.nextFloat() - 0.5f) * z);
+            vertices.put(i * 3 + 2, z);
+        }
+        return cloud;
+    }
+
+    /**
+     * @return The vertices with depth data as sorted strings, to compare them as multisets
+     */
+    private static String[] sortedVertices(final VertexSource source) {
+        String[] vertices = new String[source.getCount()];
+        int count = 0;
+        for (int i = 0; i < source.getCount(); i++)
+            if (source.getZ(i) != 0)
+                vertices[count++] = source.getX(i) + " " + source.getY(i) + " " + source.getZ(i);
+        vertices = Arrays.copyOf(vertices, count);
+        Arrays.sort(vertices);
+        return vertices;
+    }
+}
@@ -0,0 +1,85 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Draws the levels of an {@link OctreeLod} of a synthetic scene with {@link OctreePreview}
+ */
+public class OctreePreviewTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final float FOCAL_LENGTH = 100;
+
+    @Test
+    public void draw_levelZeroCoversScene() {
+        OctreeLod lod = new OctreeLod();
+        lod.begin(scene());
+        assertTrue(lod.refine());
+        OctreePreview preview = new OctreePreview(WIDTH, HEIGHT, FOCAL_LENGTH);
+        assertEquals(lod.getLevelSize(0), preview.draw(lod, 0));
+
+        // the cells of level 0 are drawn at their projected size, so the overview has few holes
+        int covered = 0;
+        for (float depth : preview.getDepths())
+            if (depth != Float.MAX_VALUE)
+                covered++;
+        assertTrue("covered " + covered, covered > WIDTH * HEIGHT * 9 / 10);
+        // the box in front is nearer, so redder than the wall
+        final int box = preview.getPixels()[HEIGHT / 2 * WIDTH + WIDTH / 2];
+        final int wall = preview.getPixels()[5 * WIDTH + 5];
+        assertTrue(((box >> 16) & 0xFF) > ((wall >> 16) & 0xFF));
+    }
+
+    @Test
+    public void draw_finerLevelsReplaceCoarseCells() {
+        OctreeLod lod = new OctreeLod();
+        lod.build(scene());
+        OctreePreview preview = new OctreePreview(WIDTH, HEIGHT, FOCAL_LENGTH);
+        for (int level = 0; level < lod.getLevelCount(); level++)
+            preview.draw(lod, level);
+
+        // every pixel has its vertex after the last level, at the depth of the scene
+        final float[] depths = preview.getDepths();
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                final float expected = inBox(u, v) ? 1 : 2;
+                assertEquals("pixel " + u + ", " + v, expected, depths[v * WIDTH + u], 1e-3f);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void draw_rejectsIncompleteLevel() {
+        OctreeLod lod = new OctreeLod();
+        lod.begin(scene());
+        lod.refine();
+        new OctreePreview(WIDTH, HEIGHT, FOCAL_LENGTH).draw(lod, 1);
+    }
+
+    /**
+     * A vertex per preview pixel: a wall at 2 m with a box at 1 m in the middle
+     */
+    private static VertexBuffer scene() {
+        VertexBuffer cloud = new VertexBuffer(WIDTH * HEIGHT);
+        FloatBuffer vertices = cloud.getVertices();
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                final int i = v * WIDTH + u;
+                final float z = inBox(u, v) ? 1 : 2;
+                vertices.put(i * 3, (u - WIDTH / 2f) / FOCAL_LENGTH * z);
+                vertices.put(i * 3 + 1, (v - HEIGHT / 2f) / FOCAL_LENGTH * z);
+                vertices.put(i * 3 + 2, z);
+            }
+        }
+        return cloud;
+    }
+
+    private static boolean inBox(final int u, final int v) {
+        return Math.abs(u - WIDTH / 2) < WIDTH / 4 && Math.abs(v - HEIGHT / 2) < HEIGHT / 4;
+    }
+}
@@ -0,0 +1,141 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes {@link PointCloudArchive} files and compares what is read back with the source depth
+ */
+public class PointCloudArchiveTest {
+
+    // not a multiple of the rows per block, so the last block is short
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 470;
+    private static final float UNITS = 0.001f;
+
+    @Test
+    public void readRows_matchesDeprojector() throws IOException {
+        Deprojector deprojector = deprojector();
+        File file = write(deprojector);
+        try (PointCloudArchive.Reader reader = new PointCloudArchive.Reader(file)) {
+            assertEquals(WIDTH, reader.getWidth());
+            assertEquals(HEIGHT, reader.getHeight());
+            assertEquals(UNITS, reader.getUnits(), 0);
+            assertEquals(deprojector.getPpx(), reader.getPpx(), 0);
+            assertEquals(deprojector.getFy(), reader.getFy(), 0);
+
+            PointGrid grid = new PointGrid();
+            reader.readRows(0, HEIGHT, grid);
+            for (int v = 0; v < HEIGHT; v++) {
+                for (int u = 0; u < WIDTH; u++) {
+                    assertEquals(deprojector.getX(u, v), grid.getX(u, v), 0);
+                    assertEquals(deprojector.getY(u, v), grid.getY(u, v), 0);
+                    assertEquals(deprojector.getZ(u, v), grid.getZ(u, v), 0);
+                }
+            }
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void readDepthRows_acrossBlocks() throws IOException {
+        Deprojector deprojector = deprojector();
+        File file = write(deprojector);
+        try (PointCloudArchive.Reader reader = new PointCloudArchive.Reader(file)) {
+            final int[][] bands = {{37, 42}, {10, 40}, {HEIGHT - 10, HEIGHT}, {0, 1}};
+            for (int[] band : bands) {
+                short[] depth = new short[(band[1] - band[0]) * WIDTH];
+                reader.readDepthRows(band[0], band[1], depth);
+                for (int i = 0; i < depth.length; i++)
+                    assertEquals(deprojector.getDepthBuffer().get(band[0] * WIDTH + i), depth[i]);
+            }
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void write_reportsProgressAndCompresses() throws IOException {
+        Deprojector deprojector = deprojector();
+        File file = File.createTempFile("archive", "." + PointCloudArchive.EXTENSION);
+        final int[] lastRows = {0, 0};
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(file);
+                 FileChannel channel = outputStream.getChannel()) {
+                PointCloudArchive.write(deprojector, channel, (rows, total) -> {
+                    assertTrue(rows > lastRows[0]);
+                    lastRows[0] = rows;
+                    lastRows[1] = total;
+                });
+            }
+            assertEquals(HEIGHT, lastRows[0]);
+            assertEquals(HEIGHT, lastRows[1]);
+            // smaller than the raw 16 bit depth
+            assertTrue(file.length() < WIDTH * HEIGHT * 2);
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reader_rejectsOtherFiles() throws IOException {
+        File file = File.createTempFile("archive", ".ply");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(file)) {
+                outputStream.write(new byte[128]);
+            }
+            new PointCloudArchive.Reader(file).close();
+        }
+        finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    /**
+     * A smooth surface with noise, holes, and a strip near the largest depth value, whose
+     * differences wrap around the 16 bits
+     */
+    private static Deprojector deprojector() {
+        Random random = new Random(29);
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                int value = (int) (1500 + 800 * Math.sin(u / 50.0) + v + random.nextInt(5));
+                if (random.nextInt(30) == 0)
+                    value = 0;
+                if (u > 300 && u < 340)
+                    value = 65535 - random.nextInt(3);
+                depth[v * WIDTH + u] = (short) value;
+            }
+        }
+        Deprojector deprojector = new Deprojector();
+        deprojector.setIntrinsics(WIDTH, HEIGHT, 320.5f, 240.2f, 385, 386);
+        deprojector.setDepth(ShortBuffer.wrap(depth), UNITS);
+        return deprojector;
+    }
+
+    private static File write(final Deprojector deprojector) throws IOException {
+        File file = File.createTempFile("archive", "." + PointCloudArchive.EXTENSION);
+        try (FileOutputStream outputStream = new FileOutputStream(file);
+             FileChannel channel = outputStream.getChannel()) {
+            PointCloudArchive.write(deprojector, channel, null);
+        }
+        return file;
+    }
+}
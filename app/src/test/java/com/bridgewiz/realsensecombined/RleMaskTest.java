@@ -0,0 +1,210 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the run operations of {@link RleMask} with per-pixel references
+ */
+public class RleMaskTest {
+
+    private final Random random = new Random(3);
+
+    @Test
+    public void fromDepth_matchesPixels() {
+        for (int t = 0; t < 50; t++) {
+            final int width = 1 + random.nextInt(120);
+            final int height = 1 + random.nextInt(12);
+            boolean[][] pixels = randomPixels(width, height);
+            RleMask mask = toMask(pixels);
+            assertPixels(pixels, mask);
+            for (int y = 0; y < height; y++) {
+                // the runs of a row are sorted and not adjacent
+                for (int i = 1; i < mask.getRunCount(y); i++)
+                    assertTrue(mask.getRunStart(y, i) > mask.getRunEnd(y, i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void union_matchesPixels() {
+        for (int t = 0; t < 50; t++) {
+            final int width = 1 + random.nextInt(120);
+            final int height = 1 + random.nextInt(12);
+            boolean[][] a = randomPixels(width, height);
+            boolean[][] b = randomPixels(width, height);
+            boolean[][] expected = new boolean[height][width];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    expected[y][x] = a[y][x] || b[y][x];
+            RleMask mask = toMask(a);
+            // the result may be one of the operands
+            mask.union(mask, toMask(b));
+            assertPixels(expected, mask);
+        }
+    }
+
+    @Test
+    public void intersection_matchesPixels() {
+        for (int t = 0; t < 50; t++) {
+            final int width = 1 + random.nextInt(120);
+            final int height = 1 + random.nextInt(12);
+            boolean[][] a = randomPixels(width, height);
+            boolean[][] b = randomPixels(width, height);
+            boolean[][] expected = new boolean[height][width];
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    expected[y][x] = a[y][x] && b[y][x];
+            RleMask mask = new RleMask().intersection(toMask(a), toMask(b));
+            assertPixels(expected, mask);
+        }
+    }
+
+    @Test
+    public void dilate_matchesPixels() {
+        for (int t = 0; t < 50; t++) {
+            final int width = 1 + random.nextInt(120);
+            final int height = 1 + random.nextInt(12);
+            final int radiusX = random.nextInt(4);
+            final int radiusY = random.nextInt(4);
+            boolean[][] pixels = randomPixels(width, height);
+            RleMask mask = toMask(pixels).dilate(radiusX, radiusY);
+            assertPixels(morphology(pixels, radiusX, radiusY, true), mask);
+        }
+    }
+
+    @Test
+    public void erode_matchesPixels() {
+        // a single mask, so that the scratch masks are reused with different sizes
+        RleMask mask = new RleMask();
+        for (int t = 0; t < 50; t++) {
+            final int width = 1 + random.nextInt(120);
+            final int height = 1 + random.nextInt(12);
+            final int radiusX = random.nextInt(4);
+            final int radiusY = random.nextInt(4);
+            boolean[][] pixels = randomPixels(width, height);
+            mask.copyFrom(toMask(pixels)).erode(radiusX, radiusY);
+            assertPixels(morphology(pixels, radiusX, radiusY, false), mask);
+        }
+    }
+
+    @Test
+    public void writeTo_readFromRoundTrip() throws IOException {
+        for (int t = 0; t < 20; t++) {
+            final int width = 1 + random.nextInt(700);
+            final int height = 1 + random.nextInt(12);
+            boolean[][] pixels = randomPixels(width, height);
+            RleMask mask = toMask(pixels);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            mask.writeTo(out);
+            RleMask read = new RleMask().readFrom(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(width, read.getWidth());
+            assertEquals(height, read.getHeight());
+            assertEquals(mask.getRunCount(), read.getRunCount());
+            assertEquals(mask.area(), read.area());
+            assertPixels(pixels, read);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void readFrom_rejectsUnknownVersion() throws IOException {
+        new RleMask().readFrom(new ByteArrayInputStream(new byte[]{99, 1, 1, 0}));
+    }
+
+    @Test
+    public void readFrom_rejectsCorruptInput() {
+        final byte[][] inputs = {
+                // zero width, zero height
+                {1, 0, 1, 0},
+                {1, 4, 0},
+                // a height of 20000
+                {1, 4, (byte) 0xA0, (byte) 0x9C, 1},
+                // the second run starts before the end of the first one (a gap of -1)
+                {1, 8, 1, 2, 0, 2, -1, -1, -1, -1, 0x0F, 1},
+                // an empty run
+                {1, 8, 1, 1, 3, 0},
+                // 4 runs in a row of 4 pixels
+                {1, 4, 1, 4, 0, 1, 0, 1, 0, 1, 0, 1}};
+        for (byte[] input : inputs) {
+            RleMask mask = toMask(new boolean[][]{{true, true, true}, {true, true, true}});
+            try {
+                mask.readFrom(new ByteArrayInputStream(input));
+                fail("accepted " + Arrays.toString(input));
+            } catch (IOException expected) {
+                // the mask is kept
+                assertEquals(3, mask.getWidth());
+                assertEquals(2, mask.getHeight());
+                assertEquals(6, mask.area());
+            }
+        }
+    }
+
+    private boolean[][] randomPixels(final int width, final int height) {
+        // runs of random lengths rather than independent pixels
+        boolean[][] pixels = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            boolean value = random.nextBoolean();
+            for (int x = 0; x < width; x++) {
+                if (random.nextInt(6) == 0)
+                    value = !value;
+                pixels[y][x] = value;
+            }
+        }
+        return pixels;
+    }
+
+    private static RleMask toMask(final boolean[][] pixels) {
+        final int height = pixels.length;
+        final int width = pixels[0].length;
+        short[] depth = new short[width * height];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                depth[y * width + x] = (short) (pixels[y][x] ? 1000 : 3000);
+        return new RleMask().fromDepth(ShortBuffer.wrap(depth), width, height, 1, 2000);
+    }
+
+    private static void assertPixels(final boolean[][] expected, final RleMask mask) {
+        int area = 0;
+        for (int y = 0; y < expected.length; y++) {
+            for (int x = 0; x < expected[0].length; x++) {
+                assertEquals("pixel " + x + ", " + y, expected[y][x], mask.get(x, y));
+                if (expected[y][x])
+                    area++;
+            }
+        }
+        assertEquals(area, mask.area());
+    }
+
+    /**
+     * Centered (2 * radiusX + 1) x (2 * radiusY + 1) window; the pixels outside are ignored
+     */
+    private static boolean[][] morphology(final boolean[][] pixels, final int radiusX, final int radiusY,
+                                          final boolean dilate) {
+        final int height = pixels.length;
+        final int width = pixels[0].length;
+        boolean[][] result = new boolean[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                boolean value = !dilate;
+                for (int j = Math.max(0, y - radiusY); j <= Math.min(height - 1, y + radiusY); j++) {
+                    for (int i = Math.max(0, x - radiusX); i <= Math.min(width - 1, x + radiusX); i++) {
+                        if (dilate)
+                            value |= pixels[j][i];
+                        else
+                            value &= pixels[j][i];
+                    }
+                }
+                result[y][x] = value;
+            }
+        }
+        return result;
+    }
+}
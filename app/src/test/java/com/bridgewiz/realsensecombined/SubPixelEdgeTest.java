@@ -0,0 +1,81 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Locates the edges of a synthetic object row with {@link SubPixelEdge}
+ */
+public class SubPixelEdgeTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 2;
+    private static final float FOCAL_LENGTH = 380;
+    private static final float UNITS = 0.001f;
+    // an object at 1 m between these columns, in front of a background at 3 m
+    private static final int LEFT = 300;
+    private static final int RIGHT = 400;
+
+    @Test
+    public void offset_perfectStepIsHalfPixel() {
+        Deprojector deprojector = deprojector(row());
+        assertEquals(0.5f, SubPixelEdge.offset(deprojector, 0, RIGHT, 1), 1e-6f);
+        assertEquals(0.5f, SubPixelEdge.offset(deprojector, 0, LEFT, -1), 1e-6f);
+    }
+
+    @Test
+    public void offset_mixedPixelMovesBoundary() {
+        short[] row = row();
+        // the next pixel is halfway between the object and the background
+        row[RIGHT + 1] = 2000;
+        assertEquals(1, SubPixelEdge.offset(deprojector(row), 0, RIGHT, 1), 1e-6f);
+    }
+
+    @Test
+    public void edgeX_usesPixelSizeAtEdgeDepth() {
+        Deprojector deprojector = deprojector(row());
+        final float pitch = 1 / FOCAL_LENGTH;
+        assertEquals(deprojector.getX(RIGHT, 0) + 0.5f * pitch, SubPixelEdge.edgeX(deprojector, 0, RIGHT, 1), 1e-6f);
+        assertEquals(deprojector.getX(LEFT, 0) - 0.5f * pitch, SubPixelEdge.edgeX(deprojector, 0, LEFT, -1), 1e-6f);
+    }
+
+    @Test
+    public void edgeX_holeNextToEdge() {
+        short[] row = row();
+        // the inner neighbors have no depth data, so they have no x coordinate either
+        row[RIGHT - 1] = 0;
+        row[LEFT + 1] = 0;
+        Deprojector deprojector = deprojector(row);
+        final float pitch = 1 / FOCAL_LENGTH;
+        final float right = SubPixelEdge.edgeX(deprojector, 0, RIGHT, 1);
+        final float left = SubPixelEdge.edgeX(deprojector, 0, LEFT, -1);
+        assertEquals(deprojector.getX(RIGHT, 0) + 0.5f * pitch, right, 1e-6f);
+        assertEquals(deprojector.getX(LEFT, 0) - 0.5f * pitch, left, 1e-6f);
+        // within a pixel of the edge pixel, not moved by half of its x coordinate
+        assertTrue(Math.abs(right - deprojector.getX(RIGHT, 0)) <= pitch);
+        assertTrue(Math.abs(left - deprojector.getX(LEFT, 0)) <= pitch);
+    }
+
+    /**
+     * @return Raw depth of a row with the object between LEFT and RIGHT
+     */
+    private static short[] row() {
+        short[] row = new short[WIDTH];
+        for (int u = 0; u < WIDTH; u++)
+            row[u] = (short) (u >= LEFT && u <= RIGHT ? 1000 : 3000);
+        return row;
+    }
+
+    private static Deprojector deprojector(final short[] row) {
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int v = 0; v < HEIGHT; v++)
+            System.arraycopy(row, 0, depth, v * WIDTH, WIDTH);
+        Deprojector deprojector = new Deprojector();
+        deprojector.setIntrinsics(WIDTH, HEIGHT, WIDTH / 2f, HEIGHT / 2f, FOCAL_LENGTH, FOCAL_LENGTH);
+        deprojector.setDepth(ShortBuffer.wrap(depth), UNITS);
+        return deprojector;
+    }
+}
@@ -0,0 +1,80 @@
+package com.bridgewiz.realsensecombined;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+/**
+ * Raw depth of a synthetic trunk, a cylinder in front of a far background, seen by a pinhole
+ * camera at the origin; shared by the tests of the measurement steps
+ */
+final class SyntheticTrunk {
+
+    static final int WIDTH = 640;
+    static final int HEIGHT = 480;
+    static final float FOCAL_LENGTH = 380;
+    static final float UNITS = 0.001f;
+    /**
+     * Distance of the trunk axis from the camera in metres
+     */
+    static final float CENTER_Z = 1.5f;
+    /**
+     * Depth of the background in metres
+     */
+    static final float BACKGROUND_Z = 3;
+
+    private SyntheticTrunk() {
+    }
+
+    /**
+     * @param radius Trunk radius in metres
+     * @return Raw depth of a vertical trunk
+     */
+    static short[] depth(final float radius) {
+        return depth(radius, 0, 0, null);
+    }
+
+    /**
+     * @param radius Trunk radius in metres
+     * @param leanDegrees Lean of the trunk axis to the right
+     * @param noise Standard deviation of the depth noise of the trunk in metres
+     * @param random Source of the noise; may be null without noise
+     * @return Raw depth of the trunk
+     */
+    static short[] depth(final float radius, final float leanDegrees, final float noise, final Random random) {
+        final double lean = Math.toRadians(leanDegrees);
+        // up is -y in the camera coordinates
+        final double ax = Math.sin(lean), ay = -Math.cos(lean);
+        short[] depth = new short[WIDTH * HEIGHT];
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                // ray (rx, ry, 1) * s against the cylinder around the axis through (0, 0, CENTER_Z)
+                final double rx = (u - WIDTH / 2.0) / FOCAL_LENGTH;
+                final double ry = (v - HEIGHT / 2.0) / FOCAL_LENGTH;
+                final double da = rx * ax + ry * ay;
+                final double a = rx * rx + ry * ry + 1 - da * da;
+                final double b = -2 * CENTER_Z;
+                final double c = CENTER_Z * CENTER_Z - radius * radius;
+                final double discriminant = b * b - 4 * a * c;
+                double z = BACKGROUND_Z;
+                if (discriminant >= 0) {
+                    z = (-b - Math.sqrt(discriminant)) / (2 * a);
+                    if (noise > 0)
+                        z += random.nextGaussian() * noise;
+                }
+                depth[v * WIDTH + u] = (short) Math.round(z / UNITS);
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @param depth Raw depth of the camera resolution
+     * @return Deprojector with the camera intrinsics and the given depth
+     */
+    static Deprojector deprojector(final short[] depth) {
+        Deprojector deprojector = new Deprojector();
+        deprojector.setIntrinsics(WIDTH, HEIGHT, WIDTH / 2f, HEIGHT / 2f, FOCAL_LENGTH, FOCAL_LENGTH);
+        deprojector.setDepth(ShortBuffer.wrap(depth), UNITS);
+        return deprojector;
+    }
+}
@@ -0,0 +1,110 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the streaming statistics of {@link TemporalEstimator} with the statistics of the
+ * stored samples
+ */
+public class TemporalEstimatorTest {
+
+    @Test
+    public void welford_matchesTwoPass() {
+        // a large offset, where the textbook sum of squares loses the variance
+        Random random = new Random(5);
+        float[] samples = new float[500];
+        TemporalEstimator estimator = new TemporalEstimator(0, 2, samples.length);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 1000 + (float) random.nextGaussian() * 0.01f;
+            estimator.add(samples[i]);
+        }
+        double mean = 0;
+        for (float sample : samples)
+            mean += sample;
+        mean /= samples.length;
+        double sum = 0;
+        for (float sample : samples)
+            sum += (sample - mean) * (sample - mean);
+        final double variance = sum / (samples.length - 1);
+
+        assertEquals(samples.length, estimator.getCount());
+        assertEquals(mean, estimator.getMean(), 1e-4);
+        assertEquals(variance, estimator.getVariance(), variance * 1e-3);
+        assertEquals(TemporalEstimator.t95(samples.length - 1) * Math.sqrt(variance / samples.length),
+                estimator.getConfidenceHalfWidth(), 1e-6);
+    }
+
+    @Test
+    public void median_exactForFewSamples() {
+        TemporalEstimator estimator = new TemporalEstimator(0, 2, 100);
+        assertTrue(Float.isNaN(estimator.getMedian()));
+        estimator.add(3);
+        assertEquals(3, estimator.getMedian(), 0);
+        estimator.add(1);
+        assertEquals(2, estimator.getMedian(), 0);
+        estimator.add(Float.NaN);
+        estimator.add(10);
+        assertEquals(3, estimator.getMedian(), 0);
+        estimator.add(2);
+        assertEquals(2.5f, estimator.getMedian(), 0);
+        estimator.add(7);
+        assertEquals(3, estimator.getMedian(), 0);
+    }
+
+    @Test
+    public void median_pSquareMatchesSorted() {
+        Random random = new Random(7);
+        for (int t = 0; t < 10; t++) {
+            final int n = 50 + random.nextInt(2000);
+            double[] samples = new double[n];
+            TemporalEstimator estimator = new TemporalEstimator(0, 2, n);
+            for (int i = 0; i < n; i++) {
+                // skewed, with outliers as the failed diameter fits
+                samples[i] = 30 + random.nextGaussian() + (random.nextInt(10) == 0 ? 20 * random.nextDouble() : 0);
+                estimator.add((float) samples[i]);
+            }
+            Arrays.sort(samples);
+            final double median = n % 2 == 1 ? samples[n / 2] : (samples[n / 2 - 1] + samples[n / 2]) / 2;
+            // within a few percent of the rank, i.e. a tenth of the standard deviation
+            assertEquals("n " + n, median, estimator.getMedian(), 0.1);
+            // unlike the mean, the median is not pulled by the outliers
+            assertTrue(Math.abs(estimator.getMedian() - 30) < Math.abs(estimator.getMean() - 30));
+        }
+    }
+
+    @Test
+    public void t95_matchesReferenceQuantiles() {
+        assertEquals(12.7062, TemporalEstimator.t95(1), 1e-4);
+        assertEquals(2.7764, TemporalEstimator.t95(4), 1e-4);
+        assertEquals(2.0423, TemporalEstimator.t95(30), 1e-4);
+        // the expansion above the table
+        assertEquals(2.0395, TemporalEstimator.t95(31), 1e-4);
+        assertEquals(2.0211, TemporalEstimator.t95(40), 1e-4);
+        assertEquals(2.0003, TemporalEstimator.t95(60), 1e-4);
+        assertEquals(1.9799, TemporalEstimator.t95(120), 1e-4);
+        assertEquals(1.9600, TemporalEstimator.t95(100000), 1e-4);
+    }
+
+    @Test
+    public void finishes_onConfidenceOrMaxFrames() {
+        TemporalEstimator estimator = new TemporalEstimator(0.5f, 3, 10);
+        assertFalse(estimator.add(20));
+        assertFalse(estimator.add(20.1f));
+        // converged only after the minimum number of samples
+        assertTrue(estimator.add(20.05f));
+        assertTrue(estimator.isConverged());
+
+        estimator.reset();
+        for (int i = 0; i < 9; i++)
+            assertFalse(estimator.add(i % 2 == 0 ? Float.NaN : i * 10));
+        assertTrue(estimator.add(Float.NaN));
+        assertFalse(estimator.isConverged());
+        assertEquals(10, estimator.getFrameCount());
+        assertEquals(4, estimator.getCount());
+    }
+}
@@ -0,0 +1,84 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fits {@link TrunkFitter} circles and cylinders to the depth of synthetic trunks
+ */
+public class TrunkFitterTest {
+
+    private static final int WIDTH = SyntheticTrunk.WIDTH;
+    private static final int HEIGHT = SyntheticTrunk.HEIGHT;
+    private static final float RADIUS = 0.15f;
+    private static final float CENTER_Z = SyntheticTrunk.CENTER_Z;
+    private static final int START_ROW = 190;
+    private static final int END_ROW = 290;
+    // generous, so that the iteration limit ends the search on a slow machine too
+    private static final long TIME_BUDGET_NANOS = 5_000_000_000L;
+
+    @Test
+    public void fitCircle_findsTrunkSection() {
+        TrunkFitter fitter = collect(0, 0);
+        assertTrue(fitter.fitCircle());
+        TrunkFitter.Circle circle = fitter.getCircle();
+        assertEquals(RADIUS, circle.getRadius(), 0.003f);
+        assertEquals(0, circle.getCenterX(), 0.003f);
+        assertEquals(CENTER_Z, circle.getCenterZ(), 0.003f);
+        assertTrue(circle.getInlierRatio() > 0.95f);
+    }
+
+    @Test
+    public void fitCircle_toleratesNoise() {
+        TrunkFitter fitter = collect(0, 0.003f);
+        assertTrue(fitter.fitCircle());
+        assertEquals(RADIUS, fitter.getCircle().getRadius(), 0.01f);
+    }
+
+    @Test
+    public void fitCylinder_findsLean() {
+        TrunkFitter fitter = collect(0, 0);
+        assertTrue(fitter.fitCylinder());
+        assertEquals(2 * RADIUS, fitter.getCylinderDiameter(), 0.006f);
+        assertEquals(0, fitter.getTiltDegrees(), 1);
+
+        // leaning sideways by 10 degrees; the sections of a half band shift sideways with the
+        // lean and smear the circles, so the diameter is only approximate
+        fitter = collect(10, 0);
+        assertTrue(fitter.fitCylinder());
+        assertEquals(10, fitter.getTiltDegrees(), 2);
+        // the top of a trunk leaning to the right (+x) is on the right
+        assertTrue(fitter.getAxis()[0] > 0);
+        assertEquals(2 * RADIUS, fitter.getCylinderDiameter(), 0.05f);
+    }
+
+    @Test
+    public void fitCircle_needsEnoughPoints() {
+        TrunkFitter fitter = new TrunkFitter(0.005f, 200, TIME_BUDGET_NANOS);
+        assertFalse(fitter.fitCircle());
+        assertFalse(fitter.fitCylinder());
+        assertTrue(Float.isNaN(fitter.getCylinderDiameter()));
+    }
+
+    /**
+     * Renders a trunk on a far background, finds its edges and collects its vertices
+     * @param leanDegrees Lean of the trunk axis to the right
+     * @param noise Standard deviation of the depth noise in metres
+     */
+    private static TrunkFitter collect(final float leanDegrees, final float noise) {
+        short[] depth = SyntheticTrunk.depth(RADIUS, leanDegrees, noise, new Random(11));
+        Deprojector deprojector = SyntheticTrunk.deprojector(depth);
+        RleMask mask = new RleMask().fromDepth(ShortBuffer.wrap(depth), WIDTH, HEIGHT, 1, 2000);
+        DiameterEstimator estimator = new DiameterEstimator(2);
+        estimator.estimate(mask, deprojector, WIDTH / 2, START_ROW, END_ROW, 1, 2);
+
+        TrunkFitter fitter = new TrunkFitter(0.005f, 200, TIME_BUDGET_NANOS);
+        fitter.setMaxRadius(0.5f);
+        assertTrue(fitter.collect(deprojector, estimator.getMaskResult(), 2) > 1000);
+        return fitter;
+    }
+}
@@ -0,0 +1,100 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fuses noisy depth frames of a synthetic trunk into a {@link TsdfVolume} and compares the
+ * rendered depth with the true one
+ */
+public class TsdfVolumeTest {
+
+    private static final int WIDTH = SyntheticTrunk.WIDTH;
+    private static final int HEIGHT = SyntheticTrunk.HEIGHT;
+    private static final float UNITS = SyntheticTrunk.UNITS;
+    private static final float RADIUS = 0.2f;
+    private static final float NEAR_Z = 1;
+    private static final float FAR_Z = 2;
+    // the settings of the measurement activity
+    private static final float VOXEL_SIZE = 0.005f;
+    private static final float TRUNCATION = 0.02f;
+    private static final int BLOCK_BUDGET = 4096;
+
+    @Test
+    public void fusion_reducesDepthNoise() {
+        // the claim of the readme: 30 frames with 1 cm noise reduce the error to about 3 mm
+        Random random = new Random(31);
+        short[] truth = SyntheticTrunk.depth(RADIUS);
+        Deprojector deprojector = SyntheticTrunk.deprojector(truth);
+        TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, BLOCK_BUDGET);
+        for (int frame = 0; frame < 30; frame++) {
+            short[] depth = new short[WIDTH * HEIGHT];
+            for (int i = 0; i < depth.length; i++) {
+                // Gaussian noise of 1 cm, and one in twenty pixels without depth
+                if (random.nextInt(20) != 0)
+                    depth[i] = (short) Math.round((truth[i] * UNITS + random.nextGaussian() * 0.01) / UNITS);
+            }
+            deprojector.setDepth(ShortBuffer.wrap(depth), UNITS);
+            volume.integrate(deprojector, NEAR_Z, FAR_Z);
+        }
+        assertEquals(30, volume.getFrameCount());
+        assertEquals(0, volume.getDroppedBlocks());
+
+        short[] rendered = new short[WIDTH * HEIGHT];
+        volume.render(deprojector, NEAR_Z, FAR_Z, rendered);
+        final ShortBuffer lastFrame = deprojector.getDepthBuffer();
+        double fusedError = 0, rawError = 0;
+        int count = 0, rawCount = 0, missing = 0;
+        for (int i = 0; i < truth.length; i++) {
+            if (truth[i] * UNITS > FAR_Z)
+                continue;
+            if (lastFrame.get(i) != 0) {
+                final double raw = lastFrame.get(i) - truth[i];
+                rawError += raw * raw;
+                rawCount++;
+            }
+            if (rendered[i] == 0) {
+                missing++;
+                continue;
+            }
+            final double fused = rendered[i] - truth[i];
+            fusedError += fused * fused;
+            count++;
+        }
+        final double fusedRms = Math.sqrt(fusedError / count);
+        final double rawRms = Math.sqrt(rawError / rawCount);
+        assertEquals("raw error in mm", 10, rawRms, 1);
+        assertTrue("fused error " + fusedRms + " mm", fusedRms < 3.5);
+        // the trunk is covered, apart from the pixels at its grazing edges
+        assertTrue("missing " + missing, missing < count / 100);
+    }
+
+    @Test
+    public void render_afterResetFindsNothing() {
+        Deprojector deprojector = SyntheticTrunk.deprojector(SyntheticTrunk.depth(RADIUS));
+        TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, BLOCK_BUDGET);
+        volume.integrate(deprojector, NEAR_Z, FAR_Z);
+        assertTrue(volume.getBlockCount() > 0);
+
+        volume.reset();
+        assertEquals(0, volume.getBlockCount());
+        assertEquals(0, volume.getFrameCount());
+        short[] rendered = new short[WIDTH * HEIGHT];
+        volume.render(deprojector, NEAR_Z, FAR_Z, rendered);
+        for (short value : rendered)
+            assertEquals(0, value);
+    }
+
+    @Test
+    public void integrate_keepsBlockBudget() {
+        Deprojector deprojector = SyntheticTrunk.deprojector(SyntheticTrunk.depth(RADIUS));
+        TsdfVolume volume = new TsdfVolume(VOXEL_SIZE, TRUNCATION, 100);
+        volume.integrate(deprojector, NEAR_Z, FAR_Z);
+        assertEquals(100, volume.getBlockCount());
+        assertTrue(volume.getDroppedBlocks() > 0);
+    }
+}
@@ -0,0 +1,156 @@
+package com.bridgewiz.realsensecombined;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares {@link VoxelDownsampler} with a HashMap of the voxel coordinates
+ */
+public class VoxelDownsamplerTest {
+
+    private static final float LEAF_SIZE = 0.05f;
+
+    @Test
+    public void centroid_matchesReference() {
+        ArraySource source = randomCloud(20000);
+        VoxelDownsampler downsampler = new VoxelDownsampler(LEAF_SIZE, VoxelDownsampler.Mode.CENTROID);
+        Map<String, double[]> reference = voxels(source);
+        assertEquals(reference.size(), downsampler.downsample(source));
+
+        int total = 0;
+        for (int i = 0; i < downsampler.getCount(); i++) {
+            final double[] sums = reference.get(key(downsampler.getX(i), downsampler.getY(i), downsampler.getZ(i)));
+            assertNotNull("centroid outside its voxel", sums);
+            assertEquals((int) sums[3], downsampler.getVoxelCount(i));
+            assertEquals(sums[0] / sums[3], downsampler.getX(i), 1e-5);
+            assertEquals(sums[1] / sums[3], downsampler.getY(i), 1e-5);
+            assertEquals(sums[2] / sums[3], downsampler.getZ(i), 1e-5);
+            total += downsampler.getVoxelCount(i);
+        }
+        assertEquals(source.validCount, total);
+    }
+
+    @Test
+    public void first_keepsFirstVertex() {
+        ArraySource source = randomCloud(20000);
+        VoxelDownsampler downsampler = new VoxelDownsampler(LEAF_SIZE, VoxelDownsampler.Mode.FIRST);
+        downsampler.downsample(source);
+        Map<String, Integer> first = new HashMap<>();
+        for (int i = 0; i < source.getCount(); i++) {
+            if (source.getZ(i) != 0 && !first.containsKey(key(source.getX(i), source.getY(i), source.getZ(i))))
+                first.put(key(source.getX(i), source.getY(i), source.getZ(i)), i);
+        }
+        assertEquals(first.size(), downsampler.getCount());
+        for (int i = 0; i < downsampler.getCount(); i++) {
+            final int index = first.get(key(downsampler.getX(i), downsampler.getY(i), downsampler.getZ(i)));
+            assertEquals(source.getX(index), downsampler.getX(i), 0);
+            assertEquals(source.getY(index), downsampler.getY(i), 0);
+            assertEquals(source.getZ(index), downsampler.getZ(i), 0);
+        }
+    }
+
+    @Test
+    public void downsample_reusesOutput() {
+        VoxelDownsampler downsampler = new VoxelDownsampler(LEAF_SIZE, VoxelDownsampler.Mode.CENTROID);
+        downsampler.downsample(randomCloud(20000));
+        // a smaller cloud afterwards; the counts of the previous call should not leak
+        ArraySource source = new ArraySource(new float[]{0.01f, 0.2f, 0.02f}, new float[]{0, 0, 0},
+                new float[]{1, 1, 0});
+        assertEquals(2, downsampler.downsample(source));
+        assertEquals(1, downsampler.getVoxelCount(0));
+        assertEquals(0.01f, downsampler.getX(0), 0);
+        assertEquals(1, downsampler.getVoxelCount(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsInvalidLeafSize() {
+        new VoxelDownsampler(Float.NaN, VoxelDownsampler.Mode.FIRST);
+    }
+
+    private static ArraySource randomCloud(final int n) {
+        Random random = new Random(17);
+        float[] xs = new float[n];
+        float[] ys = new float[n];
+        float[] zs = new float[n];
+        for (int i = 0; i < n; i++) {
+            // a tenth of the vertices without depth data
+            if (random.nextInt(10) == 0)
+                continue;
+            zs[i] = 1 + random.nextFloat() * 0.5f;
+            xs[i] = (random.nextFloat() - 0.5f) * zs[i];
+            ys[i] = (random.nextFloat() - 0.5f) * zs[i];
+        }
+        return new ArraySource(xs, ys, zs);
+    }
+
+    /**
+     * Coordinate sums and vertex count of each voxel of the valid vertices
+     */
+    private static Map<String, double[]> voxels(final ArraySource source) {
+        Map<String, double[]> voxels = new HashMap<>();
+        for (int i = 0; i < source.getCount(); i++) {
+            final float z = source.getZ(i);
+            if (z == 0)
+                continue;
+            double[] sums = voxels.get(key(source.getX(i), source.getY(i), z));
+            if (sums == null) {
+                sums = new double[4];
+                voxels.put(key(source.getX(i), source.getY(i), z), sums);
+            }
+            sums[0] += source.getX(i);
+            sums[1] += source.getY(i);
+            sums[2] += z;
+            sums[3]++;
+        }
+        return voxels;
+    }
+
+    private static String key(final float x, final float y, final float z) {
+        final float inverseLeaf = 1 / LEAF_SIZE;
+        return (int) Math.floor(x * inverseLeaf) + "," + (int) Math.floor(y * inverseLeaf) + "," + (int) Math.floor(z * inverseLeaf);
+    }
+
+    private static class ArraySource implements VertexSource {
+
+        private final float[] xs;
+        private final float[] ys;
+        private final float[] zs;
+        private final int validCount;
+
+        ArraySource(final float[] xs, final float[] ys, final float[] zs) {
+            this.xs = xs;
+            this.ys = ys;
+            this.zs = zs;
+            int count = 0;
+            for (float z : zs)
+                if (z != 0)
+                    count++;
+            validCount = count;
+        }
+
+        @Override
+        public int getCount() {
+            return zs.length;
+        }
+
+        @Override
+        public float getX(final int index) {
+            return xs[index];
+        }
+
+        @Override
+        public float getY(final int index) {
+            return ys[index];
+        }
+
+        @Override
+        public float getZ(final int index) {
+            return zs[index];
+        }
+    }
+}